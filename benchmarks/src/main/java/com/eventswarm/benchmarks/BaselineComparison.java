@@ -0,0 +1,109 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command line tool comparing two sets of JMH results in JSON format (i.e. produced using <code>-rf json</code>)
+ *
+ * Results are matched on benchmark, mode and parameters, and the relative change in score is reported for each.
+ * A change is flagged as a regression if throughput falls, or average time rises, by more than the threshold
+ * percentage (default 10%). The process exits with status 1 if any regressions are found so that it can be used as a
+ * release gate.
+ *
+ * Usage: <code>BaselineComparison baseline.json current.json [thresholdPercent]</code>
+ */
+public class BaselineComparison {
+    public static final double DEFAULT_THRESHOLD = 10.0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison baseline.json current.json [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String,JSONObject> baseline = load(args[0]);
+        Map<String,JSONObject> current = load(args[1]);
+        int regressions = 0;
+        for (Map.Entry<String,JSONObject> entry : current.entrySet()) {
+            JSONObject was = baseline.get(entry.getKey());
+            JSONObject now = entry.getValue();
+            String unit = now.getJSONObject("primaryMetric").getString("scoreUnit");
+            double nowScore = score(now);
+            if (was == null) {
+                System.out.println(String.format("NEW        %s: %.3f %s", entry.getKey(), nowScore, unit));
+            } else {
+                double wasScore = score(was);
+                double change = 100.0 * (nowScore - wasScore) / wasScore;
+                // for throughput, bigger is better, for everything else (times) smaller is better
+                boolean worse = "thrpt".equals(now.getString("mode")) ? change < -threshold : change > threshold;
+                if (worse) regressions++;
+                System.out.println(String.format("%-10s %s: %.3f -> %.3f %s (%+.1f%%)",
+                        worse ? "REGRESSION" : "ok", entry.getKey(), wasScore, nowScore, unit, change));
+            }
+        }
+        System.out.println(Integer.toString(regressions) + " regression(s) exceeding " + Double.toString(threshold) + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Load a JMH JSON result file into a map keyed by benchmark, mode and parameters
+     */
+    static Map<String,JSONObject> load(String filename) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+        JSONArray results = new JSONArray(text);
+        Map<String,JSONObject> map = new LinkedHashMap<String,JSONObject>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            map.put(key(result), result);
+        }
+        return map;
+    }
+
+    /**
+     * Build a key for a result from the benchmark name, mode and sorted parameters
+     */
+    static String key(JSONObject result) {
+        StringBuilder key = new StringBuilder(result.getString("benchmark"));
+        key.append(" [").append(result.getString("mode")).append("]");
+        JSONObject params = result.optJSONObject("params");
+        if (params != null) {
+            Map<String,String> sorted = new TreeMap<String,String>();
+            Iterator<String> names = params.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                sorted.put(name, params.get(name).toString());
+            }
+            key.append(" ").append(sorted.toString());
+        }
+        return key.toString();
+    }
+
+    static double score(JSONObject result) {
+        return result.getJSONObject("primaryMetric").getDouble("score");
+    }
+}
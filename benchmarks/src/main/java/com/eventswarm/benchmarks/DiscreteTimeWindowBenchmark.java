@@ -0,0 +1,73 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.DiscreteTimeWindow;
+import com.eventswarm.eventset.EventRingBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for <code>DiscreteTimeWindow.execute</code>, including expiry of events from the head of the window
+ *
+ * The window size is expressed as the number of in-order events held by the window (events are spaced one second
+ * apart). Late events are up to half a window late, so they are inserted into the window rather than discarded.
+ * The window can use either the default TreeSet storage or EventRingBuffer storage (<code>storage</code> parameter).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiscreteTimeWindowBenchmark {
+    public static final int LENGTH = 20000;
+
+    @Param({"JDO", "JSON"})
+    public EventStreams.Type type;
+
+    @Param({"100", "10000"})
+    public int windowSize;
+
+    @Param({"0.0", "0.1"})
+    public double outOfOrder;
+
+    @Param({"tree", "ring"})
+    public String storage;
+
+    private Event[] events;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        events = EventStreams.generate(type, LENGTH, 1, outOfOrder, windowSize * EventStreams.SPACING / 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public DiscreteTimeWindow execute() {
+        DiscreteTimeWindow window = new DiscreteTimeWindow(windowSize);
+        if ("ring".equals(storage)) {
+            window.setStorage(new EventRingBuffer());
+        }
+        for (Event event : events) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        return window;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.EventSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for adding events to a plain EventSet (i.e. <code>EventSet.addEvent</code> via the AddEventAction)
+ *
+ * Each invocation adds a complete pre-generated stream to a new EventSet, so scores are per event added.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventSetBenchmark {
+    public static final int LENGTH = 10000;
+
+    @Param({"JDO", "JSON"})
+    public EventStreams.Type type;
+
+    @Param({"0.0", "0.1"})
+    public double outOfOrder;
+
+    private Event[] events;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        events = EventStreams.generate(type, LENGTH, 1, outOfOrder, 10 * EventStreams.SPACING);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public EventSet addEvent() {
+        EventSet set = new EventSet();
+        for (Event event : events) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Generator for synthetic event streams used by the benchmarks.
+ *
+ * Streams are generated up-front so that event construction (UUID generation, JSON building etc) is not included in
+ * the measured time. Each event is spaced <code>SPACING</code> milliseconds after its predecessor and carries a key
+ * (as the event source and, for JSON events, a <code>key</code> field) drawn from a fixed set of
+ * <code>keys</code> values. A configurable proportion of events is delivered late, that is, with a timestamp up to
+ * <code>maxLateness</code> milliseconds before the timestamp it would otherwise have had.
+ *
+ * Generation is deterministic for a given seed so that results are comparable between runs.
+ */
+public class EventStreams {
+    /** Spacing between consecutive in-order events in milliseconds */
+    public static final long SPACING = 1000;
+
+    /** Fixed seed used by the benchmarks so that streams are identical across runs and releases */
+    public static final long SEED = 20070430L;
+
+    /** Start time for generated streams */
+    public static final long START = 1000000000000L;
+
+    /** Type of event to generate */
+    public enum Type { JDO, JSON }
+
+    private EventStreams() {
+        super();
+    }
+
+    /**
+     * Generate a stream of events
+     *
+     * @param type type of event to generate
+     * @param length number of events in the stream
+     * @param keys number of distinct key values (key cardinality)
+     * @param outOfOrder proportion of events (0.0 to 1.0) that are delivered late
+     * @param maxLateness maximum lateness of a late event in milliseconds
+     * @param seed seed for the random number generator
+     * @return array of generated events in delivery order
+     */
+    public static Event[] generate(Type type, int length, int keys, double outOfOrder, long maxLateness, long seed) {
+        Random random = new Random(seed);
+        Event[] events = new Event[length];
+        JdoSource[] sources = new JdoSource[keys];
+        for (int k = 0; k < keys; k++) {
+            sources[k] = new JdoSource(key(k));
+        }
+        for (int i = 0; i < length; i++) {
+            long time = START + i * SPACING;
+            if (maxLateness > 0 && random.nextDouble() < outOfOrder) {
+                time -= 1 + (long) (random.nextDouble() * maxLateness);
+            }
+            int k = random.nextInt(keys);
+            JdoHeader header = new JdoHeader(new Date(time), i, sources[k]);
+            if (type == Type.JSON) {
+                JSONObject json = new JSONObject();
+                json.put("key", key(k));
+                json.put("seq", i);
+                json.put("value", random.nextInt(1000));
+                events[i] = new OrgJsonEvent(header, json);
+            } else {
+                events[i] = new JdoEvent(header, new HashMap<String,EventPart>());
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Generate a stream of events using the standard seed
+     */
+    public static Event[] generate(Type type, int length, int keys, double outOfOrder, long maxLateness) {
+        return generate(type, length, keys, outOfOrder, maxLateness, SEED);
+    }
+
+    /**
+     * @return the key string used for key number <code>k</code>
+     */
+    public static String key(int k) {
+        return "key-" + Integer.toString(k);
+    }
+}
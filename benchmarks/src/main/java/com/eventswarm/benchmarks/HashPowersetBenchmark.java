@@ -0,0 +1,114 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.DiscreteTimeWindow;
+import com.eventswarm.eventset.EventSet;
+import com.eventswarm.powerset.EventKey;
+import com.eventswarm.powerset.EventSetFactory;
+import com.eventswarm.powerset.HashPowerset;
+import com.eventswarm.powerset.MailboxActionExecutor;
+import com.eventswarm.powerset.Powerset;
+import com.eventswarm.powerset.ShardedHashPowerset;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for <code>HashPowerset.execute</code> with a DiscreteTimeWindow per key
+ *
+ * Events are keyed on their source, so the key cardinality parameter determines the number of subsets. The window
+ * size is expressed as a number of in-order events of the whole stream (events are spaced one second apart).
+ *
+ * The shards parameter selects the implementation: 0 uses a HashPowerset fed from the benchmark thread, otherwise
+ * a ShardedHashPowerset with that many shards is used and the measurement includes waiting for all shards to finish.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashPowersetBenchmark {
+    public static final int LENGTH = 20000;
+
+    @Param({"JDO", "JSON"})
+    public EventStreams.Type type;
+
+    @Param({"10", "1000"})
+    public int keys;
+
+    @Param({"1000"})
+    public int windowSize;
+
+    @Param({"0.0", "0.1"})
+    public double outOfOrder;
+
+    @Param({"0", "4"})
+    public int shards;
+
+    private Event[] events;
+    private EventKey<String> sourceKey;
+    private EventSetFactory<String> factory;
+    private MailboxActionExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        events = EventStreams.generate(type, LENGTH, keys, outOfOrder, 10 * EventStreams.SPACING);
+        sourceKey = new EventKey<String>() {
+            public String getKey(Event event) {
+                return event.getHeader().getSource().getSourceId();
+            }
+        };
+        factory = new EventSetFactory<String>() {
+            public EventSet createEventSet(Powerset<String> pset, String key) {
+                return new DiscreteTimeWindow(windowSize);
+            }
+        };
+        if (shards > 0) {
+            executor = new MailboxActionExecutor();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        if (executor != null) {
+            executor.stop();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public Powerset<String> execute() throws InterruptedException {
+        if (shards > 0) {
+            ShardedHashPowerset<String> powerset =
+                    new ShardedHashPowerset<String>(factory, sourceKey, shards, executor);
+            for (Event event : events) {
+                powerset.execute((AddEventTrigger) null, event);
+            }
+            powerset.flush();
+            return powerset;
+        } else {
+            HashPowerset<String> powerset = new HashPowerset<String>(factory, sourceKey);
+            for (Event event : events) {
+                powerset.execute((AddEventTrigger) null, event);
+            }
+            return powerset;
+        }
+    }
+}
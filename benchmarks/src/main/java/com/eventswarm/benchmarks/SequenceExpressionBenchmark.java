@@ -0,0 +1,101 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.benchmarks;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventAction;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.DiscreteTimeWindow;
+import com.eventswarm.expressions.EventExpression;
+import com.eventswarm.expressions.EventMatcherExpression;
+import com.eventswarm.expressions.Matcher;
+import com.eventswarm.expressions.SequenceExpression;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for a SequenceExpression fed from a DiscreteTimeWindow, so that both match and removal paths are
+ * exercised.
+ *
+ * Component <code>i</code> of the sequence matches events with <code>sequenceNumber % length == i</code>, so every
+ * event matches exactly one component and complete sequences are matched regularly.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SequenceExpressionBenchmark {
+    public static final int LENGTH = 10000;
+
+    @Param({"JDO", "JSON"})
+    public EventStreams.Type type;
+
+    @Param({"2", "4"})
+    public int sequenceLength;
+
+    @Param({"100"})
+    public int windowSize;
+
+    @Param({"0.0", "0.1"})
+    public double outOfOrder;
+
+    private Event[] events;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        events = EventStreams.generate(type, LENGTH, 1, outOfOrder, 10 * EventStreams.SPACING);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public SequenceExpression execute() {
+        List<EventExpression> parts = new ArrayList<EventExpression>(sequenceLength);
+        for (int i = 0; i < sequenceLength; i++) {
+            parts.add(new EventMatcherExpression(new SequenceNumberMatcher(sequenceLength, i)));
+        }
+        SequenceExpression sequence = new SequenceExpression(parts);
+        DiscreteTimeWindow window = new DiscreteTimeWindow(windowSize);
+        window.registerAction((AddEventAction) sequence);
+        window.registerAction((RemoveEventAction) sequence);
+        for (Event event : events) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        return sequence;
+    }
+
+    /**
+     * Matcher for events where the sequence number modulo <code>modulus</code> equals <code>remainder</code>
+     */
+    public static class SequenceNumberMatcher implements Matcher {
+        private int modulus;
+        private int remainder;
+
+        public SequenceNumberMatcher(int modulus, int remainder) {
+            this.modulus = modulus;
+            this.remainder = remainder;
+        }
+
+        public boolean matches(Event event) {
+            return event.getHeader().getSequenceNumber() % modulus == remainder;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.eventswarm;
+
+import com.eventswarm.events.Event;
+
+import java.util.List;
+
+/**
+ * Interface for actions that can process a batch of events removed in a single
+ * operation by an upstream abstraction, for example, the events expired from
+ * the head of a time window when the window is advanced.
+ *
+ * Batch actions are registered using the normal RemoveEventTrigger registration
+ * methods: a trigger that implements RemoveEventsBatchTrigger will call this
+ * method once for each batch instead of calling the single event method for
+ * each event in the batch. Triggers that don't support batches will continue
+ * to call the single event method, so implementations must support both.
+ */
+public interface RemoveEventsBatchAction extends RemoveEventAction {
+
+        public static Class<?> trigger = RemoveEventsBatchTrigger.class;
+
+        /**
+         * Process a batch of removed events.
+         *
+         * The events are delivered in set order and represent a contiguous range
+         * of the upstream set at the time of removal. The list should not be
+         * modified by the action.
+         *
+         * @param trigger Trigger that removed the events
+         * @param events Ordered list of removed events
+         */
+        public void execute(RemoveEventsBatchTrigger trigger, List<Event> events);
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.eventswarm;
+
+/**
+ * Trigger implemented by abstractions that remove a range of events in a single
+ * operation, for example, a time window expiring events from its head.
+ *
+ * Actions registered against this trigger using
+ * {@link #registerAction(RemoveEventAction)} that also implement
+ * RemoveEventsBatchAction receive each batch of removed events through a single
+ * call. Other actions receive one call per removed event as usual.
+ */
+public interface RemoveEventsBatchTrigger extends RemoveEventTrigger {
+
+    public static Class<?> action = RemoveEventsBatchAction.class;
+
+}
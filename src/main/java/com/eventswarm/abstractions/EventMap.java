@@ -17,10 +17,19 @@ package com.eventswarm.abstractions;
 
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.events.Event;
+import com.eventswarm.util.ChangeLog;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
+import com.eventswarm.util.Checkpointable;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Maintain a hash of map keyed by the value returned by a keyRetriever.
@@ -38,10 +47,13 @@ import java.util.HashMap;
  * Created with IntelliJ IDEA.
  * User: andyb
  */
-public class EventMap<T> extends MutableAbstractionImpl {
+public class EventMap<T> extends MutableAbstractionImpl implements RemoveEventsBatchAction, Checkpointable {
     private ValueRetriever<T> keyRetriever;
     private HashMap<T,Event> map;
 
+    /** Changes since the last checkpoint capture, null until the map is first captured or restored */
+    private transient ChangeLog changes = null;
+
     private static Logger logger = Logger.getLogger(EventMap.class);
 
     /**
@@ -69,6 +81,7 @@ public class EventMap<T> extends MutableAbstractionImpl {
         T key = keyRetriever.getValue(event);
         if (key != null) {
             map.put(key, event);
+            if (changes != null) changes.added(event, map.size());
             // tell our listeners, if any
             super.execute(trigger, event);
         }
@@ -92,6 +105,7 @@ public class EventMap<T> extends MutableAbstractionImpl {
         if (key != null) {
             if (map.get(key) == event) {
                 map.remove(key);
+                if (changes != null) changes.removed(event, map.size());
             } else {
                 logger.debug ("Not removing: a different event has this key");
             }
@@ -100,6 +114,33 @@ public class EventMap<T> extends MutableAbstractionImpl {
         }
     }
 
+    /**
+     * Remove a batch of events from the hash, then notify listeners of each event removed
+     *
+     * Each event is removed using the same rules as single event removal.
+     *
+     * @param trigger
+     * @param events
+     */
+    public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+        boolean[] keyed = new boolean[events.size()];
+        for (int i = 0; i < keyed.length; i++) {
+            Event event = events.get(i);
+            T key = keyRetriever.getValue(event);
+            if (key != null) {
+                keyed[i] = true;
+                if (map.get(key) == event) {
+                    map.remove(key);
+                    if (changes != null) changes.removed(event, map.size());
+                }
+            }
+        }
+        // tell our listeners, if any
+        for (int i = 0; i < keyed.length; i++) {
+            if (keyed[i]) super.execute(trigger, events.get(i));
+        }
+    }
+
     /**
      * Return the map maintained by this abstraction
      *
@@ -117,10 +158,101 @@ public class EventMap<T> extends MutableAbstractionImpl {
         this.map = map;
     }
 
+    /**
+     * Capture the events in the map for a checkpoint
+     *
+     * Keys are not written: they are extracted again using the keyRetriever on restore.
+     *
+     * @return
+     */
+    public State capture() {
+        final List<Event> events = new ArrayList<Event>(map.values());
+        changes = new ChangeLog();
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeEvents(events);
+            }
+        };
+    }
+
+    /**
+     * Capture the events put into and removed from the map since the previous capture
+     *
+     * If there are more changes than events in the map, the full map is captured instead.
+     *
+     * @return
+     */
+    public State captureDelta() {
+        final ChangeLog delta = changes;
+        if (delta == null || delta.isOverflow()) {
+            final State full = capture();
+            return new State() {
+                public void write(CheckpointWriter out) throws IOException {
+                    out.writeBoolean(true);
+                    full.write(out);
+                }
+            };
+        }
+        changes = new ChangeLog();
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeBoolean(false);
+                delta.write(out);
+            }
+        };
+    }
+
+    /**
+     * Restore the map from a checkpoint without notifying listeners
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void restore(CheckpointReader in) throws IOException {
+        map.clear();
+        for (Event event : in.readEvents()) {
+            T key = keyRetriever.getValue(event);
+            if (key != null) {
+                map.put(key, event);
+            }
+        }
+        changes = new ChangeLog();
+    }
+
+    /**
+     * Apply changes captured by captureDelta to the restored map without notifying listeners
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void restoreDelta(CheckpointReader in) throws IOException {
+        if (in.readBoolean()) {
+            restore(in);
+            return;
+        }
+        ChangeLog.replay(in, new ChangeLog.Target() {
+            public void added(Event event) {
+                T key = keyRetriever.getValue(event);
+                if (key != null) {
+                    map.put(key, event);
+                }
+            }
+
+            public void removed(Event event) {
+                T key = keyRetriever.getValue(event);
+                if (key != null && map.get(key) == event) {
+                    map.remove(key);
+                }
+            }
+        });
+        changes = new ChangeLog();
+    }
+
     /**
      * Clear the hash of map held in this abstraction
      */
     public void clear() {
         this.map.clear();
+        this.changes = null;
     }
 }
@@ -33,12 +33,14 @@ package com.eventswarm.abstractions;
 import org.apache.log4j.*;
 import com.eventswarm.*;
 import com.eventswarm.events.Event;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 
 public abstract class MutableCalculationAbstractionImpl
         extends CalculationAbstractionImpl
-        implements MutableCalculationAbstraction
+        implements MutableCalculationAbstraction, RemoveEventsBatchAction
 {
     /** action sets for listeners */
     protected Set<ValueRemoveAction> valueRemoveActions = 
@@ -68,12 +70,51 @@ public abstract class MutableCalculationAbstractionImpl
         }
     }
 
+    /**
+     * Remove a batch of events, recalculating once for the batch then notifying listeners for each removed event.
+     *
+     * Events that were added before the last reset are ignored, as for single event removal.
+     *
+     * @param trigger
+     * @param events
+     */
+    public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+        List<Event> included = new ArrayList<Event>(events.size());
+        for (Event event : events) {
+            if (this.lastReset.compareTo(event.getHeader().getTimestamp()) <= 0) {
+                included.add(event);
+            }
+        }
+        if (!included.isEmpty()) {
+            Number prev = this.value;
+            this.calculateRemove(included);
+            boolean changed = (prev != this.value);
+            for (Event event : included) {
+                this.fireRemove(event, changed);
+            }
+        }
+    }
+
     /**
      * Subclasses must provide a method to recalculate when remove is called.
      * 
      * @param event
      */
     protected abstract void calculateRemove(Event event);
+
+    /**
+     * Recalculate when a batch of events is removed.
+     *
+     * The default implementation calls calculateRemove for each event, subclasses can override this if the
+     * calculation for a batch can be done more efficiently.
+     *
+     * @param events
+     */
+    protected void calculateRemove(List<Event> events) {
+        for (Event event : events) {
+            this.calculateRemove(event);
+        }
+    }
     
     public void registerAction(ValueRemoveAction action) {
         this.valueRemoveActions.add(action);
@@ -36,8 +36,9 @@ import java.util.Set;
  * Keep track of the rate of events arriving and generate rate events for downstream components wanting to
  * act on rate thresholds etc.
  * 
- * This class uses a ClockedDiscreteTimeWindow operating off the internal system clock. The window sampling frequency
- * is controlled by the 'tickInterval' parameter. Rate events are generated for a threshold number of ticks.
+ * This class uses a ClockedTimeWindow operating off the shared system clock (see SharedClock), so rate abstractions
+ * with the same tick interval share a single tick. The window sampling frequency is controlled by the 'tickInterval'
+ * parameter. Rate events are generated for a threshold number of ticks.
  *
  * The rate will be zero (undefined) and no rate events will be generated until the time window has been filled.
  * 
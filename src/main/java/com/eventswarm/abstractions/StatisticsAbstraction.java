@@ -17,11 +17,18 @@ package com.eventswarm.abstractions;
 
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.events.Event;
 import com.eventswarm.expressions.Value;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
+import com.eventswarm.util.Checkpointable;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -41,7 +48,8 @@ import java.util.Map;
  * Created with IntelliJ IDEA.
  * User: andyb
  */
-public class StatisticsAbstraction extends MutableAbstractionImpl implements MutableCalculationSetAbstraction {
+public class StatisticsAbstraction extends MutableAbstractionImpl
+        implements MutableCalculationSetAbstraction, RemoveEventsBatchAction, Checkpointable {
 
     /**
      * Hold a reference to the value retriever method for events that will be delivered
@@ -101,17 +109,55 @@ public class StatisticsAbstraction extends MutableAbstractionImpl implements Mut
 
     @Override
     public void execute(RemoveEventTrigger trigger, Event event) {
-        // calculate decremental stats according to Knuth's method
-        Number value = retriever.getValue(event);
-        if (value != null && count > 0) {
-            Double oldValue = value.doubleValue();
-            calcRemove(oldValue);
-            if (count > 0) calcVariance();
+        if (removeValue(event)) {
+            calcVariance();
             // tell listeners if we've updated
             fire(trigger, event);
         }
     }
 
+    /**
+     * Remove a batch of events in one pass, only calculating the variance once all values have been removed
+     *
+     * Listeners are notified for each removed event after the calculation is complete.
+     *
+     * @param trigger Trigger that removed the events
+     * @param events Ordered list of removed events
+     */
+    public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+        int removed = 0;
+        boolean[] changed = new boolean[events.size()];
+        for (int i = 0; i < changed.length; i++) {
+            if (removeValue(events.get(i))) {
+                changed[i] = true;
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            calcVariance();
+            for (int i = 0; i < changed.length; i++) {
+                if (changed[i]) fire(trigger, events.get(i));
+            }
+        }
+    }
+
+    /**
+     * Remove the value of an event from the mean and sum of squares according to Knuth's method, without
+     * recalculating the variance.
+     *
+     * @param event Event to be removed
+     * @return true if the event contributed a value that has been removed
+     */
+    protected boolean removeValue(Event event) {
+        Number value = retriever.getValue(event);
+        if (value != null && count > 0) {
+            calcRemove(value.doubleValue());
+            return true;
+        } else {
+            return false;
+        }
+    }
+
     /**
      * Recalculate variance based on new count, mean and sum-of-delta's squared
      */
@@ -233,6 +279,39 @@ public class StatisticsAbstraction extends MutableAbstractionImpl implements Mut
         this.variance = 0.0;
     }
 
+    /**
+     * Capture the current calculation state for a checkpoint
+     *
+     * @return
+     */
+    public State capture() {
+        final int count = this.count;
+        final double mean = this.mean, sumDSquared = this.sumDSquared, variance = this.variance, stdDev = this.stdDev;
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeInt(count);
+                out.writeDouble(mean);
+                out.writeDouble(sumDSquared);
+                out.writeDouble(variance);
+                out.writeDouble(stdDev);
+            }
+        };
+    }
+
+    /**
+     * Restore calculation state from a checkpoint without notifying listeners
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void restore(CheckpointReader in) throws IOException {
+        this.count = in.readInt();
+        this.mean = in.readDouble();
+        this.sumDSquared = in.readDouble();
+        this.variance = in.readDouble();
+        this.stdDev = in.readDouble();
+    }
+
     /**
      * Makes this abstraction available for recycling, synonym for reset in this case.
      */
@@ -17,13 +17,19 @@ package com.eventswarm.abstractions;
 
 import com.eventswarm.events.Event;
 import com.eventswarm.expressions.Value;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
+import com.eventswarm.util.Checkpointable;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Created with IntelliJ IDEA.
  * User: andyb
  */
-public class SumAbstraction extends MutableCalculationAbstractionImpl implements Value<Number> {
+public class SumAbstraction extends MutableCalculationAbstractionImpl implements Value<Number>, Checkpointable {
     private ValueRetriever<Number> retriever;
     private static Logger logger = Logger.getLogger(SumAbstraction.class);
 
@@ -44,6 +50,21 @@ public class SumAbstraction extends MutableCalculationAbstractionImpl implements
         this.value = this.value.doubleValue() - this.retriever.getValue(event).doubleValue();
     }
 
+    /**
+     * Subtract the sum of the batch from the current sum in a single update
+     *
+     * @param events
+     */
+    @Override
+    protected void calculateRemove(List<Event> events) {
+        double removed = 0.0;
+        for (Event event : events) {
+            removed += this.retriever.getValue(event).doubleValue();
+        }
+        logger.debug("Removing " + Double.toString(removed) + " from " + this.value.toString());
+        this.value = this.value.doubleValue() - removed;
+    }
+
     @Override
     protected void calculate(Event event) {
         logger.debug("Adding " + this.retriever.getValue(event).toString() + " to " + this.value.toString());
@@ -54,4 +75,17 @@ public class SumAbstraction extends MutableCalculationAbstractionImpl implements
     public void reset() {
         this.value = new Double(0.0);
     }
+
+    public State capture() {
+        final double sum = this.value.doubleValue();
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeDouble(sum);
+            }
+        };
+    }
+
+    public void restore(CheckpointReader in) throws IOException {
+        this.value = in.readDouble();
+    }
 }
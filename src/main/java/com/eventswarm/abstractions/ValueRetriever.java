@@ -29,6 +29,10 @@ import java.util.Date;
  *
  * The method should return null if the event type is not recognised.
  *
+ * Retrievers that read the same value should be equal, with a matching hashCode. EventMatcherIndex groups matchers
+ * by retriever, so equal retrievers are called once per event however many matchers use them. The retrievers
+ * provided by CSVEvent and JsonEvent are equal when they are of the same class and read the same key or path.
+ *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
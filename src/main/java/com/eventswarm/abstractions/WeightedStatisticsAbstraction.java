@@ -16,7 +16,6 @@
 package com.eventswarm.abstractions;
 
 import com.eventswarm.AddEventTrigger;
-import com.eventswarm.RemoveEventTrigger;
 import com.eventswarm.events.Event;
 import org.apache.log4j.Logger;
 
@@ -78,7 +77,7 @@ public class WeightedStatisticsAbstraction extends StatisticsAbstraction {
     }
 
     @Override
-    public void execute(RemoveEventTrigger trigger, Event event) {
+    protected boolean removeValue(Event event) {
         // calculate decremental stats according to Knuth's method
         Double newValue = valueRetriever.getValue(event).doubleValue();
         Integer weight = weightRetriever.getValue(event).intValue();
@@ -87,9 +86,9 @@ public class WeightedStatisticsAbstraction extends StatisticsAbstraction {
             for (int i = 0; i < weight && count > 0; i++) {
                 calcRemove(newValue);
             }
-            if (count > 0) calcVariance();
-            // let the parent class tell listeners that we've updated
-            super.fire(trigger, event);
+            return true;
+        } else {
+            return false;
         }
     }
 
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.abstractions.ValueRetriever;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.jdo.ExceptionErrorEvent;
+import com.eventswarm.events.jdo.UrlConnectionErrorEvent;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output channel that sends serialized events via HTTP without blocking the calling thread, batching many events
+ * into each POST.
+ *
+ * The HttpSender opens a connection, writes a single event and waits for the response on the pipeline thread, so a
+ * slow receiver stalls the pipeline and every event pays a round trip. This class instead serializes each event on
+ * the calling thread (so serializer errors are reported immediately) and adds it to a bounded queue. A fixed number
+ * of sender threads (the in-flight window) take all queued events, up to the maximum batch size, and POST them in a
+ * single request body, with events separated by a newline (i.e. NDJSON if the serializer produces JSON). Consecutive
+ * events for the same URL share a request.
+ *
+ * Response bodies are read fully so that the JDK can keep connections alive and re-use them for subsequent
+ * requests. Note that the JDK keeps at most 5 idle connections per destination by default (see the http.maxConnections
+ * system property), so an in-flight window larger than this will open new connections.
+ *
+ * If the queue is full, the calling thread blocks until there is space (back-pressure). Use setOfferTimeout to
+ * instead drop events after a timeout: each dropped event is reported as an ExceptionErrorEvent.
+ *
+ * Errors are delivered through the AddEventTrigger interface as for the HttpSender: a UrlConnectionErrorEvent for
+ * each request that receives a non-2xx response, and an ExceptionErrorEvent for local IO and other errors. Note that
+ * errors for requests are delivered on a sender thread, so registered actions must be thread safe. An error applies
+ * to all events in the failed request: use getFailedCount to determine the number of events lost.
+ *
+ * Use flush to wait for queued events to be sent, and stop to flush and shut down the sender threads.
+ */
+public class AsyncHttpSender extends HttpSender {
+    /** Default number of concurrent requests */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    /** Default maximum number of queued events */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Default maximum number of events in a single request */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /** Content type for newline-delimited JSON */
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private static final byte[] SEPARATOR = {'\n'};
+
+    private final BlockingQueue<Pending> queue;
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final Object idle = new Object();
+    private final int maxInFlight;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long offerTimeout = -1;
+    private volatile boolean stopped = false;
+
+    private static Logger logger = Logger.getLogger(AsyncHttpSender.class);
+
+    /**
+     * Create a sender posting NDJSON to the supplied URL with the default in-flight window and queue capacity
+     *
+     * @param serializer
+     * @param url
+     */
+    public AsyncHttpSender(Serializer serializer, URL url) {
+        this(serializer, NDJSON_CONTENT_TYPE, url, DEFAULT_MAX_IN_FLIGHT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a sender posting to the supplied URL with the specified in-flight window and queue capacity
+     *
+     * @param serializer
+     * @param contentType content type for request bodies containing multiple events
+     * @param url
+     * @param maxInFlight maximum number of concurrent requests
+     * @param queueCapacity maximum number of events waiting to be sent
+     */
+    public AsyncHttpSender(Serializer serializer, String contentType, URL url, int maxInFlight, int queueCapacity) {
+        super(serializer, contentType, url);
+        this.maxInFlight = maxInFlight;
+        this.queue = new ArrayBlockingQueue<Pending>(queueCapacity);
+        this.executor = start(maxInFlight);
+    }
+
+    /**
+     * Create a sender posting to a per-event URL with the specified in-flight window and queue capacity
+     *
+     * @param serializer
+     * @param contentType content type for request bodies containing multiple events
+     * @param urlRetriever
+     * @param maxInFlight maximum number of concurrent requests
+     * @param queueCapacity maximum number of events waiting to be sent
+     */
+    public AsyncHttpSender(Serializer serializer, String contentType, ValueRetriever<URL> urlRetriever,
+                           int maxInFlight, int queueCapacity) {
+        super(serializer, contentType, urlRetriever);
+        this.maxInFlight = maxInFlight;
+        this.queue = new ArrayBlockingQueue<Pending>(queueCapacity);
+        this.executor = start(maxInFlight);
+    }
+
+    /**
+     * When an event is added, serialize it and queue it for sending
+     *
+     * @param trigger
+     * @param event
+     */
+    @Override
+    public void execute(AddEventTrigger trigger, Event event) {
+        try {
+            URL target = getUrlRetriever().getValue(event);
+            if (target == null) {
+                throw new IllegalArgumentException("No URL for event " + event.getHeader().getEventId());
+            }
+            enqueue(new Pending(target, getSerializer().toBytes(event)));
+        } catch (Serializer.SerializeException exc) {
+            // this will happen if serialization fails, e.g. a JSON serializer is applied to an XML event
+            logger.error(exc);
+            fire(new ExceptionErrorEvent(exc));
+        } catch (IllegalArgumentException exc) {
+            logger.error(exc);
+            fire(new ExceptionErrorEvent(exc));
+        }
+    }
+
+    /**
+     * Wait until all queued events have been sent (or have failed)
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if there are no pending events
+     * @throws InterruptedException
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (idle) {
+            long remaining = timeout;
+            while (pending.get() > 0 && remaining > 0) {
+                idle.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        return pending.get() == 0;
+    }
+
+    /**
+     * Stop accepting events, wait up to <code>timeout</code> milliseconds for queued events to be sent, then
+     * shut down the sender threads
+     *
+     * Events still queued after the timeout are discarded and included in the failed count.
+     *
+     * @param timeout
+     * @return true if all queued events were sent before shutdown
+     * @throws InterruptedException
+     */
+    public boolean stop(long timeout) throws InterruptedException {
+        logger.info("Stopping sender and flushing queued events");
+        stopped = true;
+        boolean flushed = flush(timeout);
+        executor.shutdownNow();
+        List<Pending> discarded = new ArrayList<Pending>();
+        queue.drainTo(discarded);
+        if (!discarded.isEmpty()) {
+            logger.warn("Discarding " + Integer.toString(discarded.size()) + " queued events on shutdown");
+            failed.addAndGet(discarded.size());
+            done(discarded.size());
+        }
+        return flushed;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return number of events queued or in an in-flight request
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of events delivered with a successful response
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of events dropped or included in a failed request
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of requests made
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the maximum number of events included in a single request
+     *
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    /**
+     * Set the maximum time in milliseconds that execute will wait for space in the queue before dropping an event
+     *
+     * A negative value (the default) waits indefinitely.
+     *
+     * @param offerTimeout
+     */
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    private ExecutorService start(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Must allow at least 1 request in flight");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncHttpSender-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < maxInFlight; i++) {
+            executor.execute(new Worker());
+        }
+        return executor;
+    }
+
+    private void enqueue(Pending item) {
+        if (stopped) {
+            drop(new IllegalStateException("Sender has been stopped"));
+            return;
+        }
+        pending.incrementAndGet();
+        try {
+            if (offerTimeout < 0) {
+                queue.put(item);
+            } else if (!queue.offer(item, offerTimeout, TimeUnit.MILLISECONDS)) {
+                done(1);
+                drop(new IOException("Send queue full, event dropped"));
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            done(1);
+            drop(exc);
+        }
+    }
+
+    private void drop(Exception exc) {
+        logger.error(exc);
+        failed.incrementAndGet();
+        fire(new ExceptionErrorEvent(exc));
+    }
+
+    private void done(int count) {
+        if (pending.addAndGet(-count) == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Send a batch of events, with consecutive events for the same URL sharing a request
+     *
+     * @param batch
+     */
+    private void send(List<Pending> batch) {
+        int from = 0;
+        while (from < batch.size()) {
+            URL target = batch.get(from).url;
+            int to = from + 1;
+            // compare external forms, since URL.equals resolves host names
+            String form = target.toExternalForm();
+            while (to < batch.size() && form.equals(batch.get(to).url.toExternalForm())) {
+                to++;
+            }
+            post(target, batch, from, to);
+            from = to;
+        }
+    }
+
+    private void post(URL target, List<Pending> batch, int from, int to) {
+        int count = to - from;
+        requests.incrementAndGet();
+        try {
+            HttpURLConnection connection = setupConnection(target);
+            long length = 0;
+            for (int i = from; i < to; i++) {
+                length += batch.get(i).data.length + SEPARATOR.length;
+            }
+            connection.setFixedLengthStreamingMode(length);
+            OutputStream out = connection.getOutputStream();
+            for (int i = from; i < to; i++) {
+                out.write(batch.get(i).data);
+                out.write(SEPARATOR);
+            }
+            out.close();
+            int code = connection.getResponseCode();
+            logger.debug("HTTP POST of " + Integer.toString(count) + " events returned with " + Integer.toString(code) + " response");
+            if (code < 200 || code > 299) {
+                failed.addAndGet(count);
+                // read the whole error response so the connection can be re-used
+                InputStream error = connection.getErrorStream();
+                String message = error != null ? new String(drain(error), charset(connection)) : connection.getResponseMessage();
+                fire(new UrlConnectionErrorEvent(code, message, connection.getHeaderFields(), target));
+            } else {
+                // read all the data so the connection can be re-used
+                drain(connection.getInputStream());
+                sent.addAndGet(count);
+            }
+        } catch (IOException exc) {
+            // create an exception error event and pass it onwards
+            logger.error(exc);
+            failed.addAndGet(count);
+            fire(new ExceptionErrorEvent(exc));
+        }
+    }
+
+    /**
+     * Return the character set of a response, defaulting to UTF-8 if none is specified or it is not supported
+     *
+     * @param connection
+     * @return response charset
+     */
+    private static Charset charset(HttpURLConnection connection) {
+        String type = connection.getContentType();
+        if (type != null) {
+            for (String param : type.split(";")) {
+                String[] pair = param.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException exc) {
+                        logger.debug("Unsupported response charset " + pair[1] + ", using UTF-8");
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Read a response stream to the end and close it
+     *
+     * @param in
+     * @return the data read
+     * @throws IOException
+     */
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                result.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Sender thread: takes all queued events up to the batch size and sends them
+     */
+    private class Worker implements Runnable {
+        public void run() {
+            List<Pending> batch = new ArrayList<Pending>();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    try {
+                        send(batch);
+                    } catch (RuntimeException exc) {
+                        logger.error("Unexpected error sending events", exc);
+                        failed.addAndGet(batch.size());
+                        fire(new ExceptionErrorEvent(exc));
+                    } finally {
+                        done(batch.size());
+                        batch.clear();
+                    }
+                }
+            } catch (InterruptedException exc) {
+                logger.debug("Sender thread stopped");
+            }
+        }
+    }
+
+    /**
+     * A serialized event waiting to be sent
+     */
+    private static class Pending {
+        final URL url;
+        final byte[] data;
+
+        Pending(URL url, byte[] data) {
+            this.url = url;
+            this.data = data;
+        }
+    }
+}
@@ -54,6 +54,7 @@ import java.text.ParseException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CSVChannel extends AbstractChannel {
 
@@ -71,7 +72,8 @@ public class CSVChannel extends AbstractChannel {
     private DateFormat timestampFormat;
     private transient boolean defaultMap = true;
     protected static Logger logger = Logger.getLogger(CSVChannel.class);
-    private transient Map<String,Source> sourceCache;
+    private transient ConcurrentHashMap<String,Source> sourceCache;
+    private transient ThreadLocal<DateFormat> localFormat;
 
     protected CSVChannel() {
         super();
@@ -123,7 +125,7 @@ public class CSVChannel extends AbstractChannel {
         this.istr = istr;
         this.fieldNames = fieldNames;
         this.fieldMap = fieldMap;
-        this.sourceCache = new HashMap<String,Source>();
+        this.sourceCache = new ConcurrentHashMap<String,Source>();
     }
 
     /**
@@ -176,6 +178,14 @@ public class CSVChannel extends AbstractChannel {
         if (fieldNames == null) {
             this.fieldNames = reader.readNext();
         }
+        initFields();
+    }
+
+    /**
+     * Create the default field map if required and find the source and timestamp fields, once the field names are
+     * known
+     */
+    protected void initFields() {
         if (fieldMap == null) {
             defaultMap = true;
             fieldMap = new HashMap<String,Integer>();
@@ -264,10 +274,15 @@ public class CSVChannel extends AbstractChannel {
 
     private Source getCachedSource(String[] fields) {
         String name = getSource(fields);
-        if (!sourceCache.containsKey(name)) {
-            sourceCache.put(name, new JdoSource(name));
+        Source source = sourceCache.get(name);
+        if (source == null) {
+            source = new JdoSource(name);
+            Source existing = sourceCache.putIfAbsent(name, source);
+            if (existing != null) {
+                source = existing;
+            }
         }
-        return sourceCache.get(name);
+        return source;
     }
 
     /**
@@ -276,14 +291,16 @@ public class CSVChannel extends AbstractChannel {
      * It uses a specified field value parsed using the timestampFormat if defined, or the current system
      * timestamp otherwise.
      *
-     * This method can be overridden by child classes if desired.
+     * This method can be overridden by child classes if desired. Since DateFormat instances are not thread safe,
+     * each thread parses with its own copy of the timestampFormat, so that events can be created concurrently
+     * (see MappedCSVChannel). Overriding methods must also be thread safe.
      *
      * @param fields the CSV field values from which the event will be created
      */
     protected long getTimestamp(String[] fields) {
         try {
             if (timestampIdx >= 0 && timestampFormat != null) {
-                return timestampFormat.parse(fields[timestampIdx]).getTime();
+                return localFormat.get().parse(fields[timestampIdx]).getTime();
             }
         } catch (java.text.ParseException pe) {
             logger.warn("Error parsing timestamp: ", pe);
@@ -327,9 +344,22 @@ public class CSVChannel extends AbstractChannel {
     public CSVChannel setTimestampField(String name, DateFormat timestampFormat) {
         this.timestampField = name;
         this.timestampFormat = timestampFormat;
+        this.localFormat = new ThreadLocal<DateFormat>() {
+            @Override
+            protected DateFormat initialValue() {
+                return (DateFormat) CSVChannel.this.timestampFormat.clone();
+            }
+        };
         return this;
     }
 
+    /**
+     * @return true if event timestamps are parsed from a field rather than taken from the system clock
+     */
+    protected boolean hasTimestampField() {
+        return timestampIdx >= 0 && timestampFormat != null;
+    }
+
     /**
      * Returns the index of the field name matching the supplied name or -1 if not found
      *
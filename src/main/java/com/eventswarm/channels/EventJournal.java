@@ -0,0 +1,244 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.serialization.BinarySerializer;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Append-only event journal that writes serialized events to memory-mapped segment files in a directory.
+ *
+ * Each event is serialized as a self-contained record (by default using the BinarySerializer), tagged with the event
+ * timestamp and appended to the current segment. When a segment is full, a new segment is started, so the journal
+ * can be trimmed by deleting old segment files. Every <code>indexInterval</code> bytes, an entry is added to a sparse
+ * index file for the segment, allowing a JournalChannel to seek to a time without reading the whole journal. See
+ * JournalSegment for details of the file format.
+ *
+ * Use this class as an AddEventAction to journal events from a channel or other trigger. Serialization errors are
+ * logged and counted but otherwise ignored, while IO errors are logged and counted with the event being lost.
+ * Records are written to the file system cache when appended: use flush to force them to disk.
+ *
+ * Opening a journal on an existing directory continues appending to the last segment. Only one EventJournal should
+ * write to a directory at a time, but JournalChannel instances can read it concurrently.
+ */
+public class EventJournal implements AddEventAction, Closeable {
+    /** Default segment file size */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Default number of bytes between index entries */
+    public static final int DEFAULT_INDEX_INTERVAL = 64 * 1024;
+
+    private final File directory;
+    private final Serializer serializer;
+    private final int segmentSize;
+    private final int indexInterval;
+    private JournalSegment active;
+    private DataOutputStream index;
+    private int lastIndexed;
+    private long count = 0;
+    private int errorCount = 0;
+    private boolean closed = false;
+
+    private static Logger logger = Logger.getLogger(EventJournal.class);
+
+    /**
+     * Open a journal in the supplied directory using binary serialization and the default segment size
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public EventJournal(File directory) throws IOException {
+        this(directory, new BinarySerializer(), DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Open a journal in the supplied directory, creating the directory if required
+     *
+     * The serializer must produce self-contained content for each event, that is, it must not depend on previously
+     * serialized events.
+     *
+     * @param directory
+     * @param serializer
+     * @param segmentSize size of each segment file in bytes
+     * @param indexInterval approximate number of bytes between index entries
+     * @throws IOException
+     */
+    public EventJournal(File directory, Serializer serializer, int segmentSize, int indexInterval) throws IOException {
+        if (segmentSize <= JournalSegment.HEADER_SIZE + JournalSegment.RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory.getPath());
+        }
+        this.directory = directory;
+        this.serializer = serializer;
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        open();
+    }
+
+    /**
+     * Append the event to the journal
+     *
+     * @param trigger
+     * @param event
+     */
+    public synchronized void execute(AddEventTrigger trigger, Event event) {
+        try {
+            append(event);
+        } catch (Serializer.SerializeException exc) {
+            errorCount++;
+            logger.error("Unable to serialize event for journal", exc);
+        } catch (IOException exc) {
+            errorCount++;
+            logger.error("Unable to write event to journal", exc);
+        }
+    }
+
+    /**
+     * Append the event to the journal, throwing any errors
+     *
+     * @param event
+     * @throws Serializer.SerializeException
+     * @throws IOException
+     */
+    public synchronized void append(Event event) throws Serializer.SerializeException, IOException {
+        if (closed) {
+            throw new IOException("Journal has been closed");
+        }
+        byte[] data = serializer.toBytes(event);
+        if (data.length == 0) {
+            throw new Serializer.SerializeException("Serializer returned no content");
+        }
+        long timestamp = event.getHeader().getTimestampMillis();
+        int position = active.getEnd();
+        long prefixMax = active.getMaxTimestamp();
+        if (!active.append(timestamp, data)) {
+            roll(data.length);
+            position = active.getEnd();
+            active.append(timestamp, data);
+        }
+        if (lastIndexed < 0 || position - lastIndexed >= indexInterval) {
+            index.writeLong(prefixMax);
+            index.writeInt(position);
+            lastIndexed = position;
+        }
+        count++;
+    }
+
+    /**
+     * Force appended records and index entries to disk
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            active.force();
+            index.flush();
+        }
+    }
+
+    /**
+     * Flush and close the journal
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            flush();
+            index.close();
+            active.release();
+            closed = true;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return number of events appended by this instance
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getIndexInterval() {
+        return indexInterval;
+    }
+
+    /**
+     * Open the last segment for appending, or create the first segment
+     */
+    private void open() throws IOException {
+        List<JournalSegment> segments = JournalSegment.list(directory);
+        if (segments.isEmpty()) {
+            active = JournalSegment.create(directory, 0, segmentSize, Long.MIN_VALUE);
+            lastIndexed = -1;
+        } else {
+            long priorMax = Long.MIN_VALUE;
+            if (segments.size() > 1) {
+                priorMax = segments.get(segments.size() - 2).readMaxTimestamp();
+            }
+            active = segments.get(segments.size() - 1);
+            active.openForAppend(priorMax);
+            // drop any partially written index entry
+            long indexLength = active.indexFile.length();
+            if (indexLength % JournalSegment.INDEX_ENTRY_SIZE != 0) {
+                RandomAccessFile raf = new RandomAccessFile(active.indexFile, "rw");
+                try {
+                    raf.setLength(indexLength - indexLength % JournalSegment.INDEX_ENTRY_SIZE);
+                } finally {
+                    raf.close();
+                }
+            }
+            lastIndexed = indexLength < JournalSegment.INDEX_ENTRY_SIZE ? -1 : active.getEnd();
+            logger.info("Appending to journal segment " + active.file.getPath() + " at position " + active.getEnd());
+        }
+        index = openIndex(active);
+    }
+
+    /**
+     * Close the active segment and start a new one big enough for a record of the specified length
+     */
+    private void roll(int length) throws IOException {
+        index.close();
+        active.release();
+        int size = Math.max(segmentSize, JournalSegment.HEADER_SIZE + JournalSegment.RECORD_HEADER_SIZE + length);
+        active = JournalSegment.create(directory, active.number + 1, size, active.getMaxTimestamp());
+        index = openIndex(active);
+        lastIndexed = -1;
+        logger.debug("Started journal segment " + active.file.getPath());
+    }
+
+    private static DataOutputStream openIndex(JournalSegment segment) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.indexFile, true)));
+    }
+}
@@ -39,7 +39,7 @@ public class EventSetChannel extends AbstractChannel {
 
     @Override
     public void setup() throws Exception {
-        Iterator<Event> iterator = events.iterator();
+        iterator = events.iterator();
     }
 
     @Override
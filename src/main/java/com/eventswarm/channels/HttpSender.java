@@ -30,8 +30,8 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Output channel for sending serialized events via HTTP to a specified URL.
@@ -70,7 +70,7 @@ public class HttpSender implements AddEventTrigger, AddEventAction {
         this.contentType = contentType;
         this.url = url;
         this.urlRetriever = new ValueRetriever<URL>() {public URL getValue(Event event) {return getUrl();}};
-        this.actions = new HashSet<AddEventAction>();
+        this.actions = new CopyOnWriteArraySet<AddEventAction>();
         this.connection = null;
     }
 
@@ -78,7 +78,7 @@ public class HttpSender implements AddEventTrigger, AddEventAction {
         this.serializer = serializer;
         this.contentType = contentType;
         this.urlRetriever = urlRetriever;
-        this.actions = new HashSet<AddEventAction>();
+        this.actions = new CopyOnWriteArraySet<AddEventAction>();
         this.connection = null;
     }
 
@@ -147,7 +147,7 @@ public class HttpSender implements AddEventTrigger, AddEventAction {
      * @param url
      * @return HttpURLConnection object
      */
-    private HttpURLConnection setupConnection(URL url) throws IOException {
+    protected HttpURLConnection setupConnection(URL url) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setDoOutput(true);
         connection.setRequestMethod(METHOD);
@@ -165,6 +165,15 @@ public class HttpSender implements AddEventTrigger, AddEventAction {
         actions.remove(action);
     }
 
+    /**
+     * Return the retriever used to determine the URL for each event
+     *
+     * @return
+     */
+    protected ValueRetriever<URL> getUrlRetriever() {
+        return urlRetriever;
+    }
+
     public Serializer getSerializer() {
         return serializer;
     }
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.serialization.BinaryDeserializer;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Channel that replays events from an EventJournal directory.
+ *
+ * By default, all events in the journal are replayed in the order they were appended. Use seek to start at a time:
+ * replay then starts at the first record (in append order) with a timestamp at or after that time, and all
+ * following records are replayed, including any late events with earlier timestamps. The segment headers are used to
+ * skip whole segments and the sparse index to skip most of the starting segment, so seeking does not read earlier
+ * records.
+ *
+ * Records are read from memory-mapped segment files and deserialized using the supplied deserializer, which must
+ * match the serializer used to write the journal (by default, the BinaryDeserializer). Records that cannot be
+ * deserialized are counted as errors and skipped. Replay stops at the end of the journal as it was when each
+ * segment was reached, so it is safe to replay a journal while it is being written.
+ */
+public class JournalChannel extends AbstractChannel {
+    private final File directory;
+    private final Deserializer deserializer;
+    private int indexInterval = EventJournal.DEFAULT_INDEX_INTERVAL;
+    private long startTime = Long.MIN_VALUE;
+    private transient List<JournalSegment> segments;
+    private transient int segmentIndex;
+    private transient JournalSegment segment;
+    private transient int position;
+    private transient boolean skipping;
+
+    /**
+     * Create a channel replaying the journal in the supplied directory using the BinaryDeserializer
+     *
+     * @param directory
+     */
+    public JournalChannel(File directory) {
+        this(directory, new BinaryDeserializer());
+    }
+
+    /**
+     * Create a channel replaying the journal in the supplied directory using the supplied deserializer
+     *
+     * @param directory
+     * @param deserializer
+     */
+    public JournalChannel(File directory, Deserializer deserializer) {
+        super();
+        this.directory = directory;
+        this.deserializer = deserializer;
+    }
+
+    /**
+     * Start replay at the first event with a timestamp at or after the supplied time
+     *
+     * Takes effect the next time the channel is processed.
+     *
+     * @param timestamp in milliseconds
+     */
+    public void seek(long timestamp) {
+        this.startTime = timestamp;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Set the index interval used if a missing or damaged index must be rebuilt
+     *
+     * @param indexInterval
+     */
+    public void setIndexInterval(int indexInterval) {
+        this.indexInterval = indexInterval;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        segments = JournalSegment.list(directory);
+        segmentIndex = 0;
+        skipping = startTime != Long.MIN_VALUE;
+        long priorMax = Long.MIN_VALUE;
+        if (skipping) {
+            // skip segments that only contain events before the start time
+            while (segmentIndex < segments.size() - 1) {
+                long max = segments.get(segmentIndex).readMaxTimestamp();
+                if (max >= startTime) break;
+                priorMax = max;
+                segmentIndex++;
+            }
+        }
+        if (segmentIndex < segments.size()) {
+            segment = segments.get(segmentIndex);
+            segment.openForRead();
+            position = skipping ? segment.seekPosition(startTime, priorMax, indexInterval) : JournalSegment.HEADER_SIZE;
+        } else {
+            segment = null;
+        }
+    }
+
+    @Override
+    public Event next() throws Exception {
+        while (segment != null) {
+            int length = segment.recordLength(position);
+            if (length < 0) {
+                nextSegment();
+            } else {
+                int current = position;
+                position += JournalSegment.RECORD_HEADER_SIZE + length;
+                if (skipping) {
+                    if (segment.recordTimestamp(current) < startTime) {
+                        continue;
+                    }
+                    skipping = false;
+                }
+                return deserializer.fromBytes(segment.recordData(current, length));
+            }
+        }
+        stop();
+        return null;
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if (segment != null) {
+            segment.release();
+            segment = null;
+        }
+        segments = null;
+    }
+
+    private void nextSegment() throws Exception {
+        segment.release();
+        segmentIndex++;
+        if (segmentIndex < segments.size()) {
+            segment = segments.get(segmentIndex);
+            segment.openForRead();
+            position = JournalSegment.HEADER_SIZE;
+        } else {
+            segment = null;
+        }
+    }
+}
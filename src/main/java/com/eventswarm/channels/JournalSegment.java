@@ -0,0 +1,360 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single memory-mapped segment file of an event journal, with its sparse timestamp index.
+ *
+ * A segment file has a 16 byte header followed by records:
+ *
+ * {@code
+ * header := magic:int version:int maxTimestamp:long
+ * record := length:int timestamp:long data:byte[length]
+ * }
+ *
+ * The header maxTimestamp is the maximum record timestamp in this and all preceding segments, so it never decreases
+ * from one segment to the next. Segment files are pre-allocated, and the end of the records is marked by a zero length
+ * (or the end of the file). Records are written data first and length last, so a reader never sees a partial record.
+ *
+ * The sparse index is a separate file of (prefixMax:long, position:int) entries, where prefixMax is the maximum
+ * timestamp of all records in the journal before the record at position. Since prefixMax never decreases, a binary
+ * search finds the last indexed position before which all records are earlier than a given time. The index file is
+ * only a hint: if it is missing or damaged, it is rebuilt by scanning record headers.
+ */
+class JournalSegment {
+    static final int MAGIC = 0x45534a31; // "ESJ1"
+    static final int VERSION = 1;
+    static final int MAX_TIMESTAMP_OFFSET = 8;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 12;
+    static final String SEGMENT_SUFFIX = ".journal";
+    static final String INDEX_SUFFIX = ".index";
+
+    private static Logger logger = Logger.getLogger(JournalSegment.class);
+
+    final long number;
+    final File file;
+    final File indexFile;
+    private ByteBuffer buffer;
+    private int end;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    private JournalSegment(File directory, long number) {
+        this.number = number;
+        String name = String.format("%020d", number);
+        this.file = new File(directory, name + SEGMENT_SUFFIX);
+        this.indexFile = new File(directory, name + INDEX_SUFFIX);
+    }
+
+    /**
+     * Return the existing segments in a directory in order
+     *
+     * @param directory
+     * @return
+     */
+    static List<JournalSegment> list(File directory) {
+        List<JournalSegment> segments = new ArrayList<JournalSegment>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        segments.add(new JournalSegment(directory, number));
+                    } catch (NumberFormatException exc) {
+                        logger.warn("Ignoring unexpected file in journal directory: " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(segments, new java.util.Comparator<JournalSegment>() {
+            public int compare(JournalSegment a, JournalSegment b) {
+                return Long.compare(a.number, b.number);
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * Create and map a new, empty segment file of the specified size
+     *
+     * @param directory
+     * @param number
+     * @param size
+     * @param priorMax maximum timestamp of records in preceding segments
+     * @return
+     * @throws IOException
+     */
+    static JournalSegment create(File directory, long number, int size, long priorMax) throws IOException {
+        JournalSegment segment = new JournalSegment(directory, number);
+        if (segment.file.exists()) {
+            throw new IOException("Journal segment already exists: " + segment.file.getPath());
+        }
+        segment.buffer = map(segment.file, size, FileChannel.MapMode.READ_WRITE);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.setMaxTimestamp(priorMax);
+        segment.end = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Map an existing segment for appending, recovering the end position and maximum timestamp by scanning
+     *
+     * @param priorMax maximum timestamp of records in preceding segments
+     * @throws IOException
+     */
+    void openForAppend(long priorMax) throws IOException {
+        buffer = map(file, (int) Math.min(file.length(), Integer.MAX_VALUE), FileChannel.MapMode.READ_WRITE);
+        checkHeader();
+        maxTimestamp = priorMax;
+        end = scan(HEADER_SIZE, priorMax, null, 0);
+        buffer.putLong(MAX_TIMESTAMP_OFFSET, maxTimestamp);
+    }
+
+    /**
+     * Map an existing segment for reading
+     *
+     * @throws IOException
+     */
+    void openForRead() throws IOException {
+        buffer = map(file, (int) Math.min(file.length(), Integer.MAX_VALUE), FileChannel.MapMode.READ_ONLY);
+        checkHeader();
+        maxTimestamp = buffer.getLong(MAX_TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Read the maximum timestamp from the segment header without mapping the file
+     *
+     * @return
+     * @throws IOException
+     */
+    long readMaxTimestamp() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a journal segment: " + file.getPath());
+            }
+            in.readInt();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Append a record if there is room in this segment
+     *
+     * @param timestamp
+     * @param data
+     * @return true if the record was appended, false if the segment is full
+     */
+    boolean append(long timestamp, byte[] data) {
+        int required = RECORD_HEADER_SIZE + data.length;
+        if (end + required > buffer.capacity()) {
+            return false;
+        }
+        buffer.putLong(end + 4, timestamp);
+        ByteBuffer target = buffer.duplicate();
+        target.position(end + RECORD_HEADER_SIZE);
+        target.put(data);
+        // publish the record by writing its length last
+        buffer.putInt(end, data.length);
+        end += required;
+        if (timestamp > maxTimestamp) {
+            setMaxTimestamp(timestamp);
+        }
+        return true;
+    }
+
+    /**
+     * Return the position from which to scan for the first record with a timestamp at or after the supplied time
+     *
+     * Uses the index file if possible, otherwise scans record headers.
+     *
+     * @param timestamp
+     * @param priorMax maximum timestamp of records in preceding segments
+     * @param interval index interval used if the index must be rebuilt
+     * @return
+     */
+    int seekPosition(long timestamp, long priorMax, int interval) {
+        List<long[]> entries = readIndex();
+        if (entries == null) {
+            entries = new ArrayList<long[]>();
+            scan(HEADER_SIZE, priorMax, entries, interval);
+        }
+        int low = 0;
+        int high = entries.size() - 1;
+        int position = HEADER_SIZE;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long[] entry = entries.get(mid);
+            if (entry[0] < timestamp) {
+                position = (int) entry[1];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Scan record headers from the supplied position, updating the maximum timestamp and optionally adding index
+     * entries every <code>interval</code> bytes
+     *
+     * @return position after the last complete record
+     */
+    private int scan(int position, long priorMax, List<long[]> entries, int interval) {
+        long max = priorMax;
+        int lastIndexed = -1;
+        int length;
+        while ((length = recordLength(position)) >= 0) {
+            if (entries != null && (lastIndexed < 0 || position - lastIndexed >= interval)) {
+                entries.add(new long[] {max, position});
+                lastIndexed = position;
+            }
+            max = Math.max(max, recordTimestamp(position));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        maxTimestamp = max;
+        return position;
+    }
+
+    /**
+     * Read the index file, returning null if it is missing or inconsistent
+     */
+    private List<long[]> readIndex() {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        List<long[]> entries = new ArrayList<long[]>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                long entryCount = indexFile.length() / INDEX_ENTRY_SIZE;
+                long lastMax = Long.MIN_VALUE;
+                int lastPosition = -1;
+                for (long i = 0; i < entryCount; i++) {
+                    long max = in.readLong();
+                    int position = in.readInt();
+                    if (max < lastMax || position <= lastPosition || recordLength(position) < 0) {
+                        logger.warn("Inconsistent journal index " + indexFile.getPath() + ", rebuilding");
+                        return null;
+                    }
+                    entries.add(new long[] {max, position});
+                    lastMax = max;
+                    lastPosition = position;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException exc) {
+            logger.warn("Unable to read journal index " + indexFile.getPath() + ", rebuilding", exc);
+            return null;
+        }
+        return entries;
+    }
+
+    /**
+     * Return the length of the record at the supplied position, or -1 if there is no complete record
+     */
+    int recordLength(int position) {
+        if (position < HEADER_SIZE || position + RECORD_HEADER_SIZE > buffer.limit()) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        return length;
+    }
+
+    long recordTimestamp(int position) {
+        return buffer.getLong(position + 4);
+    }
+
+    /**
+     * Copy the data of the record at the supplied position
+     */
+    byte[] recordData(int position, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER_SIZE);
+        source.get(data);
+        return data;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    void force() {
+        if (buffer instanceof MappedByteBuffer && !buffer.isReadOnly()) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Release the mapping, which is unmapped when garbage collected
+     */
+    void release() {
+        buffer = null;
+    }
+
+    private void setMaxTimestamp(long timestamp) {
+        maxTimestamp = timestamp;
+        buffer.putLong(MAX_TIMESTAMP_OFFSET, timestamp);
+    }
+
+    private void checkHeader() throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal segment: " + file.getPath());
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported journal segment version in " + file.getPath());
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY && raf.length() < size) {
+                raf.setLength(size);
+            }
+            // the mapping remains valid after the file is closed
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
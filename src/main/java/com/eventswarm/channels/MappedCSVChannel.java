@@ -0,0 +1,390 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.events.CSVEvent;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.util.Sequencer;
+import com.opencsv.CSVReader;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CSV channel for bulk ingest of large files that memory-maps the file and parses it in parallel.
+ *
+ * The file is split at record boundaries into chunks of roughly <code>chunkSize</code> bytes. Chunks are parsed on
+ * a pool of worker threads, each chunk producing a list of events sorted by timestamp (ties keep file order).
+ * Chunks are collected in batches of <code>threads</code> chunks, and the sorted chunk lists in each batch are merged
+ * by timestamp and file position before the events are fired. While a batch is being fired, the next batch is
+ * already being parsed. Archives are normally in time order, in which case the output is in time order overall. Out
+ * of order records are only reordered within a batch.
+ *
+ * If no timestamp field is set, timestamps come from the system clock when the event is fired, and events are fired
+ * in file order.
+ *
+ * Sequence numbers are assigned from the Sequencer as each event is fired rather than when it is parsed, since
+ * workers parse chunks concurrently. Events with the same timestamp are therefore numbered in the order they are
+ * fired, which is file order.
+ *
+ * Field names, field maps, source fields and timestamp fields behave as for CSVChannel, and records are parsed with
+ * the same CSVReader. Chunk boundaries are found by scanning for a newline or carriage return outside double quotes,
+ * so quoted fields can contain line breaks. Quotes escaped with a backslash are not supported in that case.
+ *
+ * Since the input is a file, the InputStream-based constructors of CSVChannel are not available.
+ */
+public class MappedCSVChannel extends CSVChannel {
+    /** default target chunk size in bytes */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private File file;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private Charset charset = Charset.defaultCharset();
+
+    private transient RandomAccessFile raf;
+    private transient FileChannel channel;
+    private transient ExecutorService executor;
+    private transient long position;
+    private transient long size;
+    private transient int chunkCount;
+    private transient Deque<Future<Chunk>> pending;
+    private transient Iterator<CSVEvent> current;
+
+    /**
+     * Create a channel for the file, using the first record as field names
+     *
+     * @param file
+     */
+    public MappedCSVChannel(File file) {
+        this(file, null, null);
+    }
+
+    /**
+     * Create a channel for the file with the supplied field names
+     *
+     * @param file
+     * @param fieldNames
+     */
+    public MappedCSVChannel(File file, String[] fieldNames) {
+        this(file, fieldNames, null);
+    }
+
+    /**
+     * Create a channel for the file with the supplied field names and field map (see CSVChannel)
+     *
+     * @param file
+     * @param fieldNames field names, or null to use the first record
+     * @param fieldMap map of field name to array index, or null to include all fields
+     */
+    public MappedCSVChannel(File file, String[] fieldNames, Map<String, Integer> fieldMap) {
+        super(null, fieldNames, fieldMap);
+        this.file = file;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of parser threads, which is also the number of chunks merged in each batch
+     *
+     * @return this
+     */
+    public MappedCSVChannel setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the target chunk size in bytes (chunks are extended to the end of the record that crosses the boundary)
+     *
+     * @return this
+     */
+    public MappedCSVChannel setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Set the character set of the file, which defaults to the platform default as for CSVChannel
+     *
+     * @return this
+     */
+    public MappedCSVChannel setCharset(Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        size = channel.size();
+        position = 0;
+        chunkCount = 0;
+        pending = new ArrayDeque<Future<Chunk>>();
+        current = null;
+        if (getFieldNames() == null) {
+            long end = boundary(0, 1);
+            String[] header = parse(0, end).readNext();
+            setFieldNames(header == null ? new String[0] : header);
+            position = end;
+        }
+        initFields();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MappedCSVChannel-" + file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Event next() throws Exception {
+        while (current == null || !current.hasNext()) {
+            if (!nextBatch()) {
+                stop();
+                return null;
+            }
+        }
+        return stamp(current.next());
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (raf != null) {
+            raf.close();
+        }
+    }
+
+    /**
+     * Assign the sequence number of an event, and its timestamp if there is no timestamp field, in firing order
+     */
+    private CSVEvent stamp(CSVEvent event) {
+        Header header = event.getHeader();
+        if (header instanceof JdoHeader) {
+            JdoHeader jdo = (JdoHeader) header;
+            if (!hasTimestampField()) {
+                jdo.setTimestampMillis(System.currentTimeMillis());
+            }
+            jdo.setSequenceNumber(Sequencer.getInstance().getNext(jdo.getTimestampMillis()));
+        }
+        return event;
+    }
+
+    /**
+     * Wait for the next batch of chunks and merge them, keeping the following batch in flight
+     *
+     * @return false if there are no more chunks
+     */
+    private boolean nextBatch() throws Exception {
+        submit(2 * threads);
+        if (pending.isEmpty()) {
+            return false;
+        }
+        List<Chunk> batch = new ArrayList<Chunk>(threads);
+        try {
+            for (int i = 0; i < threads && !pending.isEmpty(); i++) {
+                batch.add(pending.poll().get());
+            }
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            throw cause instanceof Exception ? (Exception) cause : exc;
+        }
+        submit(2 * threads);
+        current = merge(batch).iterator();
+        return true;
+    }
+
+    /**
+     * Find chunk boundaries and submit parse tasks until the target number of chunks is in flight
+     */
+    private void submit(int target) throws IOException {
+        while (pending.size() < target && position < size) {
+            final long start = position;
+            final long end = boundary(start, chunkSize);
+            final int index = chunkCount++;
+            position = end;
+            pending.add(executor.submit(new Callable<Chunk>() {
+                public Chunk call() throws Exception {
+                    return parseChunk(index, start, end);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Return the end of the first record ending at or after <code>start + target</code> bytes, or the end of the file
+     *
+     * Scans from the start of the chunk so that line breaks inside double quotes are skipped. A CR LF pair is kept
+     * together.
+     */
+    private long boundary(long start, long target) throws IOException {
+        boolean quoted = false;
+        long pos = start;
+        while (pos < size) {
+            long length = Math.min(size - pos, Math.max(target, 64 * 1024));
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(i);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && (b == '\n' || b == '\r') && pos + i + 1 - start >= target) {
+                    long end = pos + i + 1;
+                    if (b == '\r' && end < size && byteAt(end) == '\n') {
+                        end++;
+                    }
+                    return end;
+                }
+            }
+            pos += length;
+        }
+        return size;
+    }
+
+    private byte byteAt(long pos) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, 1).get(0);
+    }
+
+    /**
+     * Return a CSVReader over the decoded bytes between start and end
+     */
+    private CSVReader parse(long start, long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        CharBuffer chars = charset.decode(buffer);
+        return new CSVReader(new CharArrayReader(chars.array(), chars.arrayOffset(), chars.remaining()));
+    }
+
+    /**
+     * Parse a chunk into events sorted by timestamp, counting records that could not be converted
+     */
+    private Chunk parseChunk(int index, long start, long end) throws Exception {
+        CSVReader reader = parse(start, end);
+        List<CSVEvent> events = new ArrayList<CSVEvent>();
+        int errors = 0;
+        String[] values;
+        while ((values = reader.readNext()) != null) {
+            try {
+                events.add(createEvent(values));
+            } catch (Exception exc) {
+                errors++;
+                logger.error("Error creating event in chunk " + index, exc);
+            }
+        }
+        reader.close();
+        if (hasTimestampField()) {
+            // stable sort, so records with the same timestamp stay in file order
+            Collections.sort(events, new Comparator<CSVEvent>() {
+                public int compare(CSVEvent a, CSVEvent b) {
+                    long ta = a.getHeader().getTimestampMillis();
+                    long tb = b.getHeader().getTimestampMillis();
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+        }
+        return new Chunk(index, events, errors);
+    }
+
+    /**
+     * Merge the sorted chunk lists by timestamp, preferring earlier chunks for equal timestamps
+     */
+    private List<CSVEvent> merge(List<Chunk> batch) {
+        int total = 0;
+        for (Chunk chunk : batch) {
+            total += chunk.events.size();
+            errorCount += chunk.errors;
+        }
+        List<CSVEvent> result = new ArrayList<CSVEvent>(total);
+        if (!hasTimestampField() || batch.size() == 1) {
+            for (Chunk chunk : batch) {
+                result.addAll(chunk.events);
+            }
+            return result;
+        }
+        PriorityQueue<Chunk> heads = new PriorityQueue<Chunk>(batch.size());
+        for (Chunk chunk : batch) {
+            if (!chunk.events.isEmpty()) {
+                heads.add(chunk);
+            }
+        }
+        while (!heads.isEmpty()) {
+            Chunk chunk = heads.poll();
+            result.add(chunk.events.get(chunk.cursor++));
+            if (chunk.cursor < chunk.events.size()) {
+                heads.add(chunk);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parsed chunk, ordered by the timestamp of its next unmerged event and then by chunk index
+     */
+    private static class Chunk implements Comparable<Chunk> {
+        private final int index;
+        private final List<CSVEvent> events;
+        private final int errors;
+        private int cursor = 0;
+
+        private Chunk(int index, List<CSVEvent> events, int errors) {
+            this.index = index;
+            this.events = events;
+            this.errors = errors;
+        }
+
+        private long head() {
+            return events.get(cursor).getHeader().getTimestampMillis();
+        }
+
+        public int compareTo(Chunk other) {
+            long a = head();
+            long b = other.head();
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Source;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.FromJson;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.RawJsonEvent;
+import com.eventswarm.util.Sequencer;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Channel that reads a stream of JSON objects (e.g. newline-delimited JSON) and creates a RawJsonEvent for each
+ * object without parsing it into an org.json tree.
+ *
+ * The channel reads the stream into a reusable buffer and finds the end of each object by tracking nesting and
+ * string quoting, so each event costs one copy of its bytes plus the event and header. Objects can be separated by
+ * any whitespace, including newlines, or not separated at all. Anything other than whitespace between objects is
+ * skipped and reported as an error for the record.
+ *
+ * Like JsonEventFactory, the event source is taken from the <code>source</code> attribute of the object if present,
+ * otherwise a default source is used. Since reading the attribute requires indexing every event, a channel
+ * created with a fixed source name skips the attribute lookup. Events are timestamped with the current time.
+ */
+public class StreamingJsonChannel extends AbstractChannel {
+    /** default initial buffer size in bytes, the buffer grows to fit larger objects */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private transient InputStream stream;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private final Source defaultSource;
+    private final boolean sourceAttribute;
+
+    /**
+     * Create a channel that takes the source of each event from the source attribute if present
+     *
+     * @param stream
+     */
+    public StreamingJsonChannel(InputStream stream) {
+        this(stream, JdoSource.getLocalSource(), true);
+    }
+
+    /**
+     * Create a channel that uses the named source for every event
+     *
+     * @param stream
+     * @param source
+     */
+    public StreamingJsonChannel(InputStream stream, String source) {
+        this(stream, Sources.cache.getSourceByName(source), false);
+    }
+
+    private StreamingJsonChannel(InputStream stream, Source defaultSource, boolean sourceAttribute) {
+        super();
+        this.defaultSource = defaultSource;
+        this.sourceAttribute = sourceAttribute;
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+        setStream(stream);
+    }
+
+    /**
+     * Set or change the input stream used for reading JSON objects, discarding any buffered input
+     *
+     * @param stream
+     */
+    public void setStream(InputStream stream) {
+        this.stream = stream;
+        this.pos = 0;
+        this.limit = 0;
+        this.eof = false;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        // nothing to do here
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        // nothing to do here
+    }
+
+    /**
+     * Return an event for the next object in the stream, or null and stop at the end of the stream
+     *
+     * @throws JSONException if there is unexpected content between objects or an unterminated object at the end of
+     *                       the stream
+     */
+    @Override
+    public Event next() throws Exception {
+        if (!skipToObject()) {
+            stop();
+            return null;
+        }
+        int end = findEnd();
+        if (end < 0) {
+            // unterminated object: discard it and stop
+            int discarded = limit - pos;
+            pos = limit;
+            stop();
+            throw new JSONException("Unterminated JSON object of " + discarded + " bytes at end of stream");
+        }
+        byte[] bytes = new byte[end - pos];
+        System.arraycopy(buffer, pos, bytes, 0, bytes.length);
+        pos = end;
+        return makeEvent(bytes);
+    }
+
+    private Event makeEvent(byte[] bytes) {
+        RawJsonEvent event = new RawJsonEvent(null, bytes);
+        Source source = defaultSource;
+        if (sourceAttribute) {
+            Object name = event.get(FromJson.SOURCE_ATTRIBUTE_NAME);
+            if (name instanceof String) {
+                source = Sources.cache.getSourceByName((String) name);
+            }
+        }
+        long now = System.currentTimeMillis();
+        event.setHeader(new JdoHeader(now, Sequencer.getInstance().getNext(now), source));
+        return event;
+    }
+
+    /**
+     * Skip whitespace up to the start of the next object
+     *
+     * @return false if the end of the stream is reached
+     * @throws JSONException if non-whitespace content is skipped
+     */
+    private boolean skipToObject() throws IOException {
+        int skipped = 0;
+        while (true) {
+            while (pos < limit) {
+                byte b = buffer[pos];
+                if (b == '{') {
+                    if (skipped > 0) {
+                        throw new JSONException("Skipped " + skipped + " bytes of unexpected content between objects");
+                    }
+                    return true;
+                } else if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    skipped++;
+                }
+                pos++;
+            }
+            if (!fill()) {
+                if (skipped > 0) {
+                    stop();
+                    throw new JSONException("Skipped " + skipped + " bytes of unexpected content at end of stream");
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Find the end of the object starting at pos, reading more input as required
+     *
+     * Buffer refills can move the object to the start of the buffer, so scanning state is kept relative to pos.
+     *
+     * @return offset after the closing brace, or -1 if the stream ends first
+     */
+    private int findEnd() throws IOException {
+        int depth = 0;
+        byte quote = 0;
+        boolean escape = false;
+        int offset = 0;
+        while (true) {
+            for (int i = pos + offset; i < limit; i++) {
+                byte b = buffer[i];
+                if (quote != 0) {
+                    if (escape) {
+                        escape = false;
+                    } else if (b == '\\') {
+                        escape = true;
+                    } else if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            offset = limit - pos;
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Read more input, compacting the buffer and growing it if the current object fills it
+     *
+     * @return false if no more input is available
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        int read = stream.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+}
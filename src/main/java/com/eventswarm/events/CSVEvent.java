@@ -50,11 +50,31 @@ public interface CSVEvent extends Event {
     public Map<String, String> getCsvMap();
 
 
+    /**
+     * Base class for the retrievers below, holding the field name
+     */
+    public static abstract class KeyRetriever<T> implements ValueRetriever<T> {
+        protected final String key;
+
+        protected KeyRetriever(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && key.equals(((KeyRetriever<?>) o).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return getClass().hashCode() * 31 + key.hashCode();
+        }
+    }
+
     /**
      * Static ValueRetriever class to retrieve the string value of any key
      */
-    public static class CSVRetriever implements ValueRetriever<String> {
-        private String key;
+    public static class CSVRetriever extends KeyRetriever<String> {
 
         /**
          * Create a value retriever to retrieve 'key' values.
@@ -62,7 +82,7 @@ public interface CSVEvent extends Event {
          * @param key
          */
         public CSVRetriever(String key) {
-            this.key = key;
+            super(key);
         }
 
         public String getValue(Event event) {
@@ -75,8 +95,7 @@ public interface CSVEvent extends Event {
      *
      * For ease of use with statistics and other abstractions, this is a Number retriever rather than a Long retriever.
      */
-    public static class CSVLongRetriever implements ValueRetriever<Number> {
-        private String key;
+    public static class CSVLongRetriever extends KeyRetriever<Number> {
 
         /**
          * Create a value retriever to retrieve 'key' values.
@@ -84,7 +103,7 @@ public interface CSVEvent extends Event {
          * @param key
          */
         public CSVLongRetriever(String key) {
-            this.key = key;
+            super(key);
         }
 
         public Number getValue(Event event) {
@@ -106,8 +125,7 @@ public interface CSVEvent extends Event {
      *
      * For ease of use with statistics and other abstractions, this is a Number retriever rather than a Double retriever.
      */
-    public static class CSVDoubleRetriever implements ValueRetriever<Number> {
-        private String key;
+    public static class CSVDoubleRetriever extends KeyRetriever<Number> {
 
         /**
          * Create a value retriever to retrieve 'key' values.
@@ -115,7 +133,7 @@ public interface CSVEvent extends Event {
          * @param key
          */
         public CSVDoubleRetriever(String key) {
-            this.key = key;
+            super(key);
         }
 
         public Number getValue(Event event) {
@@ -71,7 +71,7 @@ public interface Event extends Comparable<Event> {
     // A millisecond timestamp retriever is stateless, so can be a single, constant instance
     public static final ValueRetriever<Long> TIMESTAMP_RETRIEVER_MS = new ValueRetriever<Long>() {
         public Long getValue(Event event) {
-            return event.getHeader().getTimestamp().getTime();
+            return event.getHeader().getTimestampMillis();
         }
     };
 
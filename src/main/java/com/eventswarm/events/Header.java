@@ -19,6 +19,14 @@ public interface Header extends EventPart {
 
   public java.util.Date getTimestamp();
 
+  /**
+   * Return the event timestamp as milliseconds since the epoch
+   *
+   * This is equivalent to <code>getTimestamp().getTime()</code> but should not allocate, so it is preferred
+   * for ordering and time window calculations.
+   */
+  public long getTimestampMillis();
+
   public Source getSource();
 
   public CausalityVector getCausality();
@@ -23,6 +23,10 @@ import org.apache.log4j.Logger;
  *
  * Simple paths using the PATH_SEPARATOR between name elements must be supported
  *
+ * The retrievers below compile their path once. Each can be created with <code>memoize</code> set, in which case it
+ * reads values through the per-event memo of the compiled path (see JsonPath.lookup), so memoizing retrievers for the
+ * same path share a single lookup on each event.
+ *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
@@ -73,19 +77,87 @@ public interface JsonEvent<Impl> extends Event {
 
     public Object get(String path);
 
+    /*
+     * Equivalent methods using a pre-compiled path. The defaults delegate to the String methods, so implementations
+     * should override them to avoid the cost of parsing the path string on each call.
+     */
+
+    public default int getInt(JsonPath path) {
+        return getInt(path.getPath());
+    }
+
+    public default boolean getBoolean(JsonPath path) {
+        return getBoolean(path.getPath());
+    }
+
+    public default double getDouble(JsonPath path) {
+        return getDouble(path.getPath());
+    }
+
+    public default long getLong(JsonPath path) {
+        return getLong(path.getPath());
+    }
+
+    public default String getString(JsonPath path) {
+        return getString(path.getPath());
+    }
+
+    public default boolean has(JsonPath path) {
+        return has(path.getPath());
+    }
+
+    public default Object get(JsonPath path) {
+        return get(path.getPath());
+    }
+
+    /**
+     * Base class for the retrievers below, holding the compiled path
+     */
+    public static abstract class PathRetriever<T> implements ValueRetriever<T> {
+        protected final JsonPath path;
+        protected final boolean memoize;
+
+        protected PathRetriever(String path, boolean memoize) {
+            this.path = JsonPath.compile(path);
+            this.memoize = memoize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && path.equals(((PathRetriever<?>) o).path);
+        }
+
+        @Override
+        public int hashCode() {
+            return getClass().hashCode() * 31 + path.hashCode();
+        }
+    }
+
     /**
      * Retriever class for retrieving integer attribute values
      */
-    public static class IntegerRetriever implements ValueRetriever<Integer> {
-        private String path;
+    public static class IntegerRetriever extends PathRetriever<Integer> {
 
         public IntegerRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public IntegerRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public Integer getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof Number) {
+                return ((Number) value).intValue();
+            } else if (value == null) {
+                return null;
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getInt(path) : null);
+                return ((JsonEvent<?>) event).getInt(path);
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -96,16 +168,28 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving long attribute values
      */
-    public static class LongRetriever implements ValueRetriever<Long> {
-        private String path;
+    public static class LongRetriever extends PathRetriever<Long> {
 
         public LongRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public LongRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public Long getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value == null) {
+                return null;
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getLong(path) : null);
+                return ((JsonEvent<?>) event).getLong(path);
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -116,16 +200,26 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving String attribute values
      */
-    public static class StringRetriever implements ValueRetriever<String> {
-        private String path;
+    public static class StringRetriever extends PathRetriever<String> {
 
         public StringRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public StringRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public String getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof String) {
+                return (String) value;
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getString(path) : null);
+                return ((JsonEvent<?>) event).getString(path);
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -136,16 +230,27 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving String attribute values folded to lower case for case-insensitive comparisons
      */
-    public static class DowncaseStringRetriever implements ValueRetriever<String> {
-        private String path;
+    public static class DowncaseStringRetriever extends PathRetriever<String> {
 
         public DowncaseStringRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public DowncaseStringRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public String getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof String) {
+                return ((String) value).toLowerCase();
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getString(path).toLowerCase() : null);
+                String string = ((JsonEvent<?>) event).getString(path);
+                return string == null ? null : string.toLowerCase();
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -156,16 +261,28 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving Double attribute values
      */
-    public static class DoubleRetriever implements ValueRetriever<Double> {
-        private String path;
+    public static class DoubleRetriever extends PathRetriever<Double> {
 
         public DoubleRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public DoubleRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public Double getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value == null) {
+                return null;
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getDouble(path) : null);
+                return ((JsonEvent<?>) event).getDouble(path);
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -176,16 +293,28 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving boolean attribute values
      */
-    public static class BooleanRetriever implements ValueRetriever<Boolean> {
-        private String path;
+    public static class BooleanRetriever extends PathRetriever<Boolean> {
 
         public BooleanRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public BooleanRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public Boolean getValue(Event event) {
+            if (!JsonEvent.class.isInstance(event)) {
+                return null;
+            }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            } else if (value == null) {
+                return null;
+            }
             try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).getBoolean(path) : null);
+                return ((JsonEvent<?>) event).getBoolean(path);
             } catch (Exception exc) {
                 logger.warn("Error retrieving value at path " + path, exc);
                 return null;
@@ -196,22 +325,22 @@ public interface JsonEvent<Impl> extends Event {
     /**
      * Retriever class for retrieving the string representation of an object at the specified path
      */
-    public static class ObjectAsStringRetriever implements ValueRetriever<String> {
-        private String path;
+    public static class ObjectAsStringRetriever extends PathRetriever<String> {
 
         public ObjectAsStringRetriever(String path) {
-            this.path = path;
+            this(path, false);
+        }
+
+        public ObjectAsStringRetriever(String path, boolean memoize) {
+            super(path, memoize);
         }
 
         public String getValue(Event event) {
-            try {
-                return (JsonEvent.class.isInstance(event) ? ((JsonEvent<?>) event).get(path).toString() : null);
-            } catch (Exception exc) {
-                logger.warn("Error retrieving value at path " + path, exc);
+            if (!JsonEvent.class.isInstance(event)) {
                 return null;
             }
+            Object value = path.lookup((JsonEvent<?>) event, memoize);
+            return value == null ? null : value.toString();
         }
     }
-
-
 }
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pre-compiled JsonEvent path, holding the path segments and leaf name so that JsonEvent implementations can
+ * navigate to a value without splitting the path string on every call.
+ *
+ * Paths use the JsonEvent.PATH_SEPARATOR between name elements. As for string paths, empty segments are ignored when
+ * navigating, so "/a" and "a" are equivalent.
+ *
+ * Compiled paths are immutable apart from a single-entry memo (see <code>lookup</code>) and are cached, so that
+ * <code>compile</code> returns the same instance for the same path string. Retrievers for the same path therefore
+ * share the memo.
+ */
+public final class JsonPath {
+    /** limit on the number of cached paths, beyond which compiled paths are not cached */
+    public static final int CACHE_LIMIT = 10000;
+
+    private static final ConcurrentMap<String, JsonPath> cache = new ConcurrentHashMap<String, JsonPath>();
+
+    private final String path;
+    private final String[] parents;
+    private final String leaf;
+    private volatile Memo memo;
+
+    private JsonPath(String path) {
+        this.path = path;
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int sep;
+        while ((sep = path.indexOf(JsonEvent.PATH_SEPARATOR, start)) != -1) {
+            if (sep > start) {
+                segments.add(path.substring(start, sep));
+            }
+            start = sep + 1;
+        }
+        this.parents = segments.toArray(new String[segments.size()]);
+        this.leaf = path.substring(start);
+    }
+
+    /**
+     * Return the compiled path for the supplied path string, using a cached instance if available
+     *
+     * @param path
+     * @return compiled path
+     */
+    public static JsonPath compile(String path) {
+        JsonPath result = cache.get(path);
+        if (result == null) {
+            result = new JsonPath(path);
+            if (cache.size() < CACHE_LIMIT) {
+                JsonPath existing = cache.putIfAbsent(path, result);
+                if (existing != null) {
+                    result = existing;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the path string this path was compiled from
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return names of the objects to navigate through before the leaf, excluding empty segments
+     */
+    public String[] getParents() {
+        return parents.clone();
+    }
+
+    /**
+     * @return number of objects to navigate through before the leaf
+     */
+    public int getDepth() {
+        return parents.length;
+    }
+
+    /**
+     * @param index
+     * @return name of the object at the specified depth
+     */
+    public String getParent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * @return name of the last element of the path
+     */
+    public String getLeaf() {
+        return leaf;
+    }
+
+    /**
+     * Return the value at this path in the event, optionally using the memo
+     *
+     * When memoize is true, the value is remembered along with the event it came from, so that other retrievers
+     * reading the same path from the same event (e.g. several expressions evaluating one event) share a single
+     * lookup. The memo holds one entry only, so it is effective when an event is passed through a set of
+     * expressions before the next event arrives, and holds a reference to the most recent event until replaced.
+     *
+     * @param event
+     * @param memoize true to use the memo
+     * @return value at the path, or null if not present
+     */
+    public Object lookup(JsonEvent<?> event, boolean memoize) {
+        if (!memoize) {
+            return event.get(this);
+        }
+        Memo current = memo;
+        if (current != null && current.event == event) {
+            return current.value;
+        }
+        Object value = event.get(this);
+        memo = new Memo(event, value);
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof JsonPath && path.equals(((JsonPath) o).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * Immutable memo entry so that readers always see a consistent event and value
+     */
+    private static class Memo {
+        private final JsonEvent<?> event;
+        private final Object value;
+
+        private Memo(JsonEvent<?> event, Object value) {
+            this.event = event;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared cache of compiled XPath expressions keyed by path string, used by XmlEvent accessors and retrievers.
+ *
+ * Creating an XPathFactory involves service lookups through the classloader and compiling an XPath expression
+ * involves parsing, so doing either for each event or each call is expensive. Neither XPath, XPathFactory nor
+ * XPathExpression instances are thread safe, however, so this class keeps a factory, an XPath and a bounded cache
+ * of compiled expressions for each thread. Callers can use the cache from any thread without locking, and a
+ * compiled expression is only ever evaluated by the thread that compiled it.
+ *
+ * Each per-thread cache holds at most CACHE_LIMIT expressions, discarding the least recently used expression when
+ * full.
+ */
+public final class XPathCache {
+    /** maximum number of compiled expressions held for each thread */
+    public static final int CACHE_LIMIT = 1000;
+
+    private static final ThreadLocal<XPathCache> local = new ThreadLocal<XPathCache>() {
+        @Override
+        protected XPathCache initialValue() {
+            return new XPathCache();
+        }
+    };
+
+    private final XPath xpath;
+    private final Map<String, XPathExpression> expressions;
+
+    private XPathCache() {
+        this.xpath = XPathFactory.newInstance().newXPath();
+        this.expressions = new LinkedHashMap<String, XPathExpression>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                return size() > CACHE_LIMIT;
+            }
+        };
+    }
+
+    /**
+     * Return the compiled expression for the path, compiling and caching it if this thread has not seen it before
+     *
+     * The returned expression must only be evaluated by the calling thread.
+     *
+     * @param path XPath expression string
+     * @return compiled expression
+     * @throws XPathExpressionException if the path cannot be compiled
+     */
+    public static XPathExpression compile(String path) throws XPathExpressionException {
+        return local.get().get(path);
+    }
+
+    /**
+     * @return number of expressions cached for the calling thread
+     */
+    public static int size() {
+        return local.get().expressions.size();
+    }
+
+    private XPathExpression get(String path) throws XPathExpressionException {
+        XPathExpression result = expressions.get(path);
+        if (result == null) {
+            result = xpath.compile(path);
+            expressions.put(path, result);
+        }
+        return result;
+    }
+}
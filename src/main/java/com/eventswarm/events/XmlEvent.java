@@ -23,9 +23,10 @@ import org.w3c.dom.NodeList;
 import javax.xml.xpath.XPathExpressionException;
 
 /**
- * Event interface for Json events, just allowing us to retrieve each attribute of the Json by key.
+ * Event interface for XML events, allowing us to retrieve elements and attributes of the XML using XPath.
  *
- * Simple paths using the PATH_SEPARATOR between name elements must be supported
+ * Simple paths using the PATH_SEPARATOR between name elements must be supported. The retrievers in this interface
+ * use the accessor methods of the event, which in XmlEventImpl evaluate expressions held in the shared XPathCache.
  *
  * Created with IntelliJ IDEA.
  * User: andyb
@@ -62,9 +63,9 @@ public interface XmlEvent extends Event {
 
     public String getXmlString();
 
-        /**
-         * Retriever class for retrieving integer attribute values
-         */
+    /**
+     * Retriever class for retrieving integer attribute values
+     */
     public static class IntegerRetriever implements ValueRetriever<Integer> {
         private String path;
 
@@ -134,7 +135,11 @@ public interface XmlEvent extends Event {
 
         public String getValue(Event event) {
             try {
-                return (XmlEvent.class.isInstance(event) ? ((XmlEvent) event).getString(path).toLowerCase() : null);
+                if (!XmlEvent.class.isInstance(event)) {
+                    return null;
+                }
+                String result = ((XmlEvent) event).getString(path);
+                return result == null ? null : result.toLowerCase();
             } catch (Exception exc) {
                 logger.warn("Error retrieving downcase string value at path " + path, exc);
                 return null;
@@ -181,4 +186,44 @@ public interface XmlEvent extends Event {
             }
         }
     }
+
+    /**
+     * Retriever class for retrieving the first node matching a path
+     */
+    public static class NodeRetriever implements ValueRetriever<Node> {
+        private String path;
+
+        public NodeRetriever(String path) {
+            this.path = path;
+        }
+
+        public Node getValue(Event event) {
+            try {
+                return (XmlEvent.class.isInstance(event) ? ((XmlEvent) event).getNode(path) : null);
+            } catch (Exception exc) {
+                logger.warn("Error retrieving node at path " + path, exc);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Retriever class for retrieving all nodes matching a path
+     */
+    public static class NodeListRetriever implements ValueRetriever<NodeList> {
+        private String path;
+
+        public NodeListRetriever(String path) {
+            this.path = path;
+        }
+
+        public NodeList getValue(Event event) {
+            try {
+                return (XmlEvent.class.isInstance(event) ? ((XmlEvent) event).getNodeList(path) : null);
+            } catch (Exception exc) {
+                logger.warn("Error retrieving node list at path " + path, exc);
+                return null;
+            }
+        }
+    }
 }
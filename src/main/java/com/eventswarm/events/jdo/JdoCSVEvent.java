@@ -86,6 +86,24 @@ public class JdoCSVEvent extends JdoEvent implements CSVEvent {
         return csvMap;
     }
 
+    /**
+     * @return mapping from field name to array index, usually shared by all events from the same channel
+     */
+    public Map<String, Integer> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return array of values in this record
+     */
+    public String[] getValues() {
+        return values;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
     public JdoCSVEvent setCompact(boolean compact) {
         if (compact != this.compact) {
             csvMap = null; // clear CSV map if we're changing this
@@ -120,8 +120,10 @@ public class JdoEvent implements Event {
         }
 
         // pre-compare timestamps
-        boolean before = (header.getTimestamp().before(event.getHeader().getTimestamp()));
-        boolean after = (header.getTimestamp().after(event.getHeader().getTimestamp()));
+        long thisTime = header.getTimestampMillis();
+        long otherTime = event.getHeader().getTimestampMillis();
+        boolean before = thisTime < otherTime;
+        boolean after = thisTime > otherTime;
 
         // logic is different for same/different source
         if (header.getSource().equals(event.getHeader().getSource())) {
@@ -286,7 +288,7 @@ public class JdoEvent implements Event {
     }
 
     private boolean timeEquals(Event event) {
-        return this.getHeader().getTimestamp().equals(event.getHeader().getTimestamp());
+        return this.getHeader().getTimestampMillis() == event.getHeader().getTimestampMillis();
     }
     
     /** Use ID string as basis for hashcode */
@@ -391,8 +393,8 @@ public class JdoEvent implements Event {
                     return(-((Activity) other).compareTo(this));
                 } else {
                     // it is possible that timestamps are not equal (if we're allowing for clock skew)
-                    long thisTime = this.getHeader().getTimestamp().getTime();
-                    long otherTime = other.getHeader().getTimestamp().getTime();
+                    long thisTime = this.getHeader().getTimestampMillis();
+                    long otherTime = other.getHeader().getTimestampMillis();
                     if (thisTime == otherTime) {
                         order = sequenceOrder(other);
                         if (order == 0) {
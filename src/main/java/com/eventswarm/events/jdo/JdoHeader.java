@@ -41,6 +41,12 @@ public class JdoHeader extends JdoEventPart implements Header {
     public static Random random = new Random();
     public static NameBasedGenerator generator = Generators.nameBasedGenerator();
 
+    /**
+     * Value of timestampMillis when no timestamp has been set
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    protected long            timestampMillis = NO_TIMESTAMP;
     protected Date            timestamp      = null;
     protected int             sequenceNumber = 0;
     protected Source          source         = null;
@@ -62,8 +68,8 @@ public class JdoHeader extends JdoEventPart implements Header {
      * @return a new header with local source, current time and an auto-incremented sequence number
      */
     public static JdoHeader getLocalHeader() {
-        Date ts = new Date();
-        return new JdoHeader(new Date(), Sequencer.getInstance().getNext(ts.getTime()), JdoSource.getLocalSource());
+        long ts = System.currentTimeMillis();
+        return new JdoHeader(ts, Sequencer.getInstance().getNext(ts), JdoSource.getLocalSource());
     }
 
     /**
@@ -79,12 +85,24 @@ public class JdoHeader extends JdoEventPart implements Header {
      * Primary constructor with all fields.
      */
     public JdoHeader(Date timestamp, int sequenceNumber, Source source, CausalityVector causality, Event inReplyTo, Event replyTo, String eventId) {
-        
+        this(timestamp.getTime(), sequenceNumber, source, causality, inReplyTo, replyTo, eventId);
+        // keep the supplied Date as our compatibility view rather than creating another one
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Primary constructor with all fields and a millisecond timestamp
+     *
+     * The Date returned by getTimestamp() is created lazily, so headers created with this constructor do not
+     * allocate a Date unless it is requested.
+     */
+    public JdoHeader(long timestamp, int sequenceNumber, Source source, CausalityVector causality, Event inReplyTo, Event replyTo, String eventId) {
+
         // Let parent do it's thing
         super();
-        
+
         // Store passed parameters
-        setTimestamp(timestamp);
+        setTimestampMillis(timestamp);
         setSequenceNumber(sequenceNumber);
         setSource(source);
         setCausality(causality);
@@ -120,7 +138,18 @@ public class JdoHeader extends JdoEventPart implements Header {
      * considered concurrent and have an arbitrary but deterministic order in an EventSet.
      */
     public JdoHeader (long timestamp, String source) {
-        this(new Date(timestamp), 0, new JdoSource(source));
+        this(timestamp, 0, new JdoSource(source));
+    }
+
+    /**
+     * Same as JdoHeader(Date, int, Source) but taking a millisecond timestamp
+     *
+     * @param timestamp
+     * @param sequenceNumber
+     * @param source
+     */
+    public JdoHeader (long timestamp, int sequenceNumber, Source source) {
+        this(timestamp, sequenceNumber, source, null, null, null, null);
     }
 
     /**
@@ -184,7 +213,7 @@ public class JdoHeader extends JdoEventPart implements Header {
     }
 
     // Getters
-    public Date            getTimestamp()      { return timestamp; }
+    public long            getTimestampMillis() { return timestampMillis; }
     public int             getSequenceNumber() { return sequenceNumber; }
     public Source          getSource()         { return source;    }
     public CausalityVector getCausality()      { return causality; }
@@ -194,8 +223,27 @@ public class JdoHeader extends JdoEventPart implements Header {
     public UUID            getUuid()           { return uuid;      }
     public String          getEventId()        { return eventId;   }
 
+    /**
+     * Return the timestamp as a Date, creating it from the millisecond timestamp on first use
+     *
+     * @return timestamp as a Date, or null if no timestamp has been set
+     */
+    public Date getTimestamp() {
+        if (timestamp == null && timestampMillis != NO_TIMESTAMP) {
+            timestamp = new Date(timestampMillis);
+        }
+        return timestamp;
+    }
+
     // Setters
-    public void     setTimestamp(Date timestamp)            { this.timestamp = timestamp; }
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+        this.timestampMillis = (timestamp == null ? NO_TIMESTAMP : timestamp.getTime());
+    }
+    public void setTimestampMillis(long timestamp) {
+        this.timestamp = null;
+        this.timestampMillis = timestamp;
+    }
     public void     setSequenceNumber(int sequenceNumber)   { this.sequenceNumber = sequenceNumber; }
     public void     setSource(Source source)                { this.source = source;    }
     public void     setCausality(CausalityVector causality) { this.causality = causality; }
@@ -240,7 +288,7 @@ public class JdoHeader extends JdoEventPart implements Header {
      * @return
      */
     private UUID makeUuid() {
-        return generator.generate(source.getSourceId() + Long.toString(timestamp.getTime()) +
+        return generator.generate(source.getSourceId() + Long.toString(timestampMillis) +
                                   Integer.toString(sequenceNumber) + Long.toString(random.nextLong()));
     }
 
@@ -255,7 +303,7 @@ public class JdoHeader extends JdoEventPart implements Header {
         // Output the fields
         string.append("eventId = ");         string.append(madeId().toString());     string.append(", ");
         string.append("timestamp = ");      string.append(getTimestamp().toString());  string.append(", ");
-        string.append("millis = ");         string.append(getTimestamp().getTime());  string.append(", ");
+        string.append("millis = ");         string.append(getTimestampMillis());  string.append(", ");
         string.append("sequenceNumber = "); string.append(getSequenceNumber());        string.append(", ");
         string.append("source = ");         string.append(getSource().getSourceId());  string.append(", ");
         string.append("isReply = ");        string.append(isReply());                  string.append(", ");
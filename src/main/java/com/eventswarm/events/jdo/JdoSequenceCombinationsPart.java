@@ -0,0 +1,333 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.jdo;
+
+import com.eventswarm.Combination;
+import com.eventswarm.events.CombinationsPart;
+import com.eventswarm.events.Event;
+
+import java.util.*;
+
+/**
+ * Condensed implementation of the CombinationsPart for sequence matches, generating the strictly sequenced
+ * combinations of a list of match sets on demand.
+ *
+ * The part holds a list of ordered event lists L<sub>1</sub> ... L<sub>n</sub> and a tail event, and represents every
+ * combination [E<sub>1</sub>, ..., E<sub>n</sub>, tail] where E<sub>i</sub> is taken from L<sub>i</sub> and
+ * E<sub>1</sub> &lt; E<sub>2</sub> ... &lt; tail using the isBefore relationship of events. These are the
+ * combinations created by SequenceExpression.buildCombinations, but the number of such combinations grows
+ * combinatorially with the length of the sequence, so this class avoids enumerating them:
+ *
+ * {@code
+ * 1. construction records, for each event, the range of events in the preceding list that can precede it, which is
+ *    linear in the total size of the lists
+ * 2. count() and getEvents() are calculated from these ranges without creating any combinations
+ * 3. iterator() streams combinations one at a time, and only getCombinations() builds (and caches) the full set
+ * }
+ *
+ * When created from lists and a tail, the predecessors of an event are assumed to be a prefix of the preceding list,
+ * as in SequenceExpression. Callers that already know the predecessors of each event (e.g. the NFA pattern engine)
+ * can supply the ranges directly. The supplied lists are not copied, so they must not be modified after construction
+ * (e.g. use EventSet.getSnapshot()).
+ */
+public class JdoSequenceCombinationsPart extends JdoEventPart implements CombinationsPart, Iterable<Combination> {
+
+    private List<List<Event>> lists;
+    private Event tail;
+
+    /* for each list after the first, the range [lower, upper) of events in the preceding list that precede each event */
+    private transient int[][] lower;
+    private transient int[][] upper;
+    /* for each list, the number of sequenced combinations ending at each event, accumulated as a prefix sum */
+    private transient long[][] counts;
+    private transient Set<Combination> combinations = null;
+
+    /**
+     * Create an empty Combinations object, only required for persistence purposes
+     *
+     * The part has no lists and represents no combinations.
+     */
+    private JdoSequenceCombinationsPart() {
+        super();
+        this.lists = new ArrayList<List<Event>>();
+        this.lower = new int[0][];
+        this.upper = new int[0][];
+    }
+
+    /**
+     * Create a part representing the sequenced combinations of the supplied lists that end with the tail event
+     *
+     * If the tail is null, the part represents all sequenced combinations of the lists.
+     *
+     * @param lists ordered lists of events for each element of the sequence preceding the tail
+     * @param tail final event of every combination
+     */
+    public JdoSequenceCombinationsPart(List<List<Event>> lists, Event tail) {
+        super();
+        this.lists = lists;
+        this.tail = tail;
+        if (tail != null) {
+            List<List<Event>> all = new ArrayList<List<Event>>(lists);
+            all.add(Collections.singletonList(tail));
+            this.lists = all;
+        }
+        int n = this.lists.size();
+        this.lower = new int[n][];
+        this.upper = new int[n][];
+        for (int i = 1; i < n; i++) {
+            this.lower[i] = new int[this.lists.get(i).size()];
+            this.upper[i] = predecessors(this.lists.get(i-1), this.lists.get(i));
+        }
+        count();
+    }
+
+    /**
+     * Create a part representing sequenced combinations of the supplied lists, where the event at index j of list i
+     * can follow the events at indexes lower[i][j] (inclusive) to upper[i][j] (exclusive) of list i-1
+     *
+     * The ranges for the first list are ignored and can be null.
+     *
+     * @param lists ordered lists of events for each element of the sequence
+     * @param lower for each list, the index of the first possible predecessor of each event
+     * @param upper for each list, the index after the last possible predecessor of each event
+     */
+    public JdoSequenceCombinationsPart(List<List<Event>> lists, int[][] lower, int[][] upper) {
+        super();
+        this.lists = lists;
+        int n = lists.size();
+        this.tail = n == 0 || lists.get(n-1).size() != 1 ? null : lists.get(n-1).get(0);
+        this.lower = lower;
+        this.upper = upper;
+        count();
+    }
+
+    /**
+     * Return the lists of events from which combinations are made, including a final list holding the tail if
+     * the part was created with a tail event
+     */
+    public List<List<Event>> getLists() {
+        return this.lists;
+    }
+
+    /**
+     * Return the final event of all combinations, or null if combinations can end with different events
+     */
+    public Event getTail() {
+        return this.tail;
+    }
+
+    /**
+     * Return the number of events in the ordered <code>before</code> list that precede each event of the
+     * ordered <code>after</code> list, using a single pass over both lists
+     */
+    private static int[] predecessors(List<Event> before, List<Event> after) {
+        int[] result = new int[after.size()];
+        int count = 0;
+        for (int j = 0; j < after.size(); j++) {
+            while (count < before.size() && before.get(count).isBefore(after.get(j))) {
+                count++;
+            }
+            result[j] = count;
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the combination counts for each event, in time linear to the total list size
+     */
+    private void index() {
+        int n = lists.size();
+        counts = new long[n][];
+        for (int i = 0; i < n; i++) {
+            int size = lists.get(i).size();
+            long[] sums = new long[size + 1];
+            for (int j = 0; j < size; j++) {
+                long count = 1;
+                if (i > 0) {
+                    count = counts[i-1][upper[i][j]] - counts[i-1][lower[i][j]];
+                }
+                sums[j+1] = sums[j] + count;
+            }
+            counts[i] = sums;
+        }
+    }
+
+    /**
+     * Return the number of sequenced combinations ending with the event at the specified index of a list
+     */
+    private long countAt(int list, int index) {
+        return counts[list][index+1] - counts[list][index];
+    }
+
+    /**
+     * Return the first index in the range [from, to) of a list that ends at least one combination, or to if none
+     */
+    private int nextUsable(int list, int from, int to) {
+        int index = from;
+        while (index < to && countAt(list, index) == 0) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Return an iterator that creates each sequenced combination on demand
+     *
+     * Events are chosen depth first from the end of the sequence, skipping any events that have no sequenced
+     * predecessors, so every step of the iteration produces a combination. The iterator does not support removal.
+     *
+     * @return iterator over the represented combinations
+     */
+    public Iterator<Combination> iterator() {
+        return new Iter();
+    }
+
+    /**
+     * Return a set containing all combinations represented by this object.
+     *
+     * This method can be very expensive for long sequences, so callers should prefer iterator() or count() where
+     * possible. The result is cached because the set of combinations is immutable.
+     *
+     * @return a set containing all Combination objects represented by this object
+     */
+    public Set<Combination> getCombinations() {
+        if (this.combinations == null) {
+            Set<Combination> result = new HashSet<Combination>();
+            for (Combination comb : this) {
+                result.add(comb);
+            }
+            this.combinations = result;
+        }
+        return this.combinations;
+    }
+
+    /**
+     * Return a count of the number of Combinations represented by this object without creating them.
+     *
+     * @return number of combinations represented, or Integer.MAX_VALUE if the count overflows an int
+     */
+    public int count() {
+        if (counts == null) {
+            index();
+        }
+        int n = lists.size();
+        long total = n == 0 ? 0 : counts[n-1][lists.get(n-1).size()];
+        return total > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) total;
+    }
+
+    /**
+     * Returns a set containing all events that appear in at least one of the represented combinations.
+     *
+     * @return Set of all events referenced by this object
+     */
+    public SortedSet<Event> getEvents() {
+        SortedSet<Event> result = new TreeSet<Event>();
+        int n = lists.size();
+        if (n == 0) {
+            return result;
+        }
+        // work backwards, marking the events that can precede a usable event in the following list
+        boolean[] usable = new boolean[lists.get(n-1).size()];
+        for (int j = 0; j < usable.length; j++) {
+            usable[j] = countAt(n-1, j) > 0;
+        }
+        for (int i = n-1; i >= 0; i--) {
+            List<Event> list = lists.get(i);
+            // difference array of the ranges of usable events, used to mark the preceding list
+            int[] marks = i > 0 ? new int[lists.get(i-1).size() + 1] : null;
+            for (int j = 0; j < list.size(); j++) {
+                if (usable[j]) {
+                    result.add(list.get(j));
+                    if (marks != null) {
+                        marks[lower[i][j]]++;
+                        marks[upper[i][j]]--;
+                    }
+                }
+            }
+            if (marks != null) {
+                boolean[] previous = new boolean[marks.length - 1];
+                int depth = 0;
+                for (int j = 0; j < previous.length; j++) {
+                    depth += marks[j];
+                    previous[j] = depth > 0 && countAt(i-1, j) > 0;
+                }
+                usable = previous;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Depth first iterator over combinations, holding the current index into each list
+     */
+    private class Iter implements Iterator<Combination> {
+        private final int n = lists.size();
+        private final int[] indexes = new int[n];
+        private boolean hasNext;
+
+        private Iter() {
+            hasNext = count() > 0;
+            if (hasNext) {
+                indexes[n-1] = nextUsable(n-1, 0, lists.get(n-1).size());
+                reset(n-2);
+            }
+        }
+
+        /**
+         * Position the index of the specified list and all earlier lists on the first usable event that can
+         * precede the current event of the following list
+         */
+        private void reset(int list) {
+            for (int i = list; i >= 0; i--) {
+                indexes[i] = nextUsable(i, lower[i+1][indexes[i+1]], upper[i+1][indexes[i+1]]);
+            }
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public Combination next() {
+            if (!hasNext) throw new NoSuchElementException();
+            Combination result = new JdoCombination(n);
+            for (int i = 0; i < n; i++) {
+                result.add(lists.get(i).get(indexes[i]));
+            }
+            advance();
+            return result;
+        }
+
+        /**
+         * Move to the next combination, advancing the earliest list that has another usable event
+         */
+        private void advance() {
+            for (int i = 0; i < n; i++) {
+                int limit = (i == n-1) ? lists.get(i).size() : upper[i+1][indexes[i+1]];
+                int next = nextUsable(i, indexes[i] + 1, limit);
+                if (next < limit) {
+                    indexes[i] = next;
+                    reset(i-1);
+                    return;
+                }
+            }
+            hasNext = false;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
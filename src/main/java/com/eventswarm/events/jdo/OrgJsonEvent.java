@@ -77,8 +77,7 @@ public class OrgJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
 
     public JSONObject getJsonObject(String path) {
         try {
-            JSONObject last = navigatePath(path, json);
-            return last == null ? null : last.optJSONObject(leafOf(path));
+            return getJSONObject(JsonPath.compile(path));
         } catch (JSONException exc) {
             logger.warn("Error retrieving path " + path, exc);
             return null;
@@ -107,23 +106,33 @@ public class OrgJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
     }
 
     public int getInt(String path) throws JSONException {
-        JSONObject last = navigatePath(path, json);
-        return last.getInt(leafOf(path));
+        return getInt(JsonPath.compile(path));
+    }
+
+    public int getInt(JsonPath path) throws JSONException {
+        return navigatePath(path, json).getInt(path.getLeaf());
     }
 
     public boolean getBoolean(String path) throws JSONException {
-        JSONObject last = navigatePath(path, json);
-        return last.getBoolean(leafOf(path));
+        return getBoolean(JsonPath.compile(path));
+    }
+
+    public boolean getBoolean(JsonPath path) throws JSONException {
+        return navigatePath(path, json).getBoolean(path.getLeaf());
     }
 
     public JSONObject getJSONObject(String path) throws JSONException {
+        return getJSONObject(JsonPath.compile(path));
+    }
+
+    public JSONObject getJSONObject(JsonPath path) throws JSONException {
         JSONObject last = navigatePath(path, json);
-        return last == null ? null : last.optJSONObject(leafOf(path));
+        return last == null ? null : last.optJSONObject(path.getLeaf());
     }
 
     public boolean isNull(String path) {
-        JSONObject last = navigatePath(path, json);
-        return last.isNull(leafOf(path));
+        JsonPath compiled = JsonPath.compile(path);
+        return navigatePath(compiled, json).isNull(compiled.getLeaf());
     }
 
     public void setEvent(Event event) {
@@ -131,32 +140,43 @@ public class OrgJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
     }
 
     public boolean has(String path) {
-        try {
-            JSONObject last = navigatePath(path, json);
-            return last != null && last.has(leafOf(path));
-        } catch (JSONException exc) {
-            return false;
-        }
+        return has(JsonPath.compile(path));
     }
 
-    public double getDouble(String path) throws JSONException {
+    public boolean has(JsonPath path) {
         JSONObject last = navigatePath(path, json);
-        return last.getDouble(leafOf(path));
+        return last != null && last.has(path.getLeaf());
+    }
+
+    public double getDouble(String path) throws JSONException {
+        return getDouble(JsonPath.compile(path));
+    }
+
+    public double getDouble(JsonPath path) throws JSONException {
+        return navigatePath(path, json).getDouble(path.getLeaf());
     }
 
     public JSONArray getJSONArray(String path) throws JSONException {
-        JSONObject last = navigatePath(path, json);
-        return last == null ? null : last.optJSONArray(leafOf(path));
+        JsonPath compiled = JsonPath.compile(path);
+        JSONObject last = navigatePath(compiled, json);
+        return last == null ? null : last.optJSONArray(compiled.getLeaf());
     }
 
     public long getLong(String path) throws JSONException {
-        JSONObject last = navigatePath(path, json);
-        return last.getLong(leafOf(path));
+        return getLong(JsonPath.compile(path));
+    }
+
+    public long getLong(JsonPath path) throws JSONException {
+        return navigatePath(path, json).getLong(path.getLeaf());
     }
 
     public String getString(String path) throws JSONException {
+        return getString(JsonPath.compile(path));
+    }
+
+    public String getString(JsonPath path) throws JSONException {
         JSONObject last = navigatePath(path, json);
-        return last == null ? null : last.optString(leafOf(path));
+        return last == null ? null : last.optString(path.getLeaf());
     }
 
     public String getJsonString() {
@@ -164,12 +184,12 @@ public class OrgJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
     }
 
     public Object get(String path) {
-        JSONObject last = navigatePath(path, json);
-        return last == null ? null : last.opt(leafOf(path));
+        return get(JsonPath.compile(path));
     }
 
-    private String leafOf(String path) {
-        return path.substring(path.lastIndexOf(PATH_SEPARATOR)+1);
+    public Object get(JsonPath path) {
+        JSONObject last = navigatePath(path, json);
+        return last == null ? null : last.opt(path.getLeaf());
     }
 
     /**
@@ -188,4 +208,19 @@ public class OrgJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
             return next == null ? null : navigatePath(path.substring(sep+1), next);
         }
     }
+
+    /**
+     * Navigate through the parent objects of a compiled path, returning the JSON object immediately preceding the
+     * leaf element of the path.
+     *
+     * @param path
+     * @return JSONObject immediately preceding leaf or null if a parent is not present or not an object
+     */
+    public static JSONObject navigatePath(JsonPath path, JSONObject object) {
+        JSONObject next = object;
+        for (int i = 0; i < path.getDepth() && next != null; i++) {
+            next = next.optJSONObject(path.getParent(i));
+        }
+        return next;
+    }
 }
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.jdo;
+
+import com.eventswarm.events.*;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * JsonEvent implementation that holds the raw UTF-8 bytes of a JSON object rather than an org.json tree.
+ *
+ * OrgJsonEvent keeps a complete JSONObject tree for as long as the event is held, which for windows over high-rate
+ * feeds costs far more heap and parsing effort than the values actually used by expressions. This class instead
+ * keeps only the bytes, and on first access builds a lightweight index of member names and value offsets for the
+ * top-level object (nested objects are indexed when a path navigates into them). Values are decoded on first
+ * access and cached, and plain integers are parsed directly from the bytes.
+ *
+ * Accessors follow the semantics of OrgJsonEvent: typed getters throw JSONException if a value is missing or
+ * cannot be converted, getString returns an empty string for a missing leaf and null for a missing parent, and
+ * get returns org.json types. Nested objects and arrays are returned as newly parsed JSONObject or JSONArray
+ * instances, so callers should retrieve leaf values where possible.
+ *
+ * getJsonString and writeTo return the original bytes without reserializing. The bytes must not be modified after
+ * the event is created.
+ */
+public class RawJsonEvent extends JdoEvent implements JsonEvent<JSONObject> {
+    /** name of the event part holding the raw bytes */
+    public static final String RAW_JSON_PART_NAME = "RAW_JSON";
+
+    private byte[] bytes;
+    private transient volatile RawJsonIndex index;
+
+    /**
+     * Create an event from a header and the UTF-8 bytes of a JSON object
+     *
+     * @param header
+     * @param bytes UTF-8 encoded JSON object, which becomes owned by the event
+     */
+    public RawJsonEvent(Header header, byte[] bytes) {
+        super();
+        this.header = header;
+        this.bytes = bytes;
+        this.eventParts = new HashMap<String, EventPart>();
+        eventParts.put(RAW_JSON_PART_NAME, new JdoPartWrapper<byte[]>(bytes));
+    }
+
+    /**
+     * @return the number of bytes of JSON held by this event
+     */
+    public int getJsonLength() {
+        return bytes.length;
+    }
+
+    /**
+     * Write the original JSON bytes to the supplied stream
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * @return the original JSON as a string
+     */
+    public String getJsonString() {
+        return new String(bytes, RawJsonIndex.UTF8);
+    }
+
+    /**
+     * Parse the complete JSON object
+     *
+     * The result is not cached, so this should be avoided on hot paths.
+     *
+     * @return newly parsed JSONObject
+     */
+    public JSONObject getJson() {
+        return new JSONObject(getJsonString());
+    }
+
+    public JSONObject getJsonObject(String path) {
+        Object value = get(path);
+        return value instanceof JSONObject ? (JSONObject) value : null;
+    }
+
+    public int getInt(String path) {
+        return getInt(JsonPath.compile(path));
+    }
+
+    public int getInt(JsonPath path) {
+        RawJsonIndex parent = parentOrFail(path);
+        int member = memberOrFail(parent, path);
+        Long fast = parent.fastLong(member);
+        if (fast != null && fast >= Integer.MIN_VALUE && fast <= Integer.MAX_VALUE) {
+            return fast.intValue();
+        }
+        Object value = parent.value(member);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException exc) {
+            throw new JSONException("JSONObject[\"" + path.getLeaf() + "\"] is not an int.");
+        }
+    }
+
+    public long getLong(String path) {
+        return getLong(JsonPath.compile(path));
+    }
+
+    public long getLong(JsonPath path) {
+        RawJsonIndex parent = parentOrFail(path);
+        int member = memberOrFail(parent, path);
+        Long fast = parent.fastLong(member);
+        if (fast != null) {
+            return fast;
+        }
+        Object value = parent.value(member);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException exc) {
+            throw new JSONException("JSONObject[\"" + path.getLeaf() + "\"] is not a long.");
+        }
+    }
+
+    public double getDouble(String path) {
+        return getDouble(JsonPath.compile(path));
+    }
+
+    public double getDouble(JsonPath path) {
+        RawJsonIndex parent = parentOrFail(path);
+        Object value = parent.value(memberOrFail(parent, path));
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException exc) {
+            throw new JSONException("JSONObject[\"" + path.getLeaf() + "\"] is not a number.");
+        }
+    }
+
+    public boolean getBoolean(String path) {
+        return getBoolean(JsonPath.compile(path));
+    }
+
+    public boolean getBoolean(JsonPath path) {
+        RawJsonIndex parent = parentOrFail(path);
+        Object value = parent.value(memberOrFail(parent, path));
+        if (Boolean.TRUE.equals(value) || (value instanceof String && "true".equalsIgnoreCase((String) value))) {
+            return true;
+        } else if (Boolean.FALSE.equals(value) || (value instanceof String && "false".equalsIgnoreCase((String) value))) {
+            return false;
+        }
+        throw new JSONException("JSONObject[\"" + path.getLeaf() + "\"] is not a Boolean.");
+    }
+
+    public String getString(String path) {
+        return getString(JsonPath.compile(path));
+    }
+
+    /**
+     * As for OrgJsonEvent, returns null if a parent object is missing and an empty string if the leaf is missing
+     * or null
+     */
+    public String getString(JsonPath path) {
+        RawJsonIndex parent = navigate(path);
+        if (parent == null) {
+            return null;
+        }
+        int member = parent.find(path.getLeaf());
+        if (member < 0) {
+            return "";
+        }
+        Object value = parent.value(member);
+        return JSONObject.NULL.equals(value) ? "" : value.toString();
+    }
+
+    public boolean has(String path) {
+        return has(JsonPath.compile(path));
+    }
+
+    public boolean has(JsonPath path) {
+        RawJsonIndex parent = navigate(path);
+        return parent != null && parent.find(path.getLeaf()) >= 0;
+    }
+
+    public Object get(String path) {
+        return get(JsonPath.compile(path));
+    }
+
+    public Object get(JsonPath path) {
+        RawJsonIndex parent = navigate(path);
+        if (parent == null) {
+            return null;
+        }
+        int member = parent.find(path.getLeaf());
+        return member < 0 ? null : parent.value(member);
+    }
+
+    /**
+     * Return the index of the top-level object, building it on first use
+     */
+    private RawJsonIndex index() {
+        RawJsonIndex result = index;
+        if (result == null) {
+            result = new RawJsonIndex(bytes, 0, bytes.length);
+            index = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return the index of the object containing the leaf of the path, or null if a parent is missing or not an
+     * object
+     */
+    private RawJsonIndex navigate(JsonPath path) {
+        RawJsonIndex current = index();
+        for (int i = 0; i < path.getDepth() && current != null; i++) {
+            int member = current.find(path.getParent(i));
+            current = member < 0 ? null : current.child(member);
+        }
+        return current;
+    }
+
+    private RawJsonIndex parentOrFail(JsonPath path) {
+        RawJsonIndex parent = navigate(path);
+        if (parent == null) {
+            throw new JSONException("Path " + path + " not found.");
+        }
+        return parent;
+    }
+
+    private static int memberOrFail(RawJsonIndex parent, JsonPath path) {
+        int member = parent.find(path.getLeaf());
+        if (member < 0) {
+            throw new JSONException("JSONObject[\"" + path.getLeaf() + "\"] not found.");
+        }
+        return member;
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.jdo;
+
+import org.json.JSONException;
+
+import java.nio.charset.Charset;
+
+/**
+ * Field offset index over a JSON object held as UTF-8 bytes, used by RawJsonEvent.
+ *
+ * The index records the name and the start and end offsets of the value of each member of one object, without
+ * decoding any values. Decoded values and the indexes of nested objects are cached in the index as they are
+ * requested. Like org.json, the scanner is lenient: keys and string values can be quoted with single or double
+ * quotes, and keys and simple values can be unquoted.
+ *
+ * Indexes are built completely before they are published, and the value cache only ever holds values derived from
+ * the immutable bytes, so concurrent readers at worst decode a value twice.
+ */
+final class RawJsonIndex {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    private final byte[] bytes;
+    private final String[] names;
+    private final int[] starts;
+    private final int[] ends;
+    private final Object[] values;
+
+    /**
+     * Index the object starting at <code>start</code>
+     *
+     * @param bytes UTF-8 encoded JSON
+     * @param start offset of the opening brace of the object
+     * @param end offset after the last byte that may be read
+     * @throws JSONException if the object is malformed
+     */
+    RawJsonIndex(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        int pos = skipWhitespace(bytes, start, end);
+        if (pos >= end || bytes[pos] != '{') {
+            throw new JSONException("Expected '{' at offset " + pos);
+        }
+        int count = 0;
+        String[] names = new String[8];
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        pos = skipWhitespace(bytes, pos + 1, end);
+        if (pos < end && bytes[pos] == '}') {
+            pos++;
+        } else {
+            while (true) {
+                // key
+                int keyEnd;
+                String name;
+                if (pos < end && (bytes[pos] == '"' || bytes[pos] == '\'')) {
+                    keyEnd = skipString(bytes, pos, end);
+                    name = decodeString(bytes, pos, keyEnd);
+                } else {
+                    keyEnd = skipToken(bytes, pos, end);
+                    if (keyEnd == pos) {
+                        throw new JSONException("Expected a key at offset " + pos);
+                    }
+                    name = new String(bytes, pos, keyEnd - pos, UTF8).trim();
+                }
+                pos = skipWhitespace(bytes, keyEnd, end);
+                if (pos >= end || bytes[pos] != ':') {
+                    throw new JSONException("Expected ':' after key at offset " + pos);
+                }
+                // value
+                int valueStart = skipWhitespace(bytes, pos + 1, end);
+                int valueEnd = skipValue(bytes, valueStart, end);
+                if (count == names.length) {
+                    names = grow(names);
+                    starts = grow(starts);
+                    ends = grow(ends);
+                }
+                names[count] = name;
+                starts[count] = valueStart;
+                ends[count] = valueEnd;
+                count++;
+                pos = skipWhitespace(bytes, valueEnd, end);
+                if (pos < end && bytes[pos] == ',') {
+                    pos = skipWhitespace(bytes, pos + 1, end);
+                } else if (pos < end && bytes[pos] == '}') {
+                    break;
+                } else {
+                    throw new JSONException("Expected ',' or '}' at offset " + pos);
+                }
+            }
+        }
+        this.names = count == names.length ? names : copy(names, count);
+        this.starts = count == starts.length ? starts : copy(starts, count);
+        this.ends = count == ends.length ? ends : copy(ends, count);
+        this.values = new Object[count];
+    }
+
+    /**
+     * @return number of members of the object
+     */
+    int size() {
+        return names.length;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Return the index of the named member, or -1 if not present
+     *
+     * As for most JSON parsers, the last occurrence of a duplicated name wins.
+     */
+    int find(String name) {
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first byte of the value of a member
+     */
+    byte first(int index) {
+        return bytes[starts[index]];
+    }
+
+    /**
+     * @return the raw text of the value of a member
+     */
+    String raw(int index) {
+        return new String(bytes, starts[index], ends[index] - starts[index], UTF8);
+    }
+
+    /**
+     * Return the index of a nested object, or null if the member is not an object
+     */
+    RawJsonIndex child(int index) {
+        if (bytes[starts[index]] != '{') {
+            return null;
+        }
+        Object cached = values[index];
+        if (cached instanceof RawJsonIndex) {
+            return (RawJsonIndex) cached;
+        }
+        RawJsonIndex child = new RawJsonIndex(bytes, starts[index], ends[index]);
+        values[index] = child;
+        return child;
+    }
+
+    /**
+     * Return the decoded value of a member, using org.json types so that results match OrgJsonEvent: strings,
+     * Boolean, Integer, Long, Double or BigDecimal for numbers, JSONObject.NULL for null, and freshly parsed
+     * JSONObject or JSONArray instances for nested structures (these are not cached).
+     */
+    Object value(int index) {
+        byte first = bytes[starts[index]];
+        if (first == '{') {
+            return new org.json.JSONObject(raw(index));
+        } else if (first == '[') {
+            return new org.json.JSONArray(raw(index));
+        }
+        Object cached = values[index];
+        if (cached == null) {
+            if (first == '"' || first == '\'') {
+                cached = decodeString(bytes, starts[index], ends[index]);
+            } else {
+                cached = org.json.JSONObject.stringToValue(new String(bytes, starts[index], ends[index] - starts[index], UTF8));
+            }
+            values[index] = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Parse a member as a long without allocating if it is a plain integer of up to 18 digits
+     *
+     * @return the value, or null if the member is not a plain integer (callers should fall back to value())
+     */
+    Long fastLong(int index) {
+        int pos = starts[index];
+        int end = ends[index];
+        boolean negative = bytes[pos] == '-';
+        if (negative) pos++;
+        if (end - pos < 1 || end - pos > 18) {
+            return null;
+        }
+        long result = 0;
+        for (; pos < end; pos++) {
+            int digit = bytes[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    static int skipWhitespace(byte[] bytes, int pos, int end) {
+        while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\n' || bytes[pos] == '\r' || bytes[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Return the offset after the value starting at pos
+     */
+    static int skipValue(byte[] bytes, int pos, int end) {
+        if (pos >= end) {
+            throw new JSONException("Missing value at offset " + pos);
+        }
+        byte first = bytes[pos];
+        if (first == '"' || first == '\'') {
+            return skipString(bytes, pos, end);
+        } else if (first == '{' || first == '[') {
+            return skipStructure(bytes, pos, end);
+        } else {
+            int result = skipToken(bytes, pos, end);
+            if (result == pos) {
+                throw new JSONException("Missing value at offset " + pos);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Return the offset after the quoted string starting at pos
+     */
+    static int skipString(byte[] bytes, int pos, int end) {
+        byte quote = bytes[pos++];
+        while (pos < end) {
+            byte b = bytes[pos++];
+            if (b == '\\') {
+                pos++;
+            } else if (b == quote) {
+                return pos;
+            }
+        }
+        throw new JSONException("Unterminated string");
+    }
+
+    /**
+     * Return the offset after the object or array starting at pos, skipping nested structures and strings
+     */
+    static int skipStructure(byte[] bytes, int pos, int end) {
+        int depth = 0;
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (b == '"' || b == '\'') {
+                pos = skipString(bytes, pos, end);
+                continue;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+                if (depth == 0) {
+                    return pos + 1;
+                }
+            }
+            pos++;
+        }
+        throw new JSONException("Unterminated object or array");
+    }
+
+    /**
+     * Return the offset after an unquoted token (number, literal or lenient unquoted string)
+     */
+    static int skipToken(byte[] bytes, int pos, int end) {
+        while (pos < end) {
+            byte b = bytes[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ':' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Decode the quoted string between start (the opening quote) and end (after the closing quote)
+     */
+    static String decodeString(byte[] bytes, int start, int end) {
+        int from = start + 1;
+        int to = end - 1;
+        boolean simple = true;
+        for (int i = from; i < to && simple; i++) {
+            simple = bytes[i] != '\\';
+        }
+        if (simple) {
+            return new String(bytes, from, to - from, UTF8);
+        }
+        StringBuilder result = new StringBuilder(to - from);
+        int run = from;
+        int i = from;
+        while (i < to) {
+            if (bytes[i] != '\\') {
+                i++;
+                continue;
+            }
+            result.append(new String(bytes, run, i - run, UTF8));
+            char c = (char) bytes[i + 1];
+            i += 2;
+            switch (c) {
+                case 'b': result.append('\b'); break;
+                case 't': result.append('\t'); break;
+                case 'n': result.append('\n'); break;
+                case 'f': result.append('\f'); break;
+                case 'r': result.append('\r'); break;
+                case 'u':
+                    result.append((char) Integer.parseInt(new String(bytes, i, 4, ASCII), 16));
+                    i += 4;
+                    break;
+                default: result.append(c);
+            }
+            run = i;
+        }
+        result.append(new String(bytes, run, to - run, UTF8));
+        return result.toString();
+    }
+
+    private static String[] grow(String[] array) {
+        String[] result = new String[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] result = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static String[] copy(String[] array, int count) {
+        String[] result = new String[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    private static int[] copy(int[] array, int count) {
+        int[] result = new int[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+}
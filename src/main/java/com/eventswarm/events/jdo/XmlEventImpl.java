@@ -18,6 +18,7 @@ package com.eventswarm.events.jdo;
 import com.eventswarm.events.Event;
 import com.eventswarm.events.EventPart;
 import com.eventswarm.events.Header;
+import com.eventswarm.events.XPathCache;
 import com.eventswarm.events.XmlEvent;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -29,10 +30,8 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import java.io.StringWriter;
 import java.util.HashMap;
@@ -41,13 +40,15 @@ import java.util.Map;
 /**
  * Event class for xml events received via HTTP and deserialized using the org.xml xmlObject class
  *
+ * Accessors evaluate XPath expressions compiled and cached by XPathCache, so each distinct path is compiled once
+ * per thread rather than on every call.
+ *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
 public class XmlEventImpl extends JdoEvent implements XmlEvent {
     // maintain local pointers to parts for convenience
     protected transient Node xml;
-    private transient XPath xpath;
 
     private static Logger logger = Logger.getLogger(XmlEventImpl.class);
 
@@ -75,13 +76,6 @@ public class XmlEventImpl extends JdoEvent implements XmlEvent {
         this.xml = ((JdoPartWrapper<Document>)eventParts.get(XML_PART_NAME)).getWrapped();
     }
 
-    private XPath getXPath() {
-        if (xpath == null) {
-            xpath = XPathFactory.newInstance().newXPath();
-        }
-        return xpath;
-    }
-
     public Node getRoot() {
         return xml;
     }
@@ -95,26 +89,26 @@ public class XmlEventImpl extends JdoEvent implements XmlEvent {
     }
 
     public int getInt(String path) throws XPathExpressionException, ClassCastException {
-        return Integer.parseInt(getXPath().compile(path).evaluate(xml));
+        return Integer.parseInt(XPathCache.compile(path).evaluate(xml));
     }
 
     public boolean getBoolean(String path) throws XPathExpressionException, ClassCastException {
-        Boolean result = (Boolean) getXPath().evaluate(path, xml, XPathConstants.BOOLEAN);
+        Boolean result = (Boolean) XPathCache.compile(path).evaluate(xml, XPathConstants.BOOLEAN);
         return result;
     }
 
     public Node getNode(String path) throws XPathExpressionException, ClassCastException {
-        Node result = (Node) getXPath().evaluate(path, xml, XPathConstants.NODE);
+        Node result = (Node) XPathCache.compile(path).evaluate(xml, XPathConstants.NODE);
         return result;
     }
 
     public NodeList getNodeList(String path) throws XPathExpressionException, ClassCastException {
-        NodeList result = (NodeList) getXPath().evaluate(path, xml, XPathConstants.NODESET);
+        NodeList result = (NodeList) XPathCache.compile(path).evaluate(xml, XPathConstants.NODESET);
         return result;
     }
 
     public boolean isEmpty(String path) throws XPathExpressionException, ClassCastException {
-        Node result = (Node) getXPath().evaluate(path, xml, XPathConstants.NODE);
+        Node result = (Node) XPathCache.compile(path).evaluate(xml, XPathConstants.NODE);
         return (result == null || result.getTextContent().isEmpty());
     }
 
@@ -124,7 +118,7 @@ public class XmlEventImpl extends JdoEvent implements XmlEvent {
 
     public boolean has(String path) {
         try {
-            Node result = (Node) getXPath().compile(path).evaluate(xml, XPathConstants.NODE);
+            Node result = (Node) XPathCache.compile(path).evaluate(xml, XPathConstants.NODE);
             return result != null;
         } catch (XPathExpressionException exc) {
             return false;
@@ -132,16 +126,16 @@ public class XmlEventImpl extends JdoEvent implements XmlEvent {
     }
 
     public double getDouble(String path) throws XPathExpressionException, ClassCastException {
-        Double result = (Double) getXPath().compile(path).evaluate(xml, XPathConstants.NUMBER);
+        Double result = (Double) XPathCache.compile(path).evaluate(xml, XPathConstants.NUMBER);
         return result;
     }
 
     public long getLong(String path) throws XPathExpressionException, ClassCastException {
-        return (Long.parseLong(getXPath().compile(path).evaluate(xml)));
+        return (Long.parseLong(XPathCache.compile(path).evaluate(xml)));
     }
 
     public String getString(String path) throws XPathExpressionException, ClassCastException {
-        String result = (String) getXPath().compile(path).evaluate(xml, XPathConstants.STRING);
+        String result = (String) XPathCache.compile(path).evaluate(xml, XPathConstants.STRING);
         return result;
     }
 
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.offheap;
+
+import com.eventswarm.events.CSVEvent;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.jdo.JdoEvent;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Event materialized from an OffHeapEventStore.
+ *
+ * The header is decoded when the event is materialized, since it is required for ordering. Flat fields are read from
+ * the store on demand and are accessible through the CSVEvent interface, so existing CSV retrievers work unchanged.
+ * The store detaches the event (copying the fields onto the heap) when its record is released, so the event remains
+ * usable after it has been removed from storage. Reads can run on other threads while the store releases records:
+ * a read holds the segment buffer so that it is not re-used until the read completes, and falls back to the copied
+ * fields once the event has been detached.
+ *
+ * Ordering and equality are inherited from JdoEvent, so an OffHeapEvent is equal to the event it was created from
+ * (same ID, timestamp and sequence number).
+ */
+public class OffHeapEvent extends JdoEvent implements CSVEvent {
+    private transient volatile OffHeapEventStore.Segment segment;
+    private final int offset;
+    private volatile Map<String,String> fields;
+
+    OffHeapEvent(Header header, OffHeapEventStore.Segment segment, int offset) {
+        super(header, Collections.<String,EventPart>emptyMap());
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    /**
+     * Return the value of the named field, reading it from off-heap storage unless the event has been detached
+     *
+     * @param field
+     * @return field value or null if the field is not present
+     */
+    public String get(String field) {
+        Map<String,String> map = this.fields;
+        if (map == null) {
+            OffHeapEventStore.Segment current = this.segment;
+            ByteBuffer buffer = current == null ? null : current.acquire();
+            if (buffer != null) {
+                try {
+                    return current.getStore().getField(buffer, offset, field);
+                } finally {
+                    current.releaseRead();
+                }
+            }
+            // detached, so the fields were copied before the segment was cleared
+            map = this.fields;
+        }
+        return map.get(field);
+    }
+
+    /**
+     * Return all field values, caching the result on the heap
+     *
+     * @return
+     */
+    public Map<String,String> getCsvMap() {
+        Map<String,String> map = this.fields;
+        if (map == null) {
+            OffHeapEventStore.Segment current = this.segment;
+            ByteBuffer buffer = current == null ? null : current.acquire();
+            if (buffer == null) {
+                return this.fields;
+            }
+            try {
+                map = current.getStore().getFields(buffer, offset);
+            } finally {
+                current.releaseRead();
+            }
+            this.fields = map;
+        }
+        return map;
+    }
+
+    /**
+     * Copy the fields of this event onto the heap so that the event no longer depends on off-heap storage
+     *
+     * Called by the store before the record is released.
+     */
+    public void detach() {
+        if (segment != null) {
+            getCsvMap();
+            segment = null;
+        }
+    }
+
+    /**
+     * @return true if this event no longer refers to off-heap storage
+     */
+    public boolean isDetached() {
+        return segment == null;
+    }
+
+}
@@ -0,0 +1,526 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.offheap;
+
+import com.eventswarm.events.Activity;
+import com.eventswarm.events.CSVEvent;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.JsonEvent;
+import com.eventswarm.events.Source;
+import com.eventswarm.events.XmlEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import org.apache.log4j.Logger;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Store for event headers and flat fields in direct (off-heap) memory.
+ *
+ * Events are encoded into fixed size segments of direct ByteBuffers and identified by a long address. Only the header
+ * (timestamp, sequence number, source and event ID) and flat fields are stored: for a CSVEvent these are the values
+ * in the CSV map. Other events can only be stored if they have no content other than the header, so JSON, XML and
+ * other events with parts are rejected rather than losing their content. Source and field names are
+ * dictionary-encoded, so the per-event cost is the timestamp, sequence number, ID and field values. Other header
+ * attributes (causality, reply-to etc) are discarded. Activities are not supported since they span multiple events.
+ *
+ * Events are materialized as OffHeapEvent instances on request. A materialized event reads its fields from the store
+ * on demand until it is detached, which copies its fields onto the heap. The store keeps (weakly) the instance
+ * materialized for each record, so repeated requests for a record return the same instance while it is in use and
+ * that instance is detached when the record is released or the store is cleared. Materialized events therefore remain
+ * usable wherever they have been passed, even though a segment is freed (and its memory possibly re-used) once all
+ * records in the segment have been released.
+ *
+ * Records are expected to be released in approximately the order they were appended (e.g. expiry from a time
+ * window), which allows segments to be freed as a unit. Up to <code>MAX_POOLED</code> freed segments are kept for
+ * re-use to avoid repeated allocation of direct memory.
+ *
+ * This class is not thread safe for writes: callers must ensure that append and release calls are serialised and
+ * that reads do not overlap with writes (e.g. using the EventSet lock). Concurrent reads are safe. Materialized events
+ * can be read at any time: a segment buffer is not returned to the pool while an event is reading from it.
+ */
+public class OffHeapEventStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    public static final int MAX_POOLED = 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // event ID encodings
+    private static final byte ID_NONE = 0, ID_UUID = 1, ID_STRING = 2;
+
+    // record length, timestamp, sequence number, source index, id type
+    private static final int FIXED_HEADER = 4 + 8 + 4 + 4 + 1;
+
+    private final int segmentSize;
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private long baseId = 0;
+    private long nextId = 0;
+    private Segment current = null;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+    private long records = 0;
+
+    // instances materialized for live records, weakly held so unreferenced instances can be collected
+    private final ConcurrentHashMap<Long,EventRef> materialized = new ConcurrentHashMap<Long,EventRef>();
+    private final ReferenceQueue<OffHeapEvent> collected = new ReferenceQueue<OffHeapEvent>();
+
+    private final ArrayList<Source> sources = new ArrayList<Source>();
+    private final HashMap<String,Integer> sourceIndex = new HashMap<String,Integer>();
+    // read by materialized events outside the caller's lock
+    private final List<String> fieldNames = new CopyOnWriteArrayList<String>();
+    private final Map<String,Integer> fieldIndex = new ConcurrentHashMap<String,Integer>();
+
+    private static Logger logger = Logger.getLogger(OffHeapEventStore.class);
+
+    /**
+     * Create a store using the default segment size
+     */
+    public OffHeapEventStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a store using the specified segment size in bytes
+     *
+     * Records larger than the segment size are stored in a dedicated segment.
+     *
+     * @param segmentSize
+     */
+    public OffHeapEventStore(int segmentSize) {
+        if (segmentSize < 64) {
+            throw new IllegalArgumentException("Segment size must be at least 64 bytes");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Encode an event into the store, returning the address of the record
+     *
+     * @param event
+     * @return address of the record, for use with get() and release()
+     */
+    public long append(Event event) {
+        if (Activity.class.isInstance(event)) {
+            throw new IllegalArgumentException("Activities cannot be stored off-heap");
+        }
+        if (!CSVEvent.class.isInstance(event) && hasPayload(event)) {
+            throw new IllegalArgumentException("Only CSV events and header-only events can be stored off-heap");
+        }
+        Header header = event.getHeader();
+        String eventId = header.getEventId();
+        UUID uuid = parseUuid(eventId);
+        byte[] idBytes = (uuid == null && eventId != null) ? eventId.getBytes(UTF8) : null;
+        Map<String,String> fields = CSVEvent.class.isInstance(event) ? ((CSVEvent) event).getCsvMap() : null;
+
+        // encode fields first so we know the record length
+        int length = FIXED_HEADER + (uuid != null ? 16 : idBytes != null ? 4 + idBytes.length : 0) + 4;
+        int[] names = null;
+        byte[][] values = null;
+        if (fields != null && !fields.isEmpty()) {
+            names = new int[fields.size()];
+            values = new byte[fields.size()][];
+            int i = 0;
+            for (Map.Entry<String,String> entry : fields.entrySet()) {
+                names[i] = fieldIndex(entry.getKey());
+                values[i] = entry.getValue() == null ? null : entry.getValue().getBytes(UTF8);
+                length += 8 + (values[i] == null ? 0 : values[i].length);
+                i++;
+            }
+        }
+
+        Segment segment = reserve(length);
+        ByteBuffer buffer = segment.buffer;
+        int offset = segment.position;
+        int pos = offset;
+        buffer.putInt(pos, length); pos += 4;
+        buffer.putLong(pos, header.getTimestampMillis()); pos += 8;
+        buffer.putInt(pos, header.getSequenceNumber()); pos += 4;
+        buffer.putInt(pos, sourceIndex(header.getSource())); pos += 4;
+        if (uuid != null) {
+            buffer.put(pos, ID_UUID); pos += 1;
+            buffer.putLong(pos, uuid.getMostSignificantBits()); pos += 8;
+            buffer.putLong(pos, uuid.getLeastSignificantBits()); pos += 8;
+        } else if (idBytes != null) {
+            buffer.put(pos, ID_STRING); pos += 1;
+            pos = putBytes(buffer, pos, idBytes);
+        } else {
+            buffer.put(pos, ID_NONE); pos += 1;
+        }
+        int count = names == null ? 0 : names.length;
+        buffer.putInt(pos, count); pos += 4;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(pos, names[i]); pos += 4;
+            if (values[i] == null) {
+                buffer.putInt(pos, -1); pos += 4;
+            } else {
+                pos = putBytes(buffer, pos, values[i]);
+            }
+        }
+        segment.position = pos;
+        segment.live++;
+        records++;
+        return (segment.id << 32) | offset;
+    }
+
+    /**
+     * Return true if the event has content other than its header, which would be lost if it were stored
+     */
+    private static boolean hasPayload(Event event) {
+        if (JsonEvent.class.isInstance(event) || XmlEvent.class.isInstance(event)) {
+            return true;
+        }
+        Map<String,EventPart> parts = event.getPartsMap();
+        return parts != null && !parts.isEmpty();
+    }
+
+    /**
+     * Return the event stored at the specified address, materializing it if there is no instance already in use
+     *
+     * @param address
+     * @return
+     */
+    public OffHeapEvent get(long address) {
+        purge();
+        while (true) {
+            EventRef ref = materialized.get(address);
+            OffHeapEvent event = ref == null ? null : ref.get();
+            if (event != null) {
+                return event;
+            }
+            event = materialize(address);
+            EventRef created = new EventRef(event, address, collected);
+            if (ref == null ? materialized.putIfAbsent(address, created) == null : materialized.replace(address, ref, created)) {
+                return event;
+            }
+        }
+    }
+
+    private OffHeapEvent materialize(long address) {
+        Segment segment = segment(address);
+        int offset = (int) address;
+        ByteBuffer buffer = segment.buffer();
+        JdoHeader header = new JdoHeader();
+        int pos = offset + 4;
+        header.setTimestampMillis(buffer.getLong(pos)); pos += 8;
+        header.setSequenceNumber(buffer.getInt(pos)); pos += 4;
+        int source = buffer.getInt(pos); pos += 4;
+        header.setSource(source < 0 ? null : sources.get(source));
+        byte idType = buffer.get(pos); pos += 1;
+        if (idType == ID_UUID) {
+            header.setEventId(new UUID(buffer.getLong(pos), buffer.getLong(pos + 8)).toString());
+        } else if (idType == ID_STRING) {
+            header.setEventId(getString(buffer, pos));
+        }
+        return new OffHeapEvent(header, segment, offset);
+    }
+
+    /**
+     * Return the timestamp of the event stored at the specified address without materializing the event
+     *
+     * @param address
+     * @return
+     */
+    public long getTimestamp(long address) {
+        return segment(address).buffer().getLong((int) address + 4);
+    }
+
+    /**
+     * Release the record at the specified address, freeing its segment if all records in the segment are released
+     *
+     * Any materialized instance of the event that is still in use is detached first.
+     *
+     * @param address
+     */
+    public void release(long address) {
+        Segment segment = segment(address);
+        EventRef ref = materialized.remove(address);
+        OffHeapEvent event = ref == null ? null : ref.get();
+        if (event != null) {
+            event.detach();
+        }
+        segment.live--;
+        records--;
+        if (segment.live == 0 && segment != current) {
+            free(segment);
+        }
+    }
+
+    /**
+     * Release all records and free all segments
+     */
+    public void clear() {
+        for (EventRef ref : materialized.values()) {
+            OffHeapEvent event = ref.get();
+            if (event != null) event.detach();
+        }
+        materialized.clear();
+        purge();
+        for (Segment segment : segments) {
+            if (segment.buffer != null) discard(segment);
+        }
+        segments.clear();
+        baseId = nextId;
+        current = null;
+        records = 0;
+    }
+
+    /**
+     * @return the number of records that have been appended and not released
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return the number of allocated (i.e. not freed) segments
+     */
+    public int getSegmentCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment.buffer != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Return the value of a field in a record, or null if the field is not present or has a null value
+     */
+    String getField(ByteBuffer buffer, int offset, String field) {
+        Integer index = fieldIndex.get(field);
+        if (index == null) return null;
+        int pos = fieldsOffset(buffer, offset);
+        int count = buffer.getInt(pos); pos += 4;
+        for (int i = 0; i < count; i++) {
+            int name = buffer.getInt(pos);
+            int length = buffer.getInt(pos + 4);
+            if (name == index) {
+                return length < 0 ? null : getString(buffer, pos + 4);
+            }
+            pos += 8 + Math.max(length, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Return all fields of a record, excluding fields with null values
+     */
+    Map<String,String> getFields(ByteBuffer buffer, int offset) {
+        int pos = fieldsOffset(buffer, offset);
+        int count = buffer.getInt(pos); pos += 4;
+        Map<String,String> result = new HashMap<String,String>(Math.max(4, count * 2));
+        for (int i = 0; i < count; i++) {
+            int name = buffer.getInt(pos);
+            int length = buffer.getInt(pos + 4);
+            if (length >= 0) {
+                result.put(fieldNames.get(name), getString(buffer, pos + 4));
+            }
+            pos += 8 + Math.max(length, 0);
+        }
+        return result;
+    }
+
+    private int fieldsOffset(ByteBuffer buffer, int offset) {
+        int pos = offset + FIXED_HEADER - 1;
+        byte idType = buffer.get(pos); pos += 1;
+        if (idType == ID_UUID) {
+            pos += 16;
+        } else if (idType == ID_STRING) {
+            pos += 4 + buffer.getInt(pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Remove entries for materialized instances that have been garbage collected
+     */
+    private void purge() {
+        EventRef ref;
+        while ((ref = (EventRef) collected.poll()) != null) {
+            materialized.remove(ref.address, ref);
+        }
+    }
+
+    private Segment segment(long address) {
+        long id = address >>> 32;
+        if (id < baseId || id >= baseId + segments.size()) {
+            throw new IllegalStateException("Segment for address " + Long.toHexString(address) + " has been freed");
+        }
+        return segments.get((int) (id - baseId));
+    }
+
+    /**
+     * Find a segment with space for a record of the specified length, allocating a new segment if necessary
+     */
+    private Segment reserve(int length) {
+        if (current == null || current.buffer.capacity() - current.position < length) {
+            Segment previous = current;
+            current = new Segment(nextId++, allocate(length));
+            segments.add(current);
+            if (previous != null && previous.live == 0) {
+                free(previous);
+            }
+        }
+        return current;
+    }
+
+    private ByteBuffer allocate(int length) {
+        if (length <= segmentSize) {
+            ByteBuffer buffer = pool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(segmentSize);
+        } else {
+            logger.debug("Allocating dedicated segment for record of " + Integer.toString(length) + " bytes");
+            return ByteBuffer.allocateDirect(length);
+        }
+    }
+
+    private void free(Segment segment) {
+        discard(segment);
+        // remove freed segments from the head of the list
+        while (!segments.isEmpty() && segments.get(0).buffer == null) {
+            segments.remove(0);
+            baseId++;
+        }
+    }
+
+    private void discard(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        segment.buffer = null;
+        // a reader that acquired the buffer before it was cleared might still be using it, so don't re-use it
+        if (buffer.capacity() == segmentSize && pool.size() < MAX_POOLED && segment.readers.get() == 0) {
+            pool.add(buffer);
+        }
+    }
+
+    private int sourceIndex(Source source) {
+        if (source == null) return -1;
+        Integer index = sourceIndex.get(source.getId());
+        if (index == null) {
+            index = sources.size();
+            // keep our own copy so that stored events don't retain references to upstream objects
+            sources.add(new JdoSource(source.getId()));
+            sourceIndex.put(source.getId(), index);
+        }
+        return index;
+    }
+
+    private int fieldIndex(String name) {
+        Integer index = fieldIndex.get(name);
+        if (index == null) {
+            index = fieldNames.size();
+            fieldNames.add(name);
+            fieldIndex.put(name, index);
+        }
+        return index;
+    }
+
+    private static int putBytes(ByteBuffer buffer, int pos, byte[] bytes) {
+        buffer.putInt(pos, bytes.length);
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos + 4);
+        dup.put(bytes);
+        return pos + 4 + bytes.length;
+    }
+
+    private static String getString(ByteBuffer buffer, int pos) {
+        byte[] bytes = new byte[buffer.getInt(pos)];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos + 4);
+        dup.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Return the UUID represented by an event ID if the event ID is a UUID in canonical form, otherwise null
+     */
+    private static UUID parseUuid(String eventId) {
+        if (eventId == null || eventId.length() != 36 || eventId.charAt(8) != '-') return null;
+        try {
+            UUID uuid = UUID.fromString(eventId);
+            return uuid.toString().equals(eventId) ? uuid : null;
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Weak reference to a materialized event, remembering its address so the entry can be purged once collected
+     */
+    private static final class EventRef extends WeakReference<OffHeapEvent> {
+        private final long address;
+
+        private EventRef(OffHeapEvent event, long address, ReferenceQueue<OffHeapEvent> queue) {
+            super(event, queue);
+            this.address = address;
+        }
+    }
+
+    /**
+     * A segment of direct memory holding a sequence of records
+     */
+    final class Segment {
+        private final long id;
+        private volatile ByteBuffer buffer;
+        private int position = 0;
+        private int live = 0;
+        private final AtomicInteger readers = new AtomicInteger();
+
+        private Segment(long id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+            buffer.clear();
+        }
+
+        OffHeapEventStore getStore() {
+            return OffHeapEventStore.this;
+        }
+
+        ByteBuffer buffer() {
+            ByteBuffer result = buffer;
+            if (result == null) {
+                throw new IllegalStateException("Event storage has been freed");
+            }
+            return result;
+        }
+
+        /**
+         * Return the buffer for reading by a materialized event, or null if the segment has been freed
+         *
+         * A non-null buffer is not re-used until releaseRead is called. The reader count is incremented before the
+         * buffer is read and discard clears the buffer before checking the count, so either the reader sees the
+         * segment is freed or discard sees the reader.
+         */
+        ByteBuffer acquire() {
+            readers.incrementAndGet();
+            ByteBuffer result = buffer;
+            if (result == null) {
+                readers.decrementAndGet();
+            }
+            return result;
+        }
+
+        void releaseRead() {
+            readers.decrementAndGet();
+        }
+    }
+}
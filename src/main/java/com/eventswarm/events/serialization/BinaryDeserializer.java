@@ -0,0 +1,363 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.serialization;
+
+import com.eventswarm.channels.Deserializer;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.Source;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.JdoActivity;
+import com.eventswarm.events.jdo.JdoCSVEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.eventswarm.events.serialization.BinaryFormat.*;
+
+/**
+ * Deserializer implementation that reads events written by the BinarySerializer.
+ *
+ * JSON events are created using the supplied OrgJsonEventFactory, or as OrgJsonEvent instances if no factory is
+ * supplied, so there is no reflection or JSON parsing. CSV events are created as JdoCSVEvent instances, with events
+ * from the same stream sharing a field map where they shared one when written. Activities are created as JdoActivity
+ * instances.
+ *
+ * The fromBytes method reads a self-contained frame. The readFrom method keeps a dictionary for the life of the stream
+ * so must be used to read a stream written by BinarySerializer.writeTo from the start. Because of this state,
+ * readFrom is synchronized. Call reset when starting a new stream.
+ */
+public class BinaryDeserializer implements Deserializer {
+    private final OrgJsonEventFactory factory;
+    private Decoder stream;
+
+    /**
+     * Create a deserializer that creates JSON events as OrgJsonEvent instances
+     */
+    public BinaryDeserializer() {
+        this(null);
+    }
+
+    /**
+     * Create a deserializer that uses the supplied factory to create JSON events
+     *
+     * @param factory
+     */
+    public BinaryDeserializer(OrgJsonEventFactory factory) {
+        this.factory = factory;
+        this.stream = new Decoder();
+    }
+
+    /**
+     * Read a self-contained frame
+     *
+     * @param bytes
+     * @return
+     * @throws DeserializeException if the bytes do not contain a complete, valid frame
+     */
+    public Event fromBytes(byte[] bytes) throws DeserializeException {
+        Event event = new Decoder().readFrame(ByteBuffer.wrap(bytes));
+        if (event == null) {
+            throw new DeserializeException("Incomplete frame");
+        }
+        return event;
+    }
+
+    /**
+     * Read a self-contained frame encoded as a Base64 string
+     *
+     * @param string
+     * @return
+     * @throws DeserializeException
+     */
+    public Event fromString(String string) throws DeserializeException {
+        try {
+            return fromBytes(Base64.getDecoder().decode(string));
+        } catch (IllegalArgumentException exc) {
+            throw new DeserializeException("Invalid Base64 content", exc);
+        }
+    }
+
+    /**
+     * Read the next frame from the supplied buffer, using the dictionary for this stream
+     *
+     * If the buffer does not contain a complete frame, the buffer position is unchanged and null is returned, allowing
+     * the caller to read more data and try again. Otherwise, the buffer position is moved to the end of the frame, even
+     * if the frame is invalid.
+     *
+     * @param buffer
+     * @return the next event, or null if the buffer does not hold a complete frame
+     * @throws DeserializeException if the frame is invalid
+     */
+    public synchronized Event readFrom(ByteBuffer buffer) throws DeserializeException {
+        return stream.readFrame(buffer);
+    }
+
+    /**
+     * Clear the stream dictionary, ready to start a new stream
+     */
+    public synchronized void reset() {
+        stream = new Decoder();
+    }
+
+    /**
+     * Decoder holding the dictionary
+     */
+    private class Decoder {
+        private final List<String> strings = new ArrayList<String>();
+        private final List<Map<String,Integer>> schemas = new ArrayList<Map<String,Integer>>();
+        private final Map<String,Source> sources = new HashMap<String,Source>();
+
+        Event readFrame(ByteBuffer buffer) throws DeserializeException {
+            int start = buffer.position();
+            int length;
+            try {
+                length = (int) readVarLong(buffer);
+            } catch (BufferUnderflowException exc) {
+                buffer.position(start);
+                return null;
+            } catch (IllegalArgumentException exc) {
+                throw new DeserializeException("Invalid frame length", exc);
+            }
+            if (length < 0 || buffer.remaining() < length) {
+                buffer.position(start);
+                return null;
+            }
+            int end = buffer.position() + length;
+            ByteBuffer frame = buffer.duplicate();
+            frame.limit(end);
+            buffer.position(end);
+            int stringMark = strings.size();
+            int schemaMark = schemas.size();
+            try {
+                Event event = readEvent(frame);
+                if (frame.hasRemaining()) {
+                    throw new DeserializeException("Unexpected content at end of frame");
+                }
+                return event;
+            } catch (DeserializeException exc) {
+                rollback(stringMark, schemaMark);
+                throw exc;
+            } catch (RuntimeException exc) {
+                rollback(stringMark, schemaMark);
+                throw new DeserializeException("Invalid frame", exc);
+            }
+        }
+
+        private void rollback(int stringMark, int schemaMark) {
+            strings.subList(stringMark, strings.size()).clear();
+            schemas.subList(schemaMark, schemas.size()).clear();
+        }
+
+        Event readEvent(ByteBuffer in) throws DeserializeException {
+            byte type = in.get();
+            switch (type) {
+                case TYPE_JSON:
+                    Header header = readHeader(in);
+                    JSONObject json = readObject(in);
+                    return factory == null ? new OrgJsonEvent(header, json) : factory.create(header, json);
+                case TYPE_CSV:
+                    header = readHeader(in);
+                    Map<String,Integer> fields = readSchema(in);
+                    return new JdoCSVEvent(header, fields, readValues(in));
+                case TYPE_ACTIVITY:
+                    header = readHeader(in);
+                    int count = readVar(in);
+                    if (count < 1) {
+                        throw new DeserializeException("Activity must contain at least one event");
+                    }
+                    SortedSet<Event> events = new TreeSet<Event>();
+                    for (int i = 0; i < count; i++) {
+                        events.add(readEvent(in));
+                    }
+                    JdoActivity activity = new JdoActivity(events);
+                    activity.setHeader(header);
+                    return activity;
+                default:
+                    throw new DeserializeException("Unknown event type " + Byte.toString(type));
+            }
+        }
+
+        Header readHeader(ByteBuffer in) throws DeserializeException {
+            long timestamp = unzigzag(readVarLong(in));
+            int sequence = (int) unzigzag(readVarLong(in));
+            Source source = source(readDictString(in));
+            byte idType = in.get();
+            if (idType == ID_UUID) {
+                // avoid generating a UUID since we already have one
+                JdoHeader header = new JdoHeader();
+                header.setTimestampMillis(timestamp);
+                header.setSequenceNumber(sequence);
+                header.setSource(source);
+                header.setUuid(new UUID(in.getLong(), in.getLong()));
+                return header;
+            } else if (idType == ID_STRING) {
+                return new JdoHeader(timestamp, sequence, source, null, null, null, readString(in));
+            } else {
+                throw new DeserializeException("Unknown event id type " + Byte.toString(idType));
+            }
+        }
+
+        Map<String,Integer> readSchema(ByteBuffer in) throws DeserializeException {
+            int ref = readVar(in);
+            if (ref >= DICT_BASE) {
+                return schemas.get(ref - DICT_BASE);
+            }
+            int count = readVar(in);
+            Map<String,Integer> fields = new HashMap<String,Integer>();
+            for (int i = 0; i < count; i++) {
+                String name = readDictString(in);
+                int index = readVar(in);
+                fields.put(name, index == 0 ? null : index - 1);
+            }
+            if (ref == DICT_DEFINE) {
+                schemas.add(fields);
+            }
+            return fields;
+        }
+
+        String[] readValues(ByteBuffer in) throws DeserializeException {
+            String[] values = new String[readVar(in)];
+            for (int i = 0; i < values.length; i++) {
+                int length = readVar(in);
+                values[i] = length == 0 ? null : readUtf8(in, length - 1);
+            }
+            return values;
+        }
+
+        JSONObject readObject(ByteBuffer in) throws DeserializeException {
+            int count = readVar(in);
+            JSONObject object = new JSONObject();
+            for (int i = 0; i < count; i++) {
+                String key = readDictString(in);
+                object.put(key, readValue(in));
+            }
+            return object;
+        }
+
+        Object readValue(ByteBuffer in) throws DeserializeException {
+            byte tag = in.get();
+            switch (tag) {
+                case TAG_NULL:
+                    return JSONObject.NULL;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_INT:
+                    long value = unzigzag(readVarLong(in));
+                    // match the types created by the org.json parser
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return Integer.valueOf((int) value);
+                    } else {
+                        return Long.valueOf(value);
+                    }
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(in.getLong());
+                case TAG_STRING:
+                    return readString(in);
+                case TAG_OBJECT:
+                    return readObject(in);
+                case TAG_ARRAY:
+                    int count = readVar(in);
+                    JSONArray array = new JSONArray();
+                    for (int i = 0; i < count; i++) {
+                        array.put(readValue(in));
+                    }
+                    return array;
+                case TAG_BIG_INTEGER:
+                    return new BigInteger(readString(in));
+                case TAG_BIG_DECIMAL:
+                    return new BigDecimal(readString(in));
+                default:
+                    throw new DeserializeException("Unknown value tag " + Byte.toString(tag));
+            }
+        }
+
+        String readDictString(ByteBuffer in) throws DeserializeException {
+            int ref = readVar(in);
+            if (ref >= DICT_BASE) {
+                return strings.get(ref - DICT_BASE);
+            }
+            String string = readString(in);
+            if (ref == DICT_DEFINE) {
+                strings.add(string);
+            }
+            return string;
+        }
+
+        Source source(String id) {
+            Source source = sources.get(id);
+            if (source == null) {
+                source = Sources.cache.getSourceByName(id);
+                sources.put(id, source);
+            }
+            return source;
+        }
+    }
+
+    static String readString(ByteBuffer in) throws DeserializeException {
+        return readUtf8(in, readVar(in));
+    }
+
+    static String readUtf8(ByteBuffer in, int length) throws DeserializeException {
+        if (length < 0 || length > in.remaining()) {
+            throw new DeserializeException("String length exceeds frame");
+        }
+        String string;
+        if (in.hasArray()) {
+            string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    static int readVar(ByteBuffer in) throws DeserializeException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new DeserializeException("Varint out of range");
+        }
+        return (int) value;
+    }
+
+    static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.serialization;
+
+/**
+ * Constants shared by the BinarySerializer and BinaryDeserializer.
+ *
+ * Each serialized event is a frame containing a varint length followed by an event:
+ *
+ * {@code
+ * event    := type:byte header body
+ * header   := timestamp:zigzag-varlong sequence:zigzag-varint source:dict-string id
+ * id       := ID_UUID msb:long lsb:long | ID_STRING string
+ * body     := (JSON) object | (CSV) schema values | (ACTIVITY) count:varint event*
+ * object   := count:varint (dict-string value)*
+ * value    := tag:byte [payload], where the payload depends on the tag
+ * schema   := dict-ref [count:varint (dict-string index:varint)*]   (field list only on first use)
+ * values   := count:varint (length+1:varint utf8 | 0 for null)*
+ * string   := length:varint utf8
+ * dict-string := 0 string (literal) | 1 string (define next entry) | n+2 (reference to entry n)
+ * }
+ *
+ * Dictionary entries (source ids, field names and CSV schemas) are defined on first use and referenced thereafter.
+ * The dictionary lives as long as the encoder: a single frame for toBytes, or a whole stream for writeTo.
+ */
+final class BinaryFormat {
+    static final byte TYPE_JSON = 1;
+    static final byte TYPE_CSV = 2;
+    static final byte TYPE_ACTIVITY = 3;
+
+    static final byte ID_STRING = 0;
+    static final byte ID_UUID = 1;
+
+    static final byte TAG_NULL = 0;
+    static final byte TAG_FALSE = 1;
+    static final byte TAG_TRUE = 2;
+    static final byte TAG_INT = 3;
+    static final byte TAG_DOUBLE = 4;
+    static final byte TAG_STRING = 5;
+    static final byte TAG_OBJECT = 6;
+    static final byte TAG_ARRAY = 7;
+    static final byte TAG_BIG_INTEGER = 8;
+    static final byte TAG_BIG_DECIMAL = 9;
+
+    static final int DICT_LITERAL = 0;
+    static final int DICT_DEFINE = 1;
+    static final int DICT_BASE = 2;
+
+    /** Maximum number of dictionary strings, after which new strings are written as literals */
+    static final int MAX_STRINGS = 1 << 16;
+
+    /** Maximum number of dictionary CSV schemas, after which schemas are written as literals */
+    static final int MAX_SCHEMAS = 1 << 10;
+
+    private BinaryFormat() {
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.serialization;
+
+import com.eventswarm.channels.Serializer;
+import com.eventswarm.events.Activity;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.jdo.JdoCSVEvent;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import com.eventswarm.events.jdo.RawJsonEvent;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.eventswarm.events.serialization.BinaryFormat.*;
+
+/**
+ * Serializer implementation that writes events in a compact binary format, described in BinaryFormat.
+ *
+ * Header fields are varints, source ids and field names are dictionary encoded and JSON values are written with
+ * a type tag, so there is no intermediate JSON text. Supported events are OrgJsonEvent and RawJsonEvent (read back as
+ * OrgJsonEvent), JdoCSVEvent and activities (read back as JdoActivity), with nested events serialized recursively.
+ * Header causality and reply fields are not serialized.
+ *
+ * The toBytes method produces a self-contained frame. The writeTo method keeps a dictionary for the life of the
+ * stream, so repeated source ids, field names and CSV schemas are written only once: a stream written this way
+ * must be read from the start using a single BinaryDeserializer. Because of this state, writeTo is synchronized.
+ * Call reset when starting a new stream.
+ */
+public class BinarySerializer implements Serializer {
+    private Encoder stream = new Encoder();
+
+    /**
+     * Serialize the event as a self-contained frame
+     *
+     * @param event
+     * @return
+     * @throws SerializeException if the event type is not supported
+     */
+    public byte[] toBytes(Event event) throws SerializeException {
+        Encoder encoder = new Encoder();
+        encoder.writeEvent(event);
+        return encoder.toFrame();
+    }
+
+    /**
+     * Serialize the event as a self-contained frame, encoded using Base64 so it can be safely treated as a String
+     *
+     * @param event
+     * @return
+     * @throws SerializeException
+     */
+    public String toString(Event event) throws SerializeException {
+        return Base64.getEncoder().encodeToString(toBytes(event));
+    }
+
+    /**
+     * Write the event as a frame to the supplied stream, using the dictionary for this stream
+     *
+     * @param event
+     * @param out
+     * @throws SerializeException if the event type is not supported
+     * @throws IOException
+     */
+    public synchronized void writeTo(Event event, OutputStream out) throws SerializeException, IOException {
+        stream.clear();
+        int stringMark = stream.strings.size();
+        int schemaMark = stream.schemas.size();
+        try {
+            stream.writeEvent(event);
+        } catch (SerializeException exc) {
+            // dictionary entries defined by the failed event were never written, so forget them
+            stream.rollback(stringMark, schemaMark);
+            throw exc;
+        }
+        stream.writeFrame(out);
+    }
+
+    /**
+     * Clear the stream dictionary, ready to start a new stream
+     */
+    public synchronized void reset() {
+        stream = new Encoder();
+    }
+
+    /**
+     * Encoder holding a buffer and dictionary
+     */
+    static class Encoder {
+        private byte[] buffer = new byte[256];
+        private int pos = 0;
+        private final Map<String,Integer> strings = new HashMap<String,Integer>();
+        private final Map<Map<String,Integer>,Integer> schemas = new IdentityHashMap<Map<String,Integer>,Integer>();
+
+        void clear() {
+            pos = 0;
+        }
+
+        void rollback(int stringMark, int schemaMark) {
+            for (Iterator<Integer> iter = strings.values().iterator(); iter.hasNext(); ) {
+                if (iter.next() >= stringMark) iter.remove();
+            }
+            for (Iterator<Integer> iter = schemas.values().iterator(); iter.hasNext(); ) {
+                if (iter.next() >= schemaMark) iter.remove();
+            }
+        }
+
+        byte[] toFrame() {
+            byte[] frame = new byte[varSize(pos) + pos];
+            int offset = putVar(frame, 0, pos);
+            System.arraycopy(buffer, 0, frame, offset, pos);
+            return frame;
+        }
+
+        void writeFrame(OutputStream out) throws IOException {
+            byte[] length = new byte[5];
+            out.write(length, 0, putVar(length, 0, pos));
+            out.write(buffer, 0, pos);
+        }
+
+        void writeEvent(Event event) throws SerializeException {
+            if (event instanceof OrgJsonEvent) {
+                writeByte(TYPE_JSON);
+                writeHeader(event.getHeader());
+                writeObject(((OrgJsonEvent) event).getJson());
+            } else if (event instanceof RawJsonEvent) {
+                writeByte(TYPE_JSON);
+                writeHeader(event.getHeader());
+                writeObject(((RawJsonEvent) event).getJson());
+            } else if (event instanceof JdoCSVEvent) {
+                writeByte(TYPE_CSV);
+                writeHeader(event.getHeader());
+                writeCsv((JdoCSVEvent) event);
+            } else if (event instanceof Activity) {
+                writeByte(TYPE_ACTIVITY);
+                writeHeader(event.getHeader());
+                SortedSet<Event> events = ((Activity) event).getEvents();
+                writeVar(events.size());
+                for (Event nested : events) {
+                    writeEvent(nested);
+                }
+            } else {
+                throw new SerializeException("Binary serialization not supported for " + event.getClass().getName());
+            }
+        }
+
+        void writeHeader(Header header) {
+            writeVarLong(zigzag(header.getTimestampMillis()));
+            writeVarLong(zigzag(header.getSequenceNumber()));
+            writeDictString(header.getSource().getSourceId());
+            String id = header.getEventId();
+            UUID uuid = asUuid(id);
+            if (uuid != null) {
+                writeByte(ID_UUID);
+                writeLong(uuid.getMostSignificantBits());
+                writeLong(uuid.getLeastSignificantBits());
+            } else {
+                writeByte(ID_STRING);
+                writeString(id);
+            }
+        }
+
+        void writeCsv(JdoCSVEvent event) {
+            Map<String,Integer> fields = event.getFields();
+            Integer ref = schemas.get(fields);
+            if (ref != null) {
+                writeVar(ref + DICT_BASE);
+            } else {
+                if (schemas.size() < MAX_SCHEMAS) {
+                    schemas.put(fields, schemas.size());
+                    writeVar(DICT_DEFINE);
+                } else {
+                    writeVar(DICT_LITERAL);
+                }
+                writeVar(fields.size());
+                for (Map.Entry<String,Integer> field : fields.entrySet()) {
+                    writeDictString(field.getKey());
+                    writeVar(field.getValue() == null ? 0 : field.getValue() + 1);
+                }
+            }
+            String[] values = event.getValues();
+            writeVar(values.length);
+            for (String value : values) {
+                if (value == null) {
+                    writeVar(0);
+                } else {
+                    writeUtf8(value, 1);
+                }
+            }
+        }
+
+        void writeObject(JSONObject object) {
+            writeVar(object.length());
+            for (String key : object.keySet()) {
+                writeDictString(key);
+                writeValue(object.opt(key));
+            }
+        }
+
+        void writeValue(Object value) {
+            if (value == null || JSONObject.NULL.equals(value)) {
+                writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                writeByte(TAG_INT);
+                writeVarLong(zigzag(((Number) value).longValue()));
+            } else if (value instanceof Double || value instanceof Float) {
+                writeByte(TAG_DOUBLE);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof String) {
+                writeByte(TAG_STRING);
+                writeString((String) value);
+            } else if (value instanceof JSONObject) {
+                writeByte(TAG_OBJECT);
+                writeObject((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                writeByte(TAG_ARRAY);
+                writeVar(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    writeValue(array.opt(i));
+                }
+            } else if (value instanceof BigInteger) {
+                writeByte(TAG_BIG_INTEGER);
+                writeString(value.toString());
+            } else if (value instanceof BigDecimal) {
+                writeByte(TAG_BIG_DECIMAL);
+                writeString(value.toString());
+            } else {
+                // anything else is rendered as a string, as for JSON text
+                writeByte(TAG_STRING);
+                writeString(value.toString());
+            }
+        }
+
+        void writeDictString(String string) {
+            Integer ref = strings.get(string);
+            if (ref != null) {
+                writeVar(ref + DICT_BASE);
+            } else if (strings.size() < MAX_STRINGS) {
+                strings.put(string, strings.size());
+                writeVar(DICT_DEFINE);
+                writeString(string);
+            } else {
+                writeVar(DICT_LITERAL);
+                writeString(string);
+            }
+        }
+
+        void writeString(String string) {
+            writeUtf8(string, 0);
+        }
+
+        /**
+         * Write a string as a varint length (plus <code>bias</code>) and UTF-8 bytes, directly into the buffer
+         */
+        void writeUtf8(String string, int bias) {
+            int chars = string.length();
+            int length = 0;
+            for (int i = 0; i < chars; i++) {
+                char c = string.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            writeVar(length + bias);
+            ensure(length);
+            for (int i = 0; i < chars; i++) {
+                char c = string.charAt(i);
+                if (c < 0x80) {
+                    buffer[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, string.charAt(++i));
+                    buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    // unpaired surrogates are written as-is, as for modified UTF-8
+                    buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buffer[pos++] = b;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[pos++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVar(int value) {
+            writeVarLong(value & 0xffffffffL);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[pos++] = (byte) value;
+        }
+
+        private void ensure(int required) {
+            if (pos + required > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, pos + required));
+            }
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Return the UUID represented by the supplied id if it is in canonical form, otherwise null
+     */
+    static UUID asUuid(String id) {
+        if (id == null || id.length() != 36 || id.charAt(8) != '-' || id.charAt(13) != '-' ||
+                id.charAt(18) != '-' || id.charAt(23) != '-') {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+    }
+
+    private static int varSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static int putVar(byte[] target, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            target[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+}
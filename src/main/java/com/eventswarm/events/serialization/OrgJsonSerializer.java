@@ -73,7 +73,7 @@ public class OrgJsonSerializer implements Serializer {
     public String makeHeader(Event event) {
         JSONObject fields = new JSONObject();
         fields.put(OrgJsonEvent.JSON_EVENT_ID, event.getHeader().getEventId());
-        fields.put(OrgJsonEvent.JSON_TIMESTAMP, event.getHeader().getTimestamp().getTime());
+        fields.put(OrgJsonEvent.JSON_TIMESTAMP, event.getHeader().getTimestampMillis());
         fields.put(OrgJsonEvent.JSON_SEQUENCE_NO, event.getHeader().getSequenceNumber());
         fields.put(OrgJsonEvent.JSON_SOURCE_ID, event.getHeader().getSource().getSourceId());
         return "\"" + OrgJsonEvent.JSON_HEADER_OBJECT + "\":" + fields.toString();
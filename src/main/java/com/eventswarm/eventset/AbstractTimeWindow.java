@@ -31,15 +31,16 @@ package com.eventswarm.eventset;
  * @author andyb
  */
 
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
 import com.eventswarm.util.IntervalUnit;
 import com.eventswarm.util.Interval;
 import com.eventswarm.events.Event;
 import com.eventswarm.RemoveEventTrigger;
 import org.apache.log4j.*;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.HashSet;
-import java.util.NoSuchElementException;
 
 public abstract class AbstractTimeWindow 
         extends AbstractFilter implements WindowChangeTrigger
@@ -66,9 +67,6 @@ public abstract class AbstractTimeWindow
      */
     private boolean filling;
 
-    /* date format for debug output */
-    private static final SimpleDateFormat FMT = new SimpleDateFormat("HH:mm:ss.SSS");
-
     /**
      * Constructor for ProcessingTimeWindows with window size in seconds
      * 
@@ -136,6 +134,54 @@ public abstract class AbstractTimeWindow
         this.filling = false;
     }
 
+    /**
+     * Capture the window contents, abstractions and filling flag
+     */
+    @Override
+    public State capture() {
+        lock.readLock().lock();
+        try {
+            return withFilling(super.capture());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Capture the changes to the window contents and abstractions, and the filling flag
+     */
+    @Override
+    public State captureDelta() {
+        lock.readLock().lock();
+        try {
+            return withFilling(super.captureDelta());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void restore(CheckpointReader in) throws IOException {
+        this.filling = in.readBoolean();
+        super.restore(in);
+    }
+
+    @Override
+    public void restoreDelta(CheckpointReader in) throws IOException {
+        this.filling = in.readBoolean();
+        super.restoreDelta(in);
+    }
+
+    private State withFilling(final State contents) {
+        final boolean filling = this.filling;
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeBoolean(filling);
+                contents.write(out);
+            }
+        };
+    }
+
 
     public void reset() {
         this.actions.clear();
@@ -202,30 +248,29 @@ public abstract class AbstractTimeWindow
      * Remove any events that are pushed outside the time window bounded by the
      * specified time.
      *
+     * Expired events are counted from the head of the window then removed in
+     * one operation, which is a simple truncation for windows using
+     * EventRingBuffer storage.
+     *
      * This method does not lock the buffer: it assumes the calling method is
      * doing the locking.
      *
      * @param newTime
      */
     protected void adjustTimeWindow (long newTime) {
-        // remove any events that are now outside the time window
-        try {
-            if (!this.eventSet.isEmpty()) {
-                for (Event first = this.eventSet.first();
-                     first.getHeader().getTimestamp().getTime() + this.windowSize < newTime;
-                     first = this.eventSet.first())
-                {
-                    this.filling = false;
-                    log.debug("Removing event with timestamp " +
-                              FMT.format(first.getHeader().getTimestamp()));
-                    this.remove(first);
-                }
+        // count the events that are now outside the time window
+        int expired = 0;
+        for (Event event : this.eventSet) {
+            if (event.getHeader().getTimestampMillis() + this.windowSize < newTime) {
+                expired++;
+            } else {
+                break;
             }
-        } catch (NoSuchElementException exc) {
-            // this happens when the EventSet is empty, in which case
-            // we want to just fall out of the loop.  Not pretty, but more
-            // efficient and easier to read than explicitly checking
-            // 'isEmpty()' all the time.
+        }
+        if (expired > 0) {
+            this.filling = false;
+            log.debug("Removing " + Integer.toString(expired) + " expired events");
+            this.removeFirst(expired);
         }
     }
 
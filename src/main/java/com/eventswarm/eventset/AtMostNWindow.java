@@ -97,10 +97,9 @@ public class AtMostNWindow extends AbstractFilter implements WindowChangeTrigger
                     log.warn("Event is older than earliest event in window, ignoring");
                 } else {
                     add = true;
-                    for (int i = 0; i < remove; i++) {
-                        // call parent class method: local method generates window change trigger, which is not desired
-                        super.execute((RemoveEventTrigger) this, this.eventSet.first());
-                    }
+                    // remove from the head using the parent class method: local method generates window change
+                    // trigger, which is not desired
+                    this.removeFirst(remove);
                     // It's bad if we remove more than one (we were above the limit, for some reason)
                     if (remove > 1) {
                         log.info("Window size (" + Integer.toString(size) + ") was greater than limit (" +
@@ -65,9 +65,7 @@ public class BoundedDiscreteTimeWindow extends DiscreteTimeWindow {
                     // was over the limit for some reason, so get rid of the extras
                     logger.warn("Window size (" + Integer.toString(this.size()) + ") is greater than limit (" +
                             Integer.toString(limit) + "). Removing an extra " + Integer.toString(remove - 1) + " events");
-                    for (int i = 1; i < remove; i++) {
-                        this.remove(first());
-                    }
+                    this.removeFirst(remove - 1);
                 }
                 // at the limit now
                 if (event.isAfter(this.first()) && !this.contains(event)) {
@@ -15,7 +15,7 @@
 */
 package com.eventswarm.eventset;
 
-import com.eventswarm.schedules.SystemClockTickTrigger;
+import com.eventswarm.schedules.SharedClock;
 import com.eventswarm.schedules.TickAction;
 import com.eventswarm.schedules.TickTrigger;
 import com.eventswarm.util.Interval;
@@ -35,14 +35,15 @@ import java.util.Date;
  *
  * Note that the time window is still moved in response to event arrival as well.
  *
- * This class uses a SystemClockTickTrigger (TimerTask) unless you use an external clock source.
- * It is preferable to explicitly stop the TimerTask using the stop method when you are finished with it.
+ * The internal tick source is the process-wide SharedClock, so windows with the same tick interval share a single
+ * tick and no thread is created per window. The window is registered weakly, but it is preferable to explicitly
+ * unregister using the stop method when you are finished with it.
  *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
 public class ClockedDiscreteTimeWindow extends DiscreteTimeWindow implements TickAction {
-    SystemClockTickTrigger ticker;
+    TickTrigger ticker;
     int latency;
     int tickInterval;
 
@@ -84,8 +85,8 @@ public class ClockedDiscreteTimeWindow extends DiscreteTimeWindow implements Tic
         this.latency = latency;
         this.tickInterval = tickInterval;
         if (tickInterval > 0) {
-            logger.info("Creating a system clock tick source");
-            ticker = new SystemClockTickTrigger(tickInterval);
+            logger.debug("Registering with the shared system clock");
+            ticker = SharedClock.getInstance().getTicker(tickInterval);
             ticker.registerAction(this);
         }
     }
@@ -109,12 +110,11 @@ public class ClockedDiscreteTimeWindow extends DiscreteTimeWindow implements Tic
     }
 
     /**
-     * Since this class indirectly starts a timer thread, make sure we can stop it
+     * Stop receiving ticks from the internal tick source, if any
      */
     public void stop() {
         if (ticker != null) {
             ticker.unregisterAction(this);
-            ticker.stop();
         }
     }
 
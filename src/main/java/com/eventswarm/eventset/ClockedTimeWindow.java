@@ -15,7 +15,7 @@
 */
 package com.eventswarm.eventset;
 
-import com.eventswarm.schedules.SystemClockTickTrigger;
+import com.eventswarm.schedules.SharedClock;
 import com.eventswarm.schedules.TickAction;
 import com.eventswarm.schedules.TickTrigger;
 import com.eventswarm.util.Interval;
@@ -35,14 +35,15 @@ import java.util.Date;
  *
  * A default tick source using the system clock is used if a non-zero tickInterval is specified.
  *
- * This class uses a SystemClockTickTrigger (TimerTask) unless you use an external clock source.
- * It is preferable to explicitly stop the TimerTask using the stop method when you are finished with it.
+ * The internal tick source is the process-wide SharedClock, so windows with the same tick interval share a single
+ * tick and no thread is created per window. The window is registered weakly, but it is preferable to explicitly
+ * unregister using the stop method when you are finished with it.
  *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
 public class ClockedTimeWindow extends AbstractTimeWindow implements TickAction {
-    SystemClockTickTrigger ticker;
+    TickTrigger ticker;
     int latency;
     int tickInterval;
     long filled;
@@ -91,8 +92,8 @@ public class ClockedTimeWindow extends AbstractTimeWindow implements TickAction
         this.tickInterval = tickInterval;
         this.filled = (new Date()).getTime() + sizeInMillis; // remember time for first window shift
         if (tickInterval > 0) {
-            logger.info("Creating a system clock tick source");
-            ticker = new SystemClockTickTrigger(tickInterval);
+            logger.debug("Registering with the shared system clock");
+            ticker = SharedClock.getInstance().getTicker(tickInterval);
             ticker.registerAction(this);
         }
     }
@@ -104,12 +105,11 @@ public class ClockedTimeWindow extends AbstractTimeWindow implements TickAction
     }
 
     /**
-     * Since this class indirectly starts a timer thread, make sure we can stop it
+     * Stop receiving ticks from the internal tick source, if any
      */
     public void stop() {
         if (ticker != null) {
             ticker.unregisterAction(this);
-            ticker.stop();
         }
     }
 
@@ -108,10 +108,10 @@ public class DiscreteTimeWindow
     @Override
     public void execute(AddEventTrigger trigger, Event event) {
         // we always need to know the time of the new event
-        long time = event.getHeader().getTimestamp().getTime();
+        long time = event.getHeader().getTimestampMillis();
         long last = -1;
         if (!this.eventSet.isEmpty()) {
-            last = this.eventSet.last().getHeader().getTimestamp().getTime();
+            last = this.eventSet.last().getHeader().getTimestampMillis();
         }
         // grab a write lock on the EventSet to ensure our operations are consistent
         this.lock.writeLock().lock();
@@ -127,8 +127,10 @@ public class DiscreteTimeWindow
             } else {
                 // if not out of order, remove any events pushed out by the
                 // time of this new event
-                log.debug("Adjusting time window for end time " +
-                          FMT.format(event.getHeader().getTimestamp()));
+                if (log.isDebugEnabled()) {
+                    log.debug("Adjusting time window for end time " +
+                              FMT.format(event.getHeader().getTimestamp()));
+                }
                 this.adjustTimeWindow(time);
             }
 
@@ -143,7 +145,9 @@ public class DiscreteTimeWindow
             // fire the WindowChangeTrigger
             this.fire();
 
-            log.debug("Time window now contains " + Integer.toString(this.size()) + " events");
+            if (log.isDebugEnabled()) {
+                log.debug("Time window now contains " + Integer.toString(this.size()) + " events");
+            }
         } finally {
             // make sure we always unlock
             this.lock.writeLock().unlock();
@@ -165,7 +169,7 @@ public class DiscreteTimeWindow
         if (this.eventSet.isEmpty()) {
             return 0;
         } else {
-            return (this.eventSet.first().getHeader().getTimestamp().getTime()
+            return (this.eventSet.first().getHeader().getTimestampMillis()
                              + this.windowSize);
         }
     }
@@ -0,0 +1,446 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.events.Event;
+
+import java.util.*;
+
+/**
+ * Append-optimised storage for events in an EventSet, using a growable ring buffer sorted by the natural order of
+ * events (compareTo).
+ *
+ * A TreeSet costs O(log n) comparisons and a node allocation for every add, even though events in a time window
+ * almost always arrive in timestamp order. This class instead keeps events in a circular array so that:
+ *
+ * {@code
+ * 1. adding an event that is after the last event is a single comparison and an array store (amortised O(1))
+ * 2. removing the first event (i.e. expiry from a time window) is O(1), and removing the first n events is O(n)
+ *    with no comparisons
+ * 3. late events take a slow path: a binary search followed by shifting the shorter side of the buffer
+ * 4. contains and remove of arbitrary events use a binary search
+ * }
+ *
+ * Use EventSet.setStorage to have an EventSet (typically a time or size window) use this storage.
+ *
+ * This class implements NavigableSet so that it can replace a TreeSet, but the range views (subSet, headSet,
+ * tailSet and descendingSet) return immutable copies rather than views backed by the buffer. Like TreeSet, this
+ * class is not thread safe: EventSet does the locking. Null elements are not permitted.
+ */
+public class EventRingBuffer extends AbstractSet<Event> implements NavigableSet<Event>, HeadRemovable {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private Event[] elements;
+    private int head;
+    private int size;
+    private transient int modCount;
+
+    /**
+     * Create an empty buffer with the default initial capacity
+     */
+    public EventRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty buffer with at least the specified initial capacity
+     *
+     * The capacity is rounded up to a power of 2. The buffer grows as required.
+     *
+     * @param capacity
+     */
+    public EventRingBuffer(int capacity) {
+        int actual = DEFAULT_CAPACITY;
+        while (actual < capacity) {
+            actual <<= 1;
+        }
+        this.elements = new Event[actual];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Create a buffer containing the supplied events
+     *
+     * @param events
+     */
+    public EventRingBuffer(Collection<? extends Event> events) {
+        this(events.size());
+        addAll(events);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add an event, appending if the event is after the current last event, otherwise inserting it in order
+     *
+     * @param event
+     * @return false if an equal event (compareTo == 0) is already in the buffer
+     */
+    @Override
+    public boolean add(Event event) {
+        if (event == null) throw new NullPointerException();
+        if (size == 0 || compare(event, get(size - 1)) > 0) {
+            // fast path: in-order event
+            ensureCapacity(size + 1);
+            set(size, event);
+            size++;
+        } else {
+            // slow path: late event
+            int index = search(event);
+            if (index >= 0) {
+                return false;
+            }
+            insertAt(-(index + 1), event);
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Remove the first <code>count</code> events from the buffer without making any comparisons
+     *
+     * @param count number of events to remove, truncated to the size of the buffer
+     * @return list of removed events in order
+     */
+    public List<Event> removeFirst(int count) {
+        int n = Math.min(count, size);
+        List<Event> removed = new ArrayList<Event>(n);
+        int mask = elements.length - 1;
+        for (int i = 0; i < n; i++) {
+            int slot = (head + i) & mask;
+            removed.add(elements[slot]);
+            elements[slot] = null;
+        }
+        head = (head + n) & mask;
+        size -= n;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return copyTo(new Object[size]);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        T[] result = a.length >= size ? a : (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), size);
+        copyTo(result);
+        if (result.length > size) {
+            result[size] = null;
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Event> iterator() {
+        return new Iter(false);
+    }
+
+    public Iterator<Event> descendingIterator() {
+        return new Iter(true);
+    }
+
+    /**
+     * Events are ordered using their natural order
+     *
+     * @return null
+     */
+    public Comparator<? super Event> comparator() {
+        return null;
+    }
+
+    public Event first() {
+        if (size == 0) throw new NoSuchElementException();
+        return get(0);
+    }
+
+    public Event last() {
+        if (size == 0) throw new NoSuchElementException();
+        return get(size - 1);
+    }
+
+    public Event pollFirst() {
+        if (size == 0) return null;
+        Event first = get(0);
+        removeAt(0);
+        return first;
+    }
+
+    public Event pollLast() {
+        if (size == 0) return null;
+        Event last = get(size - 1);
+        removeAt(size - 1);
+        return last;
+    }
+
+    public Event lower(Event event) {
+        int index = search(event);
+        index = (index >= 0 ? index : -(index + 1)) - 1;
+        return index >= 0 ? get(index) : null;
+    }
+
+    public Event floor(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index : -(index + 1) - 1;
+        return index >= 0 ? get(index) : null;
+    }
+
+    public Event ceiling(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index : -(index + 1);
+        return index < size ? get(index) : null;
+    }
+
+    public Event higher(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index + 1 : -(index + 1);
+        return index < size ? get(index) : null;
+    }
+
+    /**
+     * Returns an immutable copy of the events in descending order (not a view)
+     */
+    public NavigableSet<Event> descendingSet() {
+        return Collections.unmodifiableNavigableSet(copy().descendingSet());
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> subSet(Event fromElement, boolean fromInclusive, Event toElement, boolean toInclusive) {
+        return Collections.unmodifiableNavigableSet(copy().subSet(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> headSet(Event toElement, boolean inclusive) {
+        return Collections.unmodifiableNavigableSet(copy().headSet(toElement, inclusive));
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> tailSet(Event fromElement, boolean inclusive) {
+        return Collections.unmodifiableNavigableSet(copy().tailSet(fromElement, inclusive));
+    }
+
+    public SortedSet<Event> subSet(Event fromElement, Event toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    public SortedSet<Event> headSet(Event toElement) {
+        return headSet(toElement, false);
+    }
+
+    public SortedSet<Event> tailSet(Event fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    /**
+     * @return current capacity of the underlying array
+     */
+    int capacity() {
+        return elements.length;
+    }
+
+    private TreeSet<Event> copy() {
+        return new TreeSet<Event>(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T[] copyTo(T[] target) {
+        int mask = elements.length - 1;
+        for (int i = 0; i < size; i++) {
+            target[i] = (T) elements[(head + i) & mask];
+        }
+        return target;
+    }
+
+    private Event get(int index) {
+        return elements[(head + index) & (elements.length - 1)];
+    }
+
+    private void set(int index, Event event) {
+        elements[(head + index) & (elements.length - 1)] = event;
+    }
+
+    private static int compare(Event a, Event b) {
+        return a.compareTo(b);
+    }
+
+    /**
+     * Return the index of the supplied object, or a negative value if it is not an event or not in the buffer
+     */
+    private int indexOf(Object o) {
+        if (size == 0 || !(o instanceof Event)) {
+            return -1;
+        }
+        Event event = (Event) o;
+        // cheap checks for the common cases of head and tail
+        if (compare(event, get(0)) == 0) return 0;
+        if (compare(event, get(size - 1)) == 0) return size - 1;
+        int index = search(event);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Binary search for an event
+     *
+     * @return index of the event if found, otherwise <code>-(insertion point) - 1</code>
+     */
+    private int search(Event event) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(get(mid), event);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Insert an event at the specified index, shifting the shorter side of the buffer
+     */
+    private void insertAt(int index, Event event) {
+        ensureCapacity(size + 1);
+        if (index < size / 2) {
+            // shift the front of the buffer one place towards the head
+            head = (head - 1) & (elements.length - 1);
+            for (int i = 0; i < index; i++) {
+                set(i, get(i + 1));
+            }
+        } else {
+            // shift the back of the buffer one place towards the tail
+            for (int i = size; i > index; i--) {
+                set(i, get(i - 1));
+            }
+        }
+        set(index, event);
+        size++;
+    }
+
+    /**
+     * Remove the event at the specified index, shifting the shorter side of the buffer
+     */
+    private void removeAt(int index) {
+        if (index < size / 2) {
+            // shift the front of the buffer one place towards the tail
+            for (int i = index; i > 0; i--) {
+                set(i, get(i - 1));
+            }
+            set(0, null);
+            head = (head + 1) & (elements.length - 1);
+        } else {
+            // shift the back of the buffer one place towards the head
+            for (int i = index; i < size - 1; i++) {
+                set(i, get(i + 1));
+            }
+            set(size - 1, null);
+        }
+        size--;
+        modCount++;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > elements.length) {
+            Event[] grown = new Event[elements.length << 1];
+            copyTo(grown);
+            elements = grown;
+            head = 0;
+        }
+    }
+
+    /**
+     * Fail-fast iterator over the buffer in either direction, supporting removal
+     */
+    private class Iter implements Iterator<Event> {
+        private final boolean descending;
+        private int cursor;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        private Iter(boolean descending) {
+            this.descending = descending;
+            this.cursor = descending ? size - 1 : 0;
+        }
+
+        public boolean hasNext() {
+            return descending ? cursor >= 0 : cursor < size;
+        }
+
+        public Event next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            last = cursor;
+            cursor += descending ? -1 : 1;
+            return get(last);
+        }
+
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            removeAt(last);
+            // elements after the removed element now have an index one less
+            if (!descending) {
+                cursor = last;
+            }
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+}
@@ -30,6 +30,12 @@ import com.eventswarm.abstractions.IncrementalAbstraction;
 import com.eventswarm.abstractions.MutableAbstraction;
 import com.eventswarm.*;
 import com.eventswarm.events.*;
+import com.eventswarm.util.ChangeLog;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
+import com.eventswarm.util.Checkpointable;
+
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.locks.*;
 
@@ -44,23 +50,36 @@ import org.apache.log4j.Logger;
  *
  * @author andyb
  */
-public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
+public class EventSet implements MutablePassThru, RemoveEventsBatchTrigger, Iterable<Event>, Clear, Checkpointable {
     
     // default logger
     private static Logger log = Logger.getLogger(EventSet.class);
     
     private Long id = null;
-    protected TreeSet<Event> eventSet;
+    protected NavigableSet<Event> eventSet;
     protected ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Version number of the set contents, incremented on every change to the set so that snapshots can be re-used
+     * until the set changes.
+     */
+    private transient volatile long version = 0;
+
+    /** Most recent snapshot of the set contents, null if no snapshot has been taken */
+    private transient volatile Snapshot snapshot = null;
+
+    /** Changes since the last checkpoint capture, null until the set is first captured or restored */
+    private transient ChangeLog changes = null;
+
     // time bomb
     //private static long expiry = new GregorianCalendar(2014, 06, 30).getTime().getTime();
 
     /**
      * Set of all abstractions.  Use Map so we can retrieve equivalent
-     * abstractions that have already been created. 
+     * abstractions that have already been created. Linked so that registration
+     * order is preserved in checkpoints.
      */
-    private HashMap<Abstraction,Abstraction> abstractions;
+    private LinkedHashMap<Abstraction,Abstraction> abstractions;
     
     /** Set of static (not incremental) abstractions */
     private Set<Abstraction> staticAbstractions;
@@ -92,7 +111,7 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
     }
 
     private void initialise() {
-        this.abstractions = new HashMap<Abstraction,Abstraction>();
+        this.abstractions = new LinkedHashMap<Abstraction,Abstraction>();
         this.staticAbstractions = new HashSet<Abstraction>();
         this.singletonAbstractions = new HashMap<Class<?>,Abstraction>();
         this.addActions = new HashSet<AddEventAction>();
@@ -108,7 +127,9 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
     /** Return a java.util.Set representation of this EventSet 
      *
      * This method creates a new set to avoid concurrency issues, so can be 
-     * somewhat expensive.  Use other methods if you can.
+     * somewhat expensive.  Use other methods if you can.  If you only need to
+     * read the events in order, use getSnapshot(), which is re-used until the
+     * set changes.
      */
     public NavigableSet<Event> getEventSet() {
         NavigableSet<Event> set;
@@ -125,12 +146,52 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
     private void setEventSet (Set<Event> eventSet) {
         lock.writeLock().lock();
         try {
-            this.eventSet = new TreeSet<Event>(eventSet);
+            this.eventSet.clear();
+            this.eventSet.addAll(eventSet);
+            this.changed();
+            this.changes = null;
         } finally {
             lock.writeLock().unlock();
         }
     }
     
+    /**
+     * Replace the storage used to hold the events in this set.
+     *
+     * By default, events are held in a TreeSet.  Time and size windows, which
+     * mostly receive events in time order and remove events from the head,
+     * can opt in to the append-optimised EventRingBuffer instead, for example:
+     *
+     * {@code
+     * DiscreteTimeWindow window = new DiscreteTimeWindow(IntervalUnit.HOURS, 1);
+     * window.setStorage(new EventRingBuffer());
+     * }
+     *
+     * Large windows of CSV-style events can use OffHeapEventSet to hold event
+     * headers and fields in direct memory (see OffHeapEventSet for caveats).
+     *
+     * Any events already in the set are copied into the new storage, which
+     * must use the natural order of events (i.e. a null comparator).
+     * Registered actions are not notified.
+     *
+     * @param storage empty set to hold the events of this set
+     * @throws IllegalArgumentException if the storage does not use natural ordering
+     */
+    public void setStorage(NavigableSet<Event> storage) {
+        if (storage.comparator() != null) {
+            throw new IllegalArgumentException("EventSet storage must use the natural order of events");
+        }
+        lock.writeLock().lock();
+        try {
+            storage.clear();
+            storage.addAll(this.eventSet);
+            this.eventSet = storage;
+            this.changed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     /** 
      * Add an event to the event set, updating registered abstractions 
      * and notifying downstream EventActions.
@@ -163,6 +224,8 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
             // abstractions
             if (!this.eventSet.contains(event)) {
                 this.eventSet.add(event);
+                this.changed();
+                if (changes != null) changes.added(event, this.eventSet.size());
                 // invalidate all of the static abstractions (we build on-demand)
                 for (Abstraction abs : this.staticAbstractions) {
                     abs.setCurrent(false);
@@ -208,7 +271,10 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
             log.debug("Locking for remove");
             lock.writeLock().lock();
             try {
-                this.eventSet.remove(event);
+                if (this.eventSet.remove(event) && changes != null) {
+                    changes.removed(event, this.eventSet.size());
+                }
+                this.changed();
             } finally {
                 lock.writeLock().unlock();
                 log.debug("Unlocked after remove");
@@ -224,6 +290,100 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
         }
     }
     
+    /**
+     * Remove the first (oldest) <code>count</code> events from the set.
+     *
+     * This is the equivalent of calling remove() for each of the first
+     * <code>count</code> events but is more efficient, in particular for
+     * EventRingBuffer and OffHeapEventSet storage where this is a truncation
+     * of the head of the buffer.  All events are removed before RemoveEventTrigger listeners are
+     * notified, then listeners implementing RemoveEventsBatchAction receive the
+     * removed events as a single batch and other listeners are notified for
+     * each removed event in order.
+     *
+     * @param count number of events to remove from the head of the set
+     */
+    protected void removeFirst(int count) {
+        if (count <= 0) return;
+        List<Event> removed;
+        log.debug("Locking for remove");
+        lock.writeLock().lock();
+        try {
+            if (HeadRemovable.class.isInstance(this.eventSet)) {
+                removed = ((HeadRemovable) this.eventSet).removeFirst(count);
+            } else {
+                removed = new ArrayList<Event>(Math.min(count, this.eventSet.size()));
+                for (int i = 0; i < count && !this.eventSet.isEmpty(); i++) {
+                    removed.add(this.eventSet.pollFirst());
+                }
+            }
+            this.changed();
+            if (changes != null) {
+                for (Event event : removed) {
+                    changes.removed(event, this.eventSet.size());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+            log.debug("Unlocked after remove");
+        }
+        if (!removed.isEmpty()) {
+            fireRemove(Collections.unmodifiableList(removed));
+        }
+    }
+
+    /**
+     * Remove a batch of events from the set.
+     *
+     * Events that are not in the set are ignored. All events are removed under
+     * a single write lock before listeners are notified, as for removeFirst.
+     *
+     * @param events events to remove
+     */
+    protected void removeAll(List<Event> events) {
+        if (events.isEmpty()) return;
+        List<Event> removed = new ArrayList<Event>(events.size());
+        log.debug("Locking for remove");
+        lock.writeLock().lock();
+        try {
+            for (Event event : events) {
+                if (this.eventSet.remove(event)) {
+                    removed.add(event);
+                    if (changes != null) changes.removed(event, this.eventSet.size());
+                }
+            }
+            if (!removed.isEmpty()) {
+                this.changed();
+            }
+        } finally {
+            lock.writeLock().unlock();
+            log.debug("Unlocked after remove");
+        }
+        if (!removed.isEmpty()) {
+            fireRemove(Collections.unmodifiableList(removed));
+        }
+    }
+
+    /**
+     * Notify RemoveEventTrigger listeners of a batch of removed events
+     *
+     * Listeners implementing RemoveEventsBatchAction are called once with the
+     * whole batch, other listeners are called for each removed event in order.
+     *
+     * @param removed ordered list of removed events
+     */
+    private void fireRemove(List<Event> removed) {
+        for (RemoveEventAction action : this.removeActions) {
+            if (RemoveEventsBatchAction.class.isInstance(action)) {
+                ((RemoveEventsBatchAction) action).execute(this, removed);
+            } else {
+                for (Event event : removed) {
+                    action.execute(this, event);
+                }
+            }
+        }
+    }
+
     public boolean contains(Event event) {
         boolean contains;
         lock.readLock().lock();
@@ -359,22 +519,262 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
     
     /** Return an iterator ordered by the natural order of events (compareTo). 
      * 
-     * This method takes a copy of the underlying set of events before creating
-     * the iterator (i.e. a snapshot).  As such, it will be expensive for large
-     * EventSets and should be used with care.  Building the required state or
-     * condition using an Abstraction is preferred.  
+     * The iterator is over a snapshot of the events in the set (see
+     * getSnapshot()), so it is not affected by subsequent changes to the set
+     * and does not support removal.  Snapshots are re-used until the set
+     * changes, so repeated iteration over an unchanged set is cheap, but the
+     * first iteration after a change copies the set, which will be expensive
+     * for large EventSets.  Building the required state or condition using an
+     * Abstraction is preferred.
      */
     public Iterator<Event> iterator() {
-        Iterator<Event> iter;
-        log.debug("Locking to clone for iteration");
+        return getSnapshot().iterator();
+    }
+
+    /**
+     * Return an immutable, ordered snapshot of the events in this set.
+     *
+     * The snapshot is taken under the read lock and cached, so the same list
+     * is returned until the set is next changed.  Callers can therefore read
+     * the snapshot as often as they like without copying the set, and changes
+     * to the set after the snapshot is taken are not visible through it.
+     *
+     * Note that the snapshot is held in an array rather than a TreeSet, so it
+     * is considerably cheaper to build than the copy made by getEventSet().
+     *
+     * @return immutable list of events in natural (compareTo) order
+     */
+    public List<Event> getSnapshot() {
+        Snapshot current = this.snapshot;
+        if (current == null || current.version != this.version) {
+            log.debug("Locking to take snapshot");
+            lock.readLock().lock();
+            try {
+                // concurrent readers might both rebuild, but they will build identical snapshots
+                current = new Snapshot(this.version, this.eventSet.toArray(new Event[this.eventSet.size()]));
+                this.snapshot = current;
+            } finally {
+                lock.readLock().unlock();
+                log.debug("Unlocked after taking snapshot");
+            }
+        }
+        return current.events;
+    }
+
+    /**
+     * Return the version number of this set, which changes whenever events are added or removed.
+     *
+     * Callers can use this to determine if state derived from the set contents needs to be rebuilt.
+     *
+     * @return current version number
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Record a change to the set contents, invalidating any current snapshot.
+     *
+     * Must be called with the write lock held (or when the set is otherwise not shared).
+     */
+    protected void changed() {
+        this.version++;
+        this.snapshot = null;
+    }
+
+    /** Immutable snapshot of the set contents at a particular version */
+    private static class Snapshot {
+        private final long version;
+        private final List<Event> events;
+
+        private Snapshot(long version, Event[] events) {
+            this.version = version;
+            this.events = Collections.unmodifiableList(Arrays.asList(events));
+        }
+    }
+
+    /**
+     * Capture the events in this set and the state of any registered abstractions that are Checkpointable.
+     *
+     * The capture is taken under the read lock and only copies references, so it is cheap relative to the writing
+     * of the checkpoint, but it is still proportional to the size of the set. After the first capture, the set logs
+     * added and removed events so that subsequent checkpoints can use captureDelta.
+     *
+     * @return captured state
+     */
+    public State capture() {
+        lock.readLock().lock();
+        try {
+            return captureContents();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private State captureContents() {
+        final Event[] events = this.eventSet.toArray(new Event[this.eventSet.size()]);
+        final AbstractionStates abstractionStates = new AbstractionStates(false);
+        this.changes = new ChangeLog();
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeEvents(Arrays.asList(events));
+                abstractionStates.write(out);
+            }
+        };
+    }
+
+    /**
+     * Capture the events added to and removed from this set since the previous capture, and the changes to
+     * registered abstractions.
+     *
+     * If the set has not been captured before, or has changed more than its current size since the previous capture,
+     * the full state is captured instead.
+     *
+     * @return captured changes
+     */
+    public State captureDelta() {
         lock.readLock().lock();
         try {
-            iter = (new TreeSet<Event>(this.eventSet)).iterator();
+            final ChangeLog delta = this.changes;
+            if (delta == null || delta.isOverflow()) {
+                final State full = captureContents();
+                return new State() {
+                    public void write(CheckpointWriter out) throws IOException {
+                        out.writeBoolean(true);
+                        full.write(out);
+                    }
+                };
+            }
+            final AbstractionStates abstractionStates = new AbstractionStates(true);
+            this.changes = new ChangeLog();
+            return new State() {
+                public void write(CheckpointWriter out) throws IOException {
+                    out.writeBoolean(false);
+                    delta.write(out);
+                    abstractionStates.write(out);
+                }
+            };
         } finally {
             lock.readLock().unlock();
-            log.debug("Unlocked after clone for iteration");
         }
-        return iter;
+    }
+
+    /**
+     * Restore the events in this set and the state of registered abstractions from a checkpoint.
+     *
+     * Events are added directly, without notifying any downstream actions. Abstraction state is matched against the
+     * Checkpointable abstractions registered with this set in registration order, so abstractions should be
+     * registered in the same order as when the checkpoint was taken. Static abstractions are marked as not current so
+     * they will be rebuilt on demand.
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    public void restore(CheckpointReader in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            restoreContents(in);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply changes captured by captureDelta to the restored state of this set, without notifying downstream actions
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    public void restoreDelta(CheckpointReader in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (in.readBoolean()) {
+                restoreContents(in);
+                return;
+            }
+            ChangeLog.replay(in, new ChangeLog.Target() {
+                public void added(Event event) {
+                    eventSet.add(event);
+                }
+
+                public void removed(Event event) {
+                    eventSet.remove(event);
+                }
+            });
+            this.changed();
+            restoreAbstractions(in);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void restoreContents(CheckpointReader in) throws IOException {
+        List<Event> events = in.readEvents();
+        this.eventSet.clear();
+        this.eventSet.addAll(events);
+        this.changed();
+        restoreAbstractions(in);
+    }
+
+    /**
+     * Restore the state of Checkpointable abstractions, then start logging changes from the restored state
+     */
+    private void restoreAbstractions(CheckpointReader in) throws IOException {
+        Iterator<Abstraction> iter = this.abstractions.keySet().iterator();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String type = in.readStateType();
+            Abstraction abs = nextCheckpointable(iter);
+            if (abs != null && abs.getClass().getName().equals(type)) {
+                in.restoreState((Checkpointable) abs);
+            } else {
+                log.warn("Skipping checkpoint state for unmatched abstraction " + type);
+                in.skipState();
+            }
+        }
+        for (Abstraction abs : this.abstractions.keySet()) {
+            if (!IncrementalAbstraction.class.isInstance(abs)) {
+                abs.setCurrent(false);
+                this.staticAbstractions.add(abs);
+            } else if (!Checkpointable.class.isInstance(abs)) {
+                log.warn("Incremental abstraction " + abs.getClass().getName() + " does not support checkpoints");
+            }
+        }
+        this.changes = new ChangeLog();
+    }
+
+    /**
+     * Captured state of the Checkpointable abstractions registered with this set, in registration order
+     */
+    private class AbstractionStates {
+        private final List<String> types = new ArrayList<String>();
+        private final List<State> states = new ArrayList<State>();
+
+        private AbstractionStates(boolean delta) {
+            for (Abstraction abs : abstractions.keySet()) {
+                if (Checkpointable.class.isInstance(abs)) {
+                    types.add(abs.getClass().getName());
+                    states.add(delta ? ((Checkpointable) abs).captureDelta() : ((Checkpointable) abs).capture());
+                }
+            }
+        }
+
+        private void write(CheckpointWriter out) throws IOException {
+            out.writeInt(states.size());
+            for (int i = 0; i < states.size(); i++) {
+                out.writeState(types.get(i), states.get(i));
+            }
+        }
+    }
+
+    private static Abstraction nextCheckpointable(Iterator<Abstraction> iter) {
+        while (iter.hasNext()) {
+            Abstraction abs = iter.next();
+            if (Checkpointable.class.isInstance(abs)) {
+                return abs;
+            }
+        }
+        return null;
     }
 
     /** Add abstraction to right set (incremental or static) */
@@ -411,6 +811,8 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
             while (iter.hasNext()) {
                 Event event = iter.next();
                 iter.remove();
+                this.changed();
+                if (changes != null) changes.removed(event, this.eventSet.size());
                 for (RemoveEventAction action : this.removeActions) {
                     action.execute(this, event);
                 }
@@ -435,6 +837,8 @@ public class EventSet implements MutablePassThru, Iterable<Event>, Clear {
         this.addActions.clear();
         this.removeActions.clear();
         this.eventSet.clear();
+        this.changed();
+        this.changes = null;
     }
 
     public Event first() {
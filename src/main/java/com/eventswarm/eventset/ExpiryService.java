@@ -0,0 +1,217 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared service that calls expiring components (e.g. ProcessingTimeWindow instances) when their next expiry time
+ * has passed, so that many windows can share a few threads rather than starting a thread each.
+ *
+ * Expiry times are grouped into buckets of a fixed resolution: a single dispatcher thread waits for the earliest
+ * bucket, then hands every component in that bucket to a small pool of worker threads, which expire everything that
+ * is due in one batch. Each component is scheduled at most once, for its earliest expiry time, and is rescheduled
+ * using the time returned from its expire method. Components are never called before their expiry time, but can be
+ * called up to one resolution (plus thread scheduling delays) after it.
+ *
+ * Most applications should use the shared instance returned by getInstance. Threads are daemon threads.
+ */
+public class ExpiryService {
+    /**
+     * Default bucket resolution in milliseconds for the shared instance
+     */
+    public static final long DEFAULT_RESOLUTION = 2;
+
+    /**
+     * Default number of worker threads for the shared instance
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * Interface for components that expire state at scheduled times
+     */
+    public interface Expiring {
+        /**
+         * Expire everything that is due at the specified time
+         *
+         * @param now current time in milliseconds
+         * @return next expiry time in milliseconds, or a negative value if nothing is waiting to expire
+         */
+        public long expire(long now);
+    }
+
+    private static Logger log = Logger.getLogger(ExpiryService.class);
+
+    private static ExpiryService instance;
+
+    private final long resolution;
+    private final TreeMap<Long, List<Expiring>> buckets = new TreeMap<Long, List<Expiring>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private volatile boolean stopped = false;
+
+    /**
+     * Create an expiry service with the specified number of worker threads and bucket resolution
+     *
+     * @param threads number of worker threads
+     * @param resolution bucket resolution in milliseconds
+     */
+    public ExpiryService(int threads, long resolution) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException("Resolution must be at least 1 millisecond");
+        }
+        this.resolution = resolution;
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "expiry-worker-" + Integer.toString(count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "expiry-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @return the process-wide shared expiry service
+     */
+    public static synchronized ExpiryService getInstance() {
+        if (instance == null) {
+            instance = new ExpiryService(DEFAULT_THREADS, DEFAULT_RESOLUTION);
+        }
+        return instance;
+    }
+
+    /**
+     * Schedule a component to be called at or after the specified time.
+     *
+     * The caller is responsible for ensuring a component is not scheduled again before it has been called.
+     *
+     * @param target
+     * @param time expiry time in milliseconds
+     */
+    public void schedule(Expiring target, long time) {
+        // round up to the end of the bucket so we never expire early
+        long bucket = -Math.floorDiv(-time, resolution) * resolution;
+        lock.lock();
+        try {
+            List<Expiring> targets = buckets.get(bucket);
+            if (targets == null) {
+                targets = new ArrayList<Expiring>();
+                buckets.put(bucket, targets);
+                if (buckets.firstKey() == bucket) {
+                    // new earliest bucket, so wake the dispatcher
+                    changed.signal();
+                }
+            }
+            targets.add(target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of components waiting to be called
+     */
+    public int size() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (List<Expiring> targets : buckets.values()) {
+                size += targets.size();
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Stop the dispatcher and worker threads. The shared instance should not be stopped.
+     */
+    public void shutdown() {
+        stopped = true;
+        dispatcher.interrupt();
+        workers.shutdownNow();
+    }
+
+    private void dispatch() {
+        while (!stopped) {
+            List<Expiring> due = null;
+            lock.lock();
+            try {
+                if (buckets.isEmpty()) {
+                    changed.await();
+                } else {
+                    long wait = buckets.firstKey() - System.currentTimeMillis();
+                    if (wait > 0) {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                    } else {
+                        due = buckets.pollFirstEntry().getValue();
+                    }
+                }
+            } catch (InterruptedException exc) {
+                if (!stopped) log.warn("Expiry dispatcher interrupted", exc);
+            } finally {
+                lock.unlock();
+            }
+            if (due != null) {
+                for (Expiring target : due) {
+                    submit(target);
+                }
+            }
+        }
+        log.debug("Expiry dispatcher stopped");
+    }
+
+    private void submit(final Expiring target) {
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    long next;
+                    try {
+                        next = target.expire(System.currentTimeMillis());
+                    } catch (RuntimeException exc) {
+                        log.error("Exception while expiring events", exc);
+                        next = System.currentTimeMillis() + resolution;
+                    }
+                    if (next >= 0) {
+                        schedule(target, next);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException exc) {
+            log.debug("Expiry service stopped, discarding expiry");
+        }
+    }
+}
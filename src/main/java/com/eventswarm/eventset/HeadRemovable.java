@@ -0,0 +1,34 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.events.Event;
+
+import java.util.List;
+
+/**
+ * Interface implemented by EventSet storage that can remove a number of events from the head of the set more
+ * efficiently than repeated calls to pollFirst().
+ */
+interface HeadRemovable {
+    /**
+     * Remove the first <code>count</code> events
+     *
+     * @param count number of events to remove, truncated to the size of the set
+     * @return list of removed events in order
+     */
+    List<Event> removeFirst(int count);
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.offheap.OffHeapEvent;
+import com.eventswarm.events.offheap.OffHeapEventStore;
+
+import java.util.*;
+
+/**
+ * EventSet storage that holds event headers and flat fields in off-heap memory using an OffHeapEventStore.
+ *
+ * The only per-event heap cost is two longs (the record address and timestamp) in a ring buffer ordered by the natural
+ * order of events, so very large time windows can be held without GC pressure. Like EventRingBuffer, in-order adds
+ * are appended with a single (primitive timestamp) comparison, removal from the head is O(1) per event and late events
+ * take a slow path.
+ *
+ * Events are materialized as OffHeapEvent instances when they are retrieved from the set (e.g. first(), iteration or
+ * EventSet snapshots), so retrieved events are equal to, but not the same objects as, the events that were added.
+ * Only the header (timestamp, sequence number, source and ID) and the fields of CSVEvents are retained; see
+ * OffHeapEventStore. The store returns the same instance for an event while that instance is in use, and detaches it
+ * when the event is removed, so events handed out by the set (e.g. in snapshots or to downstream RemoveEventTrigger
+ * listeners) remain usable after removal. Components that rely on object identity between added and removed events
+ * (e.g. EventMap) should not be used downstream of this storage.
+ *
+ * Use EventSet.setStorage to have an EventSet (typically a time window) use this storage. Range views return immutable
+ * copies rather than views. This class is not thread safe: EventSet does the locking. Null elements are not permitted.
+ */
+public class OffHeapEventSet extends AbstractSet<Event> implements NavigableSet<Event>, HeadRemovable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final OffHeapEventStore store;
+    private long[] addresses;
+    private long[] timestamps;
+    private int head;
+    private int size;
+    private transient int modCount;
+
+    /**
+     * Create an empty set using a store with the default segment size
+     */
+    public OffHeapEventSet() {
+        this(new OffHeapEventStore(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty set using the supplied store, which should not be shared with other sets
+     *
+     * @param store
+     * @param capacity initial capacity, rounded up to a power of 2
+     */
+    public OffHeapEventSet(OffHeapEventStore store, int capacity) {
+        int actual = 16;
+        while (actual < capacity) {
+            actual <<= 1;
+        }
+        this.store = store;
+        this.addresses = new long[actual];
+        this.timestamps = new long[actual];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * @return the store holding the events in this set
+     */
+    public OffHeapEventStore getStore() {
+        return store;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add an event, appending if the event is after the current last event, otherwise inserting it in order
+     *
+     * @param event
+     * @return false if an equal event (compareTo == 0) is already in the set
+     */
+    @Override
+    public boolean add(Event event) {
+        if (event == null) throw new NullPointerException();
+        long time = event.getHeader().getTimestampMillis();
+        if (size == 0 || time > timestampAt(size - 1)) {
+            // fast path: in-order event
+            ensureCapacity(size + 1);
+            set(size, store.append(event), time);
+            size++;
+        } else {
+            // slow path: late event or equal timestamp
+            int index = search(event, time);
+            if (index >= 0) {
+                return false;
+            }
+            insertAt(-(index + 1), store.append(event), time);
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        release(index);
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Remove the first <code>count</code> events, materializing and detaching each removed event
+     *
+     * @param count number of events to remove, truncated to the size of the set
+     * @return list of removed events in order
+     */
+    public List<Event> removeFirst(int count) {
+        int n = Math.min(count, size);
+        List<Event> removed = new ArrayList<Event>(n);
+        for (int i = 0; i < n; i++) {
+            removed.add(release(i));
+        }
+        head = (head + n) & (addresses.length - 1);
+        size -= n;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Remove all events, releasing all off-heap storage
+     */
+    @Override
+    public void clear() {
+        store.clear();
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<Event> iterator() {
+        return new Iter(false);
+    }
+
+    public Iterator<Event> descendingIterator() {
+        return new Iter(true);
+    }
+
+    /**
+     * Events are ordered using their natural order
+     *
+     * @return null
+     */
+    public Comparator<? super Event> comparator() {
+        return null;
+    }
+
+    public Event first() {
+        if (size == 0) throw new NoSuchElementException();
+        return get(0);
+    }
+
+    public Event last() {
+        if (size == 0) throw new NoSuchElementException();
+        return get(size - 1);
+    }
+
+    public Event pollFirst() {
+        if (size == 0) return null;
+        Event first = release(0);
+        removeAt(0);
+        return first;
+    }
+
+    public Event pollLast() {
+        if (size == 0) return null;
+        Event last = release(size - 1);
+        removeAt(size - 1);
+        return last;
+    }
+
+    public Event lower(Event event) {
+        int index = search(event);
+        index = (index >= 0 ? index : -(index + 1)) - 1;
+        return index >= 0 ? get(index) : null;
+    }
+
+    public Event floor(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index : -(index + 1) - 1;
+        return index >= 0 ? get(index) : null;
+    }
+
+    public Event ceiling(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index : -(index + 1);
+        return index < size ? get(index) : null;
+    }
+
+    public Event higher(Event event) {
+        int index = search(event);
+        index = index >= 0 ? index + 1 : -(index + 1);
+        return index < size ? get(index) : null;
+    }
+
+    /**
+     * Returns an immutable copy of the events in descending order (not a view)
+     */
+    public NavigableSet<Event> descendingSet() {
+        return Collections.unmodifiableNavigableSet(copy().descendingSet());
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> subSet(Event fromElement, boolean fromInclusive, Event toElement, boolean toInclusive) {
+        return Collections.unmodifiableNavigableSet(copy().subSet(fromElement, fromInclusive, toElement, toInclusive));
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> headSet(Event toElement, boolean inclusive) {
+        return Collections.unmodifiableNavigableSet(copy().headSet(toElement, inclusive));
+    }
+
+    /**
+     * Returns an immutable copy of the events in the range (not a view)
+     */
+    public NavigableSet<Event> tailSet(Event fromElement, boolean inclusive) {
+        return Collections.unmodifiableNavigableSet(copy().tailSet(fromElement, inclusive));
+    }
+
+    public SortedSet<Event> subSet(Event fromElement, Event toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    public SortedSet<Event> headSet(Event toElement) {
+        return headSet(toElement, false);
+    }
+
+    public SortedSet<Event> tailSet(Event fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    private TreeSet<Event> copy() {
+        return new TreeSet<Event>(this);
+    }
+
+    private int slot(int index) {
+        return (head + index) & (addresses.length - 1);
+    }
+
+    private OffHeapEvent get(int index) {
+        return store.get(addresses[slot(index)]);
+    }
+
+    private long timestampAt(int index) {
+        return timestamps[slot(index)];
+    }
+
+    private void set(int index, long address, long time) {
+        int slot = slot(index);
+        addresses[slot] = address;
+        timestamps[slot] = time;
+    }
+
+    /**
+     * Release the record at the specified index, returning the (detached) event that was stored there
+     */
+    private OffHeapEvent release(int index) {
+        long address = addresses[slot(index)];
+        OffHeapEvent event = store.get(address);
+        store.release(address);
+        return event;
+    }
+
+    /**
+     * Return the index of the supplied object, or a negative value if it is not an event or not in the set
+     */
+    private int indexOf(Object o) {
+        if (size == 0 || !(o instanceof Event)) {
+            return -1;
+        }
+        int index = search((Event) o);
+        return index >= 0 ? index : -1;
+    }
+
+    private int search(Event event) {
+        return search(event, event.getHeader().getTimestampMillis());
+    }
+
+    /**
+     * Binary search for an event, using the stored timestamps to find the range of events with the same timestamp
+     * and only materializing events within that range.
+     *
+     * Events with different timestamps are always ordered by timestamp, so this gives the same result as a binary
+     * search using compareTo.
+     *
+     * @return index of the event if found, otherwise <code>-(insertion point) - 1</code>
+     */
+    private int search(Event event, long time) {
+        // find the first index with a timestamp >= time
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) < time) low = mid + 1; else high = mid;
+        }
+        // find the first index with a timestamp > time
+        int end = low;
+        high = size;
+        while (end < high) {
+            int mid = (end + high) >>> 1;
+            if (timestampAt(mid) <= time) end = mid + 1; else high = mid;
+        }
+        // search the events with equal timestamps using compareTo
+        high = end - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = get(mid).compareTo(event);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Insert an entry at the specified index, shifting the shorter side of the buffer
+     */
+    private void insertAt(int index, long address, long time) {
+        ensureCapacity(size + 1);
+        if (index < size / 2) {
+            head = (head - 1) & (addresses.length - 1);
+            for (int i = 0; i < index; i++) {
+                int from = slot(i + 1);
+                set(i, addresses[from], timestamps[from]);
+            }
+        } else {
+            for (int i = size; i > index; i--) {
+                int from = slot(i - 1);
+                set(i, addresses[from], timestamps[from]);
+            }
+        }
+        set(index, address, time);
+        size++;
+    }
+
+    /**
+     * Remove the entry at the specified index, shifting the shorter side of the buffer
+     */
+    private void removeAt(int index) {
+        if (index < size / 2) {
+            for (int i = index; i > 0; i--) {
+                int from = slot(i - 1);
+                set(i, addresses[from], timestamps[from]);
+            }
+            head = (head + 1) & (addresses.length - 1);
+        } else {
+            for (int i = index; i < size - 1; i++) {
+                int from = slot(i + 1);
+                set(i, addresses[from], timestamps[from]);
+            }
+        }
+        size--;
+        modCount++;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > addresses.length) {
+            long[] grownAddresses = new long[addresses.length << 1];
+            long[] grownTimestamps = new long[addresses.length << 1];
+            for (int i = 0; i < size; i++) {
+                int from = slot(i);
+                grownAddresses[i] = addresses[from];
+                grownTimestamps[i] = timestamps[from];
+            }
+            addresses = grownAddresses;
+            timestamps = grownTimestamps;
+            head = 0;
+        }
+    }
+
+    /**
+     * Fail-fast iterator over the set in either direction, materializing events as they are returned
+     */
+    private class Iter implements Iterator<Event> {
+        private final boolean descending;
+        private int cursor;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        private Iter(boolean descending) {
+            this.descending = descending;
+            this.cursor = descending ? size - 1 : 0;
+        }
+
+        public boolean hasNext() {
+            return descending ? cursor >= 0 : cursor < size;
+        }
+
+        public Event next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            last = cursor;
+            cursor += descending ? -1 : 1;
+            return get(last);
+        }
+
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            release(last);
+            removeAt(last);
+            if (!descending) {
+                cursor = last;
+            }
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+}
@@ -22,29 +22,54 @@ package com.eventswarm.eventset;
 import com.eventswarm.util.IntervalUnit;
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.events.Event;
-import java.util.concurrent.DelayQueue;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
 import com.eventswarm.util.DelayedEvent;
 import org.apache.log4j.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
+ * Time window that removes events a fixed time after they were added, using
+ * the system clock (processing time) rather than event timestamps.
+ *
+ * Since events are added in processing time order, expiry times are held in
+ * a FIFO alongside the events, with no allocation per event. Expiry is driven
+ * by an ExpiryService shared by many windows (by default the process-wide
+ * instance), so windows do not start a thread each, and all events that are
+ * due when the service calls the window are removed as a single batch.
  *
  * @author zoki
  */
-public class ProcessingTimeWindow extends AbstractTimeWindow implements Runnable {
+public class ProcessingTimeWindow extends AbstractTimeWindow implements ExpiryService.Expiring {
 
     /* private logger for log4j */
     private static Logger log = Logger.getLogger(ProcessingTimeWindow.class);
 
-    /** thread for removing events as they go outside the processing window */
-    private Thread remover;
-    private DelayQueue<DelayedEvent> eventQueue;
+    /** service that calls this window when events expire */
+    private ExpiryService service;
+
+    /** FIFO ring of events and their expiry times, in order of addition */
+    private Event[] queue;
+    private long[] expiries;
+    private int head;
+    private int count;
+
+    /** FIFO length at the last checkpoint capture and number of events appended since, for incremental checkpoints */
+    private int captured;
+    private int appended;
+
+    /** true if this window is scheduled with the expiry service */
+    private boolean scheduled;
     boolean filling;
 
     /**
      * Constructor for ProcessingTimeWindows with window size in seconds
      * 
-     * @param WindowSize Size of window in seconds
+     * @param windowSize Size of window in seconds
      */
     public ProcessingTimeWindow(long windowSize) {
         super(windowSize);
@@ -60,16 +85,33 @@ public class ProcessingTimeWindow extends AbstractTimeWindow implements Runnable
         super(units, windowSize);
     }
 
+    /**
+     * Constructor for a window using a specific expiry service rather than the shared instance
+     *
+     * @param units Units for window size (i.e. SECONDS, MINUTES, HOURS, DAYS);
+     * @param windowSize
+     * @param service
+     */
+    public ProcessingTimeWindow(IntervalUnit units, long windowSize, ExpiryService service) {
+        super(units, windowSize);
+        this.service = service;
+    }
+
     @Override
     protected void init() {
-        this.eventQueue = new DelayQueue<DelayedEvent>();
-        this.remover = new Thread(this);
-        this.remover.start();
+        this.queue = new Event[16];
+        this.expiries = new long[16];
+        this.head = 0;
+        this.count = 0;
+        this.captured = 0;
+        this.appended = 0;
+        this.scheduled = false;
+        this.filling = true;
     }
 
     /**
-     * Override the add event action to put the event into the DelayQueue so we
-     * can remove events according to their expiry time.
+     * Override the add event action to record the expiry time of the event
+     * so we can remove events according to their expiry time.
      * 
      * The expiry time of an event is the current time plus the processing 
      * window size.  Millisecond accuracy is used for timers.
@@ -84,15 +126,197 @@ public class ProcessingTimeWindow extends AbstractTimeWindow implements Runnable
             // need to check for event existence before updating registered
             // abstractions
             if (!this.contains(event)) {
-                this.eventQueue.add(new DelayedEvent(System.currentTimeMillis() + this.windowSize, event));
+                long expiry = System.currentTimeMillis() + this.windowSize;
+                if (count > 0 && expiry < expiries[slot(count - 1)]) {
+                    // system clock has gone backwards: keep the FIFO in order
+                    expiry = expiries[slot(count - 1)];
+                }
+                append(event, expiry);
                 super.execute(trigger, event);
 
                 // execute any registered window change actions
                 this.fire();
+
+                if (!scheduled) {
+                    scheduled = true;
+                    getService().schedule(this, expiry);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all events that have expired, called by the expiry service
+     *
+     * @param now current time in milliseconds
+     * @return expiry time of the next event, or -1 if the window is empty
+     */
+    public long expire(long now) {
+        List<Event> expired = new ArrayList<Event>();
+        long next;
+        lock.writeLock().lock();
+        try {
+            while (count > 0 && expiries[head] <= now) {
+                expired.add(queue[head]);
+                queue[head] = null;
+                head = (head + 1) & (queue.length - 1);
+                count--;
+            }
+            if (count > 0) {
+                next = expiries[head];
+            } else {
+                next = -1;
+                scheduled = false;
+            }
+            if (!expired.isEmpty()) {
+                this.filling = false;
+                this.removeAll(expired);
+                // call any registered WindowChangeActions
+                this.fire();
             }
         } finally {
             lock.writeLock().unlock();
         }
+        return next;
+    }
+
+    /**
+     * Capture the window contents along with the expiry FIFO, so that restored events expire at their original times
+     *
+     * @return captured state
+     */
+    @Override
+    public State capture() {
+        lock.readLock().lock();
+        try {
+            final State contents = super.capture();
+            final Event[] events = new Event[count];
+            final long[] times = new long[count];
+            for (int i = 0; i < count; i++) {
+                events[i] = queue[slot(i)];
+                times[i] = expiries[slot(i)];
+            }
+            captured = count;
+            appended = 0;
+            return new State() {
+                public void write(CheckpointWriter out) throws IOException {
+                    contents.write(out);
+                    writeEntries(out, events, times);
+                }
+            };
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Capture the changes to the window contents, and the changes to the expiry FIFO since the previous capture
+     *
+     * Events are only appended to the tail of the FIFO and expired from the head, so the changes are the number of
+     * previously captured events that have expired and the events appended since that are still in the window.
+     *
+     * @return captured changes
+     */
+    @Override
+    public State captureDelta() {
+        lock.readLock().lock();
+        try {
+            final State contents = super.captureDelta();
+            int kept = Math.min(appended, count);
+            final int dropped = captured + kept - count;
+            final Event[] events = new Event[kept];
+            final long[] times = new long[kept];
+            for (int i = 0; i < kept; i++) {
+                events[i] = queue[slot(count - kept + i)];
+                times[i] = expiries[slot(count - kept + i)];
+            }
+            captured = count;
+            appended = 0;
+            return new State() {
+                public void write(CheckpointWriter out) throws IOException {
+                    contents.write(out);
+                    out.writeInt(dropped);
+                    writeEntries(out, events, times);
+                }
+            };
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restore the window contents and expiry FIFO, then schedule the window with the expiry service
+     *
+     * Expiry times are those captured, so events that would have expired while the window was down are removed as
+     * soon as the expiry service calls the window.
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    @Override
+    public void restore(CheckpointReader in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            super.restore(in);
+            Arrays.fill(this.queue, null);
+            this.head = 0;
+            this.count = 0;
+            restoreEntries(in);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply captured changes to the window contents and expiry FIFO, then schedule the window if necessary
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    @Override
+    public void restoreDelta(CheckpointReader in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            super.restoreDelta(in);
+            int dropped = in.readInt();
+            if (dropped < 0 || dropped > count) {
+                throw new IOException("Invalid expiry count in checkpoint");
+            }
+            for (int i = 0; i < dropped; i++) {
+                queue[head] = null;
+                head = (head + 1) & (queue.length - 1);
+                count--;
+            }
+            restoreEntries(in);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void writeEntries(CheckpointWriter out, Event[] events, long[] times) {
+        out.writeInt(events.length);
+        for (int i = 0; i < events.length; i++) {
+            out.writeEvent(events[i]);
+            out.writeLong(times[i]);
+        }
+    }
+
+    /**
+     * Append entries written by writeEntries to the FIFO and schedule the window if it is not already scheduled
+     */
+    private void restoreEntries(CheckpointReader in) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            append(in.readEvent(), in.readLong());
+        }
+        captured = count;
+        appended = 0;
+        if (count > 0 && !scheduled) {
+            scheduled = true;
+            getService().schedule(this, expiries[head]);
+        }
     }
 
     /**
@@ -107,40 +331,76 @@ public class ProcessingTimeWindow extends AbstractTimeWindow implements Runnable
     }
 
     /**
-     * Method to return the Delayed event at the head of DelayedQueue 
+     * Return the oldest event in the window with its expiry time
      * 
      * @return
      */
     public DelayedEvent peek() {
-        return this.eventQueue.peek();
+        lock.readLock().lock();
+        try {
+            return count > 0 ? new DelayedEvent(expiries[head], queue[head]) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the expiry service used by this window
+     *
+     * @return
+     */
+    public ExpiryService getService() {
+        if (this.service == null) {
+            this.service = ExpiryService.getInstance();
+        }
+        return this.service;
     }
 
     Iterator<DelayedEvent> queueIterator() {
-        return this.eventQueue.iterator();
+        List<DelayedEvent> result = new ArrayList<DelayedEvent>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new DelayedEvent(expiries[slot(i)], queue[slot(i)]));
+        }
+        return result.iterator();
     }
 
     int queueSize() {
-        return this.eventQueue.size();
+        return this.count;
     }
 
     boolean queueContains(DelayedEvent delayedEvent) {
-        return this.eventQueue.contains(delayedEvent);
+        for (int i = 0; i < count; i++) {
+            if (expiries[slot(i)] == delayedEvent.getExpiryTime() && queue[slot(i)].equals(delayedEvent.getEvent())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     boolean queueContains(Event event) {
-        boolean found = false;
-        Iterator<DelayedEvent> iter = this.eventQueue.iterator();
-        while (!found && iter.hasNext()) {
-            found = iter.next().getEvent().equals(event);
+        for (int i = 0; i < count; i++) {
+            if (queue[slot(i)].equals(event)) {
+                return true;
+            }
         }
-        return (found);
+        return false;
     }
 
     public void reset() {
-        this.actions.clear();
-        this.eventQueue.clear();
-        super.reset();
+        lock.writeLock().lock();
+        try {
+            this.actions.clear();
+            Arrays.fill(this.queue, null);
+            this.head = 0;
+            this.count = 0;
+            this.captured = 0;
+            this.appended = 0;
+            super.reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
+
     /** 
      * Check consistency of queue and EventSet. This is primarily for testing 
      * purposes and is not thread safe
@@ -148,34 +408,36 @@ public class ProcessingTimeWindow extends AbstractTimeWindow implements Runnable
      * @return true if both collections contain the same events
      */
     boolean consistent() {
-        if (this.size() != this.eventQueue.size()) {
+        if (this.size() != this.count) {
             return false;
         }
-        boolean consistent = true;
-        Iterator<DelayedEvent> iter = this.eventQueue.iterator();
-        while (consistent && iter.hasNext()) {
-            consistent = this.contains(iter.next().getEvent());
+        for (int i = 0; i < count; i++) {
+            if (!this.eventSet.contains(queue[slot(i)])) {
+                return false;
+            }
         }
-        return consistent;
+        return true;
     }
 
-    /**
-     * Thread method for removeing events as they fall out of wondow
-     */
-    public void run() {
-        DelayedEvent delayedEvent;
-        while (true) {
-            try {
-                delayedEvent = this.eventQueue.take();
-                this.filling = false;
-                this.remove(delayedEvent.getEvent());
-                // call any registered WindowChangeActions
-                this.fire();
-            } catch (InterruptedException exc) {
-                log.error(exc);
-            }
-
+    private int slot(int index) {
+        return (head + index) & (queue.length - 1);
+    }
 
+    private void append(Event event, long expiry) {
+        if (count == queue.length) {
+            Event[] newQueue = new Event[queue.length << 1];
+            long[] newExpiries = new long[queue.length << 1];
+            for (int i = 0; i < count; i++) {
+                newQueue[i] = queue[slot(i)];
+                newExpiries[i] = expiries[slot(i)];
+            }
+            queue = newQueue;
+            expiries = newExpiries;
+            head = 0;
         }
+        queue[slot(count)] = event;
+        expiries[slot(count)] = expiry;
+        count++;
+        appended++;
     }
 }
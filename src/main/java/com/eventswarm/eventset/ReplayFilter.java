@@ -49,7 +49,6 @@ import com.eventswarm.*;
 import com.eventswarm.events.jdo.JdoHeader;
 import com.eventswarm.AddSyncAction;
 import com.eventswarm.AddSyncTrigger;
-import java.util.Date;
 import java.util.TreeSet;
 
 public class ReplayFilter extends PassThruImpl implements AddSyncAction
@@ -205,11 +204,10 @@ public class ReplayFilter extends PassThruImpl implements AddSyncAction
 
     private void adjust(Event event, long delta) {
         JdoHeader toFix = (JdoHeader) event.getHeader();
-        long newStamp = toFix.getTimestamp().getTime() + delta;
-        toFix.setTimestamp(new Date(newStamp));
+        toFix.setTimestampMillis(toFix.getTimestampMillis() + delta);
     }
 
     private long getTime(Event event) {
-        return event.getHeader().getTimestamp().getTime();
+        return event.getHeader().getTimestampMillis();
     }
 }
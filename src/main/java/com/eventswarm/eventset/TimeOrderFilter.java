@@ -15,41 +15,56 @@
 */
 package com.eventswarm.eventset;
 
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
-
 /**
- * Applies a fixed delay to events, ordering them by timestamp before passing
- * them onwards to downstream abstractions.
- * 
+ * Re-orders events that arrive slightly out of order, passing them onwards to
+ * downstream actions in strict event order (timestamp, then sequence number).
+ *
+ * The filter holds events for a bounded lateness, measured in event time rather
+ * than wall-clock time: the watermark is the latest timestamp seen minus the
+ * lateness, and buffered events are released in order once their timestamp is
+ * at or before the watermark. Events are buffered in a priority queue, so the
+ * cost of re-ordering is O(log n) in the number of buffered events.
+ *
+ * Events that arrive after an event that should follow them has already been
+ * released (i.e. later than the lateness bound) cannot be delivered in order,
+ * so they are not passed on to AddEventActions. Instead, registered
+ * OutOfOrderActions are called immediately.
+ *
+ * The watermark can also be advanced without events using a TickTrigger (e.g.
+ * a clock or upstream channel), or by calling advance. Call flush at the end of
+ * a stream to release any buffered events.
+ *
  * Copyright 2008 Ensift Pty Ltd
  * 
  * @author andyb
  */
 
 import com.eventswarm.events.Event;
+import com.eventswarm.schedules.TickAction;
+import com.eventswarm.schedules.TickTrigger;
 import org.apache.log4j.*;
 import com.eventswarm.*;
-import java.util.concurrent.DelayQueue;
+import java.util.Date;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.Set;
 import java.util.HashSet;
-import com.eventswarm.util.DelayedEvent;
 
 public class TimeOrderFilter 
-        implements PassThru, OutOfOrderTrigger, Runnable
+        implements PassThru, OutOfOrderTrigger, TickAction
 {
 
     /* private logger for log4j */
     private static Logger log = Logger.getLogger(TimeOrderFilter.class);  
 
-    /** filtering delay in nanoseconds */
-    private long delay;
+    /** maximum lateness in milliseconds */
+    private long lateness;
     
-    /** DelayQueue for holding events */
-    private DelayQueue<DelayedEvent> queue;
+    /** buffered events in event order */
+    private PriorityQueue<Event> queue;
+
+    /** latest event time seen, from events or ticks */
+    private long latest;
     
     /** last event delivered */
     Event last;
@@ -58,35 +73,108 @@ public class TimeOrderFilter
     private Set<OutOfOrderAction> orderActions = new HashSet<OutOfOrderAction>();
 
     /**
-     * Create a new TimeOrderFilter using the specified delay to ensure the 
-     * order of events.
+     * Create a new TimeOrderFilter that allows events to be up to the
+     * specified delay late and still be delivered in order.
      * 
+     * @param units
      * @param delay
      */
     public TimeOrderFilter(TimeUnit units, long delay) {
-        this.delay = units.convert(delay, TimeUnit.NANOSECONDS);
-        queue = new DelayQueue<DelayedEvent>();
-        last = null;
+        this(units.toMillis(delay));
+    }
+
+    /**
+     * Create a new TimeOrderFilter that allows events to be up to the
+     * specified number of milliseconds late and still be delivered in order.
+     *
+     * @param lateness maximum lateness in milliseconds
+     */
+    public TimeOrderFilter(long lateness) {
+        if (lateness < 0) {
+            throw new IllegalArgumentException("Lateness cannot be negative");
+        }
+        this.lateness = lateness;
+        this.queue = new PriorityQueue<Event>();
+        this.latest = Long.MIN_VALUE;
+        this.last = null;
     }
     
     /**
-     * When each event is delivered, add it to a queue ordered by event timestamp
-     * so it can be passed on to downstream clients in order.
+     * When each event is delivered, add it to a queue ordered by event order
+     * then release any events that are now at or before the watermark.
      * 
-     * Any out-of-order events are passed immediately onwards via by triggering
+     * Any out-of-order events are passed immediately onwards by triggering
      * registered OutOfOrderActions.  Out-of-order events are those that are 
-     * older than the most recently delivered event.
+     * not after the most recently delivered event.
      * 
      * @param trigger
      * @param event
      */
-    public void execute(AddEventTrigger trigger, Event event) {
-        long time = event.getHeader().getTimestamp().getTime();
-        if (this.queue.isEmpty()) {
-            // just add the event
-            this.queue.add(new DelayedEvent(TimeUnit.MILLISECONDS.convert(time, TimeUnit.NANOSECONDS), event));
+    public synchronized void execute(AddEventTrigger trigger, Event event) {
+        if (last != null && event.compareTo(last) <= 0) {
+            log.debug("Event is later than the lateness bound, firing out-of-order actions");
+            for (OutOfOrderAction action : orderActions) {
+                action.execute(this, event);
+            }
+        } else {
+            queue.add(event);
+            advance(event.getHeader().getTimestampMillis());
+        }
+    }
+
+    /**
+     * Use ticks to advance the watermark when no events are arriving
+     *
+     * @param trigger
+     * @param time
+     */
+    public void execute(TickTrigger trigger, Date time) {
+        advance(time.getTime());
+    }
+
+    /**
+     * Advance the event time to the specified time, releasing any buffered
+     * events at or before the new watermark.
+     *
+     * Times before the latest time seen are ignored.
+     *
+     * @param time event time in milliseconds
+     */
+    public synchronized void advance(long time) {
+        if (time > latest) {
+            latest = time;
+        }
+        if (latest != Long.MIN_VALUE) {
+            release(latest - lateness);
         }
-        throw new RuntimeException("Incomplete implementation");
+    }
+
+    /**
+     * Release all buffered events in order, e.g. at the end of a stream
+     */
+    public synchronized void flush() {
+        release(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the current watermark, or Long.MIN_VALUE if no events have been seen
+     */
+    public synchronized long getWatermark() {
+        return latest == Long.MIN_VALUE ? Long.MIN_VALUE : latest - lateness;
+    }
+
+    /**
+     * @return maximum lateness in milliseconds
+     */
+    public long getLateness() {
+        return lateness;
+    }
+
+    /**
+     * @return number of buffered events
+     */
+    public synchronized int size() {
+        return queue.size();
     }
 
     public void registerAction(AddEventAction action) {
@@ -105,22 +193,28 @@ public class TimeOrderFilter
         this.orderActions.remove(action);
     }
 
-    public void reset() {
+    public synchronized void reset() {
         this.addActions.clear();
         this.orderActions.clear();
         this.queue.clear();
+        this.latest = Long.MIN_VALUE;
         this.last = null;
     }
 
-    public void run() {
-        DelayedEvent delayedEvent;
-        while (true) {
-            try {
-                delayedEvent = this.queue.take();
-            } catch (InterruptedException exc) {
-                log.error(exc);
+    /**
+     * Deliver buffered events with timestamps at or before the watermark
+     *
+     * @param watermark
+     */
+    private void release(long watermark) {
+        Event event = queue.peek();
+        while (event != null && event.getHeader().getTimestampMillis() <= watermark) {
+            queue.poll();
+            last = event;
+            for (AddEventAction action : addActions) {
+                action.execute(this, event);
             }
-        }        
+            event = queue.peek();
+        }
     }
-    
 }
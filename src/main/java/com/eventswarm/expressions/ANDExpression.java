@@ -17,6 +17,8 @@ package com.eventswarm.expressions;
 
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.events.CombinationsPart;
 import com.eventswarm.events.ComplexExpressionMatchEvent;
 import com.eventswarm.events.Event;
@@ -53,7 +55,8 @@ import org.apache.log4j.Logger;
  * Created with IntelliJ IDEA.
  * User: andyb
  */
-public class ANDExpression extends AbstractEventExpression implements ComplexExpression, EventMatchAction {
+public class ANDExpression extends AbstractEventExpression
+        implements ComplexExpression, EventMatchAction, RemoveEventsBatchAction {
     protected List<EventExpression> expressions;
     protected transient ArrayList<EventSet> matchSets;
     private Set<ComplexExpressionMatchAction> complexActions;
@@ -199,6 +202,24 @@ public class ANDExpression extends AbstractEventExpression implements ComplexExp
         }
     }
 
+    /**
+     * Remove a batch of events from any match sets, holding the lock for the whole batch
+     *
+     * @param trigger
+     * @param events
+     */
+    public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+        lock.writeLock().lock();
+        try {
+            for (Event event : events) {
+                this.remove(trigger, event);
+                super.execute(trigger, event);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     /**
      * Method to do the removal of events from this class
      */
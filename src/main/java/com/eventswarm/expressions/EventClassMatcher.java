@@ -37,4 +37,8 @@ public class EventClassMatcher implements Matcher {
         logger.debug("It is " + Boolean.toString(result) + " that the event " + event.toString() + " is a " + clazz.getName());
         return result;
     }
+
+    public Class<?> getEventClass() {
+        return clazz;
+    }
 }
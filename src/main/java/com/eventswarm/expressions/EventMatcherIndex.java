@@ -0,0 +1,483 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventAction;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.abstractions.ValueRetriever;
+import com.eventswarm.events.Event;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Shared predicate index that routes events to a large number of EventMatcherExpressions, only evaluating the
+ * expressions that can possibly match.
+ *
+ * Registering thousands of EventMatcherExpressions directly against a trigger means every expression evaluates its
+ * matcher for every event, often retrieving the same value from the event thousands of times. This class instead
+ * indexes each expression by its matcher:
+ *
+ * {@code
+ * 1. ValueEqualsMatcher with a ConstantValue and StringValueMatcher: hash lookup on the retrieved value
+ * 2. ValueGreaterMatcher and ValueLessMatcher with a ConstantValue: binary search of thresholds sorted in
+ *    ascending order, the satisfied thresholds being a prefix (greater) or a suffix (less)
+ * 3. SourceMatcher: hash lookup on the event source id
+ * 4. EventClassMatcher: candidates cached for each concrete event class
+ * 5. anything else (including matchers with non-constant values): evaluated for every event
+ * }
+ *
+ * Value-based matchers are grouped by retriever using <code>equals</code> (see ValueRetriever), so each distinct
+ * retriever is called once per event. Retrievers that do not implement equals are grouped by identity.
+ *
+ * Candidate expressions are executed in registration order and still evaluate their own matcher, so an expression
+ * matches the same events as it would if registered directly, with one exception: an event whose retrieved value is
+ * null or not a number is never a candidate for a range matcher, whereas the matcher itself would throw when
+ * evaluating it. Remove events are only passed to the candidates for the removed event.
+ *
+ * Expressions can be added and removed while events are being delivered. Expressions are executed outside the
+ * index lock, so actions fired by an expression can modify the index.
+ */
+public class EventMatcherIndex implements AddEventAction, RemoveEventAction {
+    private final Map<EventMatcherExpression, Entry> entries = new IdentityHashMap<EventMatcherExpression, Entry>();
+    private final Map<ValueRetriever<?>, RetrieverGroup> groups = new LinkedHashMap<ValueRetriever<?>, RetrieverGroup>();
+    private final Map<String, List<Entry>> sources = new HashMap<String, List<Entry>>();
+    private final List<Entry> classEntries = new ArrayList<Entry>();
+    private final List<Entry> scanEntries = new ArrayList<Entry>();
+    private final Map<Class<?>, List<Entry>> classCache = new ConcurrentHashMap<Class<?>, List<Entry>>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long sequence = 0;
+
+    /**
+     * Create an empty index
+     */
+    public EventMatcherIndex() {
+        super();
+    }
+
+    /**
+     * Add an expression to the index
+     *
+     * @param expr
+     * @return false if the expression is already in the index
+     */
+    public boolean add(EventMatcherExpression expr) {
+        lock.writeLock().lock();
+        try {
+            if (entries.containsKey(expr)) {
+                return false;
+            }
+            Entry entry = new Entry(expr, sequence++);
+            entries.put(expr, entry);
+            index(entry);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an expression from the index
+     *
+     * @param expr
+     * @return false if the expression was not in the index
+     */
+    public boolean remove(EventMatcherExpression expr) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = entries.remove(expr);
+            if (entry == null) {
+                return false;
+            }
+            unindex(entry);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of expressions in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of expressions that are evaluated for every event because their matcher cannot be indexed
+     */
+    public int getScanCount() {
+        lock.readLock().lock();
+        try {
+            return scanEntries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct retrievers used by indexed value matchers
+     */
+    public int getRetrieverCount() {
+        lock.readLock().lock();
+        try {
+            return groups.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the expressions that might match the supplied event, in registration order
+     *
+     * Every expression that matches the event is included, but expressions that cannot be indexed are always
+     * included, so the candidates still need to be evaluated.
+     *
+     * @param event
+     * @return list of candidate expressions
+     */
+    public List<EventMatcherExpression> getCandidates(Event event) {
+        List<Entry> candidates = candidates(event);
+        List<EventMatcherExpression> result = new ArrayList<EventMatcherExpression>(candidates.size());
+        for (Entry entry : candidates) {
+            result.add(entry.expr);
+        }
+        return result;
+    }
+
+    /**
+     * Pass the event to each candidate expression
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(AddEventTrigger trigger, Event event) {
+        for (Entry entry : candidates(event)) {
+            entry.expr.execute(trigger, event);
+        }
+    }
+
+    /**
+     * Pass the removal to each candidate expression, since only those can hold the event as a match
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(RemoveEventTrigger trigger, Event event) {
+        for (Entry entry : candidates(event)) {
+            entry.expr.execute(trigger, event);
+        }
+    }
+
+    private List<Entry> candidates(Event event) {
+        List<Entry> result = new ArrayList<Entry>();
+        lock.readLock().lock();
+        try {
+            for (RetrieverGroup group : groups.values()) {
+                group.collect(event, result);
+            }
+            if (!sources.isEmpty()) {
+                List<Entry> list = sources.get(event.getHeader().getSource().getSourceId());
+                if (list != null) {
+                    result.addAll(list);
+                }
+            }
+            if (!classEntries.isEmpty()) {
+                result.addAll(classCandidates(event.getClass()));
+            }
+            result.addAll(scanEntries);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (result.size() > 1) {
+            Collections.sort(result);
+        }
+        return result;
+    }
+
+    /**
+     * Return the class matcher entries that match events of the supplied class, caching the result
+     *
+     * Called with at least the read lock held. The cache is cleared under the write lock when class matchers
+     * change, so concurrent readers at worst compute the same list twice.
+     */
+    private List<Entry> classCandidates(Class<?> clazz) {
+        List<Entry> list = classCache.get(clazz);
+        if (list == null) {
+            list = new ArrayList<Entry>();
+            for (Entry entry : classEntries) {
+                if (((EventClassMatcher) entry.expr.getMatcher()).getEventClass().isAssignableFrom(clazz)) {
+                    list.add(entry);
+                }
+            }
+            classCache.put(clazz, list);
+        }
+        return list;
+    }
+
+    private void index(Entry entry) {
+        Matcher matcher = entry.expr.getMatcher();
+        if (matcher instanceof ValueEqualsMatcher && ((ValueEqualsMatcher<?>) matcher).getValue() instanceof ConstantValue) {
+            ValueEqualsMatcher<?> m = (ValueEqualsMatcher<?>) matcher;
+            entry.kind = Kind.EQUALS;
+            entry.key = m.getValue().getValue();
+            group(entry, m.getRetriever()).addEquals(entry);
+        } else if (matcher instanceof StringValueMatcher && ((StringValueMatcher) matcher).getValue() != null) {
+            StringValueMatcher m = (StringValueMatcher) matcher;
+            entry.kind = Kind.EQUALS;
+            entry.key = m.getValue();
+            group(entry, m.getRetriever()).addEquals(entry);
+        } else if (matcher instanceof ValueGreaterMatcher && isConstantNumber(((ValueGreaterMatcher) matcher).getValue())) {
+            ValueGreaterMatcher m = (ValueGreaterMatcher) matcher;
+            entry.kind = Kind.GREATER;
+            entry.threshold = m.getValue().getValue().doubleValue();
+            group(entry, m.getRetriever()).greater.add(entry);
+        } else if (matcher instanceof ValueLessMatcher && isConstantNumber(((ValueLessMatcher) matcher).getValue())) {
+            ValueLessMatcher m = (ValueLessMatcher) matcher;
+            entry.kind = Kind.LESS;
+            entry.threshold = m.getValue().getValue().doubleValue();
+            group(entry, m.getRetriever()).less.add(entry);
+        } else if (matcher instanceof SourceMatcher && ((SourceMatcher) matcher).getSource() != null) {
+            entry.kind = Kind.SOURCE;
+            entry.key = ((SourceMatcher) matcher).getSource();
+            List<Entry> list = sources.get(entry.key);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                sources.put((String) entry.key, list);
+            }
+            list.add(entry);
+        } else if (matcher instanceof EventClassMatcher) {
+            entry.kind = Kind.CLASS;
+            classEntries.add(entry);
+            classCache.clear();
+        } else {
+            entry.kind = Kind.SCAN;
+            scanEntries.add(entry);
+        }
+    }
+
+    private void unindex(Entry entry) {
+        switch (entry.kind) {
+            case EQUALS:
+            case GREATER:
+            case LESS:
+                RetrieverGroup group = groups.get(entry.retriever);
+                group.remove(entry);
+                if (group.isEmpty()) {
+                    groups.remove(entry.retriever);
+                }
+                break;
+            case SOURCE:
+                List<Entry> list = sources.get(entry.key);
+                list.remove(entry);
+                if (list.isEmpty()) {
+                    sources.remove(entry.key);
+                }
+                break;
+            case CLASS:
+                classEntries.remove(entry);
+                classCache.clear();
+                break;
+            default:
+                scanEntries.remove(entry);
+        }
+    }
+
+    private static boolean isConstantNumber(Value<Number> value) {
+        return value instanceof ConstantValue && value.getValue() != null;
+    }
+
+    /**
+     * Return the group for the retriever of the entry, creating it if necessary
+     */
+    private RetrieverGroup group(Entry entry, ValueRetriever<?> retriever) {
+        RetrieverGroup group = groups.get(retriever);
+        if (group == null) {
+            group = new RetrieverGroup(retriever);
+            groups.put(retriever, group);
+        }
+        entry.retriever = group.retriever;
+        return group;
+    }
+
+    private static enum Kind {EQUALS, GREATER, LESS, SOURCE, CLASS, SCAN}
+
+    /**
+     * Registration of an expression, ordered by registration sequence
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final EventMatcherExpression expr;
+        private final long seq;
+        private Kind kind;
+        private ValueRetriever<?> retriever;
+        private Object key;
+        private double threshold;
+
+        private Entry(EventMatcherExpression expr, long seq) {
+            this.expr = expr;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry other) {
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * Equality and range matchers sharing a retriever
+     */
+    private static class RetrieverGroup {
+        private final ValueRetriever<?> retriever;
+        private final Map<Object, List<Entry>> equals = new HashMap<Object, List<Entry>>();
+        private final Thresholds greater = new Thresholds();
+        private final Thresholds less = new Thresholds();
+
+        private RetrieverGroup(ValueRetriever<?> retriever) {
+            this.retriever = retriever;
+        }
+
+        private void addEquals(Entry entry) {
+            List<Entry> list = equals.get(entry.key);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                equals.put(entry.key, list);
+            }
+            list.add(entry);
+        }
+
+        private void remove(Entry entry) {
+            if (entry.kind == Kind.EQUALS) {
+                List<Entry> list = equals.get(entry.key);
+                list.remove(entry);
+                if (list.isEmpty()) {
+                    equals.remove(entry.key);
+                }
+            } else if (entry.kind == Kind.GREATER) {
+                greater.remove(entry);
+            } else {
+                less.remove(entry);
+            }
+        }
+
+        private boolean isEmpty() {
+            return equals.isEmpty() && greater.isEmpty() && less.isEmpty();
+        }
+
+        /**
+         * Retrieve the value once and add the entries it satisfies to the result
+         *
+         * A null or non-numeric value satisfies no range matchers (the matchers themselves would throw).
+         */
+        private void collect(Event event, List<Entry> result) {
+            Object value = retriever.getValue(event);
+            if (!equals.isEmpty()) {
+                List<Entry> list = equals.get(value);
+                if (list != null) {
+                    result.addAll(list);
+                }
+            }
+            if (value instanceof Number) {
+                double x = ((Number) value).doubleValue();
+                greater.below(x, result);
+                less.above(x, result);
+            }
+        }
+    }
+
+    /**
+     * Range matcher entries sorted by ascending threshold
+     */
+    private static class Thresholds {
+        private final List<Entry> sorted = new ArrayList<Entry>();
+
+        private void add(Entry entry) {
+            // insert after any equal thresholds so that the list is stable
+            int index = firstAbove(entry.threshold);
+            sorted.add(index, entry);
+        }
+
+        private void remove(Entry entry) {
+            sorted.remove(entry);
+        }
+
+        private boolean isEmpty() {
+            return sorted.isEmpty();
+        }
+
+        /**
+         * Add entries with a threshold strictly below x (i.e. x > threshold)
+         */
+        private void below(double x, List<Entry> result) {
+            int end = firstAtOrAbove(x);
+            for (int i = 0; i < end; i++) {
+                result.add(sorted.get(i));
+            }
+        }
+
+        /**
+         * Add entries with a threshold strictly above x (i.e. x < threshold)
+         */
+        private void above(double x, List<Entry> result) {
+            for (int i = firstAbove(x); i < sorted.size(); i++) {
+                result.add(sorted.get(i));
+            }
+        }
+
+        /**
+         * Index of the first entry with threshold >= x, or the size if none. Returns 0 for NaN so nothing matches.
+         */
+        private int firstAtOrAbove(double x) {
+            if (Double.isNaN(x)) return 0;
+            int low = 0, high = sorted.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted.get(mid).threshold < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Index of the first entry with threshold > x, or the size if none. Returns the size for NaN so nothing
+         * matches.
+         */
+        private int firstAbove(double x) {
+            if (Double.isNaN(x)) return sorted.size();
+            int low = 0, high = sorted.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted.get(mid).threshold <= x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventAction;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Keywords;
+import com.eventswarm.events.OrderedKeywords;
+
+import java.util.*;
+
+/**
+ * Shared index that routes events to a large number of keyword and keyword sequence expressions, finding all hits
+ * in a single pass over the keywords of each event.
+ *
+ * Expressions registered with this index must be EventMatcherExpressions using a KeywordMatcher or a
+ * KeywordSequenceMatcher. Rather than each matcher scanning the event, the index:
+ *
+ * {@code
+ * 1. looks up each keyword of a Keywords event in a hash of single keyword rules
+ * 2. runs the ordered keywords of an OrderedKeywords event through an Aho-Corasick automaton over tokens compiled
+ *    from all keyword sequence rules, so that every occurrence of every sequence is found in one pass
+ * 3. always includes empty keyword sequences, since they match every event
+ * }
+ *
+ * The expressions that were hit are then executed in registration order. Those expressions still evaluate their own
+ * matcher, so behaviour is identical to registering them directly, but the matcher is only called for events that
+ * contain its keywords. Remove events are also only passed to the expressions hit by the removed event.
+ *
+ * The automaton is compiled lazily on the first event after the set of sequence rules changes. Matching keywords is
+ * case sensitive, as it is for the matchers.
+ */
+public class KeywordMatcherIndex implements AddEventAction, RemoveEventAction {
+    private final Map<EventMatcherExpression, Entry> entries = new IdentityHashMap<EventMatcherExpression, Entry>();
+    private final Map<String, List<Entry>> singles = new HashMap<String, List<Entry>>();
+    private final List<Entry> sequences = new ArrayList<Entry>();
+    private final List<Entry> empty = new ArrayList<Entry>();
+    private Automaton automaton;
+    private volatile Snapshot snapshot;
+    private long sequence = 0;
+
+    /**
+     * Create an empty index
+     */
+    public KeywordMatcherIndex() {
+        super();
+    }
+
+    /**
+     * Add an expression to the index
+     *
+     * @param expr expression using a KeywordMatcher or KeywordSequenceMatcher
+     * @return false if the expression is already in the index
+     * @throws IllegalArgumentException if the expression uses some other matcher
+     */
+    public synchronized boolean add(EventMatcherExpression expr) {
+        if (entries.containsKey(expr)) {
+            return false;
+        }
+        Matcher matcher = expr.getMatcher();
+        Entry entry = new Entry(expr, sequence++);
+        if (matcher instanceof KeywordMatcher) {
+            entry.tokens = new String[] {((KeywordMatcher) matcher).getKeyword()};
+            List<Entry> list = singles.get(entry.tokens[0]);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                singles.put(entry.tokens[0], list);
+            }
+            list.add(entry);
+            snapshot = null;
+        } else if (matcher instanceof KeywordSequenceMatcher) {
+            entry.tokens = ((KeywordSequenceMatcher) matcher).getKeywords();
+            entry.sequence = true;
+            if (entry.tokens.length == 0) {
+                empty.add(entry);
+            } else {
+                sequences.add(entry);
+                automaton = null;
+            }
+            snapshot = null;
+        } else {
+            throw new IllegalArgumentException("Expression must use a KeywordMatcher or KeywordSequenceMatcher");
+        }
+        entries.put(expr, entry);
+        return true;
+    }
+
+    /**
+     * Remove an expression from the index
+     *
+     * @param expr
+     * @return false if the expression was not in the index
+     */
+    public synchronized boolean remove(EventMatcherExpression expr) {
+        Entry entry = entries.remove(expr);
+        if (entry == null) {
+            return false;
+        }
+        if (!entry.sequence) {
+            List<Entry> list = singles.get(entry.tokens[0]);
+            list.remove(entry);
+            if (list.isEmpty()) {
+                singles.remove(entry.tokens[0]);
+            }
+        } else if (entry.tokens.length == 0) {
+            empty.remove(entry);
+        } else {
+            sequences.remove(entry);
+            automaton = null;
+        }
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @return number of expressions in the index
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of states in the compiled sequence automaton, including the root
+     */
+    public int getStateCount() {
+        return compiled().automaton.states;
+    }
+
+    /**
+     * Return the expressions hit by the keywords of the supplied event, in registration order
+     *
+     * @param event
+     * @return list of expressions whose keywords occur in the event
+     */
+    public List<EventMatcherExpression> getCandidates(Event event) {
+        List<Entry> candidates = candidates(event);
+        List<EventMatcherExpression> result = new ArrayList<EventMatcherExpression>(candidates.size());
+        for (Entry entry : candidates) {
+            result.add(entry.expr);
+        }
+        return result;
+    }
+
+    public void execute(AddEventTrigger trigger, Event event) {
+        for (Entry entry : candidates(event)) {
+            entry.expr.execute(trigger, event);
+        }
+    }
+
+    public void execute(RemoveEventTrigger trigger, Event event) {
+        for (Entry entry : candidates(event)) {
+            entry.expr.execute(trigger, event);
+        }
+    }
+
+    private List<Entry> candidates(Event event) {
+        Snapshot current = compiled();
+        Set<Entry> hits = new HashSet<Entry>();
+        if (Keywords.class.isInstance(event) && !current.singles.isEmpty()) {
+            Set<String> keywords = ((Keywords) event).getKeywords();
+            if (keywords.size() < current.singles.size()) {
+                for (String keyword : keywords) {
+                    add(current.singles.get(keyword), hits);
+                }
+            } else {
+                for (Map.Entry<String, List<Entry>> single : current.singles.entrySet()) {
+                    if (keywords.contains(single.getKey())) {
+                        hits.addAll(single.getValue());
+                    }
+                }
+            }
+        }
+        if (OrderedKeywords.class.isInstance(event) && current.automaton.states > 1) {
+            current.automaton.scan(((OrderedKeywords) event).getOrderedKeywords(), hits);
+        }
+        List<Entry> result = new ArrayList<Entry>(hits.size() + current.empty.size());
+        result.addAll(hits);
+        result.addAll(current.empty);
+        if (result.size() > 1) {
+            Collections.sort(result);
+        }
+        return result;
+    }
+
+    private static void add(List<Entry> list, Set<Entry> hits) {
+        if (list != null) {
+            hits.addAll(list);
+        }
+    }
+
+    /**
+     * Return the current snapshot of the registrations, creating it if the registrations have changed
+     *
+     * The automaton is only recompiled if the sequence rules have changed.
+     */
+    private Snapshot compiled() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    if (automaton == null) {
+                        automaton = new Automaton(sequences);
+                    }
+                    current = new Snapshot(automaton, singles, empty);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Registration of an expression, ordered by registration sequence
+     */
+    private static class Entry implements Comparable<Entry> {
+        private final EventMatcherExpression expr;
+        private final long seq;
+        private String[] tokens;
+        private boolean sequence;
+
+        private Entry(EventMatcherExpression expr, long seq) {
+            this.expr = expr;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry other) {
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * Automaton node: goto transitions by token, a failure link to the longest proper suffix that is also a
+     * prefix, the sequences ending here and a link to the nearest suffix node that has outputs
+     */
+    private static class Node {
+        private final Map<String, Node> next = new HashMap<String, Node>(4);
+        private Node fail;
+        private Node output;
+        private List<Entry> ends;
+    }
+
+    /**
+     * Immutable copy of the registrations, sharing the compiled automaton
+     */
+    private static class Snapshot {
+        private final Automaton automaton;
+        private final Map<String, List<Entry>> singles;
+        private final List<Entry> empty;
+
+        private Snapshot(Automaton automaton, Map<String, List<Entry>> singles, List<Entry> empty) {
+            this.automaton = automaton;
+            this.singles = new HashMap<String, List<Entry>>(singles.size() * 2);
+            for (Map.Entry<String, List<Entry>> single : singles.entrySet()) {
+                this.singles.put(single.getKey(), new ArrayList<Entry>(single.getValue()));
+            }
+            this.empty = new ArrayList<Entry>(empty);
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton over tokens compiled from the sequence rules
+     */
+    private static class Automaton {
+        private final Node root;
+        private final int states;
+
+        private Automaton(List<Entry> sequences) {
+            this.root = new Node();
+            int count = 1;
+            for (Entry entry : sequences) {
+                Node node = root;
+                for (String token : entry.tokens) {
+                    Node child = node.next.get(token);
+                    if (child == null) {
+                        child = new Node();
+                        node.next.put(token, child);
+                        count++;
+                    }
+                    node = child;
+                }
+                if (node.ends == null) {
+                    node.ends = new ArrayList<Entry>();
+                }
+                node.ends.add(entry);
+            }
+            this.states = count;
+            link();
+        }
+
+        /**
+         * Breadth-first pass setting failure and output links
+         */
+        private void link() {
+            Deque<Node> queue = new ArrayDeque<Node>();
+            for (Node child : root.next.values()) {
+                child.fail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                for (Map.Entry<String, Node> edge : node.next.entrySet()) {
+                    Node child = edge.getValue();
+                    Node fail = node.fail;
+                    while (fail != root && !fail.next.containsKey(edge.getKey())) {
+                        fail = fail.fail;
+                    }
+                    Node target = fail.next.get(edge.getKey());
+                    child.fail = target != null ? target : root;
+                    child.output = child.fail.ends != null ? child.fail : child.fail.output;
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * Run the tokens through the automaton, adding every sequence that occurs to the hits
+         */
+        private void scan(List<String> tokens, Set<Entry> hits) {
+            Node node = root;
+            for (String token : tokens) {
+                Node target = node.next.get(token);
+                while (target == null && node != root) {
+                    node = node.fail;
+                    target = node.next.get(token);
+                }
+                node = target != null ? target : root;
+                for (Node out = node.ends != null ? node : node.output; out != null; out = out.output) {
+                    hits.addAll(out.ends);
+                }
+            }
+        }
+    }
+}
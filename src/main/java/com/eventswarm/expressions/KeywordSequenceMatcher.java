@@ -30,16 +30,24 @@ import org.apache.log4j.Logger;
  */
 public class KeywordSequenceMatcher implements Matcher {
     private String keywords[];
+    private int fallback[];
 
     private static Logger logger = Logger.getLogger(KeywordSequenceMatcher.class);
 
     public KeywordSequenceMatcher(String[] keywords) {
-        this.keywords = keywords;
+        this.setKeywords(keywords);
         if (keywords.length == 0) {
             logger.warn("Empty keyword list for sequence matcher");
         }
     }
 
+    /**
+     * Return true if the keyword sequence occurs in the ordered keywords of the event
+     *
+     * The scan uses the Knuth-Morris-Pratt fallback table so that a mismatch after a partial match resumes from the
+     * longest partial match that is still possible (e.g. matching [a, a, b] in [a, a, a, b]), rather than
+     * restarting from the beginning of the sequence and missing overlapping matches.
+     */
     public boolean matches(Event event) {
         if (keywords.length == 0) {
             return true; // empty always matches
@@ -49,21 +57,16 @@ public class KeywordSequenceMatcher implements Matcher {
             return false; // only OrderedKeywords instances are supported
         } else {
             int current = 0;
-            int count = 0;
             for (String keyword : ((OrderedKeywords) event).getOrderedKeywords()) {
-                count++;
+                while (current > 0 && !keyword.equals(keywords[current])) {
+                    current = fallback[current - 1];
+                }
                 if (keyword.equals(keywords[current])) {
                     current++;
                     if (current == keywords.length) {
                         logger.debug("Matched");
                         return true;
                     }
-                    // could think about short-cutting here if we don't have enough words left for a match
-                    // but perhaps over-complicated
-                    logger.debug("Single word match at " + Integer.toString(count) + ", incrementing match pointer");
-                } else {
-                    logger.debug("Resetting match pointer");
-                    current = 0;
                 }
             }
             logger.debug("Exiting loop without finding a match");
@@ -77,5 +80,25 @@ public class KeywordSequenceMatcher implements Matcher {
 
     private void setKeywords(String[] keywords) {
         this.keywords = keywords;
+        this.fallback = fallback(keywords);
+    }
+
+    /**
+     * Build the fallback table: entry i holds the length of the longest proper prefix of keywords[0..i] that is
+     * also a suffix of it
+     */
+    private static int[] fallback(String[] keywords) {
+        int[] result = new int[keywords.length];
+        int k = 0;
+        for (int i = 1; i < keywords.length; i++) {
+            while (k > 0 && !keywords[i].equals(keywords[k])) {
+                k = result[k - 1];
+            }
+            if (keywords[i].equals(keywords[k])) {
+                k++;
+            }
+            result[i] = k;
+        }
+        return result;
     }
 }
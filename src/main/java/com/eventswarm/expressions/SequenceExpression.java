@@ -68,6 +68,9 @@ import org.apache.log4j.Logger;
 public class SequenceExpression extends ANDExpression {
 
     protected static Iterator<Event> EMPTY_ITER = new ArrayList<Event>(0).iterator();
+
+    /* if true, match events carry a condensed, lazily-enumerated set of combinations */
+    protected boolean lazyCombinations = false;
     /* private logger for log4j */
     private static Logger log = Logger.getLogger(SequenceExpression.class);
 
@@ -84,6 +87,37 @@ public class SequenceExpression extends ANDExpression {
         super(expressions);
     }
 
+    /**
+     * Initialise with a list of expressions, optionally using lazy combinations in match events
+     *
+     * @see #setLazyCombinations(boolean)
+     *
+     * @param expressions
+     * @param lazyCombinations true if match events should enumerate combinations on demand
+     */
+    public SequenceExpression(List<EventExpression> expressions, boolean lazyCombinations) {
+        super(expressions);
+        this.lazyCombinations = lazyCombinations;
+    }
+
+    public boolean isLazyCombinations() {
+        return lazyCombinations;
+    }
+
+    /**
+     * Choose how combinations are represented in ComplexExpressionMatchEvents
+     *
+     * By default, all sequenced combinations of matching events are enumerated when a match occurs, which can
+     * explode combinatorially for long sequences with many matches. In lazy mode, the match event instead holds a
+     * JdoSequenceCombinationsPart referencing snapshots of the match sets, so the cost of a match is linear in
+     * the size of the match sets and combinations are only created if a downstream consumer iterates them.
+     *
+     * @param lazyCombinations true if match events should enumerate combinations on demand
+     */
+    public void setLazyCombinations(boolean lazyCombinations) {
+        this.lazyCombinations = lazyCombinations;
+    }
+
     /**
      * Test if this sequence has been matched
      *
@@ -192,14 +226,14 @@ public class SequenceExpression extends ANDExpression {
                 events.clear();
             } else if (removed) {
                 // if any events have been removed, get earliest event in preceding list and trim older events
+                // from the head of this list (no need to copy the list since we only look at the head)
                 Event first = prev.first();
-                Iterator<Event> iter = events.iterator();
-                while (iter.hasNext()) {
-                    Event next = iter.next();
-                    if (next.isBefore(first) || next == first) {
-                        events.execute(trigger, next);
-                        removed = true;
-                    } else break;
+                Event next = events.first();
+                while (next.isBefore(first) || next == first) {
+                    events.execute(trigger, next);
+                    removed = true;
+                    if (events.isEmpty() || events.first() == next) break;
+                    next = events.first();
                 }
             } else {
                 // Otherwise, just pass on the event removal to the expression 
@@ -212,11 +246,19 @@ public class SequenceExpression extends ANDExpression {
     }
 
     /**
-     * Create a match event
+     * Create a match event, using a condensed set of combinations if lazy combinations are enabled
      */
     @Override
     protected CombinationsPart makeComplexExpressionPart(Event event) {
-        return new JdoCombinationsPart(buildCombinations(matchSets.subList(0, matchSets.size()-1), event));
+        if (lazyCombinations) {
+            List<List<Event>> lists = new ArrayList<List<Event>>(matchSets.size()-1);
+            for (EventSet events : matchSets.subList(0, matchSets.size()-1)) {
+                lists.add(events.getSnapshot());
+            }
+            return new JdoSequenceCombinationsPart(lists, event);
+        } else {
+            return new JdoCombinationsPart(buildCombinations(matchSets.subList(0, matchSets.size()-1), event));
+        }
     }
 
 
@@ -42,4 +42,12 @@ public class ValueLessMatcher implements Matcher {
     public boolean matches(Event event) {
         return (retriever.getValue(event).doubleValue() < value.getValue().doubleValue());
     }
+
+    public Value<Number> getValue() {
+        return value;
+    }
+
+    public ValueRetriever<Number> getRetriever() {
+        return retriever;
+    }
 }
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.events.CombinationsPart;
+import com.eventswarm.events.Event;
+import com.eventswarm.expressions.EventMatchAction;
+import com.eventswarm.expressions.EventMatchTrigger;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Handle for a pattern compiled into a PatternEngine, used to register for notification of matches
+ *
+ * EventMatchActions receive the event that completed a match, and PatternMatchActions also receive the
+ * combinations of events completed by that event. Actions are called by the thread that delivered the event to the
+ * engine, after the engine has released its lock.
+ */
+public class CompiledPattern implements EventMatchTrigger, PatternMatchTrigger {
+    private final Pattern pattern;
+    private final PatternEngine engine;
+    private final List<State> states;
+    private final Set<EventMatchAction> eventActions = new CopyOnWriteArraySet<EventMatchAction>();
+    private final Set<PatternMatchAction> patternActions = new CopyOnWriteArraySet<PatternMatchAction>();
+
+    CompiledPattern(Pattern pattern, PatternEngine engine) {
+        this.pattern = pattern;
+        this.engine = engine;
+        this.states = new ArrayList<State>();
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public PatternEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Add an accepting state for this pattern (there is one for each alternative path)
+     */
+    void accept(State state) {
+        if (state.accepting.add(this)) {
+            states.add(state);
+        }
+    }
+
+    /**
+     * Return the number of alternative paths through the NFA that match this pattern
+     */
+    public int getPathCount() {
+        return states.size();
+    }
+
+    /**
+     * Return true if this pattern has been matched by an event still held by the engine
+     */
+    public boolean isTrue() {
+        return engine.isTrue(this);
+    }
+
+    List<State> getStates() {
+        return states;
+    }
+
+    void fire(Event event, CombinationsPart matches) {
+        for (EventMatchAction action : eventActions) {
+            action.execute(this, event);
+        }
+        for (PatternMatchAction action : patternActions) {
+            action.execute(this, matches);
+        }
+    }
+
+    public void registerAction(EventMatchAction action) {
+        eventActions.add(action);
+    }
+
+    public void unregisterAction(EventMatchAction action) {
+        eventActions.remove(action);
+    }
+
+    public void registerAction(PatternMatchAction action) {
+        patternActions.add(action);
+    }
+
+    public void unregisterAction(PatternMatchAction action) {
+        patternActions.remove(action);
+    }
+}
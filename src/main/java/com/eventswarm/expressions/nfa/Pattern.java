@@ -0,0 +1,250 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.expressions.Matcher;
+
+import java.util.*;
+
+/**
+ * Immutable description of an event pattern that can be compiled into a PatternEngine
+ *
+ * Patterns are built from event matchers using the static factory methods:
+ *
+ * {@code
+ * 1. event(m) matches a single event accepted by the matcher m
+ * 2. sequence(p1, p2, ...) matches the component patterns in order, permitting intervening events
+ * 3. and(p1, p2, ...) matches all of the component event patterns in any order
+ * 4. not(m), which can only appear between two steps of a sequence, requires that no event accepted by m
+ *    occurs between the events matching those steps
+ * }
+ *
+ * For example, <code>sequence(event(a), not(c), and(event(b1), event(b2)))</code> matches an event accepted by a
+ * followed by events accepted by b1 and b2 in either order, with no event accepted by c between the a event and the
+ * first of the b events.
+ *
+ * As with SequenceExpression, each step of a pattern must be matched by an event that is strictly after (isBefore)
+ * the event matching the previous step. The components of an AND must be event patterns: an AND is compiled into
+ * the alternative sequences of its components, so its components are matched by distinct events. Matchers are
+ * shared between patterns using equals(), so matchers that implement equals allow more sharing.
+ */
+public abstract class Pattern {
+
+    /**
+     * A single step of a compiled pattern, consisting of a matcher and any negations that must not be matched
+     * between the previous step and this step
+     */
+    static class Step {
+        final Matcher matcher;
+        final List<Matcher> negations;
+
+        Step(Matcher matcher, List<Matcher> negations) {
+            this.matcher = matcher;
+            this.negations = negations;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Step)) return false;
+            Step other = (Step) o;
+            return matcher.equals(other.matcher) && negations.equals(other.negations);
+        }
+
+        @Override
+        public int hashCode() {
+            return matcher.hashCode() * 31 + negations.hashCode();
+        }
+    }
+
+    /**
+     * Create a pattern that matches a single event
+     */
+    public static Pattern event(Matcher matcher) {
+        if (matcher == null) throw new NullPointerException("Pattern matcher cannot be null");
+        return new EventPattern(matcher);
+    }
+
+    /**
+     * Create a pattern that matches the supplied patterns in order
+     */
+    public static Pattern sequence(Pattern... parts) {
+        return new SequencePattern(Arrays.asList(parts));
+    }
+
+    /**
+     * Create a pattern that matches all of the supplied event patterns in any order
+     */
+    public static Pattern and(Pattern... parts) {
+        return new AndPattern(Arrays.asList(parts));
+    }
+
+    /**
+     * Create a negation for use between two steps of a sequence
+     */
+    public static Pattern not(Matcher matcher) {
+        if (matcher == null) throw new NullPointerException("Pattern matcher cannot be null");
+        return new NotPattern(matcher);
+    }
+
+    /**
+     * Return the alternative sequences of steps that match this pattern
+     *
+     * @throws IllegalArgumentException if the pattern is not well formed
+     */
+    abstract List<List<Step>> paths();
+
+    /**
+     * Return the number of events in each match of this pattern
+     */
+    public abstract int length();
+
+    static class EventPattern extends Pattern {
+        final Matcher matcher;
+
+        EventPattern(Matcher matcher) {
+            this.matcher = matcher;
+        }
+
+        List<List<Step>> paths() {
+            List<Step> path = new ArrayList<Step>(1);
+            path.add(new Step(matcher, Collections.<Matcher>emptyList()));
+            return Collections.singletonList(path);
+        }
+
+        public int length() {
+            return 1;
+        }
+    }
+
+    static class NotPattern extends Pattern {
+        final Matcher matcher;
+
+        NotPattern(Matcher matcher) {
+            this.matcher = matcher;
+        }
+
+        List<List<Step>> paths() {
+            throw new IllegalArgumentException("A NOT pattern can only appear between two steps of a sequence");
+        }
+
+        public int length() {
+            return 0;
+        }
+    }
+
+    static class SequencePattern extends Pattern {
+        final List<Pattern> parts;
+
+        SequencePattern(List<Pattern> parts) {
+            if (parts.isEmpty()) throw new IllegalArgumentException("A sequence must have at least one part");
+            this.parts = parts;
+        }
+
+        List<List<Step>> paths() {
+            List<List<Step>> result = Collections.singletonList(Collections.<Step>emptyList());
+            List<Matcher> negations = new ArrayList<Matcher>();
+            for (int i = 0; i < parts.size(); i++) {
+                Pattern part = parts.get(i);
+                if (part instanceof NotPattern) {
+                    if (i == 0 || i == parts.size() - 1) {
+                        throw new IllegalArgumentException("A NOT pattern cannot start or end a sequence");
+                    }
+                    negations.add(((NotPattern) part).matcher);
+                } else {
+                    List<List<Step>> joined = new ArrayList<List<Step>>();
+                    for (List<Step> head : result) {
+                        for (List<Step> tail : part.paths()) {
+                            joined.add(join(head, tail, negations));
+                        }
+                    }
+                    result = joined;
+                    negations = new ArrayList<Matcher>();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Join two paths, attaching the negations to the first step of the tail
+         */
+        private static List<Step> join(List<Step> head, List<Step> tail, List<Matcher> negations) {
+            List<Step> result = new ArrayList<Step>(head.size() + tail.size());
+            result.addAll(head);
+            for (int i = 0; i < tail.size(); i++) {
+                Step step = tail.get(i);
+                if (i == 0 && !negations.isEmpty()) {
+                    List<Matcher> merged = new ArrayList<Matcher>(step.negations);
+                    merged.addAll(negations);
+                    result.add(new Step(step.matcher, merged));
+                } else {
+                    result.add(step);
+                }
+            }
+            return result;
+        }
+
+        public int length() {
+            int length = 0;
+            for (Pattern part : parts) {
+                length += part.length();
+            }
+            return length;
+        }
+    }
+
+    static class AndPattern extends Pattern {
+        final List<Pattern> parts;
+
+        AndPattern(List<Pattern> parts) {
+            if (parts.isEmpty()) throw new IllegalArgumentException("An AND must have at least one part");
+            for (Pattern part : parts) {
+                if (!(part instanceof EventPattern)) {
+                    throw new IllegalArgumentException("The parts of an AND must be event patterns");
+                }
+            }
+            this.parts = parts;
+        }
+
+        /**
+         * Each ordering of the parts is an alternative path
+         */
+        List<List<Step>> paths() {
+            List<List<Step>> result = new ArrayList<List<Step>>();
+            permute(new ArrayList<Pattern>(parts), 0, result);
+            return result;
+        }
+
+        private static void permute(List<Pattern> parts, int from, List<List<Step>> result) {
+            if (from == parts.size()) {
+                List<Step> path = new ArrayList<Step>(parts.size());
+                for (Pattern part : parts) {
+                    path.add(new Step(((EventPattern) part).matcher, Collections.<Matcher>emptyList()));
+                }
+                result.add(path);
+            } else {
+                for (int i = from; i < parts.size(); i++) {
+                    Collections.swap(parts, from, i);
+                    permute(parts, from + 1, result);
+                    Collections.swap(parts, from, i);
+                }
+            }
+        }
+
+        public int length() {
+            return parts.size();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.Clear;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.jdo.JdoSequenceCombinationsPart;
+import com.eventswarm.expressions.AbstractEventExpression;
+import com.eventswarm.expressions.Matcher;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pattern matching engine that compiles sequence, AND and NOT patterns into a single NFA shared by all patterns
+ *
+ * SequenceExpression, StrictSequenceExpression and ANDExpression hold an EventSet for each component expression and
+ * deliver every event through a chain of expressions and match triggers, so the cost of each event grows with the
+ * number of expressions. This engine instead compiles each Pattern into alternative paths through a trie of NFA
+ * states, sharing states between patterns with common leading steps, and indexes the states by the Matcher on their
+ * incoming edge. Each event is then handled in one pass:
+ *
+ * {@code
+ * 1. each distinct Matcher used by any pattern is evaluated once
+ * 2. each state whose step matched adds the event if it can follow a partial match held by the parent state
+ * 3. each edge whose negation matched invalidates the partial matches held by its parent
+ * 4. compiled patterns with an accepting state reached by the event are notified of the new combinations
+ * }
+ *
+ * Partial matches are held compactly (see State): each state keeps at most <code>limit</code> recent events and the
+ * range of parent entries that can precede each one, so the combinations of a match are created on demand by a
+ * JdoSequenceCombinationsPart rather than enumerated. Like the match sets of a SequenceExpression, the limit bounds
+ * memory use: older partial matches are discarded as new events reach a state. Events must be delivered in order.
+ *
+ * Register the engine for remove events (e.g. from a window in front of it) to discard partial matches holding
+ * removed events. As for the match sets of a SequenceExpression, partial matches that follow a removed event in a
+ * state are also discarded if no other event held by the parent state can precede them.
+ *
+ * Patterns can be compiled at any time, but only see events delivered after they are compiled. States shared with
+ * earlier patterns might already hold partial matches.
+ */
+public class PatternEngine implements AddEventAction, RemoveEventsBatchAction, Clear {
+    /* private logger for log4j */
+    private static Logger log = Logger.getLogger(PatternEngine.class);
+
+    /**
+     * Matcher shared by one or more edges of the NFA, with the states it leads to and the edges it negates
+     */
+    private static class Predicate {
+        final Matcher matcher;
+        final List<State> transitions = new ArrayList<State>();
+        final List<State> negations = new ArrayList<State>();
+
+        Predicate(Matcher matcher) {
+            this.matcher = matcher;
+        }
+    }
+
+    private final int limit;
+    private final State start;
+    private final Map<Matcher,Predicate> index;
+    private final List<Predicate> predicates;
+    private final List<CompiledPattern> patterns;
+    /* all states except the start state, parents before children */
+    private final List<State> states;
+    private final ReentrantLock lock;
+    private int stateCount;
+
+    /* re-used during each pass to avoid allocation, protected by the lock */
+    private final List<Predicate> matched;
+    private final List<State> reached;
+
+    /**
+     * Create an engine that holds up to AbstractEventExpression.MATCH_LIMIT partial matches in each state
+     */
+    public PatternEngine() {
+        this(AbstractEventExpression.MATCH_LIMIT);
+    }
+
+    /**
+     * Create an engine that holds up to the specified number of partial matches in each state
+     *
+     * @param limit maximum number of events held by each state
+     */
+    public PatternEngine(int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+        this.limit = limit;
+        this.start = new State();
+        this.index = new HashMap<Matcher,Predicate>();
+        this.predicates = new ArrayList<Predicate>();
+        this.patterns = new ArrayList<CompiledPattern>();
+        this.states = new ArrayList<State>();
+        this.lock = new ReentrantLock();
+        this.matched = new ArrayList<Predicate>();
+        this.reached = new ArrayList<State>();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Compile a pattern into the NFA, returning a handle that can be used to register for matches
+     *
+     * @param pattern pattern to compile
+     * @return compiled pattern
+     * @throws IllegalArgumentException if the pattern is not well formed
+     */
+    public CompiledPattern compile(Pattern pattern) {
+        List<List<Pattern.Step>> paths = pattern.paths();
+        CompiledPattern result = new CompiledPattern(pattern, this);
+        lock.lock();
+        try {
+            for (List<Pattern.Step> path : paths) {
+                State state = start;
+                for (Pattern.Step step : path) {
+                    State next = state.children.get(step);
+                    if (next == null) {
+                        next = new State(state, step, limit);
+                        state.children.put(step, next);
+                        states.add(next);
+                        predicate(step.matcher).transitions.add(next);
+                        for (Matcher negation : step.negations) {
+                            predicate(negation).negations.add(next);
+                        }
+                        stateCount++;
+                    }
+                    state = next;
+                }
+                result.accept(state);
+            }
+            patterns.add(result);
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Compiled pattern with " + Integer.toString(paths.size()) + " paths");
+        return result;
+    }
+
+    private Predicate predicate(Matcher matcher) {
+        Predicate predicate = index.get(matcher);
+        if (predicate == null) {
+            predicate = new Predicate(matcher);
+            index.put(matcher, predicate);
+            predicates.add(predicate);
+        }
+        return predicate;
+    }
+
+    /**
+     * Return the number of NFA states, excluding the start state
+     */
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * Return the number of distinct matchers evaluated for each event
+     */
+    public int getMatcherCount() {
+        return predicates.size();
+    }
+
+    /**
+     * Return the patterns compiled into this engine
+     */
+    public List<CompiledPattern> getPatterns() {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * Evaluate an event against all compiled patterns in one pass, notifying patterns that are matched
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(AddEventTrigger trigger, Event event) {
+        List<CompiledPattern> accepted = null;
+        List<JdoSequenceCombinationsPart> parts = null;
+        lock.lock();
+        try {
+            for (Predicate predicate : predicates) {
+                if (predicate.matcher.matches(event)) {
+                    matched.add(predicate);
+                }
+            }
+            for (Predicate predicate : matched) {
+                for (State state : predicate.transitions) {
+                    if (state.transition(event) && state.isAccepting()) {
+                        reached.add(state);
+                    }
+                }
+            }
+            // negations are applied after transitions so that the matching event is not treated as intervening
+            for (Predicate predicate : matched) {
+                for (State state : predicate.negations) {
+                    state.negate(event);
+                }
+            }
+            if (!reached.isEmpty()) {
+                accepted = new ArrayList<CompiledPattern>(reached.size());
+                parts = new ArrayList<JdoSequenceCombinationsPart>(reached.size());
+                for (State state : reached) {
+                    JdoSequenceCombinationsPart part = state.combinations();
+                    for (CompiledPattern pattern : state.accepting) {
+                        accepted.add(pattern);
+                        parts.add(part);
+                    }
+                }
+            }
+        } finally {
+            matched.clear();
+            reached.clear();
+            lock.unlock();
+        }
+        if (accepted != null) {
+            fire(event, accepted, parts);
+        }
+    }
+
+    private void fire(Event event, List<CompiledPattern> accepted, List<JdoSequenceCombinationsPart> parts) {
+        for (int i = 0; i < accepted.size(); i++) {
+            // partial matches might have been discarded since this path was entered
+            if (parts.get(i).count() > 0) {
+                accepted.get(i).fire(event, parts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Return true if any accepting state of the pattern holds an event
+     */
+    boolean isTrue(CompiledPattern pattern) {
+        lock.lock();
+        try {
+            for (State state : pattern.getStates()) {
+                if (!state.isEmpty()) return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard partial matches holding the removed event
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(RemoveEventTrigger trigger, Event event) {
+        remove(Collections.singleton(event));
+    }
+
+    /**
+     * Discard partial matches holding any of the removed events in a single pass
+     *
+     * @param trigger
+     * @param events
+     */
+    public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+        remove(events.size() == 1 ? Collections.singleton(events.get(0)) : new HashSet<Event>(events));
+    }
+
+    private void remove(Set<Event> removed) {
+        lock.lock();
+        try {
+            for (State state : states) {
+                if (state.isEmpty()) {
+                    state.changed = false;
+                } else {
+                    boolean pruned = state.parent.changed && state.prune();
+                    state.changed = state.remove(removed) || pruned;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard all partial matches, retaining compiled patterns
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (Predicate predicate : predicates) {
+                for (State state : predicate.transitions) {
+                    state.clear();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
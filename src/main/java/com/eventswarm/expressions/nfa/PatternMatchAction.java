@@ -0,0 +1,33 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.Action;
+import com.eventswarm.events.CombinationsPart;
+
+/**
+ * Receive notifications of a compiled pattern match, including the combinations of events that have matched
+ */
+public interface PatternMatchAction extends Action {
+
+    public static Class<?> trigger = PatternMatchTrigger.class;
+
+    /**
+     * @param trigger compiled pattern that has matched
+     * @param matches combinations of events completed by the latest event, in the order they occurred
+     */
+    public void execute(PatternMatchTrigger trigger, CombinationsPart matches);
+}
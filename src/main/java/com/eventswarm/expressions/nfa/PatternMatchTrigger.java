@@ -0,0 +1,44 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.Trigger;
+
+/**
+ * Trigger fired when a compiled pattern is matched
+ */
+public interface PatternMatchTrigger extends Trigger {
+
+    public static Class<?> action = PatternMatchAction.class;
+
+    /**
+     * Register an action against this trigger.
+     *
+     * Repeated registrations should be ignored.
+     *
+     * @param action Action to be executed when trigger fires.
+     */
+    public void registerAction(PatternMatchAction action);
+
+    /**
+     * Remove registration of the identified action against this trigger.
+     *
+     * Ignores attempts to remove an action that is not registered.
+     *
+     * @param action Action to be removed from registered list.
+     */
+    public void unregisterAction(PatternMatchAction action);
+}
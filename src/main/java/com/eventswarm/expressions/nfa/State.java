@@ -0,0 +1,289 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.jdo.JdoSequenceCombinationsPart;
+
+import java.util.*;
+
+/**
+ * A state of the pattern NFA, reached when the step on its incoming edge is matched
+ *
+ * States form a trie rooted at a start state, so patterns with common leading steps share states. Partial matches
+ * are held compactly: a state keeps only the most recent events that reached it (at most the engine limit) and,
+ * for each event, the range of entries of the parent state that can precede it. Entries are indexed by the number
+ * of events ever added to a state, so indexes remain valid while old entries are dropped from the head. Events
+ * removed upstream (e.g. expired from a window) leave an empty slot until they reach the head, and entries of child
+ * states that no longer have a preceding parent entry are removed in turn.
+ *
+ * This class is not thread safe: the PatternEngine does the locking.
+ */
+class State {
+    final State parent;
+    final Pattern.Step step;
+    final int depth;
+    final Map<Pattern.Step,State> children = new HashMap<Pattern.Step,State>();
+    final Set<CompiledPattern> accepting = new LinkedHashSet<CompiledPattern>();
+
+    private final Event[] events;
+    private final long[] lower;
+    private final long[] upper;
+    private int head;
+    private int size;
+    private int live;
+    private long appended;
+    /* set when entries have been removed, so that the entries of child states need to be checked */
+    boolean changed;
+    /* entries of the parent below this index have been invalidated by a negation */
+    private long cutoff;
+
+    /**
+     * Create the start state
+     */
+    State() {
+        this.parent = null;
+        this.step = null;
+        this.depth = 0;
+        this.events = null;
+        this.lower = null;
+        this.upper = null;
+    }
+
+    State(State parent, Pattern.Step step, int limit) {
+        this.parent = parent;
+        this.step = step;
+        this.depth = parent.depth + 1;
+        this.events = new Event[limit];
+        this.lower = new long[limit];
+        this.upper = new long[limit];
+    }
+
+    boolean isAccepting() {
+        return !accepting.isEmpty();
+    }
+
+    boolean isEmpty() {
+        return live == 0;
+    }
+
+    int size() {
+        return live;
+    }
+
+    /**
+     * Index of the oldest entry still held by this state
+     */
+    long base() {
+        return appended - size;
+    }
+
+    /**
+     * Return the entry at the specified index, or null if it has been removed
+     */
+    Event get(long index) {
+        return events[slot(index)];
+    }
+
+    private int slot(long index) {
+        return (int) ((head + (index - base())) % events.length);
+    }
+
+    Event last() {
+        return size == 0 ? null : get(appended - 1);
+    }
+
+    /**
+     * Add the event to this state if the step on the incoming edge can follow a partial match held by the parent
+     *
+     * The event must already have been accepted by the matcher of the step.
+     *
+     * @return true if the event was added
+     */
+    boolean transition(Event event) {
+        if (event == last()) {
+            // already reached this state with the same event
+            return false;
+        }
+        long from = 0, to = 0;
+        if (parent.depth > 0) {
+            from = Math.max(cutoff, parent.base());
+            to = parent.appended;
+            // entries at the tail of the parent that are removed, concurrent with or the same as this event can't
+            // precede it
+            while (to > from && (parent.get(to - 1) == null || !parent.get(to - 1).isBefore(event))) {
+                to--;
+            }
+            if (to == from) {
+                return false;
+            }
+        }
+        add(event, from, to);
+        return true;
+    }
+
+    /**
+     * Invalidate the partial matches held by the parent for this edge, since an event matching a negation of the
+     * step has occurred
+     *
+     * If the negated event also reached the parent, that entry remains valid since it is not between the parent
+     * and this step.
+     */
+    void negate(Event event) {
+        cutoff = parent.appended - (parent.last() == event ? 1 : 0);
+    }
+
+    private void add(Event event, long from, long to) {
+        int slot;
+        if (size == events.length) {
+            // drop the oldest entry
+            slot = head;
+            head = (head + 1) % events.length;
+            if (events[slot] != null) live--;
+        } else {
+            slot = (head + size) % events.length;
+            size++;
+        }
+        events[slot] = event;
+        lower[slot] = from;
+        upper[slot] = to;
+        appended++;
+        live++;
+    }
+
+    /**
+     * Remove entries holding any of the removed events
+     *
+     * @return true if any entries were removed
+     */
+    boolean remove(Set<Event> removed) {
+        boolean result = false;
+        for (long index = base(); index < appended && live > 0; index++) {
+            int slot = slot(index);
+            if (events[slot] != null && removed.contains(events[slot])) {
+                events[slot] = null;
+                live--;
+                result = true;
+            }
+        }
+        if (result) trim();
+        return result;
+    }
+
+    /**
+     * Remove entries with no remaining parent entry that can precede them, after entries of the parent were removed
+     *
+     * @return true if any entries were removed
+     */
+    boolean prune() {
+        if (parent.depth == 0) return false;
+        boolean result = false;
+        for (long index = base(); index < appended && live > 0; index++) {
+            int slot = slot(index);
+            if (events[slot] != null && !parent.hasLive(lower[slot], upper[slot])) {
+                events[slot] = null;
+                live--;
+                result = true;
+            }
+        }
+        if (result) trim();
+        return result;
+    }
+
+    /**
+     * Return true if any entry in the index range is still held
+     */
+    private boolean hasLive(long from, long to) {
+        for (long index = Math.max(from, base()); index < to; index++) {
+            if (get(index) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop removed entries from the head
+     */
+    private void trim() {
+        while (size > 0 && events[head] == null) {
+            head = (head + 1) % events.length;
+            size--;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(events, null);
+        head = 0;
+        size = 0;
+        live = 0;
+        appended = 0;
+        cutoff = 0;
+        changed = false;
+    }
+
+    /**
+     * Create a condensed representation of the combinations completed by the last event added to this state
+     *
+     * The live entries of each state on the path from the start state are copied, so the result is unaffected by
+     * subsequent events.
+     */
+    JdoSequenceCombinationsPart combinations() {
+        List<List<Event>> lists = new ArrayList<List<Event>>(Collections.<List<Event>>nCopies(depth, null));
+        int[][] lowers = new int[depth][];
+        int[][] uppers = new int[depth][];
+        State state = this;
+        for (int i = depth - 1; i >= 0; i--) {
+            // the final list holds only the last event, earlier lists hold all live entries
+            long first = (state == this) ? state.appended - 1 : state.base();
+            int count = (state == this) ? 1 : state.live;
+            int[] parentRanks = i > 0 ? state.parent.ranks() : null;
+            List<Event> list = new ArrayList<Event>(count);
+            lowers[i] = new int[count];
+            uppers[i] = new int[count];
+            int j = 0;
+            for (long index = first; index < state.appended; index++) {
+                int slot = state.slot(index);
+                if (state.events[slot] == null) continue;
+                list.add(state.events[slot]);
+                if (i > 0) {
+                    lowers[i][j] = state.parent.relative(parentRanks, state.lower[slot]);
+                    uppers[i][j] = state.parent.relative(parentRanks, state.upper[slot]);
+                }
+                j++;
+            }
+            lists.set(i, list);
+            state = state.parent;
+        }
+        return new JdoSequenceCombinationsPart(lists, lowers, uppers);
+    }
+
+    /**
+     * Return the number of live entries preceding each entry of the ring, with the total in the final element
+     */
+    private int[] ranks() {
+        int[] result = new int[size + 1];
+        for (int k = 0; k < size; k++) {
+            result[k + 1] = result[k] + (events[(head + k) % events.length] == null ? 0 : 1);
+        }
+        return result;
+    }
+
+    /**
+     * Convert an entry index to a position in the list of live entries, clamping dropped entries to 0
+     */
+    private int relative(int[] ranks, long index) {
+        return ranks[(int) Math.max(0, Math.min(index - base(), size))];
+    }
+}
@@ -58,18 +58,22 @@ package com.eventswarm.powerset;
 import com.eventswarm.schedules.TickAction;
 import com.eventswarm.*;
 import com.eventswarm.events.Event;
+import com.eventswarm.util.CheckpointReader;
+import com.eventswarm.util.CheckpointWriter;
+import com.eventswarm.util.Checkpointable;
 import com.eventswarm.util.actions.QueuedAdd;
 import com.eventswarm.util.actions.QueuedPowersetAdd;
 import com.eventswarm.util.actions.QueuedPowersetRemove;
 import com.eventswarm.util.actions.QueuedRemove;
 import org.apache.log4j.*;
+import java.io.IOException;
 import java.util.*;
 import com.eventswarm.eventset.EventSet;
 //import com.eventswarm.eventset.LastNWindow;
 
 public class HashPowerset<Keytype>
         extends java.util.HashMap<Keytype,EventSet>
-        implements Powerset<Keytype>, Clear
+        implements Powerset<Keytype>, Clear, Checkpointable
 {
 
     /** Default Size of each LastNWindow in the powerset */
@@ -114,6 +118,9 @@ public class HashPowerset<Keytype>
     // Maintain a set of registered EventTickActions
     private Set<TickAction> eventTickActions = new HashSet<TickAction>();
 
+    /** Subsets at the last checkpoint capture, null until the powerset is first captured or restored */
+    private transient IdentityHashMap<EventSet,Captured> captured = null;
+
     /* private logger for log4j */
     private static Logger log = Logger.getLogger(HashPowerset.class);
 
@@ -268,22 +275,7 @@ public class HashPowerset<Keytype>
                 } else {
                     log.debug("Creating new eventset for key: '" + key + "'");
                     // if not, try to create a new one
-                    es = this.esFactory.createEventSet(this, key);
-                    if (es != null) {
-                        // add it to our powerset
-                        this.put(key, es);
-                        // if it supports the TickAction, register it against us
-                        if (TickAction.class.isInstance(es)) {
-                            this.registerAction((TickAction) es);
-                        }
-                        // call the newSetActions
-                        for (NewSetAction<Keytype> action : this.newSetActions) {
-                            log.debug("Calling new set action " + action.toString() + " for key: " + key);
-                            action.execute(this, es, key);
-                        }
-                    } else {
-                        log.info("No eventset created for key: '" + key + "'");
-                    }
+                    es = createSubset(key);
                 }
                 if (es != null) {
                     executor.add(new QueuedAdd(es, trigger, event));
@@ -302,7 +294,206 @@ public class HashPowerset<Keytype>
         }
     }
 
-    
+    /**
+     * Create a new subset for the key using the factory, add it to the powerset and call the NewSetActions
+     *
+     * @param key
+     * @return new subset, or null if the factory did not create one
+     */
+    private EventSet createSubset(Keytype key) {
+        EventSet es = this.esFactory.createEventSet(this, key);
+        if (es != null) {
+            // add it to our powerset
+            this.put(key, es);
+            // if it supports the TickAction, register it against us
+            if (TickAction.class.isInstance(es)) {
+                this.registerAction((TickAction) es);
+            }
+            // call the newSetActions
+            for (NewSetAction<Keytype> action : this.newSetActions) {
+                log.debug("Calling new set action " + action.toString() + " for key: " + key);
+                action.execute(this, es, key);
+            }
+        } else {
+            log.info("No eventset created for key: '" + key + "'");
+        }
+        return es;
+    }
+
+    /**
+     * Capture the state of each non-empty subset.
+     *
+     * Keys are not written: the key of each subset is re-generated from its first event on restore. If the powerset
+     * uses an asynchronous ActionExecutor, queued actions should be drained before capture.
+     *
+     * @return captured state
+     */
+    public State capture() {
+        final List<Event> firsts = new ArrayList<Event>(this.size());
+        final List<State> states = new ArrayList<State>(this.size());
+        IdentityHashMap<EventSet,Captured> current = new IdentityHashMap<EventSet,Captured>();
+        for (EventSet es : this.values()) {
+            if (!es.isEmpty()) {
+                Event first = es.first();
+                firsts.add(first);
+                states.add(es.capture());
+                current.put(es, new Captured(first, es.getVersion()));
+            }
+        }
+        this.captured = current;
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                writeSubsets(out, firsts, states);
+            }
+        };
+    }
+
+    /**
+     * Capture the subsets removed since the previous capture, and the changes to subsets that have been added or
+     * have changed since the previous capture.
+     *
+     * Unchanged subsets are skipped by comparing their version with the version at the previous capture, so only
+     * changed subsets are written, but each capture still visits every subset.
+     *
+     * @return captured changes
+     */
+    public State captureDelta() {
+        if (this.captured == null) {
+            final State full = capture();
+            return new State() {
+                public void write(CheckpointWriter out) throws IOException {
+                    out.writeBoolean(true);
+                    full.write(out);
+                }
+            };
+        }
+        final List<Event> removed = new ArrayList<Event>();
+        final List<Event> firsts = new ArrayList<Event>();
+        final List<State> states = new ArrayList<State>();
+        IdentityHashMap<EventSet,Captured> previous = this.captured;
+        IdentityHashMap<EventSet,Captured> current = new IdentityHashMap<EventSet,Captured>();
+        for (EventSet es : this.values()) {
+            Captured last = previous.remove(es);
+            if (last != null && last.version == es.getVersion()) {
+                current.put(es, last);
+            } else if (!es.isEmpty() || last != null) {
+                // identify the subset by its first event, or its first event at the last capture if now empty
+                Event first = es.isEmpty() ? last.first : es.first();
+                firsts.add(first);
+                states.add(es.captureDelta());
+                current.put(es, new Captured(first, es.getVersion()));
+            }
+        }
+        // anything left has been pruned since the last capture
+        for (Captured last : previous.values()) {
+            removed.add(last.first);
+        }
+        this.captured = current;
+        return new State() {
+            public void write(CheckpointWriter out) throws IOException {
+                out.writeBoolean(false);
+                out.writeEvents(removed);
+                writeSubsets(out, firsts, states);
+            }
+        };
+    }
+
+    /**
+     * Restore subsets from a checkpoint.
+     *
+     * Subsets are created using the factory and NewSetActions are called as for a new key, so that downstream
+     * pipelines and abstractions are wired before the subset state is restored. No add actions are executed.
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    public void restore(CheckpointReader in) throws IOException {
+        restoreSubsets(in);
+        recordCaptured();
+    }
+
+    /**
+     * Apply changes captured by captureDelta to the restored subsets.
+     *
+     * Subsets removed since the previous capture are removed and RemoveSetActions are called, as for pruning.
+     * Changed subsets are restored as for restore.
+     *
+     * @param in checkpoint state
+     * @throws IOException if the checkpoint state is invalid
+     */
+    public void restoreDelta(CheckpointReader in) throws IOException {
+        if (in.readBoolean()) {
+            restore(in);
+            return;
+        }
+        for (Event event : in.readEvents()) {
+            Keytype key = this.keyGenerator == null ? null : this.keyGenerator.getKey(event);
+            EventSet es = key == null ? null : this.remove(key);
+            if (es != null) {
+                for (RemoveSetAction<Keytype> action : this.removeSetActions) {
+                    action.execute(this, es, key);
+                }
+                if (recycler != null) {
+                    recycler.recycle(es);
+                }
+            }
+        }
+        restoreSubsets(in);
+        recordCaptured();
+    }
+
+    private static void writeSubsets(CheckpointWriter out, List<Event> firsts, List<State> states) throws IOException {
+        out.writeInt(states.size());
+        for (int i = 0; i < states.size(); i++) {
+            out.writeEvent(firsts.get(i));
+            out.writeState(EventSet.class.getName(), states.get(i));
+        }
+    }
+
+    private void restoreSubsets(CheckpointReader in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Event first = in.readEvent();
+            in.readStateType();
+            Keytype key = this.keyGenerator == null ? null : this.keyGenerator.getKey(first);
+            EventSet es = null;
+            if (key != null) {
+                es = this.containsKey(key) ? this.get(key) : createSubset(key);
+            }
+            if (es != null) {
+                in.restoreState(es);
+            } else {
+                log.warn("No subset for checkpointed event, discarding subset state");
+                in.skipState();
+            }
+        }
+    }
+
+    /**
+     * Record the restored subsets as captured, so that the next delta is relative to the restored state
+     */
+    private void recordCaptured() {
+        this.captured = new IdentityHashMap<EventSet,Captured>();
+        for (EventSet es : this.values()) {
+            if (!es.isEmpty()) {
+                this.captured.put(es, new Captured(es.first(), es.getVersion()));
+            }
+        }
+    }
+
+    /**
+     * Identifying event and version of a subset when it was last captured
+     */
+    private static class Captured {
+        private final Event first;
+        private final long version;
+
+        private Captured(Event first, long version) {
+            this.first = first;
+            this.version = version;
+        }
+    }
+
     /** 
      * Remove an event from the Powerset by passing the trigger through to the
      * EventSet associated with the EventKey.
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.powerset;
+
+import com.eventswarm.util.actions.QueuedAction;
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class that executes actions against targets in threads provided by an ExecutorService, ensuring that at most one
+ * action per target is executing at any time and that actions for a target are executed in the order they were added.
+ *
+ * Unlike the ThreadedActionExecutor, this implementation does not use a shared queue or lock. Each target has its own
+ * mailbox, a lock-free queue of pending actions, and a mailbox is scheduled onto the executor only when it has
+ * pending actions and is not already scheduled. Once scheduled, a mailbox executes up to <code>throughput</code>
+ * actions before re-submitting itself so that busy targets don't starve others. Idle mailboxes are discarded, so
+ * the number of mailboxes is bounded by the number of targets with pending actions.
+ *
+ * By default, actions are executed in a work-stealing ForkJoinPool sized to the number of available processors, so
+ * throughput scales with the number of cores when actions are spread across many targets.
+ */
+public class MailboxActionExecutor implements ActionExecutor {
+    private final ConcurrentHashMap<Object,Mailbox> mailboxes;
+    private final ExecutorService executor;
+    private final int throughput;
+    private volatile boolean stopped=false;
+    private volatile boolean shared=false;
+
+    /** Default maximum number of actions executed for a target before yielding to other targets */
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    private static final Logger logger= Logger.getLogger(MailboxActionExecutor.class);
+
+    /** Process-wide shared instance, created on demand */
+    private static MailboxActionExecutor instance;
+
+    /**
+     * Create an executor using a work-stealing pool with parallelism equal to the number of available processors
+     */
+    public MailboxActionExecutor() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
+    }
+
+    /**
+     * Create an executor using the supplied executor service to run actions
+     *
+     * @param executor
+     */
+    public MailboxActionExecutor(ExecutorService executor) {
+        this(executor, DEFAULT_THROUGHPUT);
+    }
+
+    /**
+     * Create an executor using the supplied executor service, executing at most <code>throughput</code> actions
+     * for a target before yielding to other targets.
+     *
+     * @param executor
+     * @param throughput
+     */
+    public MailboxActionExecutor(ExecutorService executor, int throughput) {
+        if (throughput < 1) {
+            throw new IllegalArgumentException("Throughput must be at least 1");
+        }
+        this.executor = executor;
+        this.throughput = throughput;
+        this.mailboxes = new ConcurrentHashMap<Object,Mailbox>();
+    }
+
+    /**
+     * Return the process-wide shared executor, creating it if it has not been created or has been stopped
+     *
+     * Since mailboxes are per target, components with distinct targets can share this executor without affecting
+     * each other's ordering. The shared pool uses daemon threads, so it does not need to be stopped.
+     *
+     * @return the shared executor
+     */
+    public static synchronized MailboxActionExecutor getInstance() {
+        if (instance == null || instance.isStopped()) {
+            instance = new MailboxActionExecutor();
+            instance.shared = true;
+        }
+        return instance;
+    }
+
+    /**
+     * Add a new action to the mailbox for its target, scheduling the mailbox if it is not already scheduled
+     *
+     * @param action
+     */
+    public void add(QueuedAction action) {
+        Object target = action.getTarget();
+        Mailbox mailbox;
+        int reserved;
+        while (true) {
+            mailbox = mailboxes.get(target);
+            if (mailbox == null) {
+                Mailbox created = new Mailbox(target);
+                mailbox = mailboxes.putIfAbsent(target, created);
+                if (mailbox == null) mailbox = created;
+            }
+            reserved = mailbox.reserve();
+            if (reserved >= 0) break;
+            // mailbox has been closed but not yet removed, so help remove it and try again
+            mailboxes.remove(target, mailbox);
+        }
+        mailbox.queue.offer(action);
+        if (reserved == 0) {
+            // mailbox was idle, so we're responsible for scheduling it
+            executor.execute(mailbox);
+        }
+    }
+
+    /**
+     * Stop this MailboxActionExecutor and shutdown the underlying executor service
+     *
+     * Pending actions are discarded.
+     */
+    public void stop() {
+        logger.info("Stopping new jobs and shutting down executor service");
+        this.stopped = true;
+        if (!this.executor.isShutdown()) {
+            this.executor.shutdown();
+        }
+        logger.info("Executor stopped");
+    }
+
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    /**
+     * @return true if this is the process-wide shared executor
+     */
+    public boolean isShared() {
+        return this.shared;
+    }
+
+    /**
+     * Return the number of targets that currently have pending or executing actions
+     *
+     * @return
+     */
+    public int getActiveTargets() {
+        return mailboxes.size();
+    }
+
+    /**
+     * Queue of pending actions for a single target.
+     *
+     * The <code>pending</code> counter tracks actions that have been reserved by producers but not yet executed.
+     * The producer that moves the counter from 0 to 1 schedules the mailbox and the scheduled mailbox owns the
+     * queue until the counter returns to 0. An idle mailbox is closed by setting the counter to -1 so that late
+     * producers will create a new mailbox rather than adding to a mailbox that will never be scheduled.
+     */
+    private class Mailbox implements Runnable {
+        private final Object target;
+        private final Queue<QueuedAction> queue = new ConcurrentLinkedQueue<QueuedAction>();
+        private final AtomicInteger pending = new AtomicInteger(0);
+
+        private Mailbox(Object target) {
+            this.target = target;
+        }
+
+        /**
+         * Reserve a place for a new action
+         *
+         * @return the number of pending actions before the reservation, or -1 if the mailbox is closed
+         */
+        private int reserve() {
+            while (true) {
+                int current = pending.get();
+                if (current < 0) return -1;
+                if (pending.compareAndSet(current, current + 1)) return current;
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < throughput; i++) {
+                QueuedAction action = queue.poll();
+                while (action == null) {
+                    // a producer has reserved a place but not yet added its action
+                    Thread.yield();
+                    action = queue.poll();
+                }
+                if (!stopped) {
+                    try {
+                        action.run();
+                    } catch (RuntimeException exc) {
+                        logger.error("Action for target " + target.toString() + " failed", exc);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    // try to close: if this fails, a producer has just added an action and will schedule us
+                    if (pending.compareAndSet(0, -1)) {
+                        mailboxes.remove(target, this);
+                    }
+                    return;
+                }
+            }
+            // more actions are pending, so yield to other targets and continue later
+            if (!stopped) {
+                executor.execute(this);
+            }
+        }
+    }
+}
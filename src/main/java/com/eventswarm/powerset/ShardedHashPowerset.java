@@ -0,0 +1,507 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.powerset;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.Clear;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.EventSet;
+import com.eventswarm.schedules.TickAction;
+import com.eventswarm.util.actions.QueuedAction;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Powerset that partitions keys across a fixed number of shards so that subsets can be maintained concurrently.
+ *
+ * Each key is assigned to a shard by hash, and each shard owns the subsets (EventSets) for its keys. Events are
+ * queued to the shard owning their key and each shard processes its queue in order using a single thread at a time,
+ * so events for a key are always delivered to its subset in the order they were received, but events for keys in
+ * different shards can be processed concurrently. The shard queues are mailboxes of a MailboxActionExecutor, so
+ * shards are scheduled onto a shared pool rather than having a thread each. By default, powersets share the
+ * process-wide MailboxActionExecutor, so creating many powersets (e.g. nested or per-key powersets) does not create
+ * a pool each.
+ *
+ * The behaviour of each shard is the same as the HashPowerset: subsets are created using the EventSetFactory and
+ * NewSetActions are called before the first event is added, PowersetAddEventActions and PowersetRemoveEventActions
+ * are called for each event, and empty subsets are pruned (calling RemoveSetActions) if pruning is enabled. These
+ * actions are executed in the shard thread, so they might be called concurrently for keys in different shards and
+ * must be thread safe. The same applies to the EventSetFactory.
+ *
+ * As for the HashPowerset, subsets that implement TickAction (e.g. time windows) are ticked by every event with a
+ * key, so subsets in a quiet shard still expire events. Each event ticks the subsets of its own shard after it has
+ * been added, and a tick is queued to every other shard. Ticks queued to a shard are coalesced: a shard has at most
+ * one tick waiting, which uses the latest timestamp seen when it runs, so a busy powerset queues far fewer ticks
+ * than events. Since a waiting tick can run ahead of adds queued before it, adds also tick with the latest timestamp
+ * delivered to the shard if it is later than the event. TickActions registered directly against the powerset are called only for events with a key, after
+ * the event has been added to its subset. They are called in the shard thread, so they might also be called
+ * concurrently and must be thread safe.
+ *
+ * Since processing is asynchronous, the caller can use the flush() method to wait for all previously delivered
+ * events to be processed. Callers can read the map concurrently at any time.
+ */
+public class ShardedHashPowerset<Keytype>
+        extends ConcurrentHashMap<Keytype,EventSet>
+        implements Powerset<Keytype>, Clear
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Eventset creation factory */
+    private volatile EventSetFactory<Keytype> esFactory;
+
+    /** If the EventSetFactory recycles, then remember */
+    private transient volatile EventSetRecycler recycler = null;
+
+    /** Event key generator */
+    private volatile EventKey<Keytype> keyGenerator;
+
+    /** If true, prune subsets when they become empty */
+    private volatile boolean prune = true;
+
+    /** Executor used to process the queue for each shard */
+    private transient ActionExecutor executor;
+
+    /** Shards, each owning a disjoint set of keys */
+    private transient List<Shard> shards;
+
+    // Maintain sets of registered actions, copy on write since they are iterated from shard threads
+    private Set<NewSetAction<Keytype>> newSetActions = new CopyOnWriteArraySet<NewSetAction<Keytype>>();
+    private Set<RemoveSetAction<Keytype>> removeSetActions = new CopyOnWriteArraySet<RemoveSetAction<Keytype>>();
+    private Set<PowersetAddEventAction> addEventActions = new CopyOnWriteArraySet<PowersetAddEventAction>();
+    private Set<PowersetRemoveEventAction> removeEventActions = new CopyOnWriteArraySet<PowersetRemoveEventAction>();
+    private Set<TickAction> eventTickActions = new CopyOnWriteArraySet<TickAction>();
+
+    /* private logger for log4j */
+    private static Logger log = Logger.getLogger(ShardedHashPowerset.class);
+
+    /**
+     * Create a sharded powerset with one shard per available processor, processing shards using the shared
+     * MailboxActionExecutor
+     *
+     * @param esFactory
+     * @param keyGenerator
+     */
+    public ShardedHashPowerset(EventSetFactory<Keytype> esFactory, EventKey<Keytype> keyGenerator) {
+        this(esFactory, keyGenerator, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a sharded powerset with the specified number of shards, processing shards using the shared
+     * MailboxActionExecutor
+     *
+     * @param esFactory
+     * @param keyGenerator
+     * @param shards
+     */
+    public ShardedHashPowerset(EventSetFactory<Keytype> esFactory, EventKey<Keytype> keyGenerator, int shards) {
+        this(esFactory, keyGenerator, shards, MailboxActionExecutor.getInstance());
+    }
+
+    /**
+     * Create a sharded powerset with the specified number of shards, using the supplied executor to process the
+     * shard queues.
+     *
+     * The executor must ensure that two actions for the same target are never executed concurrently and are executed
+     * in the order they are added, as for the MailboxActionExecutor. A SimpleActionExecutor can be used to process
+     * events synchronously.
+     *
+     * @param esFactory
+     * @param keyGenerator
+     * @param shards
+     * @param executor
+     */
+    public ShardedHashPowerset(EventSetFactory<Keytype> esFactory, EventKey<Keytype> keyGenerator, int shards,
+                               ActionExecutor executor)
+    {
+        super();
+        if (shards < 1) {
+            throw new IllegalArgumentException("Must have at least one shard");
+        }
+        this.setFactory(esFactory);
+        this.keyGenerator = keyGenerator;
+        this.executor = executor;
+        this.shards = new ArrayList<Shard>(shards);
+        for (int i = 0; i < shards; i++) {
+            this.shards.add(new Shard(i));
+        }
+    }
+
+    public EventKey<Keytype> getKeyGenerator() {
+        return keyGenerator;
+    }
+
+    public void setKeyGenerator(EventKey<Keytype> keyGenerator) {
+        this.keyGenerator = keyGenerator;
+    }
+
+    public EventSetFactory<Keytype> getFactory() {
+        return esFactory;
+    }
+
+    public void setFactory(EventSetFactory<Keytype> factory) {
+        this.esFactory = factory;
+        this.recycler = EventSetRecycler.class.isInstance(factory) ? (EventSetRecycler) factory : null;
+    }
+
+    public boolean isPrune() {
+        return prune;
+    }
+
+    /**
+     * Set the prune flag to determine whether or not empty sets are pruned.
+     *
+     * @param prune if true, subsets will be pruned when they become empty. Otherwise they linger.
+     */
+    public void setPrune(boolean prune) {
+        this.prune = prune;
+    }
+
+    /**
+     * Return the number of shards
+     *
+     * @return
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Queue an event for addition to the subset for its key, creating the subset if necessary
+     *
+     * Note that the supplied trigger is passed through to the EventSet.
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(AddEventTrigger trigger, Event event) {
+        Keytype key = getKey(event);
+        if (key != null) {
+            Shard owner = shardFor(key);
+            executor.add(new ShardAdd(owner, key, trigger, event));
+            long time = event.getHeader().getTimestampMillis();
+            for (Shard shard : shards) {
+                if (shard != owner) {
+                    shard.tick(time);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the removal of an event from the subset for its key
+     *
+     * @param trigger
+     * @param event
+     */
+    public void execute(RemoveEventTrigger trigger, Event event) {
+        Keytype key = getKey(event);
+        if (key != null) {
+            executor.add(new ShardRemove(shardFor(key), key, trigger, event));
+        }
+    }
+
+    /**
+     * Wait until all events delivered to this powerset before the call have been processed by their shards
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(shards.size());
+        for (final Shard shard : shards) {
+            executor.add(new QueuedAction() {
+                public Object getTarget() {
+                    return shard;
+                }
+
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    /**
+     * Stop the underlying executor if it can be stopped, unless it is the shared MailboxActionExecutor
+     */
+    public void stop() {
+        if (MailboxActionExecutor.class.isInstance(executor)) {
+            if (!((MailboxActionExecutor) executor).isShared()) {
+                ((MailboxActionExecutor) executor).stop();
+            }
+        } else if (ThreadedActionExecutor.class.isInstance(executor)) {
+            ((ThreadedActionExecutor) executor).stop();
+        }
+    }
+
+    public void registerAction(PowersetAddEventAction action) {
+        addEventActions.add(action);
+    }
+
+    public void unregisterAction(PowersetAddEventAction action) {
+        addEventActions.remove(action);
+    }
+
+    public void registerAction(PowersetRemoveEventAction action) {
+        removeEventActions.add(action);
+    }
+
+    public void unregisterAction(PowersetRemoveEventAction action) {
+        removeEventActions.remove(action);
+    }
+
+    public void registerAction(NewSetAction<Keytype> action) {
+        newSetActions.add(action);
+    }
+
+    public void unregisterAction(NewSetAction<Keytype> action) {
+        newSetActions.remove(action);
+    }
+
+    public void registerAction(RemoveSetAction<Keytype> action) {
+        removeSetActions.add(action);
+    }
+
+    public void unregisterAction(RemoveSetAction<Keytype> action) {
+        removeSetActions.remove(action);
+    }
+
+    public void registerAction(TickAction action) {
+        eventTickActions.add(action);
+    }
+
+    public void unregisterAction(TickAction action) {
+        eventTickActions.remove(action);
+    }
+
+    /**
+     * Use object identity so that powersets can be distinguished even if they contain the same keys and values (see
+     * HashPowerset).
+     *
+     * @param o
+     * @return
+     */
+    @Override
+    public boolean equals(Object o) {
+        return (this == o);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    private Keytype getKey(Event event) {
+        if (this.keyGenerator == null) {
+            log.warn("No key generator for powerset instance");
+            return null;
+        }
+        Keytype key = this.keyGenerator.getKey(event);
+        if (key == null) {
+            log.debug("No key generated for event: " + event.toString());
+        }
+        return key;
+    }
+
+    private Shard shardFor(Keytype key) {
+        int hash = key.hashCode();
+        // spread the high bits, since keys often differ only in the high bits of their hash
+        hash ^= (hash >>> 16);
+        return shards.get((hash & 0x7fffffff) % shards.size());
+    }
+
+    private void fireTickActions(Event event) {
+        for (TickAction action : eventTickActions) {
+            action.execute(this, event.getHeader().getTimestamp());
+        }
+    }
+
+    /**
+     * A shard holds the state for a subset of keys that is only accessed by the shard's actions
+     */
+    private class Shard {
+        private final int index;
+        private final Set<TickAction> subsetTickActions = new HashSet<TickAction>();
+
+        /* latest timestamp delivered to other shards, and true if a tick is waiting in the queue for this shard */
+        private final AtomicLong tickTime = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicBoolean tickQueued = new AtomicBoolean(false);
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Queue a tick for the subsets of this shard, unless one is already waiting
+         */
+        private void tick(long time) {
+            long current = tickTime.get();
+            while (time > current && !tickTime.compareAndSet(current, time)) {
+                current = tickTime.get();
+            }
+            if (tickQueued.compareAndSet(false, true)) {
+                executor.add(new ShardTick(this));
+            }
+        }
+
+        /**
+         * Tick the subsets of this shard with the latest timestamp delivered to other shards
+         */
+        private void tick() {
+            // clear the flag first, so that a later timestamp queues another tick
+            tickQueued.set(false);
+            if (!subsetTickActions.isEmpty()) {
+                Date time = new Date(tickTime.get());
+                for (TickAction action : subsetTickActions) {
+                    action.execute(ShardedHashPowerset.this, time);
+                }
+            }
+        }
+
+        private void add(Keytype key, AddEventTrigger trigger, Event event) {
+            EventSet es = get(key);
+            if (es == null) {
+                log.debug("Creating new eventset for key: '" + key + "'");
+                es = esFactory.createEventSet(ShardedHashPowerset.this, key);
+                if (es != null) {
+                    put(key, es);
+                    if (TickAction.class.isInstance(es)) {
+                        subsetTickActions.add((TickAction) es);
+                    }
+                    for (NewSetAction<Keytype> action : newSetActions) {
+                        action.execute(ShardedHashPowerset.this, es, key);
+                    }
+                } else {
+                    log.info("No eventset created for key: '" + key + "'");
+                }
+            }
+            if (es != null) {
+                es.execute(trigger, event);
+                for (PowersetAddEventAction action : addEventActions) {
+                    action.execute(ShardedHashPowerset.this, es, event);
+                }
+            }
+            if (!subsetTickActions.isEmpty()) {
+                // a queued tick might have run before this add, so include the latest broadcast timestamp
+                Date time = new Date(Math.max(event.getHeader().getTimestampMillis(), tickTime.get()));
+                for (TickAction action : subsetTickActions) {
+                    action.execute(ShardedHashPowerset.this, time);
+                }
+            }
+            fireTickActions(event);
+        }
+
+        private void remove(Keytype key, RemoveEventTrigger trigger, Event event) {
+            EventSet es = get(key);
+            if (es != null) {
+                for (PowersetRemoveEventAction action : removeEventActions) {
+                    action.execute(ShardedHashPowerset.this, es, event);
+                }
+                es.execute(trigger, event);
+                if (prune && es.size() == 0) {
+                    log.debug("Pruning powerset for key: " + key.toString());
+                    ShardedHashPowerset.this.remove(key);
+                    if (TickAction.class.isInstance(es)) {
+                        subsetTickActions.remove(es);
+                    }
+                    for (RemoveSetAction<Keytype> action : removeSetActions) {
+                        action.execute(ShardedHashPowerset.this, es, key);
+                    }
+                    EventSetRecycler recycler = ShardedHashPowerset.this.recycler;
+                    if (recycler != null) {
+                        recycler.recycle(es);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Shard " + Integer.toString(index);
+        }
+    }
+
+    private class ShardAdd implements QueuedAction {
+        private final Shard shard;
+        private final Keytype key;
+        private final AddEventTrigger trigger;
+        private final Event event;
+
+        private ShardAdd(Shard shard, Keytype key, AddEventTrigger trigger, Event event) {
+            this.shard = shard;
+            this.key = key;
+            this.trigger = trigger;
+            this.event = event;
+        }
+
+        public Object getTarget() {
+            return shard;
+        }
+
+        public void run() {
+            shard.add(key, trigger, event);
+        }
+    }
+
+    private class ShardTick implements QueuedAction {
+        private final Shard shard;
+
+        private ShardTick(Shard shard) {
+            this.shard = shard;
+        }
+
+        public Object getTarget() {
+            return shard;
+        }
+
+        public void run() {
+            shard.tick();
+        }
+    }
+
+    private class ShardRemove implements QueuedAction {
+        private final Shard shard;
+        private final Keytype key;
+        private final RemoveEventTrigger trigger;
+        private final Event event;
+
+        private ShardRemove(Shard shard, Keytype key, RemoveEventTrigger trigger, Event event) {
+            this.shard = shard;
+            this.key = key;
+            this.trigger = trigger;
+            this.event = event;
+        }
+
+        public Object getTarget() {
+            return shard;
+        }
+
+        public void run() {
+            shard.remove(key, trigger, event);
+        }
+    }
+}
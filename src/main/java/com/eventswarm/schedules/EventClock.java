@@ -50,7 +50,10 @@ public class EventClock
     private AddEventTrigger source = null;
 
     // current time (timestamp of last event received in milliseconds)
-    private Date time;
+    private long time;
+
+    // Date view of the current time, created when required
+    private Date date;
 
     // set of actions registered for the TickTrigger
     private Set<TickAction> actions;
@@ -70,7 +73,8 @@ public class EventClock
      */
     public EventClock(AddEventTrigger source) {
         this.source = source;
-        this.time = new Date(0);
+        this.time = 0;
+        this.date = null;
         this.actions = new HashSet<TickAction>();
         this.initActions = new HashSet<FirstTickAction>();
         source.registerAction(this);
@@ -96,6 +100,18 @@ public class EventClock
      * @return
      */
     public Date getTime() {
+        if (this.date == null) {
+            this.date = new Date(this.time);
+        }
+        return this.date;
+    }
+
+    /**
+     * Return the current time of this EventClock in milliseconds
+     *
+     * @return
+     */
+    public long getTimeMillis() {
         return this.time;
     }
 
@@ -113,18 +129,20 @@ public class EventClock
         // only accept events from the identified source
         if (event != null) {
             if (source.equals(trigger)) {
-                Date newTime = event.getHeader().getTimestamp();
+                long newTime = event.getHeader().getTimestampMillis();
                 // If not previously initialised, call registered FirstTickActions
                 if (!initialised) {
                     initialised = true;
                     for (FirstTickAction action : this.initActions) {
-                        action.execute(this, newTime);
+                        action.execute(this, event.getHeader().getTimestamp());
                     }
                 }
-                if (this.time.compareTo(newTime) < 0) {
+                if (this.time < newTime) {
                     this.time = newTime;
+                    // only create a Date if someone needs it
+                    this.date = this.actions.isEmpty() ? null : event.getHeader().getTimestamp();
                     for (TickAction action : this.actions) {
-                        action.execute(this, time);
+                        action.execute(this, this.date);
                     }
                 } else {
                     log.debug("Out of order event received, ignored");
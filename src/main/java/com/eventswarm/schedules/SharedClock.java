@@ -0,0 +1,238 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.schedules;
+
+import com.eventswarm.util.Interval;
+import org.apache.log4j.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide source of system clock ticks, shared by clocked windows and other components that need periodic
+ * ticks.
+ *
+ * A SystemClockTickTrigger creates a Timer thread for each instance, so a powerset of clocked windows can create
+ * thousands of threads. This class instead runs all ticks from a small pool of daemon threads, with a single tick
+ * task for each distinct tick interval: all actions registered for the same interval receive the same tick, in the
+ * same thread. As for a SystemClockTickTrigger, the first tick is one interval after the first action is registered;
+ * actions registered later share the existing ticks.
+ *
+ * Registrations are weak: a registered action that is otherwise unreachable is dropped, so components that are
+ * discarded without being stopped (e.g. pruned powerset subsets) do not leak. A tick task is cancelled once it has no
+ * registered actions.
+ *
+ * Exceptions thrown by tick actions are logged and do not stop the ticks. Like a Timer, this class offers no
+ * real-time guarantees, and a slow action delays ticks to other actions sharing the same interval.
+ */
+public class SharedClock {
+    /**
+     * Default number of threads used by the shared instance
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    private static Logger logger = Logger.getLogger(SharedClock.class);
+
+    private static SharedClock instance;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<Long, Ticker> tickers = new HashMap<Long, Ticker>();
+
+    /**
+     * Create a clock using the specified number of tick threads
+     *
+     * Most applications should use the shared instance returned by getInstance.
+     *
+     * @param threads
+     */
+    public SharedClock(int threads) {
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shared-clock-" + Integer.toString(count++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the process-wide shared clock
+     */
+    public static synchronized SharedClock getInstance() {
+        if (instance == null) {
+            instance = new SharedClock(DEFAULT_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * Return the tick trigger for the specified interval, creating it if required.
+     *
+     * Actions registered against the returned trigger are held weakly and receive a tick every interval.
+     *
+     * @param millis tick interval in milliseconds
+     * @return
+     */
+    public TickTrigger getTicker(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Tick interval must be positive");
+        }
+        synchronized (tickers) {
+            Ticker ticker = tickers.get(millis);
+            if (ticker == null) {
+                ticker = new Ticker(millis);
+                tickers.put(millis, ticker);
+            }
+            return ticker;
+        }
+    }
+
+    /**
+     * Return the tick trigger for the specified interval, creating it if required.
+     *
+     * @param interval
+     * @return
+     */
+    public TickTrigger getTicker(Interval interval) {
+        return getTicker(interval.getIntervalMillis());
+    }
+
+    /**
+     * @return number of distinct tick intervals with registered actions
+     */
+    public int getTickerCount() {
+        synchronized (tickers) {
+            int count = 0;
+            for (Ticker ticker : tickers.values()) {
+                if (ticker.isRunning()) count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Stop all ticks. The shared instance should not be stopped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tick trigger for a single interval, holding registered actions weakly
+     */
+    private class Ticker implements TickTrigger, Runnable {
+        private final long interval;
+        private final Map<ActionRef, ActionRef> actions = new LinkedHashMap<ActionRef, ActionRef>();
+        private ScheduledFuture<?> task;
+
+        private Ticker(long interval) {
+            this.interval = interval;
+        }
+
+        public void registerAction(TickAction action) {
+            synchronized (this) {
+                ActionRef ref = new ActionRef(action);
+                if (!actions.containsKey(ref)) {
+                    actions.put(ref, ref);
+                }
+                if (task == null) {
+                    logger.debug("Starting shared clock ticks every " + Long.toString(interval) + " milliseconds");
+                    task = executor.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        public void unregisterAction(TickAction action) {
+            synchronized (this) {
+                actions.remove(new ActionRef(action));
+                if (actions.isEmpty()) {
+                    cancel();
+                }
+            }
+        }
+
+        public void run() {
+            List<TickAction> live;
+            synchronized (this) {
+                live = new ArrayList<TickAction>(actions.size());
+                Iterator<ActionRef> iter = actions.keySet().iterator();
+                while (iter.hasNext()) {
+                    TickAction action = iter.next().get();
+                    if (action == null) {
+                        iter.remove();
+                    } else {
+                        live.add(action);
+                    }
+                }
+                if (live.isEmpty()) {
+                    cancel();
+                    return;
+                }
+            }
+            Date now = new Date();
+            for (TickAction action : live) {
+                try {
+                    action.execute(this, now);
+                } catch (RuntimeException exc) {
+                    logger.error("Tick action threw exception", exc);
+                }
+            }
+        }
+
+        private synchronized boolean isRunning() {
+            return task != null;
+        }
+
+        private void cancel() {
+            if (task != null) {
+                logger.debug("Stopping shared clock ticks every " + Long.toString(interval) + " milliseconds");
+                task.cancel(false);
+                task = null;
+            }
+        }
+    }
+
+    /**
+     * Weak reference to an action that compares by the identity of the action
+     */
+    private static class ActionRef extends WeakReference<TickAction> {
+        private final int hash;
+
+        private ActionRef(TickAction action) {
+            super(action);
+            this.hash = System.identityHashCode(action);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof ActionRef)) {
+                return false;
+            }
+            TickAction action = get();
+            return action != null && action == ((ActionRef) obj).get();
+        }
+    }
+}
@@ -30,10 +30,17 @@ package com.eventswarm.schedules;
  * an EventClock that generates ticks based on event timestamps, or a real time
  * clock that generates tick events every minute.
  *
+ * By default, schedules are held in a sorted queue, which is cheap for a small
+ * number of schedules. For large numbers of schedules, call setTimingWheel to
+ * hold them in a hierarchical timing wheel instead, making registration,
+ * removal and ticks amortised O(1) per schedule.
+ *
  * @author andyb
  */
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.Date;
 import java.util.Iterator;
@@ -46,8 +53,16 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
     private TreeSet<Schedule> queue;
     private HashSet<Schedule> hold;
 
-    // Current time associated with the schedule
-    private Date time;
+    // Timing wheel and wheel entries for each schedule, null if using the queue
+    private TimingWheel<Schedule> wheel;
+    private HashMap<Schedule, TimingWheel.Entry<Schedule>> entries;
+    private List<TimingWheel.Entry<Schedule>> due;
+
+    // Current time associated with the schedule in milliseconds
+    private long time;
+
+    // Date view of the current time, created when required
+    private Date date;
 
     private static Logger log = Logger.getLogger(TickScheduler.class);
     
@@ -76,8 +91,41 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
         this.actions = new HashMap<Schedule, HashSet<ScheduleAction>>();
         this.queue = new TreeSet<Schedule>();
         this.hold = new HashSet<Schedule>();
+        this.wheel = null;
         // set our initial time to the beginning of the epoch
-        this.time = new Date(0);
+        this.time = 0;
+        this.date = null;
+    }
+
+    /**
+     * Hold schedules in a hierarchical timing wheel rather than a sorted queue.
+     *
+     * Schedules are fired when a tick reaches the wheel tick (of the specified
+     * resolution) containing their next due date, so a resolution greater than
+     * 1 millisecond can delay firing until the tick after the due date, but
+     * reduces cascading of schedules between levels of the wheel. Schedules
+     * already registered are moved into the wheel.
+     *
+     * @param resolution resolution of the wheel in milliseconds
+     */
+    public void setTimingWheel(long resolution) {
+        TimingWheel<Schedule> newWheel = new TimingWheel<Schedule>(resolution, this.time);
+        HashMap<Schedule, TimingWheel.Entry<Schedule>> newEntries = new HashMap<Schedule, TimingWheel.Entry<Schedule>>();
+        List<Schedule> existing = new ArrayList<Schedule>(this.actions.keySet());
+        for (Schedule schedule : existing) {
+            newEntries.put(schedule, newWheel.add(schedule, schedule.next().getTime()));
+        }
+        this.queue.clear();
+        this.wheel = newWheel;
+        this.entries = newEntries;
+        this.due = new ArrayList<TimingWheel.Entry<Schedule>>();
+    }
+
+    /**
+     * @return true if schedules are held in a timing wheel
+     */
+    public boolean isTimingWheel() {
+        return this.wheel != null;
     }
 
     /**
@@ -86,7 +134,10 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
      * @return
      */
     public Date getTime() {
-        return this.time;
+        if (this.date == null) {
+            this.date = new Date(this.time);
+        }
+        return this.date;
     }
     
     /**
@@ -97,9 +148,13 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
      */
     private void addSchedule(Schedule schedule) {
         if (!this.actions.containsKey(schedule)) {
-            schedule.setTime(this.time);
+            schedule.setTime(this.getTime());
             this.actions.put(schedule, new HashSet<ScheduleAction>());
-            this.queue.add(schedule);
+            if (this.wheel != null) {
+                this.entries.put(schedule, this.wheel.add(schedule, schedule.next().getTime()));
+            } else {
+                this.queue.add(schedule);
+            }
         }
     }
 
@@ -112,7 +167,11 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
     private void removeSchedule(Schedule schedule) {
         if (this.actions.containsKey(schedule) && this.actions.get(schedule).isEmpty()) {
             this.actions.remove(schedule);
-            this.queue.remove(schedule);
+            if (this.wheel != null) {
+                this.wheel.remove(this.entries.remove(schedule));
+            } else {
+                this.queue.remove(schedule);
+            }
         }
     }
 
@@ -169,9 +228,20 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
      * @param time
      */
     public void execute(TickTrigger trigger, Date time) {
-        if (this.time.before(time)) {
+        if (this.time < time.getTime()) {
             // update the current time
-            this.time = time;
+            this.time = time.getTime();
+            this.date = time;
+
+            if (this.wheel != null) {
+                this.fireWheel(time);
+                return;
+            }
+
+            // most ticks don't make a schedule due, so check the head of the queue before iterating
+            if (this.queue.isEmpty() || this.queue.first().compareTo(time) > 0) {
+                return;
+            }
 
             // fire any schedules that have arrived
             Iterator<Schedule> iter = this.queue.iterator();
@@ -203,6 +273,35 @@ public class TickScheduler implements ScheduleTrigger, TickAction {
         }
     }
 
+    /**
+     * Fire schedules in the timing wheel that are due at the new time
+     *
+     * Catch-up behaviour is the same as for the queue: each due schedule is
+     * fired once for each due date passed before being put back in the wheel.
+     *
+     * @param time
+     */
+    private void fireWheel(Date time) {
+        this.wheel.advance(time.getTime(), this.due);
+        if (this.due.isEmpty()) {
+            return;
+        }
+        // swap in a new list in case an action ticks this scheduler
+        List<TimingWheel.Entry<Schedule>> fired = this.due;
+        this.due = new ArrayList<TimingWheel.Entry<Schedule>>();
+        for (TimingWheel.Entry<Schedule> entry : fired) {
+            Schedule sched = entry.item;
+            while (sched.compareTo(time) <= 0 && this.entries.get(sched) == entry) {
+                this.fire(sched);
+                sched.setTime(sched.next());
+            }
+            // only put the schedule back if it wasn't removed by an action
+            if (this.entries.get(sched) == entry) {
+                this.wheel.reschedule(entry, sched.next().getTime());
+            }
+        }
+    }
+
     /**
      * Fire the actions associated with an identified schedule
      * 
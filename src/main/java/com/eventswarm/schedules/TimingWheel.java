@@ -0,0 +1,284 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.schedules;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding items that are due at a specified time.
+ *
+ * Time is divided into ticks of a fixed resolution. Each level of the wheel has 64 slots: level 0 slots are one tick
+ * wide, level 1 slots are 64 ticks wide, level 2 slots 4096 ticks wide and so on, so 11 levels cover the full range
+ * of a long. An item is placed at the lowest level where its due tick shares all higher-level digits with the current
+ * tick. As time advances, items in higher-level slots are cascaded into lower levels until they become due, so each
+ * item is moved at most once per level.
+ *
+ * Each level keeps a bitmap of occupied slots, so advancing skips empty slots in constant time regardless of how far
+ * time jumps. Adding and removing items are O(1) and advancing is O(levels) plus the cost of cascading and
+ * collecting items.
+ *
+ * Items are due when the tick containing their due time (rounded up) has been reached, so with a resolution of more
+ * than 1 millisecond items can be reported up to one tick after their due time. This class is not thread safe.
+ */
+class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 11;
+    private static final int NONE = -1;
+    private static final int OVERDUE = LEVELS;
+
+    private final long resolution;
+    private long cursor;
+    private final Entry<T>[][] slots;
+    private final long[] occupied;
+    private int size;
+
+    /**
+     * Entry for an item held in the wheel, used to remove or reschedule the item
+     */
+    static class Entry<T> {
+        final T item;
+        long due;
+        long tick;
+        int level = NONE;
+        int slot;
+        Entry<T> prev;
+        Entry<T> next;
+
+        private Entry(T item) {
+            this.item = item;
+        }
+
+        boolean isScheduled() {
+            return level != NONE;
+        }
+    }
+
+    /**
+     * Create a wheel with the specified tick resolution, starting at the specified time
+     *
+     * @param resolution tick size in milliseconds
+     * @param time initial time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long resolution, long time) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException("Resolution must be at least 1 millisecond");
+        }
+        this.resolution = resolution;
+        this.cursor = Math.floorDiv(time, resolution);
+        this.slots = (Entry<T>[][]) new Entry[LEVELS + 1][SIZE];
+        this.occupied = new long[LEVELS];
+    }
+
+    /**
+     * Add an item that is due at the specified time
+     *
+     * @param item
+     * @param due due time in milliseconds
+     * @return entry that can be used to remove or reschedule the item
+     */
+    Entry<T> add(T item, long due) {
+        Entry<T> entry = new Entry<T>(item);
+        reschedule(entry, due);
+        return entry;
+    }
+
+    /**
+     * Change the due time of an entry, adding it back into the wheel if it has been removed or reported as due
+     *
+     * @param entry
+     * @param due due time in milliseconds
+     */
+    void reschedule(Entry<T> entry, long due) {
+        if (entry.isScheduled()) {
+            unlink(entry);
+        } else {
+            size++;
+        }
+        entry.due = due;
+        entry.tick = -Math.floorDiv(-due, resolution);
+        place(entry);
+    }
+
+    /**
+     * Remove an entry from the wheel, if present
+     *
+     * @param entry
+     */
+    void remove(Entry<T> entry) {
+        if (entry.isScheduled()) {
+            unlink(entry);
+            entry.level = NONE;
+            size--;
+        }
+    }
+
+    /**
+     * Advance the wheel to the specified time, removing entries that are now due and adding them to the supplied
+     * list in order of due tick.
+     *
+     * @param time new time in milliseconds, ignored if before the current time
+     * @param due list to receive due entries
+     */
+    void advance(long time, List<Entry<T>> due) {
+        long target = Math.floorDiv(time, resolution);
+        if (slots[OVERDUE][0] != null) {
+            collect(OVERDUE, 0, due);
+        }
+        while (true) {
+            int level = 0;
+            while (level < LEVELS && occupied[level] == 0) {
+                level++;
+            }
+            if (level == LEVELS) {
+                break;
+            }
+            int slot = Long.numberOfTrailingZeros(occupied[level]);
+            long start = blockStart(level, slot);
+            if (start > target) {
+                break;
+            }
+            cursor = start;
+            if (level == 0) {
+                collect(0, slot, due);
+            } else {
+                cascade(level, slot, due);
+            }
+        }
+        if (target > cursor) {
+            cursor = target;
+        }
+    }
+
+    /**
+     * @return number of entries in the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return current time of the wheel in milliseconds, rounded down to the resolution
+     */
+    long getTime() {
+        return cursor * resolution;
+    }
+
+    long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * First tick covered by a slot, given that all higher-level digits are the same as the cursor
+     */
+    private long blockStart(int level, int slot) {
+        int shift = (level + 1) * BITS;
+        long high = shift >= Long.SIZE ? 0 : (cursor >>> shift) << shift;
+        return high | ((long) slot << (level * BITS));
+    }
+
+    private void place(Entry<T> entry) {
+        if (entry.tick <= cursor) {
+            link(entry, OVERDUE, 0);
+        } else {
+            int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(entry.tick ^ cursor)) / BITS;
+            link(entry, level, (int) (entry.tick >>> (level * BITS)) & MASK);
+        }
+    }
+
+    private void link(Entry<T> entry, int level, int slot) {
+        Entry<T> head = slots[level][slot];
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        slots[level][slot] = entry;
+        if (level < LEVELS) {
+            occupied[level] |= 1L << slot;
+        }
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.level][entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        if (entry.level < LEVELS && slots[entry.level][entry.slot] == null) {
+            occupied[entry.level] &= ~(1L << entry.slot);
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /**
+     * Remove all entries from a slot and return them as a list in insertion order
+     */
+    private Entry<T> take(int level, int slot) {
+        Entry<T> head = slots[level][slot];
+        slots[level][slot] = null;
+        if (level < LEVELS) {
+            occupied[level] &= ~(1L << slot);
+        }
+        // entries are linked at the head, so reverse to preserve insertion order
+        Entry<T> reversed = null;
+        while (head != null) {
+            Entry<T> next = head.next;
+            head.next = reversed;
+            reversed = head;
+            head = next;
+        }
+        return reversed;
+    }
+
+    private void collect(int level, int slot, List<Entry<T>> due) {
+        Entry<T> entry = take(level, slot);
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            entry.level = NONE;
+            size--;
+            due.add(entry);
+            entry = next;
+        }
+    }
+
+    private void cascade(int level, int slot, List<Entry<T>> due) {
+        Entry<T> entry = take(level, slot);
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            if (entry.tick <= cursor) {
+                entry.prev = null;
+                entry.next = null;
+                entry.level = NONE;
+                size--;
+                due.add(entry);
+            } else {
+                place(entry);
+            }
+            entry = next;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import com.eventswarm.events.Event;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Ordered log of events added to and removed from a component since its last checkpoint capture, used to write
+ * incremental checkpoints.
+ *
+ * A component holding many events keeps a log from the time its state is first captured, then swaps in a new log
+ * each time it captures a delta, so the cost of a delta is proportional to the number of changes rather than the
+ * number of events held. Once the log holds more entries than the component holds events, a delta would be larger
+ * than the full state, so the log overflows: entries are discarded and the component should capture its full state
+ * instead.
+ *
+ * This class is not thread safe: components record changes and swap logs under their own lock.
+ */
+public class ChangeLog {
+    /** Minimum number of entries held before a log overflows, so small components don't overflow constantly */
+    public static final int MIN_LIMIT = 64;
+
+    private ArrayList<Event> events = new ArrayList<Event>();
+    private final BitSet removals = new BitSet();
+    private boolean overflow = false;
+
+    /**
+     * Receiver for the changes read from a checkpoint
+     */
+    public interface Target {
+        public void added(Event event);
+        public void removed(Event event);
+    }
+
+    /**
+     * Record an added event
+     *
+     * @param event
+     * @param held number of events held by the component after the change
+     */
+    public void added(Event event, int held) {
+        record(event, false, held);
+    }
+
+    /**
+     * Record a removed event
+     *
+     * @param event
+     * @param held number of events held by the component after the change
+     */
+    public void removed(Event event, int held) {
+        record(event, true, held);
+    }
+
+    /**
+     * @return true if changes have been discarded and the full state must be captured
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return number of changes recorded
+     */
+    public int size() {
+        return overflow ? 0 : events.size();
+    }
+
+    /**
+     * Write the recorded changes in order
+     *
+     * @param out
+     * @throws IllegalStateException if the log has overflowed
+     */
+    public void write(CheckpointWriter out) {
+        if (overflow) {
+            throw new IllegalStateException("Change log has overflowed");
+        }
+        out.writeInt(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            out.writeBoolean(removals.get(i));
+            out.writeEvent(events.get(i));
+        }
+    }
+
+    /**
+     * Read changes written by write and apply them to the target in order
+     *
+     * @param in
+     * @param target
+     * @throws IOException if the checkpoint state is invalid
+     */
+    public static void replay(CheckpointReader in, Target target) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid change count in checkpoint");
+        }
+        for (int i = 0; i < count; i++) {
+            boolean removal = in.readBoolean();
+            Event event = in.readEvent();
+            if (removal) {
+                target.removed(event);
+            } else {
+                target.added(event);
+            }
+        }
+    }
+
+    private void record(Event event, boolean removal, int held) {
+        if (overflow) {
+            return;
+        }
+        if (events.size() >= Math.max(held, MIN_LIMIT)) {
+            overflow = true;
+            events = null;
+            return;
+        }
+        if (removal) {
+            removals.set(events.size());
+        }
+        events.add(event);
+    }
+}
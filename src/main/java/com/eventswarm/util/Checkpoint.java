@@ -0,0 +1,509 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import com.eventswarm.channels.Deserializer.DeserializeException;
+import com.eventswarm.channels.Serializer.SerializeException;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.serialization.BinaryDeserializer;
+import com.eventswarm.events.serialization.BinarySerializer;
+import com.eventswarm.events.serialization.OrgJsonEventFactory;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checkpoint and restore the state of windows, powersets and abstractions in a pipeline, so that a restarted process
+ * can resume without replaying the events that filled them.
+ *
+ * Components are registered with a unique name. A checkpoint is taken in two steps:
+ *
+ * {@code
+ * 1. capture: each component copies references to its events and its scalar state. This must be called on the
+ *    thread that processes events (or while processing is otherwise paused) so that the components are consistent.
+ * 2. write: the captured state is encoded and written to the checkpoint files. This can run in the background while
+ *    processing continues (see checkpointAsync).
+ * }
+ *
+ * Checkpoints are incremental. The first checkpoint captures the full state of each component and is written to
+ * the checkpoint file as a base snapshot. Subsequent checkpoints capture only the changes since the previous
+ * checkpoint (see Checkpointable.captureDelta), which are appended as a segment to a delta file alongside the base
+ * (the checkpoint file name with a ".delta" suffix). The cost of capturing and writing a delta is proportional to the
+ * number of events added and removed since the previous checkpoint, not the number of events held, so long windows
+ * can be checkpointed frequently. The deltas are compacted into a new base snapshot after <code>maxDeltas</code>
+ * deltas, or once the delta file is larger than the base file, since restore must apply every delta.
+ *
+ * A base snapshot is written to a temporary file that replaces the checkpoint file once complete, then a new delta
+ * file is started. Base and delta files carry a generation number so that deltas are only applied to the base they
+ * follow, and a delta segment that was not completely written (e.g. due to a crash) is ignored along with anything
+ * after it. If a write fails, deltas captured before the failure are discarded and the next checkpoint is a full
+ * snapshot.
+ *
+ * Events referred to by more than one component (e.g. a window and a powerset fed from it) are restored as a single
+ * instance, including events written in different segments, so identity-based removal continues to work after a
+ * restore. Events are encoded with the BinarySerializer, so only the event types it supports can be checkpointed.
+ *
+ * To restore, construct and wire the pipeline as normal, register the same components under the same names, then
+ * call restore before delivering any new events. Component state is restored directly: no actions are executed, so
+ * downstream components must either be registered themselves or not require the restored history. Components in the
+ * file that are not registered are ignored, and registered components that are not in the file are left empty.
+ * After a restore, subsequent checkpoints continue to append deltas to the restored base.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x45534350;
+    private static final int DELTA_MAGIC = 0x45534344;
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+
+    /** Default number of deltas written before a new base snapshot is written */
+    public static final int DEFAULT_MAX_DELTAS = 16;
+
+    private static Logger log = Logger.getLogger(Checkpoint.class);
+
+    private final File file;
+    private final File deltaFile;
+    private final OrgJsonEventFactory factory;
+    private final Map<String,Checkpointable> components = new LinkedHashMap<String,Checkpointable>();
+    private ExecutorService writer;
+    private int maxDeltas = DEFAULT_MAX_DELTAS;
+
+    // capture state: true once a base has been captured or restored, and the number of deltas captured since
+    private boolean based = false;
+    private int deltas = 0;
+
+    // write state, guarded by the files lock
+    private final Object files = new Object();
+    private long generation = 0;
+    private volatile long baseLength = 0;
+    private volatile long deltaLength = 0;
+    private volatile boolean broken = false;
+
+    /**
+     * Create a checkpoint that is saved to and restored from the specified file
+     *
+     * @param file
+     */
+    public Checkpoint(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Create a checkpoint that uses the supplied factory to create JSON events on restore
+     *
+     * @param file
+     * @param factory factory for JSON events, or null to create OrgJsonEvent instances
+     */
+    public Checkpoint(File file, OrgJsonEventFactory factory) {
+        this.file = file;
+        this.deltaFile = new File(file.getPath() + ".delta");
+        this.factory = factory;
+    }
+
+    /**
+     * Register a component to be included in checkpoints
+     *
+     * @param name unique name for the component, used to match state on restore
+     * @param component
+     */
+    public synchronized void register(String name, Checkpointable component) {
+        if (components.containsKey(name)) {
+            throw new IllegalArgumentException("Component already registered with name " + name);
+        }
+        components.put(name, component);
+        // the new component has no base to apply deltas to
+        based = false;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the file holding deltas written since the base snapshot
+     */
+    public File getDeltaFile() {
+        return deltaFile;
+    }
+
+    public synchronized int getMaxDeltas() {
+        return maxDeltas;
+    }
+
+    /**
+     * Set the number of deltas written before the state is compacted into a new base snapshot
+     *
+     * @param maxDeltas maximum number of deltas, 0 to write a full snapshot for every checkpoint
+     */
+    public synchronized void setMaxDeltas(int maxDeltas) {
+        this.maxDeltas = maxDeltas;
+    }
+
+    /**
+     * Capture the state of all registered components, or the changes since the previous capture
+     *
+     * Call this on the event processing thread, or while event processing is paused.
+     *
+     * @return
+     */
+    public synchronized Snapshot capture() {
+        boolean full = !based || broken || deltas >= maxDeltas || deltaLength > baseLength;
+        Snapshot snapshot = new Snapshot(full);
+        for (Map.Entry<String,Checkpointable> entry : components.entrySet()) {
+            snapshot.names.add(entry.getKey());
+            snapshot.states.add(full ? entry.getValue().capture() : entry.getValue().captureDelta());
+        }
+        if (full) {
+            based = true;
+            deltas = 0;
+        } else {
+            deltas++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write a captured snapshot to the checkpoint files
+     *
+     * A full snapshot replaces the base file and starts a new delta file, and a delta is appended to the delta file.
+     * Snapshots must be written in the order they were captured. A delta captured before a failed write is skipped,
+     * since the changes before it have been lost.
+     *
+     * @param snapshot
+     * @throws IOException
+     */
+    public void write(Snapshot snapshot) throws IOException {
+        CheckpointWriter state = new CheckpointWriter();
+        state.writeInt(snapshot.names.size());
+        for (int i = 0; i < snapshot.names.size(); i++) {
+            state.writeState(snapshot.names.get(i), snapshot.states.get(i));
+        }
+        synchronized (files) {
+            try {
+                if (snapshot.full) {
+                    writeBase(state);
+                } else if (broken || generation == 0) {
+                    log.warn("Skipping checkpoint delta after failed write to " + file.getPath());
+                } else {
+                    appendDelta(state);
+                }
+            } catch (IOException exc) {
+                broken = true;
+                throw exc;
+            } catch (RuntimeException exc) {
+                broken = true;
+                throw exc;
+            }
+        }
+    }
+
+    /**
+     * Capture and write a checkpoint in the calling thread
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        write(capture());
+    }
+
+    /**
+     * Capture a checkpoint in the calling thread and write it in a background thread
+     *
+     * Checkpoints are written in order by a single thread. The returned future can be used to wait for the write
+     * and check for errors.
+     *
+     * @return future that completes when the checkpoint has been written
+     */
+    public Future<Void> checkpointAsync() {
+        final Snapshot snapshot = capture();
+        return getWriter().submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    write(snapshot);
+                } catch (IOException exc) {
+                    log.error("Failed to write checkpoint to " + file.getPath(), exc);
+                    throw exc;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Restore registered components from the base snapshot and any deltas written after it
+     *
+     * @return false if there is no checkpoint file, true if components were restored
+     * @throws IOException if the checkpoint cannot be read or is invalid
+     */
+    public synchronized boolean restore() throws IOException {
+        if (!file.exists()) {
+            log.info("No checkpoint to restore at " + file.getPath());
+            return false;
+        }
+        synchronized (files) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            long restoredGeneration = readHeader(buffer, MAGIC, "Not a checkpoint file: " + file.getPath());
+            Map<Event,Event> canonical = new HashMap<Event,Event>();
+            Set<String> restored = new HashSet<String>();
+            int count = readSegment(buffer, canonical, false, restored);
+
+            int applied = 0;
+            long validLength = -1;
+            if (deltaFile.exists()) {
+                ByteBuffer deltas = ByteBuffer.wrap(Files.readAllBytes(deltaFile.toPath()));
+                if (deltas.remaining() >= HEADER_LENGTH && deltas.getInt() == DELTA_MAGIC
+                        && deltas.getInt() == VERSION && deltas.getLong() == restoredGeneration)
+                {
+                    validLength = HEADER_LENGTH;
+                    while (deltas.remaining() >= 4) {
+                        int length = deltas.getInt();
+                        if (length < 0 || length > deltas.remaining()) {
+                            log.warn("Ignoring incomplete checkpoint delta in " + deltaFile.getPath());
+                            break;
+                        }
+                        ByteBuffer segment = deltas.slice();
+                        segment.limit(length);
+                        count += readSegment(segment, canonical, true, restored);
+                        deltas.position(deltas.position() + length);
+                        validLength = deltas.position();
+                        applied++;
+                    }
+                } else {
+                    log.warn("Ignoring checkpoint deltas that do not follow the base snapshot in " + file.getPath());
+                }
+            }
+            for (String name : components.keySet()) {
+                if (!restored.contains(name)) {
+                    log.warn("No checkpoint state for component " + name);
+                }
+            }
+
+            this.generation = restoredGeneration;
+            this.baseLength = file.length();
+            this.broken = false;
+            if (validLength >= 0) {
+                // continue appending to the restored deltas
+                this.deltaLength = validLength;
+                this.based = true;
+                this.deltas = applied;
+            } else {
+                // no usable delta file, so the next checkpoint must write a new base
+                this.deltaLength = 0;
+                this.based = false;
+            }
+            log.info("Restored " + Integer.toString(restored.size()) + " components with " + Integer.toString(count) +
+                    " events and " + Integer.toString(applied) + " deltas from " + file.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * Stop the background writer after any queued checkpoints have been written
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
+        }
+    }
+
+    /**
+     * Write a new base snapshot, then start a new delta file for the same generation
+     */
+    private void writeBase(CheckpointWriter state) throws IOException {
+        long next = Math.max(generation + 1, System.currentTimeMillis());
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            writeHeader(out, MAGIC, next);
+            writeSegment(out, state);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        baseLength = file.length();
+
+        temp = new File(deltaFile.getPath() + ".tmp");
+        fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            writeHeader(out, DELTA_MAGIC, next);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(temp.toPath(), deltaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deltaLength = HEADER_LENGTH;
+        broken = false;
+        log.debug("Wrote checkpoint with " + Integer.toString(state.getEvents().size()) + " events to " + file.getPath());
+    }
+
+    /**
+     * Append a delta segment to the delta file, discarding any incomplete segment left by a failed write
+     */
+    private void appendDelta(CheckpointWriter state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeSegment(new DataOutputStream(bytes), state);
+        RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw");
+        try {
+            if (raf.length() < deltaLength) {
+                throw new IOException("Checkpoint delta file has been truncated: " + deltaFile.getPath());
+            }
+            raf.setLength(deltaLength);
+            raf.seek(deltaLength);
+            raf.writeInt(bytes.size());
+            raf.write(bytes.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        deltaLength += 4 + bytes.size();
+        log.debug("Wrote checkpoint delta with " + Integer.toString(state.getEvents().size()) + " events to " +
+                deltaFile.getPath());
+    }
+
+    private static void writeHeader(DataOutputStream out, int magic, long generation) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+    }
+
+    /**
+     * Read and check a file header, returning the generation
+     */
+    private static long readHeader(ByteBuffer buffer, int magic, String message) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != magic) {
+            throw new IOException(message);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + Integer.toString(version));
+        }
+        return buffer.getLong();
+    }
+
+    /**
+     * Write the events referred to by the captured state, followed by the state
+     */
+    private static void writeSegment(DataOutputStream out, CheckpointWriter state) throws IOException {
+        List<Event> events = state.getEvents();
+        out.writeInt(events.size());
+        BinarySerializer serializer = new BinarySerializer();
+        try {
+            for (Event event : events) {
+                serializer.writeTo(event, out);
+            }
+        } catch (SerializeException exc) {
+            throw new IOException("Unable to write event to checkpoint", exc);
+        }
+        state.writeTo(out);
+    }
+
+    /**
+     * Read a segment and restore the registered components from it
+     *
+     * Events equal to events read from earlier segments are replaced by the earlier instance.
+     *
+     * @return number of events in the segment
+     */
+    private int readSegment(ByteBuffer buffer, Map<Event,Event> canonical, boolean delta, Set<String> restored)
+            throws IOException
+    {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Truncated checkpoint file: " + file.getPath());
+        }
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Invalid event count in checkpoint");
+        }
+        Event[] events = new Event[count];
+        BinaryDeserializer deserializer = new BinaryDeserializer(factory);
+        try {
+            for (int i = 0; i < count; i++) {
+                Event event = deserializer.readFrom(buffer);
+                if (event == null) {
+                    throw new IOException("Truncated checkpoint file: " + file.getPath());
+                }
+                Event existing = canonical.get(event);
+                if (existing != null) {
+                    events[i] = existing;
+                } else {
+                    canonical.put(event, event);
+                    events[i] = event;
+                }
+            }
+        } catch (DeserializeException exc) {
+            throw new IOException("Invalid event in checkpoint", exc);
+        }
+
+        CheckpointReader in = new CheckpointReader(buffer, events, delta);
+        int sections = in.readInt();
+        for (int i = 0; i < sections; i++) {
+            String name = in.readStateType();
+            Checkpointable component = components.get(name);
+            if (component != null) {
+                in.restoreState(component);
+                restored.add(name);
+            } else {
+                log.warn("Ignoring checkpoint state for unregistered component " + name);
+                in.skipState();
+            }
+        }
+        return count;
+    }
+
+    private synchronized ExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "checkpoint-" + file.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * State captured from the registered components, ready to be written
+     */
+    public static class Snapshot {
+        private final boolean full;
+        private final List<String> names = new ArrayList<String>();
+        private final List<Checkpointable.State> states = new ArrayList<Checkpointable.State>();
+
+        private Snapshot(boolean full) {
+            this.full = full;
+        }
+
+        /**
+         * @return true if this is a full snapshot, false if it holds the changes since the previous snapshot
+         */
+        public boolean isFull() {
+            return full;
+        }
+    }
+}
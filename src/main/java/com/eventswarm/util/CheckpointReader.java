@@ -0,0 +1,170 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import com.eventswarm.events.Event;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for state written by a CheckpointWriter.
+ *
+ * Event references are resolved against the event table of the checkpoint, so an event referred to by several
+ * components is restored as a single instance.
+ */
+public class CheckpointReader {
+    private final ByteBuffer buffer;
+    private final Event[] events;
+    private final boolean delta;
+
+    CheckpointReader(ByteBuffer buffer, Event[] events, boolean delta) {
+        this.buffer = buffer;
+        this.events = events;
+        this.delta = delta;
+    }
+
+    /**
+     * @return true if this reader is reading changes written by captureDelta rather than full state
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public int readInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException exc) {
+            throw new IOException("Unexpected end of checkpoint state", exc);
+        }
+    }
+
+    public long readLong() throws IOException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException exc) {
+            throw new IOException("Unexpected end of checkpoint state", exc);
+        }
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public boolean readBoolean() throws IOException {
+        try {
+            return buffer.get() != 0;
+        } catch (BufferUnderflowException exc) {
+            throw new IOException("Unexpected end of checkpoint state", exc);
+        }
+    }
+
+    public String readString() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        } else if (length > buffer.remaining()) {
+            throw new IOException("Unexpected end of checkpoint state");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read an event reference, returning the event from the event table
+     *
+     * @return
+     * @throws IOException if the reference is not valid
+     */
+    public Event readEvent() throws IOException {
+        int index = readInt();
+        if (index < 0 || index >= events.length) {
+            throw new IOException("Invalid event reference in checkpoint: " + Integer.toString(index));
+        }
+        return events[index];
+    }
+
+    /**
+     * Read a list of events written by writeEvents
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<Event> readEvents() throws IOException {
+        int count = readInt();
+        if (count < 0) {
+            throw new IOException("Invalid event count in checkpoint");
+        }
+        List<Event> result = new ArrayList<Event>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(readEvent());
+        }
+        return result;
+    }
+
+    /**
+     * Read the type of the next state written by writeState, leaving the reader positioned at its length
+     *
+     * @return
+     * @throws IOException
+     */
+    public String readStateType() throws IOException {
+        return readString();
+    }
+
+    /**
+     * Restore the next state written by writeState into the supplied component, then position the reader after it
+     *
+     * When reading a delta, the component restoreDelta method is called instead of restore.
+     *
+     * @param component
+     * @throws IOException
+     */
+    public void restoreState(Checkpointable component) throws IOException {
+        int end = stateEnd();
+        try {
+            if (delta) {
+                component.restoreDelta(this);
+            } else {
+                component.restore(this);
+            }
+        } finally {
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * Skip the next state written by writeState (after its type has been read)
+     *
+     * @throws IOException
+     */
+    public void skipState() throws IOException {
+        buffer.position(stateEnd());
+    }
+
+    private int stateEnd() throws IOException {
+        int length = readInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid state length in checkpoint");
+        }
+        return buffer.position() + length;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import com.eventswarm.events.Event;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writer for the state of Checkpointable components.
+ *
+ * Values are written in big-endian order, as for a DataOutputStream. Events are written as a reference into an event
+ * table, with each event instance added to the table once, however many components refer to it.
+ */
+public class CheckpointWriter {
+    private byte[] buffer = new byte[1024];
+    private int pos = 0;
+    private final Map<Event,Integer> eventIndex = new IdentityHashMap<Event,Integer>();
+    private final List<Event> events = new ArrayList<Event>();
+
+    CheckpointWriter() {
+    }
+
+    public void writeInt(int value) {
+        ensure(4);
+        buffer[pos++] = (byte) (value >>> 24);
+        buffer[pos++] = (byte) (value >>> 16);
+        buffer[pos++] = (byte) (value >>> 8);
+        buffer[pos++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToLongBits(value));
+    }
+
+    public void writeBoolean(boolean value) {
+        ensure(1);
+        buffer[pos++] = (byte) (value ? 1 : 0);
+    }
+
+    /**
+     * Write a string, which can be null
+     *
+     * @param value
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+            pos += bytes.length;
+        }
+    }
+
+    /**
+     * Write a reference to an event, adding the event to the event table if it is not already there
+     *
+     * @param event
+     */
+    public void writeEvent(Event event) {
+        Integer index = eventIndex.get(event);
+        if (index == null) {
+            index = events.size();
+            eventIndex.put(event, index);
+            events.add(event);
+        }
+        writeInt(index);
+    }
+
+    /**
+     * Write a count followed by references to each of the events
+     *
+     * @param events
+     */
+    public void writeEvents(Collection<Event> events) {
+        writeInt(events.size());
+        for (Event event : events) {
+            writeEvent(event);
+        }
+    }
+
+    /**
+     * Write a captured state with its class name and length, allowing a reader to skip it
+     *
+     * @param type name identifying the component type, usually the class name
+     * @param state
+     * @throws IOException
+     */
+    public void writeState(String type, Checkpointable.State state) throws IOException {
+        writeString(type);
+        int start = pos;
+        writeInt(0);
+        state.write(this);
+        int length = pos - start - 4;
+        int end = pos;
+        pos = start;
+        writeInt(length);
+        pos = end;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public int size() {
+        return pos;
+    }
+
+    /**
+     * @return events referred to by the written state, in order of their index
+     */
+    List<Event> getEvents() {
+        return events;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, pos);
+    }
+
+    private void ensure(int required) {
+        if (pos + required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, pos + required));
+        }
+    }
+}
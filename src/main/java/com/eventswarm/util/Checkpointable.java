@@ -0,0 +1,78 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import java.io.IOException;
+
+/**
+ * Interface for components whose state can be saved in a Checkpoint and restored directly, without replaying events.
+ *
+ * Capture and restore are separate so that a checkpoint can be taken without stopping processing for long: the
+ * capture method is called on the processing thread and should only copy references and values, while the returned
+ * State is written to the checkpoint later, possibly in another thread. Events must be written using the
+ * CheckpointWriter writeEvent methods so that events shared between components are written once and restored as a
+ * single instance.
+ *
+ * The restore method is called on a component that has been constructed and wired in the same way as the component
+ * that was captured, and must rebuild its state from the reader without executing any actions.
+ *
+ * Checkpoints are incremental: after a full capture, the Checkpoint calls captureDelta, which captures only the
+ * changes since the previous capture, and restoreDelta is called to apply these changes to the restored state. The
+ * default implementations capture and restore the full state, which suits components with small state. Components
+ * holding many events should override both (see ChangeLog).
+ */
+public interface Checkpointable {
+    /**
+     * Capture the current state of this component
+     *
+     * @return state that will not change as this component continues processing
+     */
+    public State capture();
+
+    /**
+     * Restore the state of this component from a checkpoint
+     *
+     * @param in reader positioned at the state written by a captured State
+     * @throws IOException if the state is invalid
+     */
+    public void restore(CheckpointReader in) throws IOException;
+
+    /**
+     * Capture the changes to this component since the previous call to capture or captureDelta
+     *
+     * @return state that will not change as this component continues processing
+     */
+    public default State captureDelta() {
+        return capture();
+    }
+
+    /**
+     * Apply changes written by a State returned from captureDelta to the restored state of this component
+     *
+     * @param in reader positioned at the state written by a captured delta
+     * @throws IOException if the state is invalid
+     */
+    public default void restoreDelta(CheckpointReader in) throws IOException {
+        restore(in);
+    }
+
+    /**
+     * Captured state of a component
+     */
+    public interface State {
+        public void write(CheckpointWriter out) throws IOException;
+    }
+}
@@ -15,6 +15,9 @@
 */
 package com.eventswarm.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Singleton to generate a unique sequence number that is (almost) guaranteed to be greater than any previous sequence
  * number for a timestamp.
@@ -28,13 +31,27 @@ package com.eventswarm.util;
  * Note that the implication of generating out-of-order sequence numbers is that two events might be incorrectly ordered
  * if they have the same timestamp. They will still be distinguishable.
  *
+ * By default, getNext is synchronized, which becomes a hot lock when many threads stamp events. Calling
+ * setLockFree(true) switches to a lock-free mode that keeps the last timestamp and forward sequence number packed
+ * into a single long and updates it with compare-and-set, so concurrent callers still receive a strictly increasing
+ * sequence number for equal timestamps. The packed form limits the forward sequence number to 2^22 values per
+ * millisecond and the timestamp to 2^42 (around the year 2109): timestamps or sequence numbers outside those ranges
+ * use the backward sequence number, as if the request were out of order.
+ *
  * Created with IntelliJ IDEA.
  * User: andyb
  */
 public class Sequencer {
 
+    static final int COUNTER_BITS = 22;
+    static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    static final long MAX_PACKED_TIME = (1L << (Long.SIZE - COUNTER_BITS)) - 1;
+
     private long last;
     private int forwardSeqnr, backSeqnr;
+    private volatile boolean lockFree;
+    private final AtomicLong packed = new AtomicLong();
+    private final AtomicInteger packedBack = new AtomicInteger();
     private static Sequencer instance = new Sequencer();
     // Set a maximum on the number of backwards sequence numbers we use before resetting
 
@@ -51,13 +68,77 @@ public class Sequencer {
         instance.setAttrs();
     }
 
-    private void setAttrs() {
+    /**
+     * Switch between the synchronized (default) and lock-free implementations
+     *
+     * The current state is carried across, so switching does not repeat sequence numbers already issued, but callers
+     * of getNext that are concurrent with the switch might be ordered incorrectly. Switch at startup.
+     *
+     * @param lockFree true to use compare-and-set rather than a lock
+     */
+    public static void setLockFree(boolean lockFree) {
+        instance.switchMode(lockFree);
+    }
+
+    public static boolean isLockFree() {
+        return instance.lockFree;
+    }
+
+    private synchronized void setAttrs() {
         last = 0;
         forwardSeqnr = 0;
         backSeqnr = Integer.MAX_VALUE/2;
+        packed.set(0);
+        packedBack.set(backSeqnr);
+    }
+
+    private synchronized void switchMode(boolean lockFree) {
+        if (lockFree == this.lockFree) return;
+        if (lockFree) {
+            if (last <= MAX_PACKED_TIME && forwardSeqnr <= COUNTER_MASK) {
+                packed.set((last << COUNTER_BITS) | forwardSeqnr);
+            } else {
+                packed.set(MAX_PACKED_TIME << COUNTER_BITS | COUNTER_MASK);
+            }
+            packedBack.set(backSeqnr);
+        } else {
+            long current = packed.get();
+            last = current >>> COUNTER_BITS;
+            forwardSeqnr = (int) (current & COUNTER_MASK);
+            backSeqnr = packedBack.get();
+        }
+        this.lockFree = lockFree;
+    }
+
+    public int getNext(long time) {
+        return lockFree ? getNextLockFree(time) : getNextLocked(time);
+    }
+
+    private int getNextLockFree(long time) {
+        if (time >= 0 && time <= MAX_PACKED_TIME) {
+            while (true) {
+                long current = packed.get();
+                long lastTime = current >>> COUNTER_BITS;
+                if (time > lastTime) {
+                    // newer clock value, so reset the forwards seqnr
+                    if (packed.compareAndSet(current, time << COUNTER_BITS)) return 0;
+                } else if (time == lastTime && (current & COUNTER_MASK) < COUNTER_MASK) {
+                    // same clock, so return next seqnr
+                    if (packed.compareAndSet(current, current + 1)) return (int) (current & COUNTER_MASK) + 1;
+                } else {
+                    // gone backwards or run out of forward seqnrs for this clock value
+                    break;
+                }
+            }
+        }
+        while (true) {
+            int current = packedBack.get();
+            int next = current == Integer.MAX_VALUE ? Integer.MAX_VALUE/2 : current;
+            if (packedBack.compareAndSet(current, next + 1)) return next;
+        }
     }
 
-    public synchronized int getNext(long time) {
+    private synchronized int getNextLocked(long time) {
         if (time > last) {
             // reset forwards seqnr if we have a newer clock value
             last = time;
@@ -17,6 +17,7 @@ package com.eventswarm.abstractions;
 
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.events.Event;
 import com.eventswarm.events.jdo.JdoHeader;
 import com.eventswarm.events.jdo.OrgJsonEvent;
@@ -24,6 +25,7 @@ import org.json.JSONObject;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -107,6 +109,24 @@ public class EventMapTest {
         assertEquals(event2, instance.getMap().get("id1"));
     }
 
+    @Test
+    public void testRemoveBatch() throws Exception {
+        EventMap<String> instance = new EventMap<String>(keyRetriever);
+        Event event1 = createEvent("id", "id1");
+        Event event2 = createEvent("id", "id2");
+        Event event3 = createEvent("id", "id2");
+        Event event4 = createEvent("id", "id3");
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        instance.execute((AddEventTrigger) null, event3);
+        instance.execute((AddEventTrigger) null, event4);
+        instance.execute((RemoveEventsBatchTrigger) null, Arrays.asList(event1, event2));
+        assertEquals(2, instance.getMap().size());
+        assertNull(instance.getMap().get("id1"));
+        assertEquals(event3, instance.getMap().get("id2"));
+        assertEquals(event4, instance.getMap().get("id3"));
+    }
+
     public Event createEvent(String key, String value) {
         jsonMap.clear();
         jsonMap.put(key,value);
@@ -17,6 +17,7 @@ package com.eventswarm.abstractions;
 
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.events.Event;
 import com.eventswarm.events.jdo.TestEvents;
 import com.eventswarm.expressions.Value;
@@ -24,6 +25,7 @@ import org.junit.Test;
 import org.junit.Assert;
 import org.junit.Before;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -167,6 +169,38 @@ public class StatisticsAbstractionTest {
         Assert.assertEquals(0.5, instance.getStdDev(), 0.0);
     }
 
+    @Test
+    public void test_remove_batch_leave_two() throws Exception {
+        data.put(event1, 1.0);
+        data.put(event2, 2.0);
+        data.put(event3, 3.0);
+        data.put(event4, 4.0);
+        StatisticsAbstraction instance = new StatisticsAbstraction(retriever);
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        instance.execute((AddEventTrigger) null, event3);
+        instance.execute((AddEventTrigger) null, event4);
+        instance.execute((RemoveEventsBatchTrigger) null, Arrays.asList(event1, event2));
+        Assert.assertEquals(2, instance.getCount());
+        Assert.assertEquals(3.5, instance.getMean(), 0.0);
+        Assert.assertEquals(0.25, instance.getVariance(), 0.0);
+        Assert.assertEquals(0.5, instance.getStdDev(), 0.0);
+    }
+
+    @Test
+    public void test_remove_batch_leave_empty() throws Exception {
+        data.put(event1, 1.0);
+        data.put(event2, 2.0);
+        StatisticsAbstraction instance = new StatisticsAbstraction(retriever);
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        instance.execute((RemoveEventsBatchTrigger) null, Arrays.asList(event1, event2));
+        Assert.assertEquals(0, instance.getCount());
+        Assert.assertEquals(0.0, instance.getMean(), 0.0);
+        Assert.assertEquals(0.0, instance.getVariance(), 0.0);
+        Assert.assertEquals(0.0, instance.getStdDev(), 0.0);
+    }
+
     @Test
     public void test_get_value_empty() throws Exception {
         StatisticsAbstraction instance = new StatisticsAbstraction(retriever);
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.abstractions;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.jdo.TestEvents;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SumAbstractionTest {
+    Event event1, event2, event3;
+    Map<Event, Number> data = new HashMap<Event, Number>();
+    ValueRetriever<Number> retriever;
+
+    @Before
+    public void setUp() throws Exception {
+        event1 = TestEvents.eventBeforeDiffSrcAfterSeq;
+        event2 = TestEvents.event;
+        event3 = TestEvents.eventAfterDiffSrcAfterSeq;
+        data.put(event1, 1.0);
+        data.put(event2, 2.0);
+        data.put(event3, 4.0);
+        retriever = new ValueRetriever<Number>() {
+            public Number getValue(Event event) {
+                return data.get(event);
+            }
+        };
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        SumAbstraction instance = new SumAbstraction(retriever);
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        assertEquals(3.0, instance.getValue().doubleValue(), 0.0);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        SumAbstraction instance = new SumAbstraction(retriever);
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        instance.execute((RemoveEventTrigger) null, event1);
+        assertEquals(2.0, instance.getValue().doubleValue(), 0.0);
+    }
+
+    @Test
+    public void testRemoveBatch() throws Exception {
+        SumAbstraction instance = new SumAbstraction(retriever);
+        instance.execute((AddEventTrigger) null, event1);
+        instance.execute((AddEventTrigger) null, event2);
+        instance.execute((AddEventTrigger) null, event3);
+        instance.execute((RemoveEventsBatchTrigger) null, Arrays.asList(event1, event2));
+        assertEquals(4.0, instance.getValue().doubleValue(), 0.0);
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.abstractions.ValueRetriever;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.HttpErrorEvent;
+import com.eventswarm.events.jdo.ExceptionErrorEvent;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import com.eventswarm.events.serialization.OrgJsonSerializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncHttpSenderTest {
+    HttpServer server;
+    URL url;
+    Serializer serializer;
+    List<Event> errors;
+    AddEventAction errorAction;
+    List<List<JSONObject>> bodies;
+    Set<InetSocketAddress> clients;
+    CountDownLatch release;
+    int responseCode;
+    String responseBody;
+    String responseType;
+    AsyncHttpSender instance;
+
+    static long TIMEOUT = 10000;
+
+    @Before
+    public void setUp() throws Exception {
+        serializer = new OrgJsonSerializer();
+        errors = Collections.synchronizedList(new ArrayList<Event>());
+        errorAction = new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                errors.add(event);
+            }
+        };
+        bodies = Collections.synchronizedList(new ArrayList<List<JSONObject>>());
+        clients = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+        release = new CountDownLatch(0);
+        responseCode = 200;
+        responseBody = null;
+        responseType = null;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+        server.createContext("/", new Recorder());
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        if (instance != null) {
+            instance.stop(0);
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void testSendOne() throws Exception {
+        instance = new AsyncHttpSender(serializer, url);
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, makeEvent(1));
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(0, errors.size());
+        assertEquals(1, bodies.size());
+        assertEquals(1, bodies.get(0).get(0).getInt("a"));
+        assertEquals(1, instance.getSentCount());
+    }
+
+    @Test
+    public void testBatchesWhileBlocked() throws Exception {
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 1000);
+        instance.registerAction(errorAction);
+        release = new CountDownLatch(1);
+        instance.execute((AddEventTrigger) null, makeEvent(0));
+        // wait for the first request to block in the receiver, so the rest are batched
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        for (int i = 1; i < 100; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+        }
+        // execute has returned while the receiver is blocked
+        assertTrue(instance.getPendingCount() > 0);
+        release.countDown();
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(0, errors.size());
+        assertEquals(100, instance.getSentCount());
+        assertEquals(2, bodies.size());
+        assertEquals(2, instance.getRequestCount());
+        assertInOrder(100);
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 1000);
+        instance.setMaxBatchSize(10);
+        release = new CountDownLatch(1);
+        for (int i = 0; i < 50; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+        }
+        release.countDown();
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(50, instance.getSentCount());
+        assertTrue(bodies.size() >= 5);
+        for (List<JSONObject> body : bodies) {
+            assertTrue(body.size() <= 10);
+        }
+        assertInOrder(50);
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 1000);
+        for (int i = 0; i < 5; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+            assertTrue(instance.flush(TIMEOUT));
+        }
+        assertEquals(5, bodies.size());
+        assertEquals(1, clients.size());
+    }
+
+    @Test
+    public void testErrorResponse() throws Exception {
+        responseCode = 500;
+        instance = new AsyncHttpSender(serializer, url);
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, makeEvent(1));
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof HttpErrorEvent);
+        assertEquals(500, ((HttpErrorEvent) errors.get(0)).getErrorCode().intValue());
+        assertEquals(1, instance.getFailedCount());
+        assertEquals(0, instance.getSentCount());
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        instance = new AsyncHttpSender(serializer, new URL("http://localhost:" + port + "/"));
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, makeEvent(1));
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof ExceptionErrorEvent);
+        assertEquals(1, instance.getFailedCount());
+    }
+
+    @Test
+    public void testSerializeError() throws Exception {
+        instance = new AsyncHttpSender(serializer, url);
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, new JdoEvent(JdoHeader.getLocalHeader(), new HashMap()));
+        // reported synchronously
+        assertEquals(1, errors.size());
+        assertEquals(0, instance.getPendingCount());
+    }
+
+    @Test
+    public void testQueueFullDrops() throws Exception {
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 2);
+        instance.registerAction(errorAction);
+        instance.setOfferTimeout(0);
+        release = new CountDownLatch(1);
+        instance.execute((AddEventTrigger) null, makeEvent(0));
+        // wait for the first event to be taken by the sender thread
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (int i = 1; i < 5; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+        }
+        assertEquals(2, errors.size());
+        release.countDown();
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(3, instance.getSentCount());
+        assertEquals(2, instance.getFailedCount());
+    }
+
+    @Test
+    public void testPerEventUrl() throws Exception {
+        final URL other = new URL(url, "/other");
+        ValueRetriever<URL> retriever = new ValueRetriever<URL>() {
+            public URL getValue(Event event) {
+                return ((OrgJsonEvent) event).getInt("a") % 2 == 0 ? url : other;
+            }
+        };
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, retriever, 1, 1000);
+        instance.registerAction(errorAction);
+        release = new CountDownLatch(1);
+        for (int i = 0; i < 6; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i / 3));
+        }
+        release.countDown();
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(0, errors.size());
+        assertEquals(6, instance.getSentCount());
+        for (List<JSONObject> body : bodies) {
+            int parity = body.get(0).getInt("a") % 2;
+            for (JSONObject object : body) {
+                assertEquals(parity, object.getInt("a") % 2);
+            }
+        }
+    }
+
+    @Test
+    public void testKeepAliveAfterErrors() throws Exception {
+        responseCode = 500;
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("error ").append(i).append('\n');
+        }
+        responseBody = body.toString();
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 1000);
+        instance.registerAction(errorAction);
+        for (int i = 0; i < 5; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+            assertTrue(instance.flush(TIMEOUT));
+        }
+        assertEquals(5, errors.size());
+        assertEquals(responseBody, ((HttpErrorEvent) errors.get(4)).getErrorMessage());
+        // the error response is read, so the connection is re-used
+        assertEquals(1, clients.size());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        instance = new AsyncHttpSender(serializer, url);
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, makeEvent(1));
+        assertTrue(instance.stop(TIMEOUT));
+        assertTrue(instance.isStopped());
+        assertEquals(1, bodies.size());
+        instance.execute((AddEventTrigger) null, makeEvent(2));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void testErrorResponseCharset() throws Exception {
+        responseCode = 400;
+        responseBody = "caf\u00e9 \u00fcber";
+        responseType = "text/plain; charset=ISO-8859-1";
+        instance = new AsyncHttpSender(serializer, url);
+        instance.registerAction(errorAction);
+        instance.execute((AddEventTrigger) null, makeEvent(1));
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(1, errors.size());
+        assertEquals(responseBody, ((HttpErrorEvent) errors.get(0)).getErrorMessage());
+    }
+
+    @Test
+    public void testStopCountsDiscarded() throws Exception {
+        instance = new AsyncHttpSender(serializer, AsyncHttpSender.NDJSON_CONTENT_TYPE, url, 1, 1000);
+        instance.registerAction(errorAction);
+        release = new CountDownLatch(1);
+        instance.execute((AddEventTrigger) null, makeEvent(0));
+        // wait for the first request to block in the receiver, so the rest stay queued
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (bodies.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        for (int i = 1; i < 6; i++) {
+            instance.execute((AddEventTrigger) null, makeEvent(i));
+        }
+        assertFalse(instance.stop(0));
+        assertEquals(5, instance.getFailedCount());
+        // only the in-flight event is still pending
+        assertEquals(1, instance.getPendingCount());
+        release.countDown();
+        assertTrue(instance.flush(TIMEOUT));
+        assertEquals(1, instance.getSentCount());
+    }
+
+    private void assertInOrder(int count) {
+        int expected = 0;
+        for (List<JSONObject> body : bodies) {
+            for (JSONObject object : body) {
+                assertEquals(expected++, object.getInt("a"));
+            }
+        }
+        assertEquals(count, expected);
+    }
+
+    private static Event makeEvent(int a) {
+        return new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject().put("a", a));
+    }
+
+    /**
+     * Records each request body as a list of JSON objects, blocking until released
+     */
+    private class Recorder implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+            List<JSONObject> body = new ArrayList<JSONObject>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                body.add(new JSONObject(line));
+            }
+            bodies.add(body);
+            clients.add(exchange.getRemoteAddress());
+            try {
+                release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exc) {
+                // continue
+            }
+            if (responseBody == null) {
+                exchange.sendResponseHeaders(responseCode, -1);
+            } else {
+                String charset = "UTF-8";
+                if (responseType != null) {
+                    exchange.getResponseHeaders().set("Content-Type", responseType);
+                    charset = responseType.substring(responseType.indexOf("charset=") + 8);
+                }
+                byte[] data = responseBody.getBytes(charset);
+                exchange.sendResponseHeaders(responseCode, data.length);
+                exchange.getResponseBody().write(data);
+            }
+            exchange.close();
+        }
+    }
+}
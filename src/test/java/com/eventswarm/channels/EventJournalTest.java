@@ -0,0 +1,189 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import com.eventswarm.events.serialization.BinarySerializer;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir);
+        List<Event> events = makeEvents(0, 100);
+        for (Event event : events) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        assertEquals(100, instance.getCount());
+        assertEquals(0, instance.getErrorCount());
+        assertEquals(1, segmentCount(dir));
+        List<Event> replayed = replay(dir);
+        assertEquals(events, replayed);
+        assertEquals(events.get(42).getHeader().getEventId(), replayed.get(42).getHeader().getEventId());
+        assertEquals(42, ((OrgJsonEvent) replayed.get(42)).getInt("i"));
+    }
+
+    @Test
+    public void testRollsSegments() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir, new BinarySerializer(), 4096, 512);
+        List<Event> events = makeEvents(0, 500);
+        for (Event event : events) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        assertTrue(segmentCount(dir) > 5);
+        assertEquals(events, replay(dir));
+    }
+
+    @Test
+    public void testReopenContinues() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir);
+        List<Event> events = makeEvents(0, 20);
+        for (Event event : events.subList(0, 10)) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        instance = new EventJournal(dir);
+        for (Event event : events.subList(10, 20)) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        assertEquals(10, instance.getCount());
+        assertEquals(1, segmentCount(dir));
+        assertEquals(events, replay(dir));
+    }
+
+    @Test
+    public void testReopenWithoutClose() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir, new BinarySerializer(), 4096, 512);
+        List<Event> events = makeEvents(0, 200);
+        for (Event event : events.subList(0, 100)) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        // simulate a crash by abandoning the instance without closing it
+        instance = new EventJournal(dir, new BinarySerializer(), 4096, 512);
+        for (Event event : events.subList(100, 200)) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        assertEquals(events, replay(dir));
+    }
+
+    @Test
+    public void testOversizedRecord() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir, new BinarySerializer(), 256, 64);
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            big.append('x');
+        }
+        List<Event> events = makeEvents(0, 3);
+        ((OrgJsonEvent) events.get(1)).getJson().put("big", big.toString());
+        for (Event event : events) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        assertEquals(0, instance.getErrorCount());
+        assertEquals(3, segmentCount(dir));
+        List<Event> replayed = replay(dir);
+        assertEquals(events, replayed);
+        assertEquals(big.toString(), ((OrgJsonEvent) replayed.get(1)).getString("big"));
+    }
+
+    @Test
+    public void testSerializeErrorCounted() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir);
+        instance.execute((AddEventTrigger) null, new JdoEvent(JdoHeader.getLocalHeader(), new HashMap()));
+        instance.execute((AddEventTrigger) null, makeEvents(0, 1).get(0));
+        instance.close();
+        assertEquals(1, instance.getErrorCount());
+        assertEquals(1, instance.getCount());
+        assertEquals(1, replay(dir).size());
+    }
+
+    @Test
+    public void testIndexWritten() throws Exception {
+        File dir = folder.newFolder("journal");
+        EventJournal instance = new EventJournal(dir, new BinarySerializer(), 1 << 20, 256);
+        for (Event event : makeEvents(0, 100)) {
+            instance.execute((AddEventTrigger) null, event);
+        }
+        instance.close();
+        File index = new File(dir, String.format("%020d", 0) + JournalSegment.INDEX_SUFFIX);
+        assertTrue(index.length() > JournalSegment.INDEX_ENTRY_SIZE);
+        assertEquals(0, index.length() % JournalSegment.INDEX_ENTRY_SIZE);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testAppendAfterClose() throws Exception {
+        EventJournal instance = new EventJournal(folder.newFolder("journal"));
+        instance.close();
+        instance.append(makeEvents(0, 1).get(0));
+    }
+
+    static List<Event> makeEvents(long start, int count) {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < count; i++) {
+            JdoHeader header = new JdoHeader(start + i, i, Sources.cache.getSourceByName("journal"));
+            events.add(new OrgJsonEvent(header, new JSONObject().put("i", i).put("name", "event " + i)));
+        }
+        return events;
+    }
+
+    static List<Event> replay(JournalChannel channel) throws Exception {
+        final List<Event> events = new ArrayList<Event>();
+        channel.registerAction(new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                events.add(event);
+            }
+        });
+        channel.process();
+        return events;
+    }
+
+    static List<Event> replay(File dir) throws Exception {
+        return replay(new JournalChannel(dir));
+    }
+
+    static int segmentCount(File dir) {
+        return JournalSegment.list(dir).size();
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.JdoCSVEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.serialization.BinarySerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+
+import static com.eventswarm.channels.EventJournalTest.makeEvents;
+import static com.eventswarm.channels.EventJournalTest.replay;
+import static org.junit.Assert.*;
+
+public class JournalChannelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File dir;
+    List<Event> events;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("journal");
+        events = makeEvents(0, 1000);
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        write(events);
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(500);
+        List<Event> replayed = replay(instance);
+        assertEquals(events.subList(500, 1000), replayed);
+        assertEquals(500, instance.getCount());
+    }
+
+    @Test
+    public void testSeekEachSegmentBoundary() throws Exception {
+        write(events);
+        assertTrue(JournalSegment.list(dir).size() > 5);
+        for (int start = 0; start <= 1000; start += 37) {
+            JournalChannel instance = new JournalChannel(dir);
+            instance.seek(start);
+            assertEquals(events.subList(start, 1000), replay(instance));
+        }
+    }
+
+    @Test
+    public void testSeekBeyondEnd() throws Exception {
+        write(events);
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(5000);
+        assertEquals(0, replay(instance).size());
+    }
+
+    @Test
+    public void testSeekBeforeStart() throws Exception {
+        write(events);
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(-5000);
+        assertEquals(events, replay(instance));
+    }
+
+    @Test
+    public void testSeekWithLateEvents() throws Exception {
+        // late events are journalled in arrival order and replayed in that order after the seek point
+        List<Event> arrival = new ArrayList<Event>(events);
+        Event late = arrival.remove(300);
+        arrival.add(700, late);
+        write(arrival);
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(300);
+        List<Event> replayed = replay(instance);
+        assertEquals(arrival.subList(arrival.indexOf(events.get(301)), 1000), replayed);
+        assertTrue(replayed.contains(late));
+        instance = new JournalChannel(dir);
+        instance.seek(302);
+        assertEquals(arrival.subList(arrival.indexOf(events.get(302)), 1000), replay(instance));
+    }
+
+    @Test
+    public void testMissingIndexRebuilt() throws Exception {
+        write(events);
+        for (JournalSegment segment : JournalSegment.list(dir)) {
+            assertTrue(segment.indexFile.delete());
+        }
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(621);
+        assertEquals(events.subList(621, 1000), replay(instance));
+    }
+
+    @Test
+    public void testCorruptIndexRebuilt() throws Exception {
+        write(events);
+        for (JournalSegment segment : JournalSegment.list(dir)) {
+            FileOutputStream out = new FileOutputStream(segment.indexFile);
+            out.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 127, 127, 127, 127, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            out.close();
+        }
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(433);
+        assertEquals(events.subList(433, 1000), replay(instance));
+    }
+
+    @Test
+    public void testEmptyJournal() throws Exception {
+        assertEquals(0, replay(new JournalChannel(dir)).size());
+        new EventJournal(dir).close();
+        assertEquals(0, replay(new JournalChannel(dir)).size());
+    }
+
+    @Test
+    public void testReplayWhileWriting() throws Exception {
+        EventJournal journal = new EventJournal(dir, new BinarySerializer(), 4096, 256);
+        for (Event event : events.subList(0, 100)) {
+            journal.execute((AddEventTrigger) null, event);
+        }
+        assertEquals(events.subList(0, 100), replay(new JournalChannel(dir)));
+        for (Event event : events.subList(100, 200)) {
+            journal.execute((AddEventTrigger) null, event);
+        }
+        assertEquals(events.subList(0, 200), replay(new JournalChannel(dir)));
+        journal.close();
+    }
+
+    @Test
+    public void testCsvEvents() throws Exception {
+        Map<String,Integer> fields = new HashMap<String,Integer>();
+        fields.put("a", 0);
+        fields.put("b", 1);
+        List<Event> csv = new ArrayList<Event>();
+        for (int i = 0; i < 50; i++) {
+            JdoHeader header = new JdoHeader(i, 0, Sources.cache.getSourceByName("csv"));
+            csv.add(new JdoCSVEvent(header, fields, new String[] {Integer.toString(i), "b" + i}));
+        }
+        write(csv);
+        JournalChannel instance = new JournalChannel(dir);
+        instance.seek(25);
+        List<Event> replayed = replay(instance);
+        assertEquals(csv.subList(25, 50), replayed);
+        assertEquals("b30", ((JdoCSVEvent) replayed.get(5)).get("b"));
+    }
+
+    private void write(List<Event> events) throws Exception {
+        EventJournal journal = new EventJournal(dir, new BinarySerializer(), 8192, 512);
+        for (Event event : events) {
+            journal.append(event);
+        }
+        journal.close();
+    }
+}
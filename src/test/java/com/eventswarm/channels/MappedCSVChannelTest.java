@@ -0,0 +1,181 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.CSVEvent;
+import com.eventswarm.events.Event;
+import com.eventswarm.eventset.EventSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedCSVChannelTest {
+    private File sgb;
+    private File temp;
+    private List<Event> events;
+    private AddEventAction addEvent;
+
+    @Before
+    public void setup() throws Exception {
+        sgb = new File(MappedCSVChannelTest.class.getClassLoader().getResource("fixtures/SGB.csv").toURI());
+        events = new ArrayList<Event>();
+        addEvent = new AddEventAction(){
+            public void execute(AddEventTrigger trigger, Event event) {
+                events.add(event);
+            }
+        };
+    }
+
+    @After
+    public void cleanup() {
+        if (temp != null) {
+            temp.delete();
+        }
+    }
+
+    @Test
+    public void testMatchesCSVChannel() throws Exception {
+        List<Event> expected = readWithCSVChannel();
+        MappedCSVChannel instance = new MappedCSVChannel(sgb).setThreads(4).setChunkSize(1000);
+        instance.setTimestampField("Date[L]", new SimpleDateFormat("d-MMM-yy")).setSourceField("#RIC");
+        instance.registerAction(addEvent);
+        assertEquals(764, instance.process());
+        assertEquals(0, instance.getErrorCount());
+        assertEquals(expected.size(), events.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CSVEvent exp = (CSVEvent) expected.get(i);
+            CSVEvent act = (CSVEvent) events.get(i);
+            assertEquals(exp.getHeader().getTimestampMillis(), act.getHeader().getTimestampMillis());
+            assertEquals("SGB.AX", act.getHeader().getSource().getSourceId());
+            assertEquals(exp.get("Date[L]"), act.get("Date[L]"));
+            assertEquals(exp.get("Last"), act.get("Last"));
+            assertEquals(exp.get("Volume"), act.get("Volume"));
+        }
+    }
+
+    @Test
+    public void testSingleChunk() throws Exception {
+        MappedCSVChannel instance = new MappedCSVChannel(sgb).setThreads(2);
+        instance.registerAction(addEvent);
+        assertEquals(764, instance.process());
+        assertEquals("1-Jun-07", ((CSVEvent) events.get(0)).get("Date[L]"));
+        assertEquals("3-Apr-09", ((CSVEvent) events.get(763)).get("Date[L]"));
+    }
+
+    @Test
+    public void testFileOrderWithoutTimestamps() throws Exception {
+        MappedCSVChannel instance = new MappedCSVChannel(sgb).setThreads(3).setChunkSize(500);
+        instance.registerAction(addEvent);
+        instance.process();
+        List<Event> expected = readWithCSVChannel();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(((CSVEvent) expected.get(i)).get("Date[L]"), ((CSVEvent) events.get(i)).get("Date[L]"));
+        }
+    }
+
+    @Test
+    public void testReordersWithinBatch() throws Exception {
+        StringBuilder csv = new StringBuilder("id,time\n");
+        int[] times = {5, 3, 9, 1, 7, 2, 8, 4, 6, 0};
+        for (int i = 0; i < times.length; i++) {
+            csv.append(i).append(",2014-01-01 00:00:0").append(times[i]).append('\n');
+        }
+        MappedCSVChannel instance = new MappedCSVChannel(write(csv.toString())).setThreads(4).setChunkSize(10);
+        instance.setTimestampField("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+        instance.registerAction(addEvent);
+        assertEquals(10, instance.process());
+        // 10 chunks of one record, merged in batches of 4
+        String[] expected = {"3", "1", "0", "2", "5", "7", "4", "6", "9", "8"};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ((CSVEvent) events.get(i)).get("id"));
+        }
+    }
+
+    @Test
+    public void testSequenceInFileOrder() throws Exception {
+        StringBuilder csv = new StringBuilder("id,time\n");
+        for (int i = 0; i < 200; i++) {
+            csv.append(i).append(",2014-01-01 00:00:0").append(i / 50).append('\n');
+        }
+        MappedCSVChannel instance = new MappedCSVChannel(write(csv.toString())).setThreads(4).setChunkSize(100);
+        instance.setTimestampField("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+        instance.registerAction(addEvent);
+        assertEquals(200, instance.process());
+        // records with the same timestamp are parsed by different workers but sequenced in file order
+        EventSet set = new EventSet();
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(Integer.toString(i), ((CSVEvent) events.get(i)).get("id"));
+            if (i > 0 && events.get(i).getHeader().getTimestampMillis() == events.get(i-1).getHeader().getTimestampMillis()) {
+                assertTrue(events.get(i).getHeader().getSequenceNumber() > events.get(i-1).getHeader().getSequenceNumber());
+            }
+            set.execute((AddEventTrigger) null, events.get(i));
+        }
+        assertEquals(events, set.getSnapshot());
+    }
+
+    @Test
+    public void testQuotedLineBreaks() throws Exception {
+        String csv = "a,b\r\n\"one\ntwo\",1\r\n\"three\r\nfour, five\",2\r\nsix,3";
+        MappedCSVChannel instance = new MappedCSVChannel(write(csv)).setThreads(2).setChunkSize(4);
+        instance.registerAction(addEvent);
+        assertEquals(3, instance.process());
+        assertEquals("one\ntwo", ((CSVEvent) events.get(0)).get("a"));
+        // CSVReader joins the lines of a multi-line field with a newline, as for CSVChannel
+        assertEquals("three\nfour, five", ((CSVEvent) events.get(1)).get("a"));
+        assertEquals("2", ((CSVEvent) events.get(1)).get("b"));
+        assertEquals("six", ((CSVEvent) events.get(2)).get("a"));
+    }
+
+    @Test
+    public void testFieldNames() throws Exception {
+        MappedCSVChannel instance = new MappedCSVChannel(write("1,2\n3,4\n"), new String[] {"x", "y"});
+        instance.registerAction(addEvent);
+        assertEquals(2, instance.process());
+        assertEquals("3", ((CSVEvent) events.get(1)).get("x"));
+    }
+
+    private List<Event> readWithCSVChannel() throws Exception {
+        final List<Event> result = new ArrayList<Event>();
+        InputStream stream = MappedCSVChannelTest.class.getClassLoader().getResourceAsStream("fixtures/SGB.csv");
+        CSVChannel channel = new CSVChannel(stream).setTimestampField("Date[L]", new SimpleDateFormat("d-MMM-yy"));
+        channel.registerAction(new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                result.add(event);
+            }
+        });
+        channel.process();
+        return result;
+    }
+
+    private File write(String contents) throws Exception {
+        temp = File.createTempFile("MappedCSVChannelTest", ".csv");
+        FileOutputStream out = new FileOutputStream(temp);
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+        return temp;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.channels;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.JsonEvent;
+import com.eventswarm.events.jdo.RawJsonEvent;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingJsonChannelTest {
+    private InputStream stream(String str) throws Exception {
+        return new ByteArrayInputStream(str.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testNextSingle() throws Exception {
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream("{\"a\":1, \"b\":2}"));
+        Event event = channel.next();
+        assertTrue(event instanceof RawJsonEvent);
+        assertEquals(1, ((JsonEvent<?>) event).getInt("a"));
+        assertEquals(2, ((JsonEvent<?>) event).getInt("b"));
+        assertNull(channel.next());
+        assertTrue(channel.isStopped());
+    }
+
+    @Test
+    public void testNdJson() throws Exception {
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream("{\"a\":1}\n{\"a\":2}\r\n\n{\"a\":3}{\"a\":4}\n"));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, ((JsonEvent<?>) channel.next()).getInt("a"));
+        }
+        assertNull(channel.next());
+    }
+
+    @Test
+    public void testBracesInStrings() throws Exception {
+        String first = "{\"s\":\"} { \\\" '\", \"t\":'}', \"o\":{\"p\":[1,{\"q\":\"]\"}]}}";
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream(first + "\n{\"a\":2}"));
+        RawJsonEvent event = (RawJsonEvent) channel.next();
+        assertEquals(first, event.getJsonString());
+        assertEquals("} { \" '", event.getString("s"));
+        assertEquals(2, ((JsonEvent<?>) channel.next()).getInt("a"));
+    }
+
+    @Test
+    public void testLargeObject() throws Exception {
+        StringBuilder big = new StringBuilder("{\"pad\":\"");
+        for (int i = 0; i < StreamingJsonChannel.DEFAULT_BUFFER_SIZE * 3; i++) {
+            big.append('x');
+        }
+        big.append("\", \"a\":7}");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            input.append(big).append('\n');
+        }
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream(input.toString()));
+        for (int i = 0; i < 3; i++) {
+            RawJsonEvent event = (RawJsonEvent) channel.next();
+            assertEquals(7, event.getInt("a"));
+            assertEquals(big.length(), event.getJsonLength());
+        }
+        assertNull(channel.next());
+    }
+
+    @Test
+    public void testSource() throws Exception {
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream("{\"source\":\"feed1\"}{\"a\":1}"));
+        assertEquals("feed1", channel.next().getHeader().getSource().getSourceId());
+        assertNotNull(channel.next().getHeader().getSource());
+        channel = new StreamingJsonChannel(stream("{\"source\":\"feed1\"}"), "fixed");
+        assertEquals("fixed", channel.next().getHeader().getSource().getSourceId());
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream("{\"a\":1}{\"a\":2}"), "ordered");
+        Event first = channel.next();
+        Event second = channel.next();
+        assertTrue(first.isBefore(second));
+    }
+
+    @Test
+    public void testProcessWithErrors() throws Exception {
+        StreamingJsonChannel channel = new StreamingJsonChannel(stream("{\"a\":1}\ngarbage\n{\"a\":2}\n{\"a\":3"));
+        final List<Event> events = new ArrayList<Event>();
+        channel.registerAction(new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                events.add(event);
+            }
+        });
+        assertEquals(2, channel.process());
+        assertEquals(2, events.size());
+        assertEquals(2, ((JsonEvent<?>) events.get(1)).getInt("a"));
+        assertEquals(2, channel.getErrorCount());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events;
+
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class JsonPathTest {
+    Header header = new JdoHeader(new Date(), new JdoSource("localhost"));
+
+    @Test
+    public void compileSimple() throws Exception {
+        JsonPath path = JsonPath.compile("a");
+        assertEquals(0, path.getDepth());
+        assertEquals("a", path.getLeaf());
+        assertEquals("a", path.getPath());
+    }
+
+    @Test
+    public void compileNested() throws Exception {
+        JsonPath path = JsonPath.compile("a/b/c");
+        assertArrayEquals(new String[] {"a", "b"}, path.getParents());
+        assertEquals("c", path.getLeaf());
+    }
+
+    @Test
+    public void compileIgnoresEmptySegments() throws Exception {
+        JsonPath path = JsonPath.compile("/a//b");
+        assertArrayEquals(new String[] {"a"}, path.getParents());
+        assertEquals("b", path.getLeaf());
+    }
+
+    @Test
+    public void compileIsCached() throws Exception {
+        assertSame(JsonPath.compile("x/y"), JsonPath.compile("x/y"));
+        assertEquals(JsonPath.compile("x/y"), JsonPath.compile("x/y"));
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        JsonEvent<JSONObject> instance = new OrgJsonEvent(header, new JSONObject("{a:{c:1}, b: 2}"));
+        assertEquals(1, JsonPath.compile("a/c").lookup(instance, false));
+        assertNull(JsonPath.compile("a/d").lookup(instance, false));
+        assertNull(JsonPath.compile("d/c").lookup(instance, false));
+        assertNull(JsonPath.compile("b/c").lookup(instance, false));
+    }
+
+    @Test
+    public void lookupMemoized() throws Exception {
+        CountingEvent first = new CountingEvent(new JSONObject("{a:{c:1}}"));
+        CountingEvent second = new CountingEvent(new JSONObject("{a:{c:2}}"));
+        JsonPath path = JsonPath.compile("a/c");
+        assertEquals(1, path.lookup(first, true));
+        assertEquals(1, path.lookup(first, true));
+        assertEquals(1, first.count);
+        assertEquals(2, path.lookup(second, true));
+        assertEquals(1, second.count);
+        // unmemoized lookups always go to the event
+        path.lookup(second, false);
+        assertEquals(2, second.count);
+    }
+
+    @Test
+    public void memoizedRetrieversShareLookup() throws Exception {
+        CountingEvent event = new CountingEvent(new JSONObject("{a:{c:1.5}, s:'Howzat'}"));
+        assertEquals(1.5, new JsonEvent.DoubleRetriever("a/c", true).getValue(event), 0.0);
+        assertEquals(Long.valueOf(1), new JsonEvent.LongRetriever("a/c", true).getValue(event));
+        assertEquals(Integer.valueOf(1), new JsonEvent.IntegerRetriever("a/c", true).getValue(event));
+        assertEquals("1.5", new JsonEvent.ObjectAsStringRetriever("a/c", true).getValue(event));
+        assertEquals(1, event.count);
+        assertEquals("howzat", new JsonEvent.DowncaseStringRetriever("s", true).getValue(event));
+        assertEquals("Howzat", new JsonEvent.StringRetriever("s", true).getValue(event));
+        assertEquals(2, event.count);
+    }
+
+    @Test
+    public void retrieverMisses() throws Exception {
+        JsonEvent<JSONObject> instance = new OrgJsonEvent(header, new JSONObject("{a:{c:1}, s:'x', n:null}"));
+        assertNull(new JsonEvent.IntegerRetriever("a/d").getValue(instance));
+        assertNull(new JsonEvent.DoubleRetriever("d/c").getValue(instance));
+        assertNull(new JsonEvent.BooleanRetriever("a/c").getValue(instance));
+        assertNull(new JsonEvent.IntegerRetriever("n").getValue(instance));
+        assertNull(new JsonEvent.ObjectAsStringRetriever("d").getValue(instance));
+        // string retrievers keep the optString behaviour: empty for a missing leaf, null for a missing parent
+        assertEquals("", new JsonEvent.StringRetriever("a/d").getValue(instance));
+        assertNull(new JsonEvent.StringRetriever("d/c").getValue(instance));
+        assertNull(new JsonEvent.DowncaseStringRetriever("d/c").getValue(instance));
+    }
+
+    @Test
+    public void retrieverConvertsStrings() throws Exception {
+        JsonEvent<JSONObject> instance = new OrgJsonEvent(header, new JSONObject("{i:'12', b:'true', n:5}"));
+        assertEquals(Integer.valueOf(12), new JsonEvent.IntegerRetriever("i").getValue(instance));
+        assertEquals(Boolean.TRUE, new JsonEvent.BooleanRetriever("b").getValue(instance));
+        assertEquals("5", new JsonEvent.StringRetriever("n").getValue(instance));
+    }
+
+    private static class CountingEvent extends OrgJsonEvent {
+        private int count = 0;
+
+        private CountingEvent(JSONObject json) {
+            super(new JdoHeader(new Date(), new JdoSource("localhost")), json);
+        }
+
+        @Override
+        public Object get(JsonPath path) {
+            count++;
+            return super.get(path);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events;
+
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.XmlEventImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class XPathCacheTest {
+    private static final String VALUE_PATH = "/feed/entry[%d]/content/Observation/valueQuantity/value/@value";
+    private static final String TITLE_PATH = "/feed/entry[%d]/title";
+
+    XmlEvent fhir;
+
+    @Before
+    public void setup() throws Exception {
+        fhir = loadFhir();
+    }
+
+    private static XmlEvent loadFhir() throws Exception {
+        Node doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                XPathCacheTest.class.getClassLoader().getResourceAsStream("fixtures/fhir_observation_result.xml"));
+        return new XmlEventImpl(new JdoHeader(new Date(), new JdoSource("localhost")), doc);
+    }
+
+    @Test
+    public void compileIsCached() throws Exception {
+        XPathExpression expr = XPathCache.compile("/feed/title");
+        int size = XPathCache.size();
+        assertSame(expr, XPathCache.compile("/feed/title"));
+        assertEquals(size, XPathCache.size());
+        XPathCache.compile("/feed/id");
+        assertEquals(size + 1, XPathCache.size());
+    }
+
+    @Test
+    public void compilePerThread() throws Exception {
+        final XPathExpression expr = XPathCache.compile("/feed/title");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            XPathExpression other = executor.submit(new Callable<XPathExpression>() {
+                public XPathExpression call() throws Exception {
+                    return XPathCache.compile("/feed/title");
+                }
+            }).get();
+            assertNotSame(expr, other);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected=XPathExpressionException.class)
+    public void compileInvalid() throws Exception {
+        XPathCache.compile("/feed/[");
+    }
+
+    @Test
+    public void fhirAccessors() throws Exception {
+        assertEquals(50, fhir.getInt("count(/feed/entry)"));
+        assertEquals("Observation \"10\" Version \"1\"", fhir.getString(String.format(TITLE_PATH, 2)));
+        assertEquals(39.7, fhir.getDouble(String.format(VALUE_PATH, 2)), 0.0);
+        assertTrue(fhir.has("/feed/entry/content/Observation"));
+        assertFalse(fhir.has("/feed/entry/content/Patient"));
+        assertEquals(50, fhir.getNodeList("/feed/entry").getLength());
+    }
+
+    @Test
+    public void fhirRetrievers() throws Exception {
+        assertEquals(39.7, new XmlEvent.DoubleRetriever(String.format(VALUE_PATH, 2)).getValue(fhir), 0.0);
+        assertEquals("observation \"10\" version \"1\"",
+                new XmlEvent.DowncaseStringRetriever(String.format(TITLE_PATH, 2)).getValue(fhir));
+        assertEquals(Integer.valueOf(50), new XmlEvent.IntegerRetriever("count(/feed/entry)").getValue(fhir));
+        assertEquals("title", new XmlEvent.NodeRetriever(String.format(TITLE_PATH, 1)).getValue(fhir).getNodeName());
+        assertEquals(50, new XmlEvent.NodeListRetriever("/feed/entry").getValue(fhir).getLength());
+        assertNull(new XmlEvent.NodeRetriever("/feed/[").getValue(fhir));
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= 50; i++) {
+            expected.add(fhir.getString(String.format(TITLE_PATH, i)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        // DOM implementations are not safe for concurrent reads, so each thread has its own event
+                        XmlEvent event = loadFhir();
+                        for (int round = 0; round < 20; round++) {
+                            for (int i = 1; i <= 50; i++) {
+                                if (!expected.get(i-1).equals(event.getString(String.format(TITLE_PATH, i)))) {
+                                    return false;
+                                }
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -196,6 +196,49 @@ public class JdoHeaderTest extends TestCase {
         assertEquals(TestEvents.hdrTimestamp, instance.getTimestamp());
     }
 
+    /**
+     * Test of getTimestampMillis method, of class com.eventswarm.events.jdo.JdoHeader.
+     */
+    public void testGetTimestampMillis() {
+        System.out.println("getTimestampMillis");
+
+        JdoHeader instance = TestEvents.jdoHdr;
+        assertEquals(TestEvents.hdrTimestamp.getTime(), instance.getTimestampMillis());
+    }
+
+    /**
+     * Test of setTimestampMillis method, of class com.eventswarm.events.jdo.JdoHeader.
+     */
+    public void testSetTimestampMillis() {
+        System.out.println("setTimestampMillis");
+
+        JdoHeader instance = new JdoHeader();
+        assertNull(instance.getTimestamp());
+        assertEquals(JdoHeader.NO_TIMESTAMP, instance.getTimestampMillis());
+
+        instance.setTimestamp(new Date(1000L));
+        instance.setTimestampMillis(2000L);
+        assertEquals(2000L, instance.getTimestampMillis());
+        assertEquals(new Date(2000L), instance.getTimestamp());
+
+        instance.setTimestamp(null);
+        assertNull(instance.getTimestamp());
+        assertEquals(JdoHeader.NO_TIMESTAMP, instance.getTimestampMillis());
+    }
+
+    /**
+     * Test of the millisecond timestamp constructor, which creates the Date view lazily
+     */
+    public void testMillisConstructor() {
+        System.out.println("JdoHeader(long, int, Source)");
+
+        JdoHeader instance = new JdoHeader(12345L, 3, TestEvents.hdrSrc);
+        assertEquals(12345L, instance.getTimestampMillis());
+        assertNull(instance.timestamp);
+        assertEquals(new Date(12345L), instance.getTimestamp());
+        assertSame(instance.getTimestamp(), instance.getTimestamp());
+    }
+
     /**
      * Test of setSequenceNumber method, of class com.eventswarm.events.jdo.JdoHeader.
      */
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.jdo;
+
+import com.eventswarm.Combination;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JdoSequenceCombinationsPartTest {
+    static JdoSource source = new JdoSource("JdoSequenceCombinationsPartTest");
+    static Map<String,EventPart> empty = new HashMap<String,EventPart>();
+
+    @Test
+    public void testNoLists() throws Exception {
+        Event tail = event(1000, 0);
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(new ArrayList<List<Event>>(), tail);
+        assertEquals(1, instance.count());
+        assertEquals(Collections.singleton(combination(tail)), instance.getCombinations());
+        assertEquals(Collections.singleton(tail), new HashSet<Event>(instance.getEvents()));
+    }
+
+    @Test
+    public void testPersistenceConstructor() throws Exception {
+        Constructor<JdoSequenceCombinationsPart> constructor = JdoSequenceCombinationsPart.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        JdoSequenceCombinationsPart instance = constructor.newInstance();
+        assertEquals(0, instance.count());
+        assertFalse(instance.iterator().hasNext());
+        assertTrue(instance.getCombinations().isEmpty());
+        assertTrue(instance.getEvents().isEmpty());
+        assertTrue(instance.getLists().isEmpty());
+    }
+
+    @Test
+    public void testSingleList() throws Exception {
+        Event e1 = event(1000, 0), e2 = event(2000, 0), e3 = event(3000, 0);
+        List<List<Event>> lists = new ArrayList<List<Event>>();
+        lists.add(Arrays.asList(e1, e2, e3));
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, e3);
+        assertEquals(2, instance.count());
+        Set<Combination> expected = new HashSet<Combination>();
+        expected.add(combination(e1, e3));
+        expected.add(combination(e2, e3));
+        assertEquals(expected, instance.getCombinations());
+        assertEquals(Arrays.asList(e1, e2, e3), new ArrayList<Event>(instance.getEvents()));
+    }
+
+    @Test
+    public void testNoCombinations() throws Exception {
+        Event e1 = event(1000, 0), e2 = event(2000, 0);
+        List<List<Event>> lists = new ArrayList<List<Event>>();
+        lists.add(Arrays.asList(e2));
+        lists.add(Arrays.asList(e1));
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, event(3000, 0));
+        assertEquals(0, instance.count());
+        assertFalse(instance.iterator().hasNext());
+        assertTrue(instance.getCombinations().isEmpty());
+        assertTrue(instance.getEvents().isEmpty());
+    }
+
+    @Test
+    public void testSkipsUnsequencedHead() throws Exception {
+        // e2 in the second list has no predecessor in the first list, so it can't appear in a combination
+        Event e1 = event(1000, 0), e2 = event(2000, 0), e3 = event(3000, 0), e4 = event(4000, 0);
+        List<List<Event>> lists = new ArrayList<List<Event>>();
+        lists.add(Arrays.asList(e2));
+        lists.add(Arrays.asList(e1, e3));
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, e4);
+        assertEquals(1, instance.count());
+        assertEquals(Collections.singleton(combination(e2, e3, e4)), instance.getCombinations());
+        assertEquals(Arrays.asList(e2, e3, e4), new ArrayList<Event>(instance.getEvents()));
+    }
+
+    @Test
+    public void testExplicitRanges() throws Exception {
+        // e3 can only follow e2 and e4 can only follow e1, so [e1, e4] is not a combination
+        Event e1 = event(1000, 0), e2 = event(2000, 0), e3 = event(3000, 0), e4 = event(4000, 0);
+        List<List<Event>> lists = new ArrayList<List<Event>>();
+        lists.add(Arrays.asList(e1, e2));
+        lists.add(Arrays.asList(e3, e4));
+        lists.add(Arrays.asList(event(5000, 0)));
+        int[][] lower = {null, {1, 0}, {0}};
+        int[][] upper = {null, {2, 1}, {1}};
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, lower, upper);
+        assertEquals(1, instance.count());
+        assertEquals(Collections.singleton(combination(e2, e3, lists.get(2).get(0))), instance.getCombinations());
+        assertEquals(Arrays.asList(e2, e3, lists.get(2).get(0)), new ArrayList<Event>(instance.getEvents()));
+        assertSame(lists.get(2).get(0), instance.getTail());
+    }
+
+    @Test
+    public void testMatchesBruteForce() throws Exception {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 50; trial++) {
+            int n = 1 + random.nextInt(4);
+            List<List<Event>> lists = new ArrayList<List<Event>>();
+            for (int i = 0; i < n; i++) {
+                TreeSet<Event> events = new TreeSet<Event>();
+                int size = random.nextInt(6);
+                for (int j = 0; j < size; j++) {
+                    // small time range so that some events share a timestamp
+                    events.add(event(random.nextInt(20) * 1000L, random.nextInt(3)));
+                }
+                lists.add(new ArrayList<Event>(events));
+            }
+            Event tail = event(random.nextInt(25) * 1000L, 0);
+            Set<Combination> expected = bruteForce(lists, tail);
+            JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, tail);
+            assertEquals(expected.size(), instance.count());
+            assertEquals(expected, instance.getCombinations());
+            SortedSet<Event> events = new TreeSet<Event>();
+            for (Combination comb : expected) events.addAll(comb);
+            assertEquals(events, instance.getEvents());
+        }
+    }
+
+    @Test
+    public void testLargeCount() throws Exception {
+        // 5 lists of the same 100 ordered events give C(100,5) combinations, far too many to enumerate
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(event(i * 1000L, 0));
+        }
+        List<List<Event>> lists = new ArrayList<List<Event>>();
+        for (int i = 0; i < 5; i++) lists.add(events);
+        JdoSequenceCombinationsPart instance = new JdoSequenceCombinationsPart(lists, event(1000000L, 0));
+        assertEquals(75287520, instance.count());
+        Iterator<Combination> iter = instance.iterator();
+        Combination first = iter.next();
+        assertEquals(Arrays.asList(events.get(0), events.get(1), events.get(2), events.get(3), events.get(4)),
+                first.subList(0, 5));
+        assertEquals(100, instance.getEvents().size() - 1);
+    }
+
+    private static Set<Combination> bruteForce(List<List<Event>> lists, Event tail) {
+        Set<Combination> result = new HashSet<Combination>();
+        bruteForce(lists, 0, new ArrayList<Event>(), tail, result);
+        return result;
+    }
+
+    private static void bruteForce(List<List<Event>> lists, int index, List<Event> head, Event tail, Set<Combination> result) {
+        if (index == lists.size()) {
+            if (head.isEmpty() || head.get(head.size()-1).isBefore(tail)) {
+                Combination comb = new JdoCombination();
+                comb.addAll(head);
+                comb.add(tail);
+                result.add(comb);
+            }
+        } else {
+            for (Event event : lists.get(index)) {
+                if (head.isEmpty() || head.get(head.size()-1).isBefore(event)) {
+                    head.add(event);
+                    bruteForce(lists, index+1, head, tail, result);
+                    head.remove(head.size()-1);
+                }
+            }
+        }
+    }
+
+    private static Combination combination(Event... events) {
+        Combination result = new JdoCombination();
+        result.addAll(Arrays.asList(events));
+        return result;
+    }
+
+    private static Event event(long time, int seq) {
+        return new JdoEvent(new JdoHeader(time, seq, source), empty);
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.jdo;
+
+import com.eventswarm.events.Header;
+import com.eventswarm.events.JsonEvent;
+import com.eventswarm.events.JsonPath;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class RawJsonEventTest {
+    private static final String JSON = "{\"a\":1, \"b\": {\"c\": 1038401717746111341, \"d\": {\"e\": \"deep\"}}, " +
+            "\"s\": \"caf\\u00e9 \\\"quoted\\\" {not a brace}\", \"f\": 1.15, \"t\": true, \"n\": null, " +
+            "\"arr\": [1, {\"x\": 2}], \"big\": 123456789012345678901234, \"neg\": -42, \"str\": \"12\"}";
+
+    Header header = new JdoHeader(new Date(), new JdoSource("localhost"));
+
+    private RawJsonEvent make(String json) throws Exception {
+        return new RawJsonEvent(header, json.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void typedGetters() throws Exception {
+        RawJsonEvent instance = make(JSON);
+        assertEquals(1, instance.getInt("a"));
+        assertEquals(1038401717746111341L, instance.getLong("b/c"));
+        assertEquals("deep", instance.getString("b/d/e"));
+        assertEquals("caf\u00e9 \"quoted\" {not a brace}", instance.getString("s"));
+        assertEquals(1.15, instance.getDouble("f"), 0.0);
+        assertTrue(instance.getBoolean("t"));
+        assertEquals(-42, instance.getLong("neg"));
+        assertEquals(12, instance.getInt("str"));
+        assertEquals(1.0, instance.getDouble("a"), 0.0);
+    }
+
+    @Test
+    public void matchesOrgJsonEvent() throws Exception {
+        RawJsonEvent raw = make(JSON);
+        OrgJsonEvent org = new OrgJsonEvent(header, new JSONObject(JSON));
+        String[] paths = {"a", "b/c", "b/d/e", "s", "f", "t", "n", "big", "neg", "str", "missing", "b/missing",
+                "missing/x", "a/x", "/b/c"};
+        for (String path : paths) {
+            assertEquals(path, org.has(path), raw.has(path));
+            assertEquals(path, org.getString(path), raw.getString(path));
+            Object expected = org.get(path);
+            Object actual = raw.get(path);
+            assertEquals(path, expected == null ? null : expected.toString(), actual == null ? null : actual.toString());
+        }
+        assertEquals(org.getJsonObject("b").toString(), raw.getJsonObject("b").toString());
+        assertTrue(raw.get("arr") instanceof JSONArray);
+        assertEquals(2, ((JSONArray) raw.get("arr")).getJSONObject(1).getInt("x"));
+        assertNull(raw.getJsonObject("a"));
+    }
+
+    @Test
+    public void lenientSyntax() throws Exception {
+        RawJsonEvent instance = make("{a:1, b: 'single', c:{d: true}, e : plain }");
+        assertEquals(1, instance.getInt("a"));
+        assertEquals("single", instance.getString("b"));
+        assertTrue(instance.getBoolean("c/d"));
+        assertEquals("plain", instance.getString("e"));
+    }
+
+    @Test
+    public void emptyObject() throws Exception {
+        RawJsonEvent instance = make("{ }");
+        assertFalse(instance.has("a"));
+        assertEquals("", instance.getString("a"));
+    }
+
+    @Test(expected=JSONException.class)
+    public void missingInt() throws Exception {
+        make(JSON).getInt("missing");
+    }
+
+    @Test(expected=JSONException.class)
+    public void missingParent() throws Exception {
+        make(JSON).getLong("missing/c");
+    }
+
+    @Test(expected=JSONException.class)
+    public void notANumber() throws Exception {
+        make(JSON).getDouble("s");
+    }
+
+    @Test(expected=JSONException.class)
+    public void malformed() throws Exception {
+        make("{\"a\" 1}").getInt("a");
+    }
+
+    @Test
+    public void originalBytes() throws Exception {
+        String json = "{ \"a\" :  1,\"b\":\"x\" }";
+        RawJsonEvent instance = make(json);
+        assertEquals(json, instance.getJsonString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        instance.writeTo(out);
+        assertEquals(json, out.toString("UTF-8"));
+        assertEquals(json.length(), instance.getJsonLength());
+        assertEquals(1, instance.getJson().getInt("a"));
+    }
+
+    @Test
+    public void retrievers() throws Exception {
+        RawJsonEvent instance = make(JSON);
+        assertEquals(Long.valueOf(1038401717746111341L), new JsonEvent.LongRetriever("b/c").getValue(instance));
+        assertEquals("deep", new JsonEvent.StringRetriever("b/d/e", true).getValue(instance));
+        assertEquals(Double.valueOf(1.15), new JsonEvent.DoubleRetriever("f").getValue(instance));
+        assertNull(new JsonEvent.IntegerRetriever("missing").getValue(instance));
+        assertEquals(1, instance.getInt(JsonPath.compile("a")));
+    }
+}
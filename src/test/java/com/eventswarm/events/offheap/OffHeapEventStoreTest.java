@@ -0,0 +1,204 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.offheap;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoCSVEvent;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoPartWrapper;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+public class OffHeapEventStoreTest {
+    static JdoSource source = new JdoSource("OffHeapEventStoreTest");
+    static Map<String,Integer> fields = new HashMap<String,Integer>();
+    static {
+        fields.put("symbol", 0);
+        fields.put("price", 1);
+        fields.put("note", 2);
+    }
+
+    @Test
+    public void testHeaderRoundTrip() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        Event event = new JdoEvent(new JdoHeader(new Date(12345L), 7, source), new HashMap<String,EventPart>());
+        OffHeapEvent result = instance.get(instance.append(event));
+        assertEquals(12345L, result.getHeader().getTimestamp().getTime());
+        assertEquals(7, result.getHeader().getSequenceNumber());
+        assertEquals(source, result.getHeader().getSource());
+        assertEquals(event.getHeader().getEventId(), result.getHeader().getEventId());
+        assertEquals(event, result);
+        assertEquals(0, event.compareTo(result));
+        assertTrue(result.getCsvMap().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectJson() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        instance.append(new OrgJsonEvent(new JdoHeader(new Date(1000L), 1, source), new JSONObject().put("a", 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectParts() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        Map<String,EventPart> parts = new HashMap<String,EventPart>();
+        parts.put("first", new JdoPartWrapper<String>("one"));
+        parts.put("second", new JdoPartWrapper<String>("two"));
+        instance.append(new JdoEvent(new JdoHeader(new Date(1000L), 1, source), parts));
+    }
+
+    @Test
+    public void testNonUuidEventId() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        Event event = csv(1000L, 1, "my-event-id", "ABC", "1.5", null);
+        OffHeapEvent result = instance.get(instance.append(event));
+        assertEquals("my-event-id", result.getHeader().getEventId());
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        Event event = csv(1000L, 1, null, "ABC", "1.5", "\u00e9t\u00e9");
+        OffHeapEvent result = instance.get(instance.append(event));
+        assertEquals("ABC", result.get("symbol"));
+        assertEquals("1.5", result.get("price"));
+        assertEquals("\u00e9t\u00e9", result.get("note"));
+        assertNull(result.get("missing"));
+        assertEquals(3, result.getCsvMap().size());
+    }
+
+    @Test
+    public void testNullField() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        Event event = new JdoCSVEvent(new JdoHeader(new Date(1000L), 1, source), fields, new String[] {"ABC", "1.5"});
+        OffHeapEvent result = instance.get(instance.append(event));
+        assertEquals("ABC", result.get("symbol"));
+        assertNull(result.get("note"));
+        assertEquals(2, result.getCsvMap().size());
+    }
+
+    @Test
+    public void testDetach() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore();
+        long address = instance.append(csv(1000L, 1, null, "ABC", "1.5", "x"));
+        OffHeapEvent result = instance.get(address);
+        assertFalse(result.isDetached());
+        result.detach();
+        instance.release(address);
+        assertTrue(result.isDetached());
+        assertEquals("ABC", result.get("symbol"));
+        assertEquals(0, instance.getRecordCount());
+    }
+
+    @Test
+    public void testSegmentsFreed() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore(256);
+        List<Long> addresses = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            addresses.add(instance.append(csv(i * 1000L, 0, null, "ABC", Integer.toString(i), "x")));
+        }
+        int segments = instance.getSegmentCount();
+        assertTrue(segments > 10);
+        for (int i = 0; i < 50; i++) {
+            instance.release(addresses.get(i));
+        }
+        assertTrue(instance.getSegmentCount() < segments);
+        assertEquals(50, instance.getRecordCount());
+        // remaining records are still readable
+        for (int i = 50; i < 100; i++) {
+            assertEquals(Integer.toString(i), instance.get(addresses.get(i)).get("price"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadFreed() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore(64);
+        long first = instance.append(csv(1000L, 0, null, "ABC", "1", "x"));
+        instance.append(csv(2000L, 0, null, "ABC", "2", "x"));
+        instance.release(first);
+        instance.get(first);
+    }
+
+    @Test
+    public void testLargeRecord() throws Exception {
+        OffHeapEventStore instance = new OffHeapEventStore(64);
+        StringBuilder note = new StringBuilder();
+        for (int i = 0; i < 100; i++) note.append("abcdefghij");
+        long address = instance.append(csv(1000L, 0, null, "ABC", "1", note.toString()));
+        assertEquals(note.toString(), instance.get(address).get("note"));
+    }
+
+    @Test
+    public void testReadWhileReleasing() throws Exception {
+        final OffHeapEventStore instance = new OffHeapEventStore(256);
+        final int count = 20000;
+        final AtomicReferenceArray<OffHeapEvent> events = new AtomicReferenceArray<OffHeapEvent>(count);
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                Random random = new Random(42);
+                while (written.get() < count && failure.get() == null) {
+                    int n = written.get();
+                    if (n == 0) continue;
+                    int i = random.nextInt(n);
+                    String price = events.get(i).get("price");
+                    if (!Integer.toString(i).equals(price)) {
+                        failure.set("Event " + i + " returned " + price);
+                    }
+                }
+            }
+        });
+        reader.start();
+        // write on this thread, releasing records (and re-using segments) while the reader reads them
+        long[] addresses = new long[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = instance.append(csv(i * 1000L, 0, null, "ABC", Integer.toString(i), "x"));
+            events.set(i, instance.get(addresses[i]));
+            written.incrementAndGet();
+            if (i >= 10) {
+                instance.release(addresses[i - 10]);
+            }
+        }
+        reader.join();
+        assertNull(failure.get());
+        for (int i = 0; i < count - 10; i++) {
+            assertTrue(events.get(i).isDetached());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallSegment() throws Exception {
+        new OffHeapEventStore(10);
+    }
+
+    static Event csv(long time, int seq, String id, String symbol, String price, String note) {
+        JdoHeader header = id == null ? new JdoHeader(new Date(time), seq, source)
+                                      : new JdoHeader(new Date(time), seq, source, id);
+        return new JdoCSVEvent(header, fields, new String[] {symbol, price, note});
+    }
+}
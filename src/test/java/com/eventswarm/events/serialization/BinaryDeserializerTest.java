@@ -0,0 +1,128 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.serialization;
+
+import com.eventswarm.channels.Deserializer;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BinaryDeserializerTest {
+    BinarySerializer writer = new BinarySerializer();
+
+    @Test
+    public void testPartialFrame() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer();
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':'some content'}"));
+        byte[] frame = writer.toBytes(event);
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        for (int i = 0; i < frame.length - 1; i++) {
+            buffer.put(frame[i]);
+            buffer.flip();
+            assertNull(instance.readFrom(buffer));
+            assertEquals(0, buffer.position());
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+        buffer.put(frame[frame.length - 1]);
+        buffer.flip();
+        assertEquals(event, instance.readFrom(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OrgJsonEvent first = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':'x'}"));
+        OrgJsonEvent second = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':'y'}"));
+        writer.writeTo(first, out);
+        writer.writeTo(second, out);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(out.size());
+        buffer.put(out.toByteArray());
+        buffer.flip();
+        assertEquals("x", ((OrgJsonEvent) instance.readFrom(buffer)).getString("a"));
+        assertEquals("y", ((OrgJsonEvent) instance.readFrom(buffer)).getString("a"));
+    }
+
+    @Test
+    public void testIncompleteBytes() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer();
+        byte[] frame = writer.toBytes(new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':1}")));
+        try {
+            instance.fromBytes(Arrays.copyOf(frame, frame.length - 1));
+            fail("Expected DeserializeException");
+        } catch (Deserializer.DeserializeException exc) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptFrameSkipped() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer();
+        byte[] frame = writer.toBytes(new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':1}")));
+        OrgJsonEvent next = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'b':2}"));
+        byte[] good = writer.toBytes(next);
+        byte[] corrupt = frame.clone();
+        corrupt[1] = 99; // unknown event type
+        ByteBuffer buffer = ByteBuffer.allocate(corrupt.length + good.length);
+        buffer.put(corrupt).put(good).flip();
+        try {
+            instance.readFrom(buffer);
+            fail("Expected DeserializeException");
+        } catch (Deserializer.DeserializeException exc) {
+            // expected
+        }
+        assertEquals(corrupt.length, buffer.position());
+        assertEquals(next, instance.readFrom(buffer));
+    }
+
+    @Test
+    public void testFactory() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer(new OrgJsonEventFactory() {
+            public Event create(Header header, JSONObject json) {
+                json.put("created", true);
+                return new OrgJsonEvent(header, json);
+            }
+        });
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':1}"));
+        OrgJsonEvent result = (OrgJsonEvent) instance.fromBytes(writer.toBytes(event));
+        assertTrue(result.getBoolean("created"));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        BinaryDeserializer instance = new BinaryDeserializer();
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':1}"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(event, out);
+        assertEquals(event, instance.readFrom(ByteBuffer.wrap(out.toByteArray())));
+        writer.reset();
+        instance.reset();
+        out.reset();
+        writer.writeTo(event, out);
+        assertEquals(event, instance.readFrom(ByteBuffer.wrap(out.toByteArray())));
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.events.serialization;
+
+import com.eventswarm.channels.Serializer;
+import com.eventswarm.events.Activity;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Header;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinarySerializerTest {
+    BinarySerializer instance = new BinarySerializer();
+    BinaryDeserializer reader = new BinaryDeserializer();
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        JSONObject json = new JSONObject("{'a':1, 'b':'two', 'c':3.5, 'd':true, 'e':null, 'f':[1,'x',{'g':false}], " +
+                "'h':{'i':{'j':12345678901}}, 'k':-7, 'l':'caf\u00e9 \ud83d\ude00'}");
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), json);
+        Event result = reader.fromBytes(instance.toBytes(event));
+        assertTrue(result instanceof OrgJsonEvent);
+        assertHeaderEquals(event.getHeader(), result.getHeader());
+        assertEquals(event, result);
+        JSONObject decoded = ((OrgJsonEvent) result).getJson();
+        assertTrue(json.similar(decoded));
+        assertEquals(Integer.class, decoded.get("a").getClass());
+        assertEquals(Long.class, decoded.getJSONObject("h").getJSONObject("i").get("j").getClass());
+        assertEquals(JSONObject.NULL, decoded.get("e"));
+        assertEquals("caf\u00e9 \ud83d\ude00", decoded.getString("l"));
+    }
+
+    @Test
+    public void testBigNumbers() throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("big", new BigInteger("123456789012345678901234567890"));
+        json.put("dec", new BigDecimal("1.23456789012345678901234567890"));
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), json);
+        JSONObject decoded = ((OrgJsonEvent) reader.fromBytes(instance.toBytes(event))).getJson();
+        assertEquals(new BigInteger("123456789012345678901234567890"), decoded.get("big"));
+        assertEquals(new BigDecimal("1.23456789012345678901234567890"), decoded.get("dec"));
+    }
+
+    @Test
+    public void testRawJsonRoundTrip() throws Exception {
+        RawJsonEvent event = new RawJsonEvent(JdoHeader.getLocalHeader(), "{\"a\":[1,2],\"b\":{\"c\":\"d\"}}".getBytes("UTF-8"));
+        Event result = reader.fromBytes(instance.toBytes(event));
+        assertTrue(result instanceof OrgJsonEvent);
+        assertEquals(event, result);
+        assertTrue(event.getJson().similar(((OrgJsonEvent) result).getJson()));
+    }
+
+    @Test
+    public void testNonUuidEventId() throws Exception {
+        Header header = new JdoHeader(new Date(12345L), Sources.cache.getSourceByName("test"), "my-event-1");
+        OrgJsonEvent event = new OrgJsonEvent(header, new JSONObject("{'a':1}"));
+        Event result = reader.fromBytes(instance.toBytes(event));
+        assertEquals("my-event-1", result.getHeader().getEventId());
+        assertHeaderEquals(header, result.getHeader());
+    }
+
+    @Test
+    public void testNegativeTimestampAndSequence() throws Exception {
+        Header header = new JdoHeader(-1000L, -1, Sources.cache.getSourceByName("test"));
+        OrgJsonEvent event = new OrgJsonEvent(header, new JSONObject());
+        Event result = reader.fromBytes(instance.toBytes(event));
+        assertHeaderEquals(header, result.getHeader());
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws Exception {
+        Map<String,Integer> fields = new HashMap<String,Integer>();
+        fields.put("name", 0);
+        fields.put("address", 1);
+        fields.put("phone", 2);
+        JdoCSVEvent event = new JdoCSVEvent(JdoHeader.getLocalHeader(), fields, new String[] {"Fred", null, "12345"});
+        Event result = reader.fromBytes(instance.toBytes(event));
+        assertTrue(result instanceof JdoCSVEvent);
+        assertEquals(event, result);
+        JdoCSVEvent csv = (JdoCSVEvent) result;
+        assertEquals(fields, csv.getFields());
+        assertArrayEquals(event.getValues(), csv.getValues());
+        assertEquals("Fred", csv.get("name"));
+        assertNull(csv.get("address"));
+        assertEquals(event.getCsvMap(), csv.getCsvMap());
+    }
+
+    @Test
+    public void testNestedActivityRoundTrip() throws Exception {
+        Event first = new OrgJsonEvent(new JdoHeader(1000L, 1, Sources.cache.getSourceByName("A")), new JSONObject("{'a':1}"));
+        Event second = new OrgJsonEvent(new JdoHeader(2000L, 2, Sources.cache.getSourceByName("B")), new JSONObject("{'b':2}"));
+        Event third = makeCsv(3000L, "x");
+        JdoActivity inner = new JdoActivity(new TreeSet<Event>(Arrays.asList(first, second)));
+        JdoActivity outer = new JdoActivity(new TreeSet<Event>(Arrays.<Event>asList(inner, third)));
+        Event result = reader.fromBytes(instance.toBytes(outer));
+        assertTrue(result instanceof JdoActivity);
+        assertHeaderEquals(outer.getHeader(), result.getHeader());
+        Iterator<Event> events = ((Activity) result).getEvents().iterator();
+        Event decodedInner = events.next();
+        assertTrue(decodedInner instanceof Activity);
+        assertHeaderEquals(inner.getHeader(), decodedInner.getHeader());
+        assertEquals(Arrays.asList(first, second), new ArrayList<Event>(((Activity) decodedInner).getEvents()));
+        assertEquals(third, events.next());
+        assertFalse(events.hasNext());
+    }
+
+    @Test
+    public void testStringRoundTrip() throws Exception {
+        OrgJsonEvent event = new OrgJsonEvent(JdoHeader.getLocalHeader(), new JSONObject("{'a':[1,2,3]}"));
+        String string = instance.toString(event);
+        Event result = reader.fromString(string);
+        assertEquals(event, result);
+        assertEquals(3, ((OrgJsonEvent) result).getJSONArray("a").length());
+    }
+
+    @Test
+    public void testStreamDictionary() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<String,Integer> fields = new HashMap<String,Integer>();
+        fields.put("some long field name", 0);
+        fields.put("another long field name", 1);
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 10; i++) {
+            Header header = new JdoHeader(1000L + i, i, Sources.cache.getSourceByName("a long source name"));
+            events.add(new JdoCSVEvent(header, fields, new String[] {Integer.toString(i), "v"}));
+        }
+        for (Event event : events) {
+            instance.writeTo(event, out);
+        }
+        byte[] stream = out.toByteArray();
+        // field names and source are written once, so later frames are much smaller than a self-contained frame
+        assertTrue(stream.length < 10 * instance.toBytes(events.get(0)).length / 2);
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        Map<String,Integer> shared = null;
+        for (Event event : events) {
+            JdoCSVEvent result = (JdoCSVEvent) reader.readFrom(buffer);
+            assertEquals(event, result);
+            assertEquals(((JdoCSVEvent) event).get("some long field name"), result.get("some long field name"));
+            if (shared == null) {
+                shared = result.getFields();
+            } else {
+                assertSame(shared, result.getFields());
+            }
+        }
+        assertFalse(buffer.hasRemaining());
+        assertNull(reader.readFrom(buffer));
+    }
+
+    @Test
+    public void testUnsupportedEvent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Event unsupported = new JdoEvent(JdoHeader.getLocalHeader(), new HashMap());
+        try {
+            instance.toBytes(unsupported);
+            fail("Expected SerializeException");
+        } catch (Serializer.SerializeException exc) {
+            // expected
+        }
+        // a failed event nested in an activity must not leave stream dictionary entries behind
+        Event json = new OrgJsonEvent(new JdoHeader(1000L, 1, Sources.cache.getSourceByName("new source")), new JSONObject("{'newfield':1}"));
+        JdoActivity activity = new JdoActivity(new TreeSet<Event>(Arrays.asList(json, unsupported)));
+        try {
+            instance.writeTo(activity, out);
+            fail("Expected SerializeException");
+        } catch (Serializer.SerializeException exc) {
+            // expected
+        }
+        assertEquals(0, out.size());
+        instance.writeTo(json, out);
+        Event result = reader.readFrom(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(json, result);
+        assertEquals(1, ((OrgJsonEvent) result).getInt("newfield"));
+    }
+
+    private static JdoCSVEvent makeCsv(long timestamp, String value) {
+        Map<String,Integer> fields = new HashMap<String,Integer>();
+        fields.put("value", 0);
+        return new JdoCSVEvent(new JdoHeader(timestamp, 0, Sources.cache.getSourceByName("csv")), fields, new String[] {value});
+    }
+
+    private static void assertHeaderEquals(Header expected, Header actual) {
+        assertEquals(expected.getEventId(), actual.getEventId());
+        assertEquals(expected.getTimestampMillis(), actual.getTimestampMillis());
+        assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+        assertEquals(expected.getSource().getSourceId(), actual.getSource().getSourceId());
+    }
+}
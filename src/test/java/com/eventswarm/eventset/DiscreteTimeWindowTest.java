@@ -23,10 +23,14 @@ import com.eventswarm.AddEventAction;
 import com.eventswarm.RemoveEventTrigger;
 import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventAction;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
 import com.eventswarm.eventset.OutOfOrderAction;
 import com.eventswarm.util.IntervalUnit;
 import java.util.Queue;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import com.eventswarm.events.Event;
 import com.eventswarm.events.EventPart;
@@ -268,6 +272,72 @@ public class DiscreteTimeWindowTest implements AddEventTrigger, RemoveEventActio
     }
 
 
+    @Test
+    public void testExecute_ringBufferOverLimitTwo() {
+        System.out.println("Add event past limit of window for first and second events using ring buffer storage");
+        DiscreteTimeWindow instance = new DiscreteTimeWindow(WINDOWSIZE);
+        instance.setStorage(new EventRingBuffer());
+        instance.registerAction((RemoveEventAction) this);
+        instance.execute(this, firstEvent);
+        instance.execute(this, second1Event);
+        instance.execute(this, removeSecondEvents);
+        // Old events should have been removed in order
+        assertFalse(instance.contains(firstEvent));
+        assertFalse(instance.contains(second1Event));
+        assertTrue(instance.contains(removeSecondEvents));
+        assertTrue(instance.size() == 1);
+        assertTrue(this.queue.poll() == firstEvent);
+        assertTrue(this.queue.poll() == second1Event);
+    }
+
+    @Test
+    public void testExecute_ringBufferOutOfOrder() {
+        System.out.println("execute with out-of-order events using ring buffer storage");
+        DiscreteTimeWindow instance = new DiscreteTimeWindow(WINDOWSIZE);
+        instance.execute(this, second2Event);
+        instance.setStorage(new EventRingBuffer());
+        instance.execute(this, keepFirstEvent);
+        instance.execute(this, firstEvent);
+        instance.execute(this, second1Event);
+        // Should all be there in correct order
+        assertTrue(instance.size() == 4);
+        assertTrue(instance.eventSet.first() == firstEvent);
+        assertTrue(instance.getSnapshot().get(1) == second1Event);
+        assertTrue(instance.getSnapshot().get(2) == second2Event);
+        assertTrue(instance.eventSet.last() == keepFirstEvent);
+    }
+
+    @Test
+    public void testExecute_batchRemove() {
+        System.out.println("Remove events past limit of window as a single batch");
+        DiscreteTimeWindow instance = new DiscreteTimeWindow(WINDOWSIZE);
+        final List<List<Event>> batches = new ArrayList<List<Event>>();
+        instance.registerAction(new RemoveEventsBatchAction() {
+            public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+                batches.add(new ArrayList<Event>(events));
+            }
+            public void execute(RemoveEventTrigger trigger, Event event) {
+                fail("Single event removal should not be called for batch removal");
+            }
+        });
+        instance.registerAction((RemoveEventAction) this);
+        instance.execute(this, firstEvent);
+        instance.execute(this, second1Event);
+        instance.execute(this, second2Event);
+        instance.execute(this, removeSecondEvents);
+        assertEquals(1, instance.size());
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertTrue(batches.get(0).get(0) == firstEvent);
+        assertTrue(batches.get(0).get(1) == second1Event);
+        assertTrue(batches.get(0).get(2) == second2Event);
+        // non-batch listeners still receive each event in order
+        assertEquals(3, this.queue.size());
+        assertTrue(this.queue.poll() == firstEvent);
+        assertTrue(this.queue.poll() == second1Event);
+        assertTrue(this.queue.poll() == second2Event);
+    }
+
     @Test
     public void testExecute_addBeforeWindowStart() {
         System.out.println("Add event that is before the window start");
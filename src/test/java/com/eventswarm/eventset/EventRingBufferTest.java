@@ -0,0 +1,224 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+public class EventRingBufferTest {
+    static JdoSource source = new JdoSource("EventRingBufferTest");
+    static Map<String,EventPart> empty = new HashMap<String,EventPart>();
+    EventRingBuffer instance;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new EventRingBuffer();
+    }
+
+    @Test
+    public void testAddInOrder() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.addAll(events);
+        assertEquals(5, instance.size());
+        assertEquals(events, new ArrayList<Event>(instance));
+        assertSame(events.get(0), instance.first());
+        assertSame(events.get(4), instance.last());
+    }
+
+    @Test
+    public void testAddLate() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.add(events.get(0));
+        instance.add(events.get(2));
+        instance.add(events.get(4));
+        instance.add(events.get(1));
+        instance.add(events.get(3));
+        assertEquals(events, new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testAddLateSameTimestamp() throws Exception {
+        Event first = event(10, 1);
+        Event second = event(10, 2);
+        instance.add(second);
+        instance.add(first);
+        assertSame(first, instance.first());
+        assertSame(second, instance.last());
+    }
+
+    @Test
+    public void testAddDuplicate() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.addAll(events);
+        assertFalse(instance.add(events.get(1)));
+        assertFalse(instance.add(events.get(2)));
+        assertEquals(3, instance.size());
+    }
+
+    @Test
+    public void testGrowWrapped() throws Exception {
+        List<Event> events = events(0, 100);
+        // move the head so that the buffer wraps before it grows
+        instance.addAll(events.subList(0, 10));
+        instance.removeFirst(10);
+        instance.addAll(events.subList(10, 100));
+        assertEquals(events.subList(10, 100), new ArrayList<Event>(instance));
+        assertTrue(instance.capacity() >= 90);
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        List<Event> events = events(0, 7);
+        instance.addAll(events.subList(0, 6));
+        for (Event event : events.subList(0, 6)) {
+            assertTrue(instance.contains(event));
+        }
+        assertFalse(instance.contains(events.get(6)));
+        assertFalse(instance.contains("not an event"));
+    }
+
+    @Test
+    public void testRemoveHeadMiddleTail() throws Exception {
+        List<Event> events = events(0, 7);
+        instance.addAll(events);
+        assertTrue(instance.remove(events.get(0)));
+        assertTrue(instance.remove(events.get(3)));
+        assertTrue(instance.remove(events.get(6)));
+        assertFalse(instance.remove(events.get(3)));
+        assertEquals(Arrays.asList(events.get(1), events.get(2), events.get(4), events.get(5)),
+                new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testRemoveFirst() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.addAll(events);
+        List<Event> removed = instance.removeFirst(3);
+        assertEquals(events.subList(0, 3), removed);
+        assertEquals(events.subList(3, 5), new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testRemoveFirstTooMany() throws Exception {
+        List<Event> events = events(0, 2);
+        instance.addAll(events);
+        assertEquals(events, instance.removeFirst(5));
+        assertTrue(instance.isEmpty());
+    }
+
+    @Test
+    public void testIteratorRemove() throws Exception {
+        List<Event> events = events(0, 6);
+        instance.addAll(events);
+        Iterator<Event> iter = instance.iterator();
+        List<Event> seen = new ArrayList<Event>();
+        while (iter.hasNext()) {
+            Event next = iter.next();
+            seen.add(next);
+            if (seen.size() % 2 == 0) iter.remove();
+        }
+        assertEquals(events, seen);
+        assertEquals(Arrays.asList(events.get(0), events.get(2), events.get(4)), new ArrayList<Event>(instance));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testIteratorFailFast() throws Exception {
+        instance.addAll(events(0, 3));
+        Iterator<Event> iter = instance.iterator();
+        iter.next();
+        instance.add(event(100, 0));
+        iter.next();
+    }
+
+    @Test
+    public void testDescendingIterator() throws Exception {
+        List<Event> events = events(0, 4);
+        instance.addAll(events);
+        List<Event> seen = new ArrayList<Event>();
+        Iterator<Event> iter = instance.descendingIterator();
+        while (iter.hasNext()) seen.add(iter.next());
+        Collections.reverse(seen);
+        assertEquals(events, seen);
+    }
+
+    @Test
+    public void testNavigation() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.add(events.get(0));
+        instance.add(events.get(2));
+        assertSame(events.get(0), instance.lower(events.get(1)));
+        assertSame(events.get(0), instance.floor(events.get(1)));
+        assertSame(events.get(2), instance.ceiling(events.get(1)));
+        assertSame(events.get(2), instance.higher(events.get(1)));
+        assertSame(events.get(2), instance.floor(events.get(2)));
+        assertNull(instance.lower(events.get(0)));
+        assertNull(instance.higher(events.get(2)));
+        assertEquals(Arrays.asList(events.get(0)), new ArrayList<Event>(instance.headSet(events.get(1))));
+    }
+
+    @Test
+    public void testPoll() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.addAll(events);
+        assertSame(events.get(0), instance.pollFirst());
+        assertSame(events.get(2), instance.pollLast());
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void testToArray() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.addAll(events);
+        assertEquals(events, Arrays.asList(instance.toArray(new Event[0])));
+    }
+
+    @Test
+    public void testMatchesTreeSet() throws Exception {
+        // random adds and removes should leave the buffer in the same state as a TreeSet
+        Random random = new Random(42);
+        TreeSet<Event> expected = new TreeSet<Event>();
+        List<Event> events = events(0, 200);
+        for (int i = 0; i < 1000; i++) {
+            Event event = events.get(random.nextInt(events.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(event), instance.remove(event));
+            } else {
+                assertEquals(expected.add(event), instance.add(event));
+            }
+        }
+        assertEquals(new ArrayList<Event>(expected), new ArrayList<Event>(instance));
+    }
+
+    private static List<Event> events(int start, int count) {
+        List<Event> events = new ArrayList<Event>(count);
+        for (int i = start; i < start + count; i++) {
+            events.add(event(i * 1000L, 0));
+        }
+        return events;
+    }
+
+    private static Event event(long time, int seq) {
+        return new JdoEvent(new JdoHeader(new Date(time), seq, source), empty);
+    }
+}
@@ -479,6 +479,74 @@ public class EventSetTest extends TestCase {
         assertTrue(list.size() == 2);
     }
 
+    public void testSnapshotReusedUntilChanged() {
+        System.out.println("getSnapshot: re-use snapshot until set changes");
+
+        events.add(event2);
+        events.add(event1);
+        List<Event> snapshot = events.getSnapshot();
+        long version = events.getVersion();
+
+        assertSame(snapshot, events.getSnapshot());
+        assertEquals(version, events.getVersion());
+        assertEquals(Arrays.asList(event1, event2), snapshot);
+    }
+
+    public void testSnapshotAfterChange() {
+        System.out.println("getSnapshot: new snapshot after add and remove");
+
+        events.add(event1);
+        events.add(event2);
+        List<Event> snapshot = events.getSnapshot();
+        long version = events.getVersion();
+        events.add(event3);
+        List<Event> added = events.getSnapshot();
+        events.remove(event1);
+        List<Event> removed = events.getSnapshot();
+
+        assertNotSame(snapshot, added);
+        assertTrue(events.getVersion() > version);
+        assertEquals(Arrays.asList(event1, event2), snapshot);
+        assertEquals(Arrays.asList(event1, event2, event3), added);
+        assertEquals(Arrays.asList(event2, event3), removed);
+    }
+
+    public void testSnapshotDuplicateUnchanged() {
+        System.out.println("getSnapshot: adding a duplicate does not change the snapshot");
+
+        events.add(event1);
+        List<Event> snapshot = events.getSnapshot();
+        events.add(event1);
+
+        assertSame(snapshot, events.getSnapshot());
+    }
+
+    public void testSnapshotImmutable() {
+        System.out.println("getSnapshot: snapshot cannot be modified");
+
+        events.add(event1);
+        Throwable exc = null;
+        try {
+            events.getSnapshot().remove(0);
+        } catch (UnsupportedOperationException ex) {
+            exc = ex;
+        }
+
+        assertNotNull(exc);
+        assertTrue(events.contains(event1));
+    }
+
+    public void testSnapshotAfterClear() {
+        System.out.println("getSnapshot: empty after clear");
+
+        events.add(event1);
+        events.add(event2);
+        events.getSnapshot();
+        events.clear();
+
+        assertTrue(events.getSnapshot().isEmpty());
+    }
+
     public void testAddDupeIdSameTimestamp() {
         Date ts = new Date();
         Event event1 = new JdoEvent(new JdoHeader(ts, new JdoSource("EventSetTest"), "http://myfeed.com#article?h=JYLo0gBdUjxlVvNGXjWYsnEwRXU="), TestEvents.partsSingleMap);
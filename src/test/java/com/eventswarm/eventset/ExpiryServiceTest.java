@@ -0,0 +1,147 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventsBatchAction;
+import com.eventswarm.RemoveEventsBatchTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.util.IntervalUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExpiryServiceTest {
+    static JdoSource source = new JdoSource("ExpiryServiceTest");
+    static private Map<String,EventPart> empty = null;
+
+    ExpiryService instance;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new ExpiryService(2, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instance.shutdown();
+    }
+
+    @Test
+    public void testNeverEarly() throws Exception {
+        final long due = System.currentTimeMillis() + 50;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] called = new long[1];
+        instance.schedule(new ExpiryService.Expiring() {
+            public long expire(long now) {
+                called[0] = now;
+                latch.countDown();
+                return -1;
+            }
+        }, due);
+        assertEquals(1, instance.size());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(called[0] >= due);
+        Thread.sleep(20);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void testReschedule() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        instance.schedule(new ExpiryService.Expiring() {
+            public long expire(long now) {
+                latch.countDown();
+                return latch.getCount() > 0 ? now + 5 : -1;
+            }
+        }, System.currentTimeMillis());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEarlierScheduleWakesDispatcher() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        instance.schedule(new ExpiryService.Expiring() {
+            public long expire(long now) {
+                return -1;
+            }
+        }, System.currentTimeMillis() + 60000);
+        instance.schedule(new ExpiryService.Expiring() {
+            public long expire(long now) {
+                latch.countDown();
+                return -1;
+            }
+        }, System.currentTimeMillis() + 20);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, instance.size());
+    }
+
+    @Test
+    public void testManyWindowsBatchExpiry() throws Exception {
+        int windows = 200;
+        final CountDownLatch removed = new CountDownLatch(windows * 5);
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        List<ProcessingTimeWindow> created = new ArrayList<ProcessingTimeWindow>();
+        for (int w = 0; w < windows; w++) {
+            ProcessingTimeWindow window = new ProcessingTimeWindow(IntervalUnit.SECONDS, 1, instance);
+            window.registerAction(new RemoveEventsBatchAction() {
+                public void execute(RemoveEventsBatchTrigger trigger, List<Event> events) {
+                    batchSizes.add(events.size());
+                    for (int i = 0; i < events.size(); i++) {
+                        removed.countDown();
+                    }
+                }
+                public void execute(RemoveEventTrigger trigger, Event event) {
+                    fail("Expected batch removal");
+                }
+            });
+            created.add(window);
+        }
+        long start = System.currentTimeMillis();
+        int seq = 0;
+        for (ProcessingTimeWindow window : created) {
+            for (int i = 0; i < 5; i++) {
+                window.execute((AddEventTrigger) null, new JdoEvent(new JdoHeader(new Date(start), seq++, source), empty));
+            }
+        }
+        assertTrue(removed.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        for (ProcessingTimeWindow window : created) {
+            assertEquals(0, window.size());
+            assertTrue(window.consistent());
+            assertFalse(window.isFilling());
+        }
+        // events expiring in the same bucket are removed together, so there are far fewer batches than events
+        assertTrue(batchSizes.size() < windows * 5);
+        int total = 0;
+        for (Integer size : batchSizes) {
+            total += size;
+        }
+        assertEquals(windows * 5, total);
+        assertEquals(0, instance.size());
+    }
+}
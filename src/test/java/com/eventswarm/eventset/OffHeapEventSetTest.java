@@ -0,0 +1,223 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventAction;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.CSVEvent;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.jdo.JdoCSVEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.offheap.OffHeapEvent;
+import com.eventswarm.events.offheap.OffHeapEventStore;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+public class OffHeapEventSetTest {
+    static JdoSource source = new JdoSource("OffHeapEventSetTest");
+    static JdoSource other = new JdoSource("OffHeapEventSetTest-other");
+    static Map<String,Integer> fields = Collections.singletonMap("value", 0);
+    OffHeapEventSet instance;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new OffHeapEventSet(new OffHeapEventStore(1024), 4);
+    }
+
+    @Test
+    public void testAddInOrder() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.addAll(events);
+        assertEquals(5, instance.size());
+        assertEquals(events, new ArrayList<Event>(instance));
+        assertEquals(events.get(0), instance.first());
+        assertEquals(events.get(4), instance.last());
+        assertEquals("4", ((CSVEvent) instance.last()).get("value"));
+    }
+
+    @Test
+    public void testAddLate() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.add(events.get(0));
+        instance.add(events.get(2));
+        instance.add(events.get(4));
+        instance.add(events.get(1));
+        instance.add(events.get(3));
+        assertEquals(events, new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testAddLateSameTimestamp() throws Exception {
+        Event first = event(10, 1, source);
+        Event second = event(10, 2, source);
+        Event third = event(10, 0, other);
+        instance.add(second);
+        instance.add(third);
+        instance.add(first);
+        TreeSet<Event> expected = new TreeSet<Event>(Arrays.asList(first, second, third));
+        assertEquals(new ArrayList<Event>(expected), new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testAddDuplicate() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.addAll(events);
+        assertFalse(instance.add(events.get(1)));
+        assertFalse(instance.add(events.get(2)));
+        assertEquals(3, instance.size());
+        assertEquals(3, instance.getStore().getRecordCount());
+    }
+
+    @Test
+    public void testContainsRemove() throws Exception {
+        List<Event> events = events(0, 7);
+        instance.addAll(events.subList(0, 6));
+        assertTrue(instance.contains(events.get(3)));
+        assertFalse(instance.contains(events.get(6)));
+        assertFalse(instance.contains("not an event"));
+        assertTrue(instance.remove(events.get(3)));
+        assertFalse(instance.remove(events.get(3)));
+        assertFalse(instance.contains(events.get(3)));
+        assertEquals(5, instance.getStore().getRecordCount());
+    }
+
+    @Test
+    public void testRemoveFirstDetached() throws Exception {
+        List<Event> events = events(0, 5);
+        instance.addAll(events);
+        List<Event> removed = instance.removeFirst(3);
+        assertEquals(events.subList(0, 3), removed);
+        assertEquals(events.subList(3, 5), new ArrayList<Event>(instance));
+        assertEquals(2, instance.getStore().getRecordCount());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(((OffHeapEvent) removed.get(i)).isDetached());
+            assertEquals(Integer.toString(i), ((CSVEvent) removed.get(i)).get("value"));
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() throws Exception {
+        List<Event> events = events(0, 6);
+        instance.addAll(events);
+        Iterator<Event> iter = instance.iterator();
+        List<Event> seen = new ArrayList<Event>();
+        while (iter.hasNext()) {
+            Event next = iter.next();
+            seen.add(next);
+            if (seen.size() % 2 == 0) iter.remove();
+        }
+        assertEquals(events, seen);
+        assertEquals(Arrays.asList(events.get(0), events.get(2), events.get(4)), new ArrayList<Event>(instance));
+    }
+
+    @Test
+    public void testNavigation() throws Exception {
+        List<Event> events = events(0, 3);
+        instance.add(events.get(0));
+        instance.add(events.get(2));
+        assertEquals(events.get(0), instance.lower(events.get(1)));
+        assertEquals(events.get(2), instance.ceiling(events.get(1)));
+        assertEquals(events.get(2), instance.floor(events.get(2)));
+        assertNull(instance.higher(events.get(2)));
+        assertEquals(events.get(0), instance.pollFirst());
+        assertEquals(events.get(2), instance.pollLast());
+        assertTrue(instance.isEmpty());
+        assertEquals(0, instance.getStore().getRecordCount());
+    }
+
+    @Test
+    public void testMatchesTreeSet() throws Exception {
+        // random adds and removes should leave the set in the same state as a TreeSet
+        Random random = new Random(42);
+        TreeSet<Event> expected = new TreeSet<Event>();
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 200; i++) {
+            // include some equal timestamps from different sources
+            events.add(event((i / 2) * 1000L, 0, i % 2 == 0 ? source : other));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Event event = events.get(random.nextInt(events.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(event), instance.remove(event));
+            } else {
+                assertEquals(expected.add(event), instance.add(event));
+            }
+        }
+        assertEquals(new ArrayList<Event>(expected), new ArrayList<Event>(instance));
+        assertEquals(expected.size(), instance.getStore().getRecordCount());
+    }
+
+    @Test
+    public void testTimeWindow() throws Exception {
+        final List<Event> removed = new ArrayList<Event>();
+        DiscreteTimeWindow window = new DiscreteTimeWindow(10);
+        window.setStorage(instance);
+        window.registerAction(new RemoveEventAction() {
+            public void execute(RemoveEventTrigger trigger, Event event) {
+                removed.add(event);
+            }
+        });
+        List<Event> events = events(0, 100);
+        for (Event event : events) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        assertEquals(events.subList(89, 100), new ArrayList<Event>(instance));
+        assertEquals(events.subList(0, 89), removed);
+        assertEquals("0", ((CSVEvent) removed.get(0)).get("value"));
+        assertEquals(11, instance.getStore().getRecordCount());
+    }
+
+    @Test
+    public void testSnapshotAfterExpiry() throws Exception {
+        DiscreteTimeWindow window = new DiscreteTimeWindow(10);
+        window.setStorage(instance);
+        List<Event> events = events(0, 100);
+        for (Event event : events.subList(0, 10)) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        List<Event> snapshot = window.getSnapshot();
+        Event first = window.first();
+        for (Event event : events.subList(10, 100)) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        // all events in the snapshot have been expired and their segments freed
+        assertTrue(instance.getStore().getSegmentCount() < 3);
+        assertSame(snapshot.get(0), first);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(((OffHeapEvent) snapshot.get(i)).isDetached());
+            assertEquals(Integer.toString(i), ((CSVEvent) snapshot.get(i)).get("value"));
+        }
+        assertEquals("0", ((CSVEvent) first).getCsvMap().get("value"));
+    }
+
+    private static List<Event> events(int start, int count) {
+        List<Event> events = new ArrayList<Event>(count);
+        for (int i = start; i < start + count; i++) {
+            events.add(event(i * 1000L, 0, source));
+        }
+        return events;
+    }
+
+    private static Event event(long time, int seq, JdoSource src) {
+        return new JdoCSVEvent(new JdoHeader(new Date(time), seq, src), fields,
+                new String[] {Long.toString(time / 1000)});
+    }
+}
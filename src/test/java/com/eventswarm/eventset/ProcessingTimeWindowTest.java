@@ -24,13 +24,21 @@ import com.eventswarm.AddEventTrigger;
 import com.eventswarm.RemoveEventAction;
 import com.eventswarm.RemoveEventTrigger;
 import com.eventswarm.events.Event;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import com.eventswarm.util.Checkpoint;
+import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.json.JSONObject;
 import static org.junit.Assert.*;
 
 import com.eventswarm.events.jdo.TestEvents;
@@ -51,6 +59,9 @@ public class ProcessingTimeWindowTest
     private long add1,  remove1;
     private Event removed;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     public ProcessingTimeWindowTest() {
     }
 
@@ -234,6 +245,36 @@ public class ProcessingTimeWindowTest
         assertFalse(instance.queueContains(event3));
     }
 
+    @Test
+    public void testRestoreThenExpire() throws Exception {
+        System.out.println("Restore from checkpoint then expire");
+        ExpiryService service = new ExpiryService(1, 10);
+        ProcessingTimeWindow instance = new ProcessingTimeWindow(IntervalUnit.SECONDS, 1, service);
+        Checkpoint checkpoint = new Checkpoint(new File(folder.getRoot(), "window.checkpoint"));
+        checkpoint.register("window", instance);
+        for (int i = 0; i < 3; i++) {
+            JSONObject json = new JSONObject();
+            json.put("value", i);
+            instance.execute((AddEventTrigger) this, new OrgJsonEvent(new JdoHeader(i * 1000L, i, Sources.cache.getSourceByName("test")), json));
+            // the first checkpoint is a full snapshot, later checkpoints are deltas
+            checkpoint.checkpoint();
+        }
+
+        ProcessingTimeWindow restored = new ProcessingTimeWindow(IntervalUnit.SECONDS, 1, service);
+        Checkpoint reader = new Checkpoint(checkpoint.getFile());
+        reader.register("window", restored);
+        assertTrue(reader.restore());
+        assertEquals(3, restored.size());
+        assertEquals(3, restored.queueSize());
+        assertTrue(restored.consistent());
+
+        Thread.sleep(instance.getWindowSize() + 500);
+        assertEquals(0, restored.size());
+        assertEquals(0, restored.queueSize());
+        assertTrue(restored.consistent());
+        service.shutdown();
+    }
+
     public void registerAction(AddEventAction action) {
         throw new UnsupportedOperationException("Not supported yet.");
     }
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.eventset;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.schedules.TickTrigger;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimeOrderFilterTest implements AddEventAction, OutOfOrderAction {
+    static JdoSource source = new JdoSource("TimeOrderFilterTest");
+    static private Map<String,EventPart> empty = null;
+
+    List<Event> added;
+    List<Event> outOfOrder;
+
+    @Before
+    public void setUp() throws Exception {
+        added = new ArrayList<Event>();
+        outOfOrder = new ArrayList<Event>();
+    }
+
+    public void execute(AddEventTrigger trigger, Event event) {
+        added.add(event);
+    }
+
+    public void execute(OutOfOrderTrigger trigger, Event event) {
+        outOfOrder.add(event);
+    }
+
+    @Test
+    public void testConstructTimeUnit() throws Exception {
+        TimeOrderFilter instance = new TimeOrderFilter(TimeUnit.SECONDS, 2);
+        assertEquals(2000L, instance.getLateness());
+        assertEquals(Long.MIN_VALUE, instance.getWatermark());
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void testInOrderHeldForLateness() throws Exception {
+        TimeOrderFilter instance = makeFilter(100);
+        instance.execute((AddEventTrigger) null, event(1000, 1));
+        instance.execute((AddEventTrigger) null, event(1050, 1));
+        assertTrue(added.isEmpty());
+        assertEquals(2, instance.size());
+        instance.execute((AddEventTrigger) null, event(1100, 1));
+        assertEquals(1, added.size());
+        assertEquals(1000L, added.get(0).getHeader().getTimestampMillis());
+        assertEquals(1000L, instance.getWatermark());
+    }
+
+    @Test
+    public void testReorderWithinBound() throws Exception {
+        TimeOrderFilter instance = makeFilter(100);
+        instance.execute((AddEventTrigger) null, event(1050, 1));
+        instance.execute((AddEventTrigger) null, event(1000, 2));
+        instance.execute((AddEventTrigger) null, event(1020, 1));
+        instance.execute((AddEventTrigger) null, event(1000, 1));
+        instance.flush();
+        assertTrue(outOfOrder.isEmpty());
+        assertEquals(4, added.size());
+        assertOrdered(added);
+        assertEquals(1, added.get(0).getHeader().getSequenceNumber());
+        assertEquals(2, added.get(1).getHeader().getSequenceNumber());
+    }
+
+    @Test
+    public void testLaterThanBound() throws Exception {
+        TimeOrderFilter instance = makeFilter(100);
+        instance.execute((AddEventTrigger) null, event(1000, 1));
+        instance.execute((AddEventTrigger) null, event(1200, 1));
+        assertEquals(1, added.size());
+        Event late = event(900, 1);
+        instance.execute((AddEventTrigger) null, late);
+        assertEquals(1, outOfOrder.size());
+        assertSame(late, outOfOrder.get(0));
+        assertEquals(1, added.size());
+        // an event before the watermark but after the last delivered event can still be delivered in order
+        instance.execute((AddEventTrigger) null, event(1050, 1));
+        assertEquals(2, added.size());
+        assertEquals(1, outOfOrder.size());
+    }
+
+    @Test
+    public void testTickAdvancesWatermark() throws Exception {
+        TimeOrderFilter instance = makeFilter(100);
+        instance.execute((AddEventTrigger) null, event(1000, 1));
+        instance.execute((TickTrigger) null, new Date(1050));
+        assertTrue(added.isEmpty());
+        instance.execute((TickTrigger) null, new Date(1100));
+        assertEquals(1, added.size());
+        // ticks earlier than the latest time are ignored
+        instance.execute((TickTrigger) null, new Date(500));
+        assertEquals(1000L, instance.getWatermark());
+    }
+
+    @Test
+    public void testRandomJitter() throws Exception {
+        TimeOrderFilter instance = makeFilter(50);
+        Random random = new Random(42);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            instance.execute((AddEventTrigger) null, event(i * 10 + random.nextInt(50), i));
+        }
+        instance.flush();
+        assertTrue(outOfOrder.isEmpty());
+        assertEquals(count, added.size());
+        assertOrdered(added);
+        assertEquals(0, instance.size());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        TimeOrderFilter instance = makeFilter(100);
+        instance.execute((AddEventTrigger) null, event(1000, 1));
+        instance.reset();
+        assertEquals(0, instance.size());
+        assertEquals(Long.MIN_VALUE, instance.getWatermark());
+        instance.execute((AddEventTrigger) null, event(2000, 1));
+        instance.flush();
+        assertTrue(added.isEmpty());
+    }
+
+    private TimeOrderFilter makeFilter(long lateness) {
+        TimeOrderFilter instance = new TimeOrderFilter(lateness);
+        instance.registerAction((AddEventAction) this);
+        instance.registerAction((OutOfOrderAction) this);
+        return instance;
+    }
+
+    private static Event event(long timestamp, int seq) {
+        return new JdoEvent(new JdoHeader(new Date(timestamp), seq, source), empty);
+    }
+
+    private static void assertOrdered(List<Event> events) {
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i - 1).compareTo(events.get(i)) < 0);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.abstractions.ValueRetriever;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.JsonEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class EventMatcherIndexTest {
+    private static final String[] SYMBOLS = {"ANZ", "BHP", "CBA", "NAB", "WBC"};
+    private static final String[] SOURCES = {"asx", "chix"};
+
+    private long time = 1000000L;
+    private int calls = 0;
+
+    private ValueRetriever<Number> price = new ValueRetriever<Number>() {
+        public Number getValue(Event event) {
+            calls++;
+            return ((JsonEvent) event).getDouble("price");
+        }
+    };
+
+    @Test
+    public void testEquivalence() throws Exception {
+        List<EventMatcherExpression> exprs = new ArrayList<EventMatcherExpression>();
+        for (String symbol : SYMBOLS) {
+            // separate retriever instances for the same path should be grouped
+            exprs.add(new EventMatcherExpression(new StringValueMatcher(symbol, new JsonEvent.StringRetriever("sym"))));
+            exprs.add(new EventMatcherExpression(new ValueEqualsMatcher<String>(new ConstantValue<String>(symbol), new JsonEvent.StringRetriever("sym"))));
+        }
+        for (int i = 0; i < 20; i++) {
+            exprs.add(new EventMatcherExpression(new ValueGreaterMatcher(new ConstantValue<Number>(i * 5), price)));
+            exprs.add(new EventMatcherExpression(new ValueLessMatcher(new ConstantValue<Number>(i * 5), price)));
+        }
+        for (String source : SOURCES) {
+            exprs.add(new EventMatcherExpression(new SourceMatcher(source)));
+        }
+        exprs.add(new EventMatcherExpression(new EventClassMatcher(JsonEvent.class)));
+        exprs.add(new EventMatcherExpression(new EventClassMatcher(String.class)));
+        exprs.add(new EventMatcherExpression(new StringValueRegexMatcher("^[AB].*", new JsonEvent.StringRetriever("sym"))));
+
+        EventMatcherIndex instance = new EventMatcherIndex();
+        Map<EventMatcherExpression, EventMatchActionImpl> actions = new HashMap<EventMatcherExpression, EventMatchActionImpl>();
+        for (EventMatcherExpression expr : exprs) {
+            assertTrue(instance.add(expr));
+            EventMatchActionImpl action = new EventMatchActionImpl();
+            expr.registerAction(action);
+            actions.put(expr, action);
+        }
+        assertEquals(exprs.size(), instance.size());
+        assertEquals(1, instance.getScanCount());
+        assertEquals(2, instance.getRetrieverCount());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            Event event = makeEvent(SOURCES[random.nextInt(SOURCES.length)], SYMBOLS[random.nextInt(SYMBOLS.length)],
+                    random.nextInt(1000) / 10.0);
+            Set<EventMatcherExpression> expected = new HashSet<EventMatcherExpression>();
+            for (EventMatcherExpression expr : exprs) {
+                if (expr.getMatcher().matches(event)) {
+                    expected.add(expr);
+                }
+            }
+            instance.execute((AddEventTrigger) null, event);
+            for (EventMatcherExpression expr : exprs) {
+                List<Event> matches = actions.get(expr).matches;
+                boolean fired = !matches.isEmpty() && matches.get(matches.size() - 1) == event;
+                assertEquals(expected.contains(expr), fired);
+            }
+        }
+    }
+
+    @Test
+    public void testCandidatesOnly() throws Exception {
+        EventMatcherIndex instance = new EventMatcherIndex();
+        EventMatcherExpression anz = new EventMatcherExpression(new StringValueMatcher("ANZ", new JsonEvent.StringRetriever("sym")));
+        EventMatcherExpression bhp = new EventMatcherExpression(new StringValueMatcher("BHP", new JsonEvent.StringRetriever("sym")));
+        EventMatcherExpression above = new EventMatcherExpression(new ValueGreaterMatcher(new ConstantValue<Number>(10), price));
+        EventMatcherExpression below = new EventMatcherExpression(new ValueLessMatcher(new ConstantValue<Number>(10), price));
+        EventMatcherExpression asx = new EventMatcherExpression(new SourceMatcher("asx"));
+        instance.add(anz);
+        instance.add(bhp);
+        instance.add(above);
+        instance.add(below);
+        instance.add(asx);
+        assertEquals(Arrays.asList(anz, above, asx), instance.getCandidates(makeEvent("asx", "ANZ", 11.0)));
+        assertEquals(Arrays.asList(bhp, below), instance.getCandidates(makeEvent("chix", "BHP", 9.0)));
+        // thresholds are strict
+        assertEquals(Arrays.asList(bhp), instance.getCandidates(makeEvent("chix", "BHP", 10.0)));
+    }
+
+    @Test
+    public void testRetrieverCalledOnce() throws Exception {
+        EventMatcherIndex instance = new EventMatcherIndex();
+        for (int i = 0; i < 100; i++) {
+            instance.add(new EventMatcherExpression(new ValueGreaterMatcher(new ConstantValue<Number>(i), price)));
+        }
+        calls = 0;
+        assertEquals(0, instance.getCandidates(makeEvent("asx", "ANZ", 0.0)).size());
+        assertEquals(1, calls);
+        calls = 0;
+        assertEquals(50, instance.getCandidates(makeEvent("asx", "ANZ", 49.5)).size());
+        assertEquals(1, calls);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        EventMatcherIndex instance = new EventMatcherIndex();
+        EventMatcherExpression anz = new EventMatcherExpression(new StringValueMatcher("ANZ", new JsonEvent.StringRetriever("sym")));
+        EventMatcherExpression above = new EventMatcherExpression(new ValueGreaterMatcher(new ConstantValue<Number>(10), price));
+        EventMatcherExpression json = new EventMatcherExpression(new EventClassMatcher(JsonEvent.class));
+        instance.add(anz);
+        instance.add(above);
+        instance.add(json);
+        assertFalse(instance.add(anz));
+        Event event = makeEvent("asx", "ANZ", 11.0);
+        assertEquals(3, instance.getCandidates(event).size());
+        assertTrue(instance.remove(anz));
+        assertTrue(instance.remove(above));
+        assertTrue(instance.remove(json));
+        assertFalse(instance.remove(json));
+        assertEquals(0, instance.size());
+        assertEquals(0, instance.getRetrieverCount());
+        assertEquals(0, instance.getCandidates(event).size());
+    }
+
+    @Test
+    public void testRemoveEvent() throws Exception {
+        EventMatcherIndex instance = new EventMatcherIndex();
+        EventMatcherExpression anz = new EventMatcherExpression(new StringValueMatcher("ANZ", new JsonEvent.StringRetriever("sym")));
+        instance.add(anz);
+        Event event = makeEvent("asx", "ANZ", 11.0);
+        instance.execute((AddEventTrigger) null, event);
+        assertTrue(anz.hasMatched(event));
+        instance.execute((RemoveEventTrigger) null, event);
+        assertFalse(anz.hasMatched(event));
+    }
+
+    @Test
+    public void testNonConstantValueScanned() throws Exception {
+        final double[] threshold = {10.0};
+        Value<Number> dynamic = new Value<Number>() {
+            public Number getValue() {
+                return threshold[0];
+            }
+        };
+        EventMatcherIndex instance = new EventMatcherIndex();
+        EventMatcherExpression above = new EventMatcherExpression(new ValueGreaterMatcher(dynamic, price));
+        instance.add(above);
+        assertEquals(1, instance.getScanCount());
+        Event event = makeEvent("asx", "ANZ", 11.0);
+        threshold[0] = 12.0;
+        instance.execute((AddEventTrigger) null, event);
+        assertFalse(above.hasMatched(event));
+        threshold[0] = 10.0;
+        instance.execute((AddEventTrigger) null, event);
+        assertTrue(above.hasMatched(event));
+    }
+
+    private Event makeEvent(String source, String symbol, double value) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("sym", symbol);
+        json.put("price", value);
+        return new OrgJsonEvent(new JdoHeader(time++, 0, new JdoSource(source)), json);
+    }
+}
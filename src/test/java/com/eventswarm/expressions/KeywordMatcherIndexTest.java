@@ -0,0 +1,167 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.Keywords;
+import com.eventswarm.events.OrderedKeywords;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.events.EventPart;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class KeywordMatcherIndexTest {
+    private static final String[] WORDS = {"a", "b", "c", "d"};
+    private long time = 1000000L;
+
+    @Test
+    public void testEquivalence() throws Exception {
+        Random random = new Random(7);
+        List<EventMatcherExpression> exprs = new ArrayList<EventMatcherExpression>();
+        for (String word : WORDS) {
+            exprs.add(new EventMatcherExpression(new KeywordMatcher(word)));
+        }
+        exprs.add(new EventMatcherExpression(new KeywordMatcher("z")));
+        exprs.add(new EventMatcherExpression(new KeywordSequenceMatcher(new String[0])));
+        for (int i = 0; i < 200; i++) {
+            exprs.add(new EventMatcherExpression(new KeywordSequenceMatcher(randomWords(random, 1 + random.nextInt(4)))));
+        }
+        KeywordMatcherIndex instance = new KeywordMatcherIndex();
+        for (EventMatcherExpression expr : exprs) {
+            assertTrue(instance.add(expr));
+        }
+        assertEquals(exprs.size(), instance.size());
+        for (int i = 0; i < 300; i++) {
+            Event event = makeEvent(randomWords(random, random.nextInt(12)));
+            List<EventMatcherExpression> expected = new ArrayList<EventMatcherExpression>();
+            for (EventMatcherExpression expr : exprs) {
+                if (expr.getMatcher().matches(event)) {
+                    expected.add(expr);
+                }
+            }
+            assertEquals(expected, instance.getCandidates(event));
+            instance.execute((AddEventTrigger) null, event);
+            for (EventMatcherExpression expr : exprs) {
+                assertEquals(expected.contains(expr), expr.hasMatched(event));
+            }
+        }
+    }
+
+    @Test
+    public void testOverlappingSequences() throws Exception {
+        EventMatcherExpression aab = new EventMatcherExpression(new KeywordSequenceMatcher(new String[] {"a", "a", "b"}));
+        EventMatcherExpression ab = new EventMatcherExpression(new KeywordSequenceMatcher(new String[] {"a", "b"}));
+        EventMatcherExpression bc = new EventMatcherExpression(new KeywordSequenceMatcher(new String[] {"b", "c"}));
+        KeywordMatcherIndex instance = new KeywordMatcherIndex();
+        instance.add(aab);
+        instance.add(ab);
+        instance.add(bc);
+        assertEquals(7, instance.getStateCount());
+        assertEquals(Arrays.asList(aab, ab), instance.getCandidates(makeEvent("a", "a", "a", "b")));
+        assertEquals(Arrays.asList(ab, bc), instance.getCandidates(makeEvent("c", "a", "b", "c")));
+        assertEquals(Collections.emptyList(), instance.getCandidates(makeEvent("a", "c", "b", "a")));
+    }
+
+    @Test
+    public void testKeywordsOnlyEvent() throws Exception {
+        EventMatcherExpression a = new EventMatcherExpression(new KeywordMatcher("a"));
+        EventMatcherExpression ab = new EventMatcherExpression(new KeywordSequenceMatcher(new String[] {"a", "b"}));
+        KeywordMatcherIndex instance = new KeywordMatcherIndex();
+        instance.add(a);
+        instance.add(ab);
+        Event event = new KeywordsEvent(new HashSet<String>(Arrays.asList("a", "b")));
+        assertEquals(Arrays.asList(a), instance.getCandidates(event));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        EventMatcherExpression a = new EventMatcherExpression(new KeywordMatcher("a"));
+        EventMatcherExpression ab = new EventMatcherExpression(new KeywordSequenceMatcher(new String[] {"a", "b"}));
+        EventMatcherExpression all = new EventMatcherExpression(new KeywordSequenceMatcher(new String[0]));
+        KeywordMatcherIndex instance = new KeywordMatcherIndex();
+        instance.add(a);
+        instance.add(ab);
+        instance.add(all);
+        assertFalse(instance.add(ab));
+        Event event = makeEvent("a", "b");
+        instance.execute((AddEventTrigger) null, event);
+        assertTrue(a.hasMatched(event) && ab.hasMatched(event) && all.hasMatched(event));
+        instance.execute((RemoveEventTrigger) null, event);
+        assertFalse(a.hasMatched(event) || ab.hasMatched(event) || all.hasMatched(event));
+        assertTrue(instance.remove(ab));
+        assertFalse(instance.remove(ab));
+        assertEquals(1, instance.getStateCount());
+        assertEquals(Arrays.asList(a, all), instance.getCandidates(event));
+        instance.remove(a);
+        instance.remove(all);
+        assertEquals(0, instance.size());
+        assertEquals(Collections.emptyList(), instance.getCandidates(event));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidMatcher() throws Exception {
+        new KeywordMatcherIndex().add(new EventMatcherExpression(new TrueMatcher()));
+    }
+
+    private String[] randomWords(Random random, int length) {
+        String[] result = new String[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = WORDS[random.nextInt(WORDS.length)];
+        }
+        return result;
+    }
+
+    private Event makeEvent(String... words) {
+        return new TextEvent(new JdoHeader(time++, 0, new JdoSource("KeywordMatcherIndexTest")), Arrays.asList(words));
+    }
+
+    public static class TextEvent extends JdoEvent implements Keywords, OrderedKeywords {
+        private List<String> words;
+
+        public TextEvent(JdoHeader header, List<String> words) {
+            super(header, new HashMap<String, EventPart>());
+            this.words = words;
+        }
+
+        public Set<String> getKeywords() {
+            return new HashSet<String>(words);
+        }
+
+        public List<String> getOrderedKeywords() {
+            return words;
+        }
+    }
+
+    public static class KeywordsEvent extends JdoEvent implements Keywords {
+        private Set<String> keywords;
+
+        public KeywordsEvent(Set<String> keywords) {
+            super(JdoHeader.getLocalHeader(), new HashMap<String, EventPart>());
+            this.keywords = keywords;
+        }
+
+        public Set<String> getKeywords() {
+            return keywords;
+        }
+    }
+}
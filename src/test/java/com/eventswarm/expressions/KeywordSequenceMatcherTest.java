@@ -128,6 +128,33 @@ public class KeywordSequenceMatcherTest {
         assertTrue(result);
     }
 
+    @Test
+    public void matchAfterPartialPrefix() throws Exception {
+        String matchSequence[] = {"a", "b"};
+        String eventSequence[] = {"a", "a", "b"};
+        KeywordSequenceMatcher instance = new KeywordSequenceMatcher(matchSequence);
+        boolean result = instance.matches(new SequencedKeywordsEvent(eventSequence));
+        assertTrue(result);
+    }
+
+    @Test
+    public void matchOverlappingPrefix() throws Exception {
+        String matchSequence[] = {"a", "b", "a", "c"};
+        String eventSequence[] = {"a", "b", "a", "b", "a", "c"};
+        KeywordSequenceMatcher instance = new KeywordSequenceMatcher(matchSequence);
+        boolean result = instance.matches(new SequencedKeywordsEvent(eventSequence));
+        assertTrue(result);
+    }
+
+    @Test
+    public void noMatchOverlappingPrefix() throws Exception {
+        String matchSequence[] = {"a", "a", "b"};
+        String eventSequence[] = {"a", "a", "a", "c", "b"};
+        KeywordSequenceMatcher instance = new KeywordSequenceMatcher(matchSequence);
+        boolean result = instance.matches(new SequencedKeywordsEvent(eventSequence));
+        assertFalse(result);
+    }
+
     public class SequencedKeywordsEvent extends JdoEvent implements OrderedKeywords {
         private List<String> keywords;
 
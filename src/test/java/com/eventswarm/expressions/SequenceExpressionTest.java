@@ -269,6 +269,32 @@ public class SequenceExpressionTest extends TestCase {
         assertTrue(matchSets.get(1).contains(event3));
     }
 
+    @Test
+    public void testAddEventExecute_lazyCombinations() throws Exception {
+        SequenceExpression eager = new SequenceExpression(Arrays.asList(new EventExpression[] {
+                new TrueEventExpression(), new TrueEventExpression(), new TrueEventExpression()}));
+        SequenceExpression lazy = new SequenceExpression(Arrays.asList(new EventExpression[] {
+                new TrueEventExpression(), new TrueEventExpression(), new TrueEventExpression()}), true);
+        final List<ComplexExpressionMatchEvent> lazyMatches = new ArrayList<ComplexExpressionMatchEvent>();
+        eager.registerAction(complexAction);
+        lazy.registerAction(new ComplexExpressionMatchAction() {
+            public void execute(ComplexExpressionMatchTrigger trigger, ComplexExpressionMatchEvent event) {
+                lazyMatches.add(event);
+            }
+        });
+        for (Event event : Arrays.asList(event1, event2, event3, event4)) {
+            eager.execute((AddEventTrigger) null, event);
+            lazy.execute((AddEventTrigger) null, event);
+        }
+        assertTrue(lazy.isLazyCombinations());
+        assertEquals(complexMatches.size(), lazyMatches.size());
+        assertFalse(lazyMatches.isEmpty());
+        for (int i = 0; i < complexMatches.size(); i++) {
+            assertEquals(complexMatches.get(i).count(), lazyMatches.get(i).count());
+            assertEquals(complexMatches.get(i).getCombinations(), lazyMatches.get(i).getCombinations());
+        }
+    }
+
     @Test
     public void testAddEventExecute_2event_sequence_matched() throws Exception {
         SequenceExpression expr = identitySequence;
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.expressions.nfa;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventAction;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.RemoveEventsBatchTrigger;
+import com.eventswarm.Combination;
+import com.eventswarm.events.CombinationsPart;
+import com.eventswarm.events.ComplexExpressionMatchEvent;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoCombination;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.eventset.DiscreteTimeWindow;
+import com.eventswarm.expressions.*;
+import com.eventswarm.util.IntervalUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.eventswarm.expressions.nfa.Pattern.*;
+import static org.junit.Assert.*;
+
+public class PatternEngineTest {
+    static Map<String,EventPart> empty = new HashMap<String,EventPart>();
+    Matcher a = new SourceMatcher("a"), b = new SourceMatcher("b"), c = new SourceMatcher("c");
+    PatternEngine instance;
+    List<CombinationsPart> matches;
+    List<Event> events;
+    long time;
+
+    PatternMatchAction patternAction = new PatternMatchAction() {
+        public void execute(PatternMatchTrigger trigger, CombinationsPart part) {
+            matches.add(part);
+        }
+    };
+
+    EventMatchAction eventAction = new EventMatchAction() {
+        public void execute(EventMatchTrigger trigger, Event event) {
+            events.add(event);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new PatternEngine();
+        matches = new ArrayList<CombinationsPart>();
+        events = new ArrayList<Event>();
+        time = 0;
+    }
+
+    @Test
+    public void testSequence() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b), event(c)));
+        pattern.registerAction(patternAction);
+        pattern.registerAction(eventAction);
+        Event a1 = add("a"), b1 = add("b"), a2 = add("a");
+        assertFalse(pattern.isTrue());
+        Event c1 = add("c");
+        assertTrue(pattern.isTrue());
+        assertEquals(Arrays.asList(c1), events);
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a1, b1, c1)), matches.get(0).getCombinations());
+        Event b2 = add("b"), c2 = add("c");
+        assertEquals(2, matches.size());
+        assertEquals(combinations(comb(a1, b1, c2), comb(a1, b2, c2), comb(a2, b2, c2)), matches.get(1).getCombinations());
+        assertEquals(3, matches.get(1).count());
+    }
+
+    @Test
+    public void testNoMatchOutOfSequence() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b)));
+        pattern.registerAction(patternAction);
+        add("b"); add("c"); add("a");
+        assertTrue(matches.isEmpty());
+        assertFalse(pattern.isTrue());
+    }
+
+    @Test
+    public void testSharedStates() throws Exception {
+        CompiledPattern ab = instance.compile(sequence(event(a), event(b)));
+        CompiledPattern ac = instance.compile(sequence(event(a), event(c)));
+        CompiledPattern abc = instance.compile(sequence(event(a), event(b), event(c)));
+        // states for a, ab, ac and abc
+        assertEquals(4, instance.getStateCount());
+        assertEquals(3, instance.getMatcherCount());
+        ab.registerAction(patternAction);
+        ac.registerAction(patternAction);
+        abc.registerAction(patternAction);
+        add("a"); add("b"); add("c");
+        assertEquals(3, matches.size());
+    }
+
+    @Test
+    public void testAnd() throws Exception {
+        CompiledPattern pattern = instance.compile(and(event(a), event(b)));
+        assertEquals(2, pattern.getPathCount());
+        pattern.registerAction(patternAction);
+        Event b1 = add("b"), a1 = add("a");
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(b1, a1)), matches.get(0).getCombinations());
+        Event b2 = add("b");
+        assertEquals(2, matches.size());
+        assertEquals(combinations(comb(a1, b2)), matches.get(1).getCombinations());
+    }
+
+    @Test
+    public void testSequenceWithAnd() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), and(event(b), event(c))));
+        pattern.registerAction(patternAction);
+        Event c1 = add("c"), a1 = add("a"), c2 = add("c");
+        assertTrue(matches.isEmpty());
+        Event b1 = add("b");
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a1, c2, b1)), matches.get(0).getCombinations());
+    }
+
+    @Test
+    public void testNot() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), not(c), event(b)));
+        pattern.registerAction(patternAction);
+        add("a"); add("c"); add("b");
+        assertTrue(matches.isEmpty());
+        Event a2 = add("a"), b2 = add("b");
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a2, b2)), matches.get(0).getCombinations());
+    }
+
+    @Test
+    public void testNotKeepsEarlierSteps() throws Exception {
+        // a negation between b and c must not discard partial matches of a
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b), not(a), event(c)));
+        pattern.registerAction(patternAction);
+        Event a1 = add("a"), b1 = add("b"), a2 = add("a"), b2 = add("b"), c1 = add("c");
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a1, b2, c1), comb(a2, b2, c1)), matches.get(0).getCombinations());
+    }
+
+    @Test
+    public void testNotSameAsPrevious() throws Exception {
+        // the negated event also matches the previous step, so it starts a new valid partial match
+        CompiledPattern pattern = instance.compile(sequence(event(a), not(a), event(b)));
+        pattern.registerAction(patternAction);
+        add("a");
+        Event a2 = add("a"), b1 = add("b");
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a2, b1)), matches.get(0).getCombinations());
+    }
+
+    @Test
+    public void testNotDoesNotAffectSharedState() throws Exception {
+        CompiledPattern plain = instance.compile(sequence(event(a), event(b)));
+        CompiledPattern negated = instance.compile(sequence(event(a), not(c), event(b)));
+        assertEquals(3, instance.getStateCount());
+        final List<PatternMatchTrigger> matched = new ArrayList<PatternMatchTrigger>();
+        PatternMatchAction action = new PatternMatchAction() {
+            public void execute(PatternMatchTrigger trigger, CombinationsPart part) {
+                matched.add(trigger);
+            }
+        };
+        plain.registerAction(action);
+        negated.registerAction(action);
+        add("a"); add("c"); add("b");
+        assertEquals(Arrays.asList((PatternMatchTrigger) plain), matched);
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        instance = new PatternEngine(2);
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b)));
+        pattern.registerAction(patternAction);
+        add("a");
+        Event a2 = add("a"), a3 = add("a"), b1 = add("b");
+        assertEquals(combinations(comb(a2, b1), comb(a3, b1)), matches.get(0).getCombinations());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b)));
+        pattern.registerAction(patternAction);
+        add("a"); add("b");
+        assertTrue(pattern.isTrue());
+        instance.clear();
+        assertFalse(pattern.isTrue());
+        add("b");
+        assertEquals(1, matches.size());
+    }
+
+    @Test
+    public void testInvalidPatterns() throws Exception {
+        Pattern[] invalid = new Pattern[] {
+                not(a),
+                sequence(not(a), event(b)),
+                sequence(event(a), not(b)),
+                sequence(event(a), not(b), not(c))
+        };
+        for (Pattern pattern : invalid) {
+            try {
+                instance.compile(pattern);
+                fail("Pattern should be rejected");
+            } catch (IllegalArgumentException exc) {
+                // expected
+            }
+        }
+        assertEquals(0, instance.getStateCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAnd() throws Exception {
+        and(event(a), sequence(event(b), event(c)));
+    }
+
+    @Test
+    public void testMatchesSequenceExpression() throws Exception {
+        // random streams should produce the same matches as a SequenceExpression with the same limit
+        Random random = new Random(11);
+        String[] sources = {"a", "b", "c"};
+        instance = new PatternEngine(100);
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b), event(c)));
+        pattern.registerAction(patternAction);
+        SequenceExpression expr = new SequenceExpression(Arrays.asList(new EventExpression[] {
+                new EventMatcherExpression(a, 100), new EventMatcherExpression(b, 100),
+                new EventMatcherExpression(c, 100)}), true);
+        final List<CombinationsPart> expected = new ArrayList<CombinationsPart>();
+        expr.registerAction(new ComplexExpressionMatchAction() {
+            public void execute(ComplexExpressionMatchTrigger trigger, ComplexExpressionMatchEvent event) {
+                expected.add(event);
+            }
+        });
+        for (int i = 0; i < 40; i++) {
+            Event event = add(sources[random.nextInt(sources.length)]);
+            expr.execute((AddEventTrigger) null, event);
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), matches.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCombinations(), matches.get(i).getCombinations());
+        }
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b)));
+        pattern.registerAction(patternAction);
+        Event a1 = add("a"), a2 = add("a"), a3 = add("a");
+        instance.execute((RemoveEventTrigger) null, a2);
+        Event b1 = add("b");
+        assertEquals(combinations(comb(a1, b1), comb(a3, b1)), matches.get(0).getCombinations());
+        // b1 still follows a3
+        instance.execute((RemoveEventTrigger) null, a1);
+        assertTrue(pattern.isTrue());
+        instance.execute((RemoveEventTrigger) null, a3);
+        assertFalse(pattern.isTrue());
+    }
+
+    @Test
+    public void testRemovePrunesChildren() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b), event(c)));
+        pattern.registerAction(patternAction);
+        Event a1 = add("a"), b1 = add("b"), a2 = add("a"), b2 = add("b");
+        instance.execute((RemoveEventsBatchTrigger) null, Arrays.asList(a1, b1));
+        // b2 still follows a2, so only the partial match through a1 is lost
+        Event c1 = add("c");
+        assertEquals(combinations(comb(a2, b2, c1)), matches.get(0).getCombinations());
+        instance.execute((RemoveEventTrigger) null, a2);
+        // b2 and c1 no longer follow an a
+        assertFalse(pattern.isTrue());
+        add("c");
+        assertEquals(1, matches.size());
+    }
+
+    @Test
+    public void testBehindWindow() throws Exception {
+        CompiledPattern pattern = instance.compile(sequence(event(a), event(b)));
+        pattern.registerAction(patternAction);
+        DiscreteTimeWindow window = new DiscreteTimeWindow(IntervalUnit.SECONDS, 3);
+        window.registerAction((AddEventAction) instance);
+        window.registerAction((RemoveEventAction) instance);
+        Event a1 = make("a");
+        window.execute((AddEventTrigger) null, a1);
+        for (int i = 0; i < 4; i++) {
+            window.execute((AddEventTrigger) null, make("c"));
+        }
+        // a1 has expired from the window, so b1 does not complete a match
+        assertFalse(window.contains(a1));
+        window.execute((AddEventTrigger) null, make("b"));
+        assertTrue(matches.isEmpty());
+        Event a2 = make("a"), b2 = make("b");
+        window.execute((AddEventTrigger) null, a2);
+        window.execute((AddEventTrigger) null, b2);
+        assertEquals(1, matches.size());
+        assertEquals(combinations(comb(a2, b2)), matches.get(0).getCombinations());
+    }
+
+    private Event add(String source) {
+        Event event = make(source);
+        instance.execute((AddEventTrigger) null, event);
+        return event;
+    }
+
+    private Event make(String source) {
+        time += 1000;
+        return new JdoEvent(new JdoHeader(time, 0, new JdoSource(source)), empty);
+    }
+
+    private static Combination comb(Event... events) {
+        Combination result = new JdoCombination();
+        result.addAll(Arrays.asList(events));
+        return result;
+    }
+
+    private static Set<Combination> combinations(Combination... combs) {
+        return new HashSet<Combination>(Arrays.asList(combs));
+    }
+}
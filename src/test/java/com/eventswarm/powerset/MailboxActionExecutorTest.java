@@ -0,0 +1,254 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.powerset;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.AddEventAction;
+import com.eventswarm.events.Event;
+import com.eventswarm.util.actions.QueuedAction;
+import com.eventswarm.util.actions.QueuedAdd;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.eventswarm.events.jdo.TestEvents.*;
+import static org.junit.Assert.*;
+
+public class MailboxActionExecutorTest {
+    private MailboxActionExecutor instance;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new MailboxActionExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instance.stop();
+    }
+
+    @Test
+    public void addEvent_one() throws Exception {
+        final List<Event> added = new ArrayList<Event>();
+        final CountDownLatch done = new CountDownLatch(1);
+        AddEventAction target = new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                added.add(event);
+                done.countDown();
+            }
+        };
+        instance.add(new QueuedAdd(target, (AddEventTrigger) null, jdoEvent));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, added.size());
+        assertEquals(jdoEvent, added.get(0));
+    }
+
+    @Test
+    public void addEvent_ordered_single_target() throws Exception {
+        int count = 10000;
+        Sink sink = new Sink(count);
+        for (int i = 0; i < count; i++) {
+            instance.add(sink.action(i));
+        }
+        assertTrue(sink.done.await(10, TimeUnit.SECONDS));
+        sink.assertOrdered();
+        assertEquals(0, sink.overlaps.get());
+    }
+
+    @Test
+    public void addEvent_ordered_many_targets_many_producers() throws Exception {
+        final int targets = 50, producers = 4, count = 2000;
+        final Sink[] sinks = new Sink[targets];
+        for (int t = 0; t < targets; t++) {
+            sinks[t] = new Sink(count);
+        }
+        // each producer owns a subset of targets so that the submission order per target is well defined
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        for (int t = producer; t < targets; t += producers) {
+                            instance.add(sinks[t].action(i));
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Sink sink : sinks) {
+            assertTrue(sink.done.await(10, TimeUnit.SECONDS));
+            sink.assertOrdered();
+            assertEquals(0, sink.overlaps.get());
+        }
+    }
+
+    @Test
+    public void different_targets_concurrent() throws Exception {
+        instance.stop();
+        instance = new MailboxActionExecutor(Executors.newFixedThreadPool(2));
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        instance.add(new Action("slow") {
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        instance.add(new Action("fast") {
+            public void run() {
+                release.countDown();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void throughput_yields_to_other_targets() throws Exception {
+        instance.stop();
+        instance = new MailboxActionExecutor(Executors.newSingleThreadExecutor(), 1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(4);
+        final CountDownLatch start = new CountDownLatch(1);
+        instance.add(new Action("a") {
+            public void run() {
+                try {
+                    start.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add("a1");
+                done.countDown();
+            }
+        });
+        instance.add(new Recorder("a", "a2", order, done));
+        instance.add(new Recorder("b", "b1", order, done));
+        instance.add(new Recorder("a", "a3", order, done));
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("a1", order.get(0));
+        assertEquals("b1", order.get(1));
+        assertEquals("a2", order.get(2));
+        assertEquals("a3", order.get(3));
+    }
+
+    @Test
+    public void idle_mailboxes_discarded() throws Exception {
+        Sink sink = new Sink(100);
+        for (int i = 0; i < 100; i++) {
+            instance.add(sink.action(i));
+        }
+        assertTrue(sink.done.await(5, TimeUnit.SECONDS));
+        // the last action has completed but the mailbox may not yet be closed
+        for (int i = 0; i < 100 && instance.getActiveTargets() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, instance.getActiveTargets());
+    }
+
+    @Test
+    public void failed_action_does_not_block_target() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        instance.add(new Action("target") {
+            public void run() {
+                throw new RuntimeException("Expected failure");
+            }
+        });
+        instance.add(new Action("target") {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private abstract static class Action implements QueuedAction {
+        private Object target;
+
+        Action(Object target) {
+            this.target = target;
+        }
+
+        public Object getTarget() {
+            return target;
+        }
+    }
+
+    private static class Recorder extends Action {
+        private String label;
+        private List<String> order;
+        private CountDownLatch done;
+
+        Recorder(Object target, String label, List<String> order, CountDownLatch done) {
+            super(target);
+            this.label = label;
+            this.order = order;
+            this.done = done;
+        }
+
+        public void run() {
+            order.add(label);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Target that records the sequence of actions executed and detects concurrent execution
+     */
+    private static class Sink {
+        List<Integer> received = new ArrayList<Integer>();
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger overlaps = new AtomicInteger(0);
+        CountDownLatch done;
+
+        Sink(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        QueuedAction action(final int seq) {
+            return new Action(this) {
+                public void run() {
+                    if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+                    received.add(seq);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            };
+        }
+
+        void assertOrdered() {
+            for (int i = 0; i < received.size(); i++) {
+                assertEquals(i, received.get(i).intValue());
+            }
+        }
+    }
+}
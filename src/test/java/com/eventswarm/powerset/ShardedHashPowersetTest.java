@@ -0,0 +1,270 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.powerset;
+
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.EventPart;
+import com.eventswarm.events.jdo.JdoEvent;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.JdoSource;
+import com.eventswarm.eventset.EventSet;
+import com.eventswarm.schedules.TickAction;
+import com.eventswarm.schedules.TickTrigger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShardedHashPowersetTest {
+    private static Map<String,EventPart> empty = null;
+    private ShardedHashPowerset<String> instance;
+
+    private EventKey<String> sourceKey = new EventKey<String>() {
+        public String getKey(Event event) {
+            return event.getHeader().getSource().getId();
+        }
+    };
+
+    private EventSetFactory<String> factory = new EventSetFactory<String>() {
+        public EventSet createEventSet(Powerset<String> pset, String key) {
+            return new EventSet();
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        if (instance != null) instance.stop();
+    }
+
+    @Test
+    public void add_creates_subsets() throws Exception {
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 4);
+        final Map<String,EventSet> created = new ConcurrentHashMap<String,EventSet>();
+        instance.registerAction(new NewSetAction<String>() {
+            public void execute(NewSetTrigger<String> trigger, EventSet es, String key) {
+                assertEquals(0, es.size());
+                created.put(key, es);
+            }
+        });
+        instance.execute((AddEventTrigger) null, event("A", 1));
+        instance.execute((AddEventTrigger) null, event("B", 1));
+        instance.execute((AddEventTrigger) null, event("A", 2));
+        instance.flush();
+        assertEquals(2, instance.size());
+        assertEquals(2, created.size());
+        assertSame(created.get("A"), instance.get("A"));
+        assertEquals(2, instance.get("A").size());
+        assertEquals(1, instance.get("B").size());
+    }
+
+    @Test
+    public void add_fires_powerset_actions() throws Exception {
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 4);
+        final AtomicInteger added = new AtomicInteger(0);
+        instance.registerAction(new PowersetAddEventAction() {
+            public void execute(PowersetAddEventTrigger trigger, EventSet es, Event event) {
+                assertTrue(es.contains(event));
+                added.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            instance.execute((AddEventTrigger) null, event("key-" + Integer.toString(i % 10), i));
+        }
+        instance.flush();
+        assertEquals(100, added.get());
+        assertEquals(10, instance.size());
+    }
+
+    @Test
+    public void remove_prunes_subsets() throws Exception {
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 2);
+        final List<String> removedSets = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger removed = new AtomicInteger(0);
+        instance.registerAction(new RemoveSetAction<String>() {
+            public void execute(RemoveSetTrigger<String> trigger, EventSet es, String key) {
+                removedSets.add(key);
+            }
+        });
+        instance.registerAction(new PowersetRemoveEventAction() {
+            public void execute(PowersetRemoveEventTrigger trigger, EventSet es, Event event) {
+                removed.incrementAndGet();
+            }
+        });
+        Event a1 = event("A", 1), a2 = event("A", 2), b1 = event("B", 1);
+        instance.execute((AddEventTrigger) null, a1);
+        instance.execute((AddEventTrigger) null, a2);
+        instance.execute((AddEventTrigger) null, b1);
+        instance.execute((RemoveEventTrigger) null, a1);
+        instance.execute((RemoveEventTrigger) null, b1);
+        instance.flush();
+        assertEquals(2, removed.get());
+        assertEquals(1, removedSets.size());
+        assertEquals("B", removedSets.get(0));
+        assertFalse(instance.containsKey("B"));
+        assertEquals(1, instance.get("A").size());
+    }
+
+    @Test
+    public void ordered_per_key_many_producers() throws Exception {
+        final int keys = 64, producers = 4, count = 500;
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 8);
+        final Map<String,List<Integer>> received = new ConcurrentHashMap<String,List<Integer>>();
+        instance.registerAction(new PowersetAddEventAction() {
+            public void execute(PowersetAddEventTrigger trigger, EventSet es, Event event) {
+                String key = event.getHeader().getSource().getId();
+                List<Integer> list = received.get(key);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    received.put(key, list);
+                }
+                list.add(event.getHeader().getSequenceNumber());
+            }
+        });
+        // each producer owns a subset of keys so that the delivery order per key is well defined
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        for (int k = producer; k < keys; k += producers) {
+                            instance.execute((AddEventTrigger) null, event("key-" + Integer.toString(k), i));
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        instance.flush();
+        assertEquals(keys, instance.size());
+        for (List<Integer> list : received.values()) {
+            assertEquals(count, list.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void synchronous_executor() throws Exception {
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 4, new SimpleActionExecutor());
+        instance.execute((AddEventTrigger) null, event("A", 1));
+        // no flush required when executing synchronously
+        assertEquals(1, instance.get("A").size());
+    }
+
+    @Test
+    public void tick_after_add_keyed_only() throws Exception {
+        EventKey<String> keyA = new EventKey<String>() {
+            public String getKey(Event event) {
+                String source = event.getHeader().getSource().getId();
+                return source.equals("A") ? source : null;
+            }
+        };
+        instance = new ShardedHashPowerset<String>(factory, keyA, 4);
+        final AtomicInteger ticks = new AtomicInteger(0);
+        final List<Boolean> added = Collections.synchronizedList(new ArrayList<Boolean>());
+        instance.registerAction(new TickAction() {
+            public void execute(TickTrigger trigger, Date time) {
+                ticks.incrementAndGet();
+                added.add(instance.containsKey("A") && instance.get("A").size() > 0);
+            }
+        });
+        instance.execute((AddEventTrigger) null, event("A", 1));
+        instance.execute((AddEventTrigger) null, event("B", 2));
+        instance.flush();
+        assertEquals(1, ticks.get());
+        assertEquals(Collections.singletonList(true), added);
+    }
+
+    @Test
+    public void ticks_subsets_in_every_shard() throws Exception {
+        final Map<String,Long> ticked = new ConcurrentHashMap<String,Long>();
+        EventSetFactory<String> ticking = new EventSetFactory<String>() {
+            public EventSet createEventSet(Powerset<String> pset, final String key) {
+                return new TickingSet(key, ticked);
+            }
+        };
+        instance = new ShardedHashPowerset<String>(ticking, sourceKey, 4);
+        int seq = 0;
+        for (char c = 'A'; c <= 'Z'; c++) {
+            instance.execute((AddEventTrigger) null, event(Character.toString(c), ++seq));
+        }
+        instance.flush();
+        // every subset has seen the latest time, whichever shard it is in
+        long last = 1000000L + seq;
+        assertEquals(26, ticked.size());
+        for (Long time : ticked.values()) {
+            assertEquals(last, time.longValue());
+        }
+    }
+
+    @Test
+    public void shares_default_executor() throws Exception {
+        instance = new ShardedHashPowerset<String>(factory, sourceKey, 4);
+        ShardedHashPowerset<String> other = new ShardedHashPowerset<String>(factory, sourceKey, 4);
+        other.stop();
+        assertFalse(MailboxActionExecutor.getInstance().isStopped());
+        instance.execute((AddEventTrigger) null, event("A", 1));
+        other.execute((AddEventTrigger) null, event("A", 1));
+        instance.flush();
+        other.flush();
+        assertEquals(1, instance.get("A").size());
+        assertEquals(1, other.get("A").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void no_shards() throws Exception {
+        new ShardedHashPowerset<String>(factory, sourceKey, 0, new SimpleActionExecutor());
+    }
+
+    /**
+     * EventSet that records the latest tick received, in the shard thread
+     */
+    private static class TickingSet extends EventSet implements TickAction {
+        private final String key;
+        private final Map<String,Long> ticked;
+
+        private TickingSet(String key, Map<String,Long> ticked) {
+            this.key = key;
+            this.ticked = ticked;
+        }
+
+        public void execute(TickTrigger trigger, Date time) {
+            Long previous = ticked.get(key);
+            if (previous == null || previous < time.getTime()) {
+                ticked.put(key, time.getTime());
+            }
+        }
+    }
+
+    private static Event event(String source, int seq) {
+        return new JdoEvent(new JdoHeader(new Date(1000000L + seq), seq, new JdoSource(source)), empty);
+    }
+}
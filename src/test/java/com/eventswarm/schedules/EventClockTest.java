@@ -116,6 +116,22 @@ public class EventClockTest {
     }
 
 
+    /**
+     * Test of getTimeMillis method, time should track event timestamps without actions registered
+     */
+    @Test
+    public void testGetTimeMillis() {
+        System.out.println("getTimeMillis");
+        EventSource source = new EventSource();
+        EventClock instance = new EventClock(source);
+        assertEquals(0, instance.getTimeMillis());
+        instance.execute(source, event2);
+        instance.execute(source, event1);
+        assertEquals(2, instance.getTimeMillis());
+        assertEquals(new Date(2), instance.getTime());
+    }
+
+
     /**
      * Test of execute method, time equal, no actions, time should be unchanged
      */
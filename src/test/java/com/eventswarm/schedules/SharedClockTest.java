@@ -0,0 +1,147 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.schedules;
+
+import com.eventswarm.util.Interval;
+import com.eventswarm.util.IntervalUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SharedClockTest {
+    SharedClock instance;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new SharedClock(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        instance.shutdown();
+    }
+
+    @Test
+    public void testSameIntervalSharesTicker() throws Exception {
+        assertSame(instance.getTicker(100), instance.getTicker(100));
+        assertNotSame(instance.getTicker(100), instance.getTicker(200));
+        assertSame(instance.getTicker(1000), instance.getTicker(new Interval(1L, IntervalUnit.SECONDS)));
+    }
+
+    @Test
+    public void testCoalescedTicks() throws Exception {
+        TickTrigger ticker = instance.getTicker(50);
+        Recorder a = new Recorder(2);
+        Recorder b = new Recorder(2);
+        ticker.registerAction(a);
+        ticker.registerAction(b);
+        ticker.registerAction(a);
+        assertTrue(a.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(b.latch.await(2, TimeUnit.SECONDS));
+        ticker.unregisterAction(a);
+        ticker.unregisterAction(b);
+        synchronized (a.ticks) {
+            synchronized (b.ticks) {
+                // the same tick is delivered to both, once only for a repeated registration
+                assertTrue(b.ticks.contains(a.ticks.get(1)));
+                assertTrue(a.ticks.get(1).getTime() > a.ticks.get(0).getTime());
+            }
+        }
+        assertEquals("shared-clock-0", a.thread);
+    }
+
+    @Test
+    public void testUnregisterStopsTicker() throws Exception {
+        TickTrigger ticker = instance.getTicker(20);
+        Recorder a = new Recorder(1);
+        ticker.registerAction(a);
+        assertEquals(1, instance.getTickerCount());
+        assertTrue(a.latch.await(2, TimeUnit.SECONDS));
+        ticker.unregisterAction(a);
+        assertEquals(0, instance.getTickerCount());
+        int count = a.count();
+        Thread.sleep(100);
+        assertEquals(count, a.count());
+    }
+
+    @Test
+    public void testWeakRegistration() throws Exception {
+        TickTrigger ticker = instance.getTicker(10);
+        Recorder a = new Recorder(1);
+        ticker.registerAction(a);
+        ticker.registerAction(new Recorder(1));
+        WeakReference<Recorder> ref = new WeakReference<Recorder>(new Recorder(1));
+        ticker.registerAction(ref.get());
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+        assertTrue(a.latch.await(2, TimeUnit.SECONDS));
+        // ticker keeps running while a is registered
+        assertEquals(1, instance.getTickerCount());
+        ticker.unregisterAction(a);
+    }
+
+    @Test
+    public void testExceptionDoesNotStopTicks() throws Exception {
+        TickTrigger ticker = instance.getTicker(10);
+        TickAction failing = new TickAction() {
+            public void execute(TickTrigger trigger, Date time) {
+                throw new RuntimeException("Expected test exception");
+            }
+        };
+        Recorder a = new Recorder(3);
+        ticker.registerAction(failing);
+        ticker.registerAction(a);
+        assertTrue(a.latch.await(2, TimeUnit.SECONDS));
+        ticker.unregisterAction(failing);
+        ticker.unregisterAction(a);
+    }
+
+    private static class Recorder implements TickAction {
+        final List<Date> ticks = new ArrayList<Date>();
+        final CountDownLatch latch;
+        String thread;
+
+        Recorder(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        public void execute(TickTrigger trigger, Date time) {
+            synchronized (ticks) {
+                ticks.add(time);
+            }
+            thread = Thread.currentThread().getName();
+            latch.countDown();
+        }
+
+        int count() {
+            synchronized (ticks) {
+                return ticks.size();
+            }
+        }
+    }
+}
@@ -478,6 +478,89 @@ public class TickSchedulerTest implements ScheduleAction {
     }
 
 
+    /**
+     * Test execute with a timing wheel, multiple passes of schedule
+     */
+    @Test
+    public void testWheelSchedulePassedMultiple() {
+        System.out.println("execute with timing wheel, multiple passes of schedule");
+        SimpleTickTrigger trig = new SimpleTickTrigger();
+        TickScheduler instance = new TickScheduler();
+        instance.setTimingWheel(1);
+        assertTrue(instance.isTimingWheel());
+        trig.registerAction(instance);
+        Schedule schedule = new PlusSchedule(1000);
+        SimpleScheduleAction action = new SimpleScheduleAction();
+        instance.registerAction(schedule, action);
+        trig.tick(new Date(999));
+        assertTrue(action.actions.isEmpty());
+        trig.tick(new Date(2001));
+        assertEquals(schedule.next(), new Date(3000));
+        assertEquals(2, action.actions.size());
+        assertTrue(action.actions.contains(new Date(1000)));
+        assertTrue(action.actions.contains(new Date(2000)));
+        trig.tick(new Date(3000));
+        assertEquals(3, action.actions.size());
+    }
+
+    /**
+     * Test switching to a timing wheel with existing schedules, then unregistering
+     */
+    @Test
+    public void testWheelExistingAndUnregister() {
+        System.out.println("switch to timing wheel, then unregister");
+        SimpleTickTrigger trig = new SimpleTickTrigger();
+        TickScheduler instance = new TickScheduler();
+        trig.registerAction(instance);
+        Schedule schedule1 = new PlusSchedule(1000);
+        Schedule schedule2 = new PlusSchedule(800);
+        SimpleScheduleAction action1 = new SimpleScheduleAction();
+        SimpleScheduleAction action2 = new SimpleScheduleAction();
+        instance.registerAction(schedule1, action1);
+        instance.registerAction(schedule2, action2);
+        instance.setTimingWheel(10);
+        assertTrue(instance.getQueue().isEmpty());
+        instance.unregisterAction(schedule1, action1);
+        trig.tick(new Date(1001));
+        assertTrue(action1.actions.isEmpty());
+        assertEquals(1, action2.actions.size());
+        assertTrue(action2.actions.contains(new Date(800)));
+        assertEquals(schedule2.next(), new Date(1600));
+    }
+
+    /**
+     * Test that many schedules with the same due date all fire with a timing wheel
+     */
+    @Test
+    public void testWheelManySchedules() {
+        System.out.println("timing wheel with many schedules");
+        SimpleTickTrigger trig = new SimpleTickTrigger();
+        TickScheduler instance = new TickScheduler();
+        instance.setTimingWheel(1);
+        trig.registerAction(instance);
+        SimpleScheduleAction action = new SimpleScheduleAction();
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            instance.registerAction(new PlusSchedule(1000 + (i % 10) * 1000), action);
+        }
+        CountingAction counter = new CountingAction();
+        Schedule last = new PlusSchedule(60000);
+        instance.registerAction(last, counter);
+        trig.tick(new Date(60000));
+        assertEquals(1, counter.count);
+        assertEquals(new Date(120000), last.next());
+        for (Schedule schedule : instance.getActions().keySet()) {
+            assertTrue(schedule.next().getTime() > 60000);
+        }
+    }
+
+    private static class CountingAction implements ScheduleAction {
+        int count = 0;
+        public void execute(ScheduleTrigger trigger, Schedule schedule, Date time) {
+            count++;
+        }
+    }
+
     /**
      * Simple tick trigger class that handles registrations appropriately and
      * generates ticks on demand.
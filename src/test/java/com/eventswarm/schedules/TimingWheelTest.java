@@ -0,0 +1,127 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.schedules;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testAddAndAdvance() throws Exception {
+        TimingWheel<String> instance = new TimingWheel<String>(1, 1000);
+        instance.add("a", 1010);
+        instance.add("b", 1005);
+        assertEquals(2, instance.size());
+        List<TimingWheel.Entry<String>> due = new ArrayList<TimingWheel.Entry<String>>();
+        instance.advance(1004, due);
+        assertTrue(due.isEmpty());
+        instance.advance(1005, due);
+        assertEquals(Arrays.asList("b"), items(due));
+        due.clear();
+        instance.advance(2000, due);
+        assertEquals(Arrays.asList("a"), items(due));
+        assertEquals(0, instance.size());
+        assertEquals(2000L, instance.getTime());
+    }
+
+    @Test
+    public void testOverdue() throws Exception {
+        TimingWheel<String> instance = new TimingWheel<String>(1, 1000);
+        instance.add("a", 900);
+        List<TimingWheel.Entry<String>> due = new ArrayList<TimingWheel.Entry<String>>();
+        instance.advance(1001, due);
+        assertEquals(Arrays.asList("a"), items(due));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        TimingWheel<String> instance = new TimingWheel<String>(1, 0);
+        TimingWheel.Entry<String> a = instance.add("a", 100000);
+        instance.add("b", 100000);
+        instance.remove(a);
+        instance.remove(a);
+        assertEquals(1, instance.size());
+        List<TimingWheel.Entry<String>> due = new ArrayList<TimingWheel.Entry<String>>();
+        instance.advance(100000, due);
+        assertEquals(Arrays.asList("b"), items(due));
+    }
+
+    @Test
+    public void testReschedule() throws Exception {
+        TimingWheel<String> instance = new TimingWheel<String>(1, 0);
+        TimingWheel.Entry<String> a = instance.add("a", 5000);
+        instance.reschedule(a, 100);
+        List<TimingWheel.Entry<String>> due = new ArrayList<TimingWheel.Entry<String>>();
+        instance.advance(100, due);
+        assertEquals(1, due.size());
+        instance.reschedule(a, 200);
+        assertEquals(1, instance.size());
+        due.clear();
+        instance.advance(5000, due);
+        assertEquals(1, due.size());
+        assertEquals(200L, due.get(0).due);
+    }
+
+    @Test
+    public void testResolutionRoundsUp() throws Exception {
+        TimingWheel<String> instance = new TimingWheel<String>(10, 1000);
+        instance.add("a", 1005);
+        List<TimingWheel.Entry<String>> due = new ArrayList<TimingWheel.Entry<String>>();
+        instance.advance(1009, due);
+        assertTrue(due.isEmpty());
+        instance.advance(1010, due);
+        assertEquals(Arrays.asList("a"), items(due));
+    }
+
+    @Test
+    public void testLargeJumpOrder() throws Exception {
+        long start = 1400000000000L;
+        TimingWheel<Long> instance = new TimingWheel<Long>(1, start);
+        Random random = new Random(7);
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < 10000; i++) {
+            long due = start + 1 + (long) random.nextInt(Integer.MAX_VALUE);
+            expected.add(due);
+            instance.add(due, due);
+        }
+        Collections.sort(expected);
+        List<TimingWheel.Entry<Long>> due = new ArrayList<TimingWheel.Entry<Long>>();
+        // advance in uneven steps, checking nothing is reported early or out of order
+        long time = start;
+        while (instance.size() > 0) {
+            time += 1 + random.nextInt(100000000);
+            int before = due.size();
+            instance.advance(time, due);
+            for (int i = before; i < due.size(); i++) {
+                assertTrue(due.get(i).due <= time);
+                if (i > 0) assertTrue(due.get(i - 1).due <= due.get(i).due);
+            }
+        }
+        assertEquals(expected, items(due));
+    }
+
+    private static <T> List<T> items(List<TimingWheel.Entry<T>> entries) {
+        List<T> result = new ArrayList<T>();
+        for (TimingWheel.Entry<T> entry : entries) {
+            result.add(entry.item);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,425 @@
+/**
+ * Copyright 2007-2014 Ensift Pty Ltd as trustee for the Avaz Trust and other contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.eventswarm.util;
+
+import com.eventswarm.AddEventAction;
+import com.eventswarm.AddEventTrigger;
+import com.eventswarm.RemoveEventTrigger;
+import com.eventswarm.abstractions.DuplicateAbstractionException;
+import com.eventswarm.abstractions.EventMap;
+import com.eventswarm.abstractions.StatisticsAbstraction;
+import com.eventswarm.abstractions.SumAbstraction;
+import com.eventswarm.abstractions.ValueRetriever;
+import com.eventswarm.events.Event;
+import com.eventswarm.events.JsonEvent;
+import com.eventswarm.events.Sources;
+import com.eventswarm.events.jdo.JdoHeader;
+import com.eventswarm.events.jdo.OrgJsonEvent;
+import com.eventswarm.eventset.DiscreteTimeWindow;
+import com.eventswarm.eventset.EventSet;
+import com.eventswarm.powerset.EventKey;
+import com.eventswarm.powerset.HashPowerset;
+import com.eventswarm.powerset.NewSetAction;
+import com.eventswarm.powerset.NewSetTrigger;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private static ValueRetriever<Number> VALUE = new ValueRetriever<Number>() {
+        private JsonEvent.DoubleRetriever retriever = new JsonEvent.DoubleRetriever("value");
+        public Number getValue(Event event) {
+            return retriever.getValue(event);
+        }
+    };
+    private static ValueRetriever<String> KEY = new JsonEvent.StringRetriever("key");
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "test.checkpoint");
+    }
+
+    @Test
+    public void testRestoreMissingFile() throws Exception {
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("window", new EventSet());
+        assertFalse(checkpoint.restore());
+    }
+
+    @Test
+    public void testWindowRoundTrip() throws Exception {
+        DiscreteTimeWindow window = new DiscreteTimeWindow(IntervalUnit.SECONDS, 10);
+        StatisticsAbstraction stats = (StatisticsAbstraction) window.registerAbstraction(new StatisticsAbstraction(VALUE));
+        SumAbstraction sum = (SumAbstraction) window.registerAbstraction(new SumAbstraction(VALUE));
+        List<Event> events = makeEvents(20, 1000);
+        for (Event event : events) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        assertFalse(window.isFilling());
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("window", window);
+        checkpoint.checkpoint();
+
+        DiscreteTimeWindow restored = new DiscreteTimeWindow(IntervalUnit.SECONDS, 10);
+        StatisticsAbstraction rstats = (StatisticsAbstraction) restored.registerAbstraction(new StatisticsAbstraction(VALUE));
+        SumAbstraction rsum = (SumAbstraction) restored.registerAbstraction(new SumAbstraction(VALUE));
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("window", restored);
+        assertTrue(reader.restore());
+
+        assertEquals(window.getSnapshot(), restored.getSnapshot());
+        assertFalse(restored.isFilling());
+        assertEquals(stats.getCount(), rstats.getCount());
+        assertEquals(stats.getMean(), rstats.getMean(), 0.0);
+        assertEquals(stats.getVariance(), rstats.getVariance(), 0.0);
+        assertEquals(sum.getValue().doubleValue(), rsum.getValue().doubleValue(), 0.0);
+
+        // processing continues from the restored state
+        Event next = makeEvent(20000, 20, 3.0);
+        window.execute((AddEventTrigger) null, next);
+        restored.execute((AddEventTrigger) null, next);
+        assertEquals(window.getSnapshot(), restored.getSnapshot());
+        assertEquals(stats.getMean(), rstats.getMean(), 1e-9);
+        assertEquals(sum.getValue().doubleValue(), rsum.getValue().doubleValue(), 1e-9);
+    }
+
+    @Test
+    public void testNoActionsFired() throws Exception {
+        EventSet set = new EventSet();
+        for (Event event : makeEvents(5, 1000)) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("set", set);
+        checkpoint.checkpoint();
+
+        EventSet restored = new EventSet();
+        final List<Event> fired = new ArrayList<Event>();
+        restored.registerAction(new AddEventAction() {
+            public void execute(AddEventTrigger trigger, Event event) {
+                fired.add(event);
+            }
+        });
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", restored);
+        reader.restore();
+        assertEquals(5, restored.size());
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void testSharedEventIdentity() throws Exception {
+        EventSet set = new EventSet();
+        EventMap<String> map = (EventMap<String>) set.registerAbstraction(new EventMap<String>(KEY));
+        EventSet other = new EventSet();
+        for (Event event : makeEvents(10, 1000)) {
+            set.execute((AddEventTrigger) null, event);
+            other.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("set", set);
+        checkpoint.register("other", other);
+        checkpoint.checkpoint();
+
+        EventSet rset = new EventSet();
+        EventMap<String> rmap = (EventMap<String>) rset.registerAbstraction(new EventMap<String>(KEY));
+        EventSet rother = new EventSet();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", rset);
+        reader.register("other", rother);
+        reader.restore();
+
+        assertEquals(map.getMap().keySet(), rmap.getMap().keySet());
+        Map<Event,Event> identities = new IdentityHashMap<Event,Event>();
+        for (Event event : rset.getSnapshot()) {
+            identities.put(event, event);
+        }
+        for (Event event : rother.getSnapshot()) {
+            assertTrue(identities.containsKey(event));
+        }
+        for (Event event : rmap.getMap().values()) {
+            assertTrue(identities.containsKey(event));
+        }
+    }
+
+    @Test
+    public void testPowersetRoundTrip() throws Exception {
+        HashPowerset<String> pset = makePowerset();
+        for (Event event : makeEvents(30, 100)) {
+            pset.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("pset", pset);
+        checkpoint.checkpoint();
+
+        HashPowerset<String> restored = makePowerset();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("pset", restored);
+        reader.restore();
+
+        assertEquals(pset.keySet(), restored.keySet());
+        for (String key : pset.keySet()) {
+            EventSet expected = pset.get(key);
+            EventSet actual = restored.get(key);
+            assertEquals(expected.getSnapshot(), actual.getSnapshot());
+            SumAbstraction expectedSum = (SumAbstraction) expected.registerAbstraction(new SumAbstraction(VALUE));
+            SumAbstraction actualSum = (SumAbstraction) actual.registerAbstraction(new SumAbstraction(VALUE));
+            assertEquals(expectedSum.getValue().doubleValue(), actualSum.getValue().doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testUnregisteredComponentIgnored() throws Exception {
+        EventSet set = new EventSet();
+        set.execute((AddEventTrigger) null, makeEvent(1000, 0, 1.0));
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("gone", new EventSet());
+        checkpoint.register("set", set);
+        checkpoint.checkpoint();
+
+        EventSet restored = new EventSet();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", restored);
+        assertTrue(reader.restore());
+        assertEquals(set.getSnapshot(), restored.getSnapshot());
+    }
+
+    @Test
+    public void testAsyncCheckpointUsesCapturedState() throws Exception {
+        EventSet set = new EventSet();
+        for (Event event : makeEvents(5, 1000)) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("set", set);
+        List<Event> expected = set.getSnapshot();
+        java.util.concurrent.Future<Void> future = checkpoint.checkpointAsync();
+        // changes after capture are not included in the checkpoint
+        set.execute((AddEventTrigger) null, makeEvent(100000, 99, 1.0));
+        future.get();
+        checkpoint.close();
+
+        EventSet restored = new EventSet();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", restored);
+        reader.restore();
+        assertEquals(expected, restored.getSnapshot());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testDeltaWindowRoundTrip() throws Exception {
+        DiscreteTimeWindow window = new DiscreteTimeWindow(IntervalUnit.SECONDS, 100);
+        StatisticsAbstraction stats = (StatisticsAbstraction) window.registerAbstraction(new StatisticsAbstraction(VALUE));
+        EventMap<String> map = (EventMap<String>) window.registerAbstraction(new EventMap<String>(KEY));
+        List<Event> events = makeEvents(200, 1000);
+        for (Event event : events.subList(0, 150)) {
+            window.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("window", window);
+        checkpoint.checkpoint();
+        long baseLength = file.length();
+
+        // each delta only holds the events added and expired since the previous checkpoint
+        for (int i = 150; i < 200; i += 10) {
+            long deltaLength = checkpoint.getDeltaFile().length();
+            for (Event event : events.subList(i, i + 10)) {
+                window.execute((AddEventTrigger) null, event);
+            }
+            checkpoint.checkpoint();
+            assertTrue(checkpoint.getDeltaFile().length() - deltaLength < baseLength / 2);
+        }
+        assertEquals(baseLength, file.length());
+
+        DiscreteTimeWindow restored = new DiscreteTimeWindow(IntervalUnit.SECONDS, 100);
+        StatisticsAbstraction rstats = (StatisticsAbstraction) restored.registerAbstraction(new StatisticsAbstraction(VALUE));
+        EventMap<String> rmap = (EventMap<String>) restored.registerAbstraction(new EventMap<String>(KEY));
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("window", restored);
+        assertTrue(reader.restore());
+
+        assertEquals(window.getSnapshot(), restored.getSnapshot());
+        assertEquals(stats.getCount(), rstats.getCount());
+        assertEquals(stats.getMean(), rstats.getMean(), 0.0);
+        assertEquals(map.getMap(), rmap.getMap());
+        // events written in different segments are restored as a single instance
+        Map<Event,Event> identities = new IdentityHashMap<Event,Event>();
+        for (Event event : restored.getSnapshot()) {
+            identities.put(event, event);
+        }
+        for (Event event : rmap.getMap().values()) {
+            assertTrue(identities.containsKey(event));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        EventSet set = new EventSet();
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.setMaxDeltas(2);
+        checkpoint.register("set", set);
+        List<Event> events = makeEvents(26, 1000);
+        for (Event event : events.subList(0, 20)) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        checkpoint.checkpoint();
+        List<Long> baseLengths = new ArrayList<Long>();
+        baseLengths.add(file.length());
+        for (int i = 20; i < 26; i += 2) {
+            for (Event event : events.subList(i, i + 2)) {
+                set.execute((AddEventTrigger) null, event);
+            }
+            checkpoint.checkpoint();
+            baseLengths.add(file.length());
+        }
+        // base, two deltas, then a new base
+        assertEquals(baseLengths.get(0), baseLengths.get(1));
+        assertEquals(baseLengths.get(0), baseLengths.get(2));
+        assertTrue(baseLengths.get(3) > baseLengths.get(2));
+
+        EventSet restored = new EventSet();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", restored);
+        reader.restore();
+        assertEquals(events, restored.getSnapshot());
+    }
+
+    @Test
+    public void testPowersetDeltaRoundTrip() throws Exception {
+        HashPowerset<String> pset = makePowerset();
+        List<Event> events = makeEvents(40, 100);
+        for (Event event : events.subList(0, 20)) {
+            pset.execute((AddEventTrigger) null, event);
+        }
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("pset", pset);
+        checkpoint.checkpoint();
+
+        // prune one subset, change another and leave the rest unchanged
+        for (Event event : events.subList(0, 20)) {
+            if (event.getHeader().getSequenceNumber() % 4 == 1) {
+                pset.execute((RemoveEventTrigger) null, event);
+            }
+        }
+        pset.execute((AddEventTrigger) null, events.get(22));
+        checkpoint.checkpoint();
+        assertFalse(pset.containsKey("k1"));
+
+        HashPowerset<String> restored = makePowerset();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("pset", restored);
+        reader.restore();
+
+        assertEquals(pset.keySet(), restored.keySet());
+        for (String key : pset.keySet()) {
+            assertEquals(pset.get(key).getSnapshot(), restored.get(key).getSnapshot());
+        }
+    }
+
+    @Test
+    public void testIncompleteDeltaIgnored() throws Exception {
+        EventSet set = new EventSet();
+        Checkpoint checkpoint = new Checkpoint(file);
+        checkpoint.register("set", set);
+        List<Event> events = makeEvents(15, 1000);
+        for (Event event : events.subList(0, 5)) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        checkpoint.checkpoint();
+        for (Event event : events.subList(5, 10)) {
+            set.execute((AddEventTrigger) null, event);
+        }
+        checkpoint.checkpoint();
+
+        // simulate a crash part way through writing a delta
+        RandomAccessFile raf = new RandomAccessFile(checkpoint.getDeltaFile(), "rw");
+        raf.seek(raf.length());
+        raf.writeInt(1000);
+        raf.writeInt(42);
+        raf.close();
+
+        EventSet restored = new EventSet();
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", restored);
+        assertTrue(reader.restore());
+        assertEquals(events.subList(0, 10), restored.getSnapshot());
+
+        // checkpoints continue from the restored state, replacing the incomplete delta
+        for (Event event : events.subList(10, 15)) {
+            restored.execute((AddEventTrigger) null, event);
+        }
+        reader.checkpoint();
+        EventSet again = new EventSet();
+        Checkpoint second = new Checkpoint(file);
+        second.register("set", again);
+        second.restore();
+        assertEquals(events, again.getSnapshot());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws Exception {
+        java.nio.file.Files.write(file.toPath(), "not a checkpoint".getBytes("UTF-8"));
+        Checkpoint reader = new Checkpoint(file);
+        reader.register("set", new EventSet());
+        reader.restore();
+    }
+
+    private static HashPowerset<String> makePowerset() {
+        HashPowerset<String> pset = new HashPowerset<String>(new EventKey.EventKeyRetriever<String>(KEY));
+        pset.registerAction(new NewSetAction<String>() {
+            public void execute(NewSetTrigger<String> trigger, EventSet es, String key) {
+                try {
+                    es.registerAbstraction(new StatisticsAbstraction(VALUE));
+                } catch (DuplicateAbstractionException exc) {
+                    fail("Unexpected duplicate abstraction");
+                }
+            }
+        });
+        return pset;
+    }
+
+    private static List<Event> makeEvents(int count, long interval) {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < count; i++) {
+            events.add(makeEvent(i * interval, i, i * 1.5));
+        }
+        return events;
+    }
+
+    private static Event makeEvent(long timestamp, int seq, double value) {
+        JSONObject json = new JSONObject();
+        json.put("key", "k" + Integer.toString(seq % 4));
+        json.put("value", value);
+        return new OrgJsonEvent(new JdoHeader(timestamp, seq, Sources.cache.getSourceByName("test")), json);
+    }
+}
@@ -15,8 +15,16 @@
 */
 package com.eventswarm.util;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.*;
 
 /**
@@ -30,6 +38,12 @@ public class SequencerTest {
         Sequencer.reset();
     }
 
+    @After
+    public void tearDown() throws Exception {
+        Sequencer.setLockFree(false);
+        Sequencer.reset();
+    }
+
     @Test
     public void testGetNext_first_forward() throws Exception {
         long time = 1;
@@ -73,4 +87,88 @@ public class SequencerTest {
         int result = instance.getNext(time);
         assertEquals(Integer.MAX_VALUE/2 + 1, result);
     }
+
+    @Test
+    public void testLockFree_forward() throws Exception {
+        Sequencer.setLockFree(true);
+        Sequencer instance = Sequencer.getInstance();
+        assertEquals(0, instance.getNext(1));
+        assertEquals(1, instance.getNext(1));
+        assertEquals(2, instance.getNext(1));
+        assertEquals(0, instance.getNext(2));
+    }
+
+    @Test
+    public void testLockFree_backward() throws Exception {
+        Sequencer.setLockFree(true);
+        Sequencer instance = Sequencer.getInstance();
+        instance.getNext(2);
+        assertEquals(Integer.MAX_VALUE/2, instance.getNext(1));
+        assertEquals(Integer.MAX_VALUE/2 + 1, instance.getNext(1));
+    }
+
+    @Test
+    public void testLockFree_outOfRange() throws Exception {
+        Sequencer.setLockFree(true);
+        Sequencer instance = Sequencer.getInstance();
+        assertEquals(Integer.MAX_VALUE/2, instance.getNext(Sequencer.MAX_PACKED_TIME + 1));
+        assertEquals(Integer.MAX_VALUE/2 + 1, instance.getNext(-1));
+    }
+
+    @Test
+    public void testSwitchMode_keepsState() throws Exception {
+        Sequencer instance = Sequencer.getInstance();
+        instance.getNext(5);
+        instance.getNext(5);
+        Sequencer.setLockFree(true);
+        assertTrue(Sequencer.isLockFree());
+        assertEquals(2, instance.getNext(5));
+        Sequencer.setLockFree(false);
+        assertEquals(3, instance.getNext(5));
+    }
+
+    @Test
+    public void testLockFree_concurrentUnique() throws Exception {
+        Sequencer.setLockFree(true);
+        final Sequencer instance = Sequencer.getInstance();
+        final int threads = 8, count = 10000;
+        final long time = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final List<Integer> result = new ArrayList<Integer>(count);
+            results.add(result);
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        result.add(instance.getNext(time));
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Set<Integer> all = new HashSet<Integer>();
+        for (List<Integer> result : results) {
+            // each thread sees strictly increasing sequence numbers for the same timestamp
+            for (int i = 1; i < result.size(); i++) {
+                assertTrue(result.get(i) > result.get(i-1));
+            }
+            all.addAll(result);
+        }
+        assertEquals(threads * count, all.size());
+        for (int i = 0; i < threads * count; i++) {
+            assertTrue(all.contains(i));
+        }
+    }
 }